@@ -3,11 +3,13 @@ package ru.ohapegor.widgets;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.transaction.annotation.EnableTransactionManagement;
 import ru.ohapegor.widgets.config.WidgetServiceProps;
 
 @SpringBootApplication
 @EnableTransactionManagement
+@EnableScheduling
 @EnableConfigurationProperties(WidgetServiceProps.class)
 public class WidgetsServiceApplication {
 
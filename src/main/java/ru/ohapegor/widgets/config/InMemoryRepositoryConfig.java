@@ -5,8 +5,14 @@ import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryGridWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryLsmRTreeWidgetsRepository;
 import ru.ohapegor.widgets.repository.memory.InMemoryMapsWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryPackedRTreeWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryPersistentRTreeWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryQuadtreeWidgetsRepository;
 import ru.ohapegor.widgets.repository.memory.InMemoryRTreeWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.rtree.InsertionStrategy;
 
 @Configuration
 @Slf4j
@@ -21,8 +27,59 @@ public class InMemoryRepositoryConfig {
 
     @Bean
     @ConditionalOnProperty(value = "widgets.repository", havingValue = "r-tree")
-    public WidgetsRepository inMemoryRtreeWidgetsRepository() {
+    public WidgetsRepository inMemoryRtreeWidgetsRepository(WidgetServiceProps props) {
         log.info("initializing context with widgets in memory r-tree repository implementation");
-        return new InMemoryRTreeWidgetsRepository();
+        var spatialIndexProps = props.getSpatialIndex();
+        return new InMemoryRTreeWidgetsRepository(spatialIndexProps.getRtreeMinEntries(),
+                spatialIndexProps.getRtreeMaxEntries(), spatialIndexProps.getRtreeInsertionStrategy(),
+                spatialIndexProps.getParallelSearchThreshold(), spatialIndexProps.getRtreeLooseMargin());
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "hilbert-r-tree")
+    public WidgetsRepository inMemoryHilbertRtreeWidgetsRepository(WidgetServiceProps props) {
+        log.info("initializing context with widgets in memory hilbert r-tree repository implementation");
+        var spatialIndexProps = props.getSpatialIndex();
+        return new InMemoryRTreeWidgetsRepository(spatialIndexProps.getRtreeMinEntries(),
+                spatialIndexProps.getRtreeMaxEntries(), InsertionStrategy.HILBERT,
+                spatialIndexProps.getParallelSearchThreshold(), spatialIndexProps.getRtreeLooseMargin());
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "grid")
+    public WidgetsRepository inMemoryGridWidgetsRepository(WidgetServiceProps props) {
+        log.info("initializing context with widgets in memory uniform grid repository implementation");
+        return new InMemoryGridWidgetsRepository(props.getSpatialIndex().getGridCellSize());
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "quadtree")
+    public WidgetsRepository inMemoryQuadtreeWidgetsRepository(WidgetServiceProps props) {
+        log.info("initializing context with widgets in memory region quadtree repository implementation");
+        return new InMemoryQuadtreeWidgetsRepository(props.getSpatialIndex().getQuadtreeBucketCapacity());
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "persistent-r-tree")
+    public WidgetsRepository inMemoryPersistentRtreeWidgetsRepository(WidgetServiceProps props) {
+        log.info("initializing context with widgets in memory persistent r-tree repository implementation");
+        var spatialIndexProps = props.getSpatialIndex();
+        return new InMemoryPersistentRTreeWidgetsRepository(spatialIndexProps.getRtreeMinEntries(),
+                spatialIndexProps.getRtreeMaxEntries());
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "packed-r-tree")
+    public WidgetsRepository inMemoryPackedRtreeWidgetsRepository() {
+        log.info("initializing context with widgets in memory packed r-tree repository implementation");
+        return new InMemoryPackedRTreeWidgetsRepository();
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "widgets.repository", havingValue = "lsm-r-tree")
+    public WidgetsRepository inMemoryLsmRtreeWidgetsRepository(WidgetServiceProps props) {
+        log.info("initializing context with widgets in memory log-structured r-tree repository implementation");
+        return new InMemoryLsmRTreeWidgetsRepository(props.getSpatialIndex().getLsmBufferCapacity(),
+                props.getSpatialIndex().getLsmCompactionPeriodMs());
     }
 }
@@ -5,9 +5,15 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.validation.annotation.Validated;
+import ru.ohapegor.widgets.repository.memory.InMemoryRTreeWidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.rtree.InsertionStrategy;
 
+import javax.validation.Valid;
+import javax.validation.constraints.AssertTrue;
 import javax.validation.constraints.NotBlank;
+import javax.validation.constraints.NotNull;
 import javax.validation.constraints.Positive;
+import javax.validation.constraints.PositiveOrZero;
 
 @Validated
 @ConfigurationProperties(prefix = "widgets")
@@ -21,4 +27,99 @@ public class WidgetServiceProps {
     private int writeTimeoutMs;
     @NotBlank
     private String repository;
+    @Valid
+    @NotNull
+    private SpatialIndexProps spatialIndex = new SpatialIndexProps();
+
+    public WidgetServiceProps(int readTimeoutMs, int writeTimeoutMs, String repository) {
+        this(readTimeoutMs, writeTimeoutMs, repository, new SpatialIndexProps());
+    }
+
+    /**
+     * Settings of spatial indexes used by in memory repositories
+     */
+    @Data
+    public static class SpatialIndexProps {
+        /**
+         * minimal count of entries in subtree for which search is split between threads of common fork join pool,
+         * 0 disables parallel search
+         */
+        @PositiveOrZero
+        private int parallelSearchThreshold;
+        /**
+         * minimum count of children in one node of r-tree, must be less than maximum one,
+         * hilbert and persistent r-trees require it to be at most half of maximum one + 1
+         */
+        @Positive
+        private int rtreeMinEntries = InMemoryRTreeWidgetsRepository.DEFAULT_MIN_ENTRIES;
+        /**
+         * maximum count of children in one node of r-tree
+         */
+        @Positive
+        private int rtreeMaxEntries = InMemoryRTreeWidgetsRepository.DEFAULT_MAX_ENTRIES;
+        /**
+         * algorithms used by r-tree to choose subtree and to split nodes, hilbert r-tree repository always uses
+         * {@link InsertionStrategy#HILBERT}
+         */
+        @NotNull
+        private InsertionStrategy rtreeInsertionStrategy = InsertionStrategy.GUTTMAN_LINEAR;
+        /**
+         * margin by which widgets are enlarged in r-tree, so that widget moved by less than margin
+         * is updated without modifying r-tree, 0 indexes exact dimensions of widgets
+         */
+        @PositiveOrZero
+        private int rtreeLooseMargin;
+        /**
+         * maximum count of widgets r-tree configurations are measured on by calibration
+         */
+        @Positive
+        private int calibrationSampleSize = 10000;
+        /**
+         * expected count of searches per modification, calibration weights search cost with it
+         */
+        @PositiveOrZero
+        private double calibrationReadsPerWrite = 10;
+        /**
+         * period of checking quality of spatial index by background maintenance
+         */
+        @Positive
+        private long maintenancePeriodMs = 60000;
+        /**
+         * spatial index is rebuilt by background maintenance if its nodes are filled less on average
+         */
+        @PositiveOrZero
+        private double maintenanceMinFillFactor = 0.5;
+        /**
+         * spatial index is rebuilt by background maintenance if two its sibling subtrees overlap more on average,
+         * overlap is measured as part of parent node area from 0 to 1
+         */
+        @Positive
+        private double maintenanceMaxOverlapRatio = 0.25;
+        /**
+         * side of square cell of uniform grid, should be comparable with typical size of widgets
+         */
+        @Positive
+        private int gridCellSize = 100;
+        /**
+         * maximum count of entries in region quadtree leaf, leaf is split into quadrants when it overflows
+         */
+        @Positive
+        private int quadtreeBucketCapacity = 16;
+        /**
+         * count of widgets saved to log-structured r-tree since its last compaction, after which it is compacted
+         * without waiting for the compaction period
+         */
+        @Positive
+        private int lsmBufferCapacity = 256;
+        /**
+         * period of background compaction of widgets saved to log-structured r-tree into packed trees
+         */
+        @Positive
+        private long lsmCompactionPeriodMs = 100;
+
+        @AssertTrue(message = "rtreeMinEntries must be less than rtreeMaxEntries")
+        public boolean isRtreeEntriesRangeValid() {
+            return rtreeMinEntries < rtreeMaxEntries;
+        }
+    }
 }
@@ -1,11 +1,14 @@
 package ru.ohapegor.widgets.controller;
 
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.ArraySchema;
 import io.swagger.v3.oas.annotations.media.Content;
 import io.swagger.v3.oas.annotations.media.Schema;
 import io.swagger.v3.oas.annotations.responses.ApiResponse;
 import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.http.HttpStatus;
@@ -21,15 +24,21 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import ru.ohapegor.widgets.model.QueryMode;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.dto.WidgetDTO;
+import ru.ohapegor.widgets.dto.WidgetsOverlapDTO;
 import ru.ohapegor.widgets.model.WidgetEntity;
 import ru.ohapegor.widgets.mapper.WidgetsMapper;
+import ru.ohapegor.widgets.service.OverlapSearch;
 import ru.ohapegor.widgets.service.WidgetsService;
 
 import javax.validation.Valid;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
 
@@ -47,6 +56,7 @@ public class WidgetsController {
 
     private final WidgetsService service;
     private final WidgetsMapper mapper;
+    private final ObjectMapper objectMapper;
 
     @Operation(summary = "Get widget by id")
     @ApiResponse(responseCode = "200", description = "widget is found")
@@ -67,7 +77,10 @@ public class WidgetsController {
                 .orElseGet(() -> ResponseEntity.notFound().build());
     }
 
-    @Operation(summary = "Get a list of widgets with pagination and filtered by area")
+    @Operation(summary = "Get a list of widgets with pagination and filtered by area",
+            description = "mode defines which widgets match area: INSIDE - widgets fully inside area (default), "
+                    + "INTERSECTS - widgets having common points with area, CONTAINS - widgets covering the whole area, "
+                    + "which requires all area borders")
     @ApiResponse(
             responseCode = "200",
             description = "widgets list in response",
@@ -85,10 +98,15 @@ public class WidgetsController {
             @RequestParam(required = false) Integer minX,
             @RequestParam(required = false) Integer minY,
             @RequestParam(required = false) Integer maxX,
-            @RequestParam(required = false) Integer maxY
+            @RequestParam(required = false) Integer maxY,
+            @RequestParam(required = false, defaultValue = "INSIDE") QueryMode mode,
+            @RequestParam(required = false) Integer minZ,
+            @RequestParam(required = false) Integer maxZ
     ) {
         var areaFilter = SearchArea.builder()
                 .minX(minX).minY(minY).maxX(maxX).maxY(maxY)
+                .mode(mode)
+                .minZ(minZ).maxZ(maxZ)
                 .build();
 
         log.debug("requested widgets page={}, size={}, with filter={}", page, size, areaFilter);
@@ -107,6 +125,103 @@ public class WidgetsController {
                 .body(widgetDTOPage.getContent());
     }
 
+    @Operation(summary = "Get widgets containing point, topmost first")
+    @ApiResponse(
+            responseCode = "200",
+            description = "widgets list in descending order of z in response",
+            content = {@Content(mediaType = APPLICATION_JSON_VALUE, array = @ArraySchema(schema = @Schema(implementation = WidgetDTO.class)))}
+    )
+    @GetMapping(path = "/at-point", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<WidgetDTO> findAtPoint(
+            @RequestParam int x,
+            @RequestParam int y,
+            @Valid @Min(1) @Max(500) @RequestParam(required = false, defaultValue = "1") int limit
+    ) {
+        log.debug("requested widgets at point x={}, y={}, limit={}", x, y, limit);
+        return service.findAtPoint(x, y, limit)
+                .stream()
+                .map(mapper::toDto)
+                .collect(Collectors.toList());
+    }
+
+    @Operation(summary = "Get widgets nearest to point or rectangle",
+            description = "distance is the minimal distance between points of widget and rectangle with corner in (x, y) "
+                    + "and given width and height, widgets at the same distance are ordered by z")
+    @ApiResponse(
+            responseCode = "200",
+            description = "widgets list in ascending order of distance in response",
+            content = {@Content(mediaType = APPLICATION_JSON_VALUE, array = @ArraySchema(schema = @Schema(implementation = WidgetDTO.class)))}
+    )
+    @GetMapping(path = "/nearest", produces = MediaType.APPLICATION_JSON_VALUE)
+    public List<WidgetDTO> findNearest(
+            @RequestParam int x,
+            @RequestParam int y,
+            @Valid @Min(0) @RequestParam(required = false, defaultValue = "0") int width,
+            @Valid @Min(0) @RequestParam(required = false, defaultValue = "0") int height,
+            @Valid @Min(1) @Max(500) @RequestParam(required = false, defaultValue = "10") int limit
+    ) {
+        log.debug("requested widgets nearest to x={}, y={}, width={}, height={}, limit={}", x, y, width, height, limit);
+        return service.findNearest(x, y, (int) Math.min((long) x + width, Integer.MAX_VALUE),
+                        (int) Math.min((long) y + height, Integer.MAX_VALUE), limit)
+                .stream()
+                .map(mapper::toDto)
+                .collect(Collectors.toList());
+    }
+
+    @Operation(summary = "Get all pairs of overlapping widgets, optionally filtered by area",
+            description = "pairs are streamed as they are found, widgets touching each other by border are not overlapping")
+    @ApiResponse(
+            responseCode = "200",
+            description = "list of overlapping pairs in response",
+            content = {@Content(mediaType = APPLICATION_JSON_VALUE, array = @ArraySchema(schema = @Schema(implementation = WidgetsOverlapDTO.class)))}
+    )
+    @ApiResponse(
+            responseCode = "400",
+            description = "request parameters are not valid",
+            content = {@Content(mediaType = APPLICATION_JSON_VALUE, schema = @Schema(implementation = ApiError.class))}
+    )
+    @GetMapping(path = "/overlaps", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> findOverlaps(
+            @RequestParam(required = false) Integer minX,
+            @RequestParam(required = false) Integer minY,
+            @RequestParam(required = false) Integer maxX,
+            @RequestParam(required = false) Integer maxY,
+            @RequestParam(required = false, defaultValue = "INSIDE") QueryMode mode,
+            @RequestParam(required = false) Integer minZ,
+            @RequestParam(required = false) Integer maxZ
+    ) {
+        var areaFilter = SearchArea.builder()
+                .minX(minX).minY(minY).maxX(maxX).maxY(maxY)
+                .mode(mode)
+                .minZ(minZ).maxZ(maxZ)
+                .build();
+
+        log.debug("requested overlapping widgets with filter={}", areaFilter);
+
+        if (!isValid(areaFilter)) {
+            var apiError = new ApiError(HttpStatus.BAD_REQUEST, "invalid area filter : " + areaFilter);
+            return ResponseEntity.badRequest()
+                    .contentType(MediaType.APPLICATION_JSON)
+                    .body(outputStream -> objectMapper.writeValue(outputStream, apiError));
+        }
+
+        // search is prepared before response is committed, so that lock timeout is reported with error status
+        OverlapSearch search = service.prepareOverlappingPairsSearch(areaFilter);
+        StreamingResponseBody body = outputStream -> {
+            try (JsonGenerator generator = objectMapper.getFactory().createGenerator(outputStream)) {
+                generator.writeStartArray();
+                search.run((bottomId, topId) -> {
+                    writeOverlap(generator, bottomId, topId);
+                    return true;
+                });
+                generator.writeEndArray();
+            }
+        };
+        return ResponseEntity.ok()
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(body);
+    }
+
     @Operation(summary = "Crate new widget")
     @PostMapping(
             produces = MediaType.APPLICATION_JSON_VALUE,
@@ -153,6 +268,30 @@ public class WidgetsController {
         return ResponseEntity.noContent().build();
     }
 
+    @Operation(summary = "Calibrate spatial index",
+            description = "measures r-tree configurations on sample of stored widgets and rebuilds index with the best one")
+    @ApiResponse(responseCode = "204", description = "spatial index is calibrated")
+    @ApiResponse(
+            responseCode = "400",
+            description = "spatial index of configured repository can't be calibrated "
+                    + "or widgets were replaced during calibration",
+            content = {@Content(mediaType = APPLICATION_JSON_VALUE, schema = @Schema(implementation = ApiError.class))}
+    )
+    @PostMapping(path = "/spatial-index/calibration")
+    public ResponseEntity<?> calibrateSpatialIndex() {
+        log.debug("requested calibration of spatial index");
+        if (!service.calibrateSpatialIndex()) {
+            return buildBadRequest("spatial index of configured repository can't be calibrated "
+                    + "or widgets were replaced during calibration");
+        }
+        return ResponseEntity.noContent().build();
+    }
+
+    @SneakyThrows
+    private void writeOverlap(JsonGenerator generator, String bottomId, String topId) {
+        generator.writeObject(new WidgetsOverlapDTO(bottomId, topId));
+    }
+
     private boolean isValid(SearchArea areaFilter) {
         if (areaFilter.getMinX() != null && areaFilter.getMaxX() != null && areaFilter.getMaxX() < areaFilter.getMinX()) {
             return false;
@@ -160,6 +299,13 @@ public class WidgetsController {
         if (areaFilter.getMinY() != null && areaFilter.getMaxY() != null && areaFilter.getMaxY() < areaFilter.getMinY()) {
             return false;
         }
+        if (areaFilter.getMinZ() != null && areaFilter.getMaxZ() != null && areaFilter.getMaxZ() < areaFilter.getMinZ()) {
+            return false;
+        }
+        if (areaFilter.getMode() == QueryMode.CONTAINS && (areaFilter.getMinX() == null || areaFilter.getMinY() == null
+                || areaFilter.getMaxX() == null || areaFilter.getMaxY() == null)) {
+            return false;
+        }
         return true;
     }
 
@@ -0,0 +1,16 @@
+package ru.ohapegor.widgets.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class WidgetsOverlapDTO {
+
+    private String bottomId;
+
+    private String topId;
+
+}
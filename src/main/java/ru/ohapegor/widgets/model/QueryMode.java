@@ -0,0 +1,23 @@
+package ru.ohapegor.widgets.model;
+
+/**
+ * Relation between widget rectangle and {@link SearchArea} required for widget to match search area.
+ * Null borders of search area are treated as infinite.
+ */
+public enum QueryMode {
+
+    /**
+     * Widget is fully inside search area, borders included.
+     */
+    INSIDE,
+
+    /**
+     * Widget and search area have at least one common point, borders included.
+     */
+    INTERSECTS,
+
+    /**
+     * Widget fully covers search area, borders included. Search area with null borders can't be contained.
+     */
+    CONTAINS
+}
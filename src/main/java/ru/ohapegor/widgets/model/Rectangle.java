@@ -1,7 +1,5 @@
 package ru.ohapegor.widgets.model;
 
-import java.math.BigDecimal;
-
 public interface Rectangle {
     int getX();
 
@@ -27,8 +25,33 @@ public interface Rectangle {
         return getY() + getHeight();
     }
 
-    default BigDecimal getArea() {
-        return BigDecimal.valueOf(getWidth()).multiply(BigDecimal.valueOf(getHeight()));
+    default long getArea() {
+        return (long) getWidth() * getHeight();
+    }
+
+    /**
+     * @return true if point is inside of rectangle or on its border
+     */
+    default boolean containsPoint(int pointX, int pointY) {
+        return getMinX() <= pointX && pointX <= getMaxX() && getMinY() <= pointY && pointY <= getMaxY();
+    }
+
+    /**
+     * @return squared minimal distance between points of this rectangle and given one, 0 if they intersect
+     */
+    default double squaredDistanceTo(int minX, int minY, int maxX, int maxY) {
+        return squaredDistance(getMinX(), getMinY(), getMaxX(), getMaxY(), minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Squared distance is calculated in double, since distance between int coordinates doesn't fit into int
+     * and its square doesn't fit into long.
+     */
+    static double squaredDistance(int firstMinX, int firstMinY, int firstMaxX, int firstMaxY,
+                                  int secondMinX, int secondMinY, int secondMaxX, int secondMaxY) {
+        double dx = Math.max(0, Math.max((long) secondMinX - firstMaxX, (long) firstMinX - secondMaxX));
+        double dy = Math.max(0, Math.max((long) secondMinY - firstMaxY, (long) firstMinY - secondMaxY));
+        return dx * dx + dy * dy;
     }
 
     default boolean matchDimensions(Rectangle another) {
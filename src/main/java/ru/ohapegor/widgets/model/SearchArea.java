@@ -5,8 +5,6 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
-import java.util.Optional;
-
 @Data
 @Builder
 @AllArgsConstructor
@@ -16,34 +14,162 @@ public class SearchArea {
     private Integer minY;
     private Integer maxX;
     private Integer maxY;
+    @Builder.Default
+    private QueryMode mode = QueryMode.INSIDE;
+    /**
+     * range of z indexes of matching widgets, null borders are infinite
+     */
+    private Integer minZ;
+    private Integer maxZ;
+
+    public SearchArea(Integer minX, Integer minY, Integer maxX, Integer maxY) {
+        this(minX, minY, maxX, maxY, QueryMode.INSIDE);
+    }
+
+    public SearchArea(Integer minX, Integer minY, Integer maxX, Integer maxY, QueryMode mode) {
+        this(minX, minY, maxX, maxY, mode, null, null);
+    }
+
+    /**
+     * @return true if widget matches search area according to {@link SearchArea#mode} and its z index is inside
+     * of z range, widget without z index doesn't match search area with z range
+     */
+    public boolean matches(WidgetEntity widget) {
+        if (widget.getZ() == null) {
+            return minZ == null && maxZ == null && matches((Rectangle) widget);
+        }
+        return matches(widget.getMinX(), widget.getMinY(), widget.getMaxX(), widget.getMaxY(), widget.getZ(), widget.getZ());
+    }
+
+    /**
+     * Check only rectangle against search area, z range is not checked.
+     */
+    public boolean matches(Rectangle rectangle) {
+        return matches(rectangle.getMinX(), rectangle.getMinY(), rectangle.getMaxX(), rectangle.getMaxY());
+    }
+
+    /**
+     * @return true if rectangle matches search area according to {@link SearchArea#mode}
+     * and the whole range of z indexes is inside of z range of search area
+     */
+    public boolean matches(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY, int rectMinZ, int rectMaxZ) {
+        return includesZRange(rectMinZ, rectMaxZ) && matches(rectMinX, rectMinY, rectMaxX, rectMaxY);
+    }
+
+    /**
+     * @return true if rectangle matches search area according to {@link SearchArea#mode}, z range is not checked
+     */
+    public boolean matches(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        switch (mode) {
+            case INTERSECTS:
+                return intersects(rectMinX, rectMinY, rectMaxX, rectMaxY);
+            case CONTAINS:
+                return isCoveredBy(rectMinX, rectMinY, rectMaxX, rectMaxY);
+            default:
+                return includes(rectMinX, rectMinY, rectMaxX, rectMaxY);
+        }
+    }
+
+    /**
+     * Check bounds of spatial index node, so that subtrees which can't hold matching rectangles are skipped.
+     *
+     * @return true if some rectangles inside given bounds with z indexes inside given range may match search area
+     */
+    public boolean mayHaveMatchesInside(int boundsMinX, int boundsMinY, int boundsMaxX, int boundsMaxY,
+                                        int boundsMinZ, int boundsMaxZ) {
+        if (!isZRangeOverlap(boundsMinZ, boundsMaxZ)) {
+            return false;
+        }
+        switch (mode) {
+            case INTERSECTS:
+                return intersects(boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
+            case CONTAINS:
+                return isCoveredBy(boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
+            default:
+                return isOverlap(boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
+        }
+    }
+
+    /**
+     * Check bounds of spatial index node, so that subtrees which hold only matching rectangles are counted as a whole.
+     *
+     * @return true if every rectangle inside given bounds with z indexes inside given range matches search area
+     */
+    public boolean allMatchInside(int boundsMinX, int boundsMinY, int boundsMaxX, int boundsMaxY,
+                                  int boundsMinZ, int boundsMaxZ) {
+        return mode != QueryMode.CONTAINS && includesZRange(boundsMinZ, boundsMaxZ)
+                && includes(boundsMinX, boundsMinY, boundsMaxX, boundsMaxY);
+    }
+
+    /**
+     * @return true if the whole range of z indexes is inside of z range of search area
+     */
+    public boolean includesZRange(int rangeMinZ, int rangeMaxZ) {
+        return (minZ == null || rangeMinZ >= minZ) && (maxZ == null || rangeMaxZ <= maxZ);
+    }
+
+    /**
+     * @return true if range of z indexes has common values with z range of search area
+     */
+    public boolean isZRangeOverlap(int rangeMinZ, int rangeMaxZ) {
+        return (minZ == null || rangeMaxZ >= minZ) && (maxZ == null || rangeMinZ <= maxZ);
+    }
 
     public boolean includes(Rectangle rectangle) {
-        if (maxX != null && rectangle.getMaxX() > maxX) {
+        return includes(rectangle.getMinX(), rectangle.getMinY(), rectangle.getMaxX(), rectangle.getMaxY());
+    }
+
+    /**
+     * Primitive version of {@link SearchArea#includes(Rectangle)} for checking rectangles stored as plain coordinates.
+     */
+    public boolean includes(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        if (maxX != null && rectMaxX > maxX) {
             return false;
         }
-        if (maxY != null && rectangle.getMaxY() > maxY) {
+        if (maxY != null && rectMaxY > maxY) {
             return false;
         }
-        if (minX != null && rectangle.getMinX() < minX) {
+        if (minX != null && rectMinX < minX) {
             return false;
         }
-        if (minY != null && rectangle.getMinY() < minY) {
+        if (minY != null && rectMinY < minY) {
             return false;
         }
         return true;
     }
 
     public boolean isOverlap(Rectangle rectangle) {
-        return isOverlapByX(rectangle) && isOverlapByY(rectangle);
+        return isOverlap(rectangle.getMinX(), rectangle.getMinY(), rectangle.getMaxX(), rectangle.getMaxY());
+    }
+
+    /**
+     * Primitive version of {@link SearchArea#isOverlap(Rectangle)} for checking rectangles stored as plain coordinates.
+     */
+    public boolean isOverlap(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        return isOverlapByX(rectMinX, rectMaxX) && isOverlapByY(rectMinY, rectMaxY);
+    }
+
+    /**
+     * Unlike {@link SearchArea#isOverlap(Rectangle)} rectangles touching search area by border are intersecting it.
+     */
+    public boolean intersects(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        return (maxX == null || rectMinX <= maxX) && (minX == null || rectMaxX >= minX)
+                && (maxY == null || rectMinY <= maxY) && (minY == null || rectMaxY >= minY);
+    }
+
+    /**
+     * @return true if rectangle covers the whole search area, always false for search area with null borders
+     */
+    public boolean isCoveredBy(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        return minX != null && minY != null && maxX != null && maxY != null
+                && rectMinX <= minX && rectMaxX >= maxX && rectMinY <= minY && rectMaxY >= maxY;
     }
 
-    private boolean isOverlapByX(Rectangle rectangle) {
-            return Optional.ofNullable(maxX).map(maxX -> rectangle.getMinX() < maxX).orElse(true) &&
-                Optional.ofNullable(minX).map(minX -> rectangle.getMaxX() > minX).orElse(true);
+    private boolean isOverlapByX(int rectMinX, int rectMaxX) {
+        return (maxX == null || rectMinX < maxX) && (minX == null || rectMaxX > minX);
     }
 
-    private boolean isOverlapByY(Rectangle rectangle) {
-        return Optional.ofNullable(maxY).map(maxY -> rectangle.getMinY() < maxY).orElse(true) &&
-                Optional.ofNullable(minY).map(minY -> rectangle.getMaxY() > minY).orElse(true);
+    private boolean isOverlapByY(int rectMinY, int rectMaxY) {
+        return (maxY == null || rectMinY < maxY) && (minY == null || rectMaxY > minY);
     }
 }
@@ -0,0 +1,16 @@
+package ru.ohapegor.widgets.repository;
+
+/**
+ * Callback which receives ids of overlapping widgets found by
+ * {@link WidgetsRepository#findOverlappingPairs} pair by pair.
+ */
+@FunctionalInterface
+public interface OverlapVisitor {
+
+    /**
+     * @param bottomId - id of widget with lower z
+     * @param topId    - id of widget with higher z
+     * @return true to continue search, false to stop it
+     */
+    boolean visit(String bottomId, String topId);
+}
@@ -0,0 +1,21 @@
+package ru.ohapegor.widgets.repository;
+
+/**
+ * Rebuild of spatial index prepared by {@link WidgetsRepository#prepareSpatialIndexRebuild}
+ * or {@link WidgetsRepository#prepareSpatialIndexCalibration}: expensive part of work is done on snapshot
+ * of widgets without blocking repository and then applied, catching up with modifications made after the snapshot.
+ */
+public interface SpatialIndexRebuild {
+
+    /**
+     * Build new spatial index or measure its configurations, safe to invoke concurrently with any repository operations.
+     */
+    void build();
+
+    /**
+     * Replace spatial index of repository with the built one, must be serialized with modifications of repository.
+     *
+     * @return false if rebuild is obsolete, since content or configuration of repository has been replaced
+     */
+    boolean apply();
+}
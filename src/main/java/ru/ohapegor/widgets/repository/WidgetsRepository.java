@@ -5,6 +5,8 @@ import org.springframework.data.domain.Pageable;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Optional;
 
 public interface WidgetsRepository {
@@ -21,11 +23,84 @@ public interface WidgetsRepository {
 
     Integer getMaxZ();
 
+    /**
+     * Free z index by shifting widget having it and every widget above it up to the first gap in z indexes by one
+     * in a single operation, without finding and saving shifted widgets one by one.
+     *
+     * @return false if repository doesn't support shifting, so that widgets should be shifted one by one
+     * @throws ArithmeticException if z index of the topmost shifted widget overflows
+     */
+    default boolean shiftZ(int z) {
+        return false;
+    }
+
     void deleteAll();
 
     Page<WidgetEntity> getPage(Pageable pageable, SearchArea filter);
 
     long count();
 
+    /**
+     * Find widgets containing point, including widgets having point on their border.
+     *
+     * @param limit - maximum count of widgets to return
+     * @return widgets in descending order of z, topmost widget first
+     */
+    List<WidgetEntity> findAtPoint(int x, int y, int limit);
+
+    /**
+     * Find widgets nearest to rectangle, distance is the minimal distance between points of widget and rectangle.
+     * Point can be passed as rectangle with zero sides.
+     *
+     * @param limit - maximum count of widgets to return
+     * @return widgets in ascending order of distance, widgets at the same distance are ordered by z
+     */
+    List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit);
+
+    /**
+     * Pass ids of every pair of overlapping widgets (having common inner points), which both match search area,
+     * to visitor as soon as they are found. Search stops as soon as visitor returns false.
+     */
+    void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor);
+
     void saveAll(Iterable<WidgetEntity> updatedWidgets);
+
+    /**
+     * Replaces all stored widgets with given ones in one bulk operation.
+     * Widgets are expected to have unique non-null z.
+     */
+    void replaceAll(Collection<WidgetEntity> widgets);
+
+    /**
+     * @return true if {@link WidgetsRepository#findById} and {@link WidgetsRepository#getPage} are safe
+     * to call concurrently with modifications, so that service doesn't need to lock reads.
+     */
+    default boolean supportsLockFreeReads() {
+        return false;
+    }
+
+    /**
+     * Take sample of stored widgets to choose configuration of spatial index: candidate configurations are measured
+     * on sample when calibration is built and index is rebuilt with the best one when calibration is applied.
+     * Must be serialized with modifications, since sample of widgets is taken, but may run concurrently with reads.
+     *
+     * @param sampleSize    - maximum count of widgets the configurations are measured on
+     * @param readsPerWrite - expected count of searches per modification, weight of search cost against insert cost
+     * @return calibration of spatial index or empty if repository has no configurable spatial index
+     */
+    default Optional<SpatialIndexRebuild> prepareSpatialIndexCalibration(int sampleSize, double readsPerWrite) {
+        return Optional.empty();
+    }
+
+    /**
+     * Measure quality of spatial index and prepare its rebuild if it is degraded. Must be serialized
+     * with modifications, since snapshot of widgets is taken, but may run concurrently with reads.
+     *
+     * @param minFillFactor   - rebuild is required if nodes of index are filled less on average
+     * @param maxOverlapRatio - rebuild is required if subtrees of index overlap more on average
+     * @return rebuild of spatial index or empty if index doesn't need to be rebuilt or can't be rebuilt
+     */
+    default Optional<SpatialIndexRebuild> prepareSpatialIndexRebuild(double minFillFactor, double maxOverlapRatio) {
+        return Optional.empty();
+    }
 }
@@ -1,9 +1,11 @@
 package ru.ohapegor.widgets.repository.database;
 
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.data.repository.PagingAndSortingRepository;
 import ru.ohapegor.widgets.model.WidgetEntity;
 
+import java.util.List;
 import java.util.Optional;
 
 public interface WidgetsDataJpaRepository extends PagingAndSortingRepository<WidgetEntity, String> {
@@ -15,4 +17,29 @@ public interface WidgetsDataJpaRepository extends PagingAndSortingRepository<Wid
     @Query(value = "SELECT max(z) FROM widgets", nativeQuery = true)
     Integer findMaxZ();
 
+    @Query(value = "SELECT max(width) FROM widgets", nativeQuery = true)
+    Integer findMaxWidth();
+
+    @Query(value = "SELECT max(height) FROM widgets", nativeQuery = true)
+    Integer findMaxHeight();
+
+    /**
+     * Nearest widgets to rectangle among widgets intersecting box, ordered by squared minimal distance between points
+     * of widget and rectangle. Box borders are applied to x and y directly, so that candidates are taken by their
+     * indexes, sum of coordinate and size is calculated in bigint to avoid overflow.
+     */
+    @Query(value = "SELECT * FROM widgets "
+            + "WHERE x BETWEEN :boxMinX AND :boxMaxX AND y BETWEEN :boxMinY AND :boxMaxY "
+            + "AND CAST(x AS BIGINT) + width >= :boxLeft AND CAST(y AS BIGINT) + height >= :boxBottom "
+            + "ORDER BY "
+            + "POWER(GREATEST(0, :minX - (CAST(x AS BIGINT) + width), x - CAST(:maxX AS BIGINT)), 2) "
+            + "+ POWER(GREATEST(0, :minY - (CAST(y AS BIGINT) + height), y - CAST(:maxY AS BIGINT)), 2), z "
+            + "LIMIT :limit", nativeQuery = true)
+    List<WidgetEntity> findNearestInBox(@Param("minX") int minX, @Param("minY") int minY,
+                                        @Param("maxX") int maxX, @Param("maxY") int maxY,
+                                        @Param("boxMinX") int boxMinX, @Param("boxMinY") int boxMinY,
+                                        @Param("boxMaxX") int boxMaxX, @Param("boxMaxY") int boxMaxY,
+                                        @Param("boxLeft") long boxLeft, @Param("boxBottom") long boxBottom,
+                                        @Param("limit") int limit);
+
 }
@@ -4,26 +4,34 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
+import ru.ohapegor.widgets.model.QueryMode;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
 
 import javax.persistence.EntityManager;
 import javax.persistence.TypedQuery;
 import javax.persistence.criteria.CriteriaBuilder;
 import javax.persistence.criteria.CriteriaQuery;
+import javax.persistence.criteria.Expression;
 import javax.persistence.criteria.Predicate;
 import javax.persistence.criteria.Root;
 import javax.transaction.Transactional;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 
 @Transactional
 @Slf4j
 public class WidgetsH2Repository implements WidgetsRepository {
 
+    private static final long NEAREST_SEARCH_INITIAL_MARGIN = 128;
+
     private final WidgetsDataJpaRepository repository;
     private final EntityManager entityManager;
 
@@ -81,25 +89,8 @@ public class WidgetsH2Repository implements WidgetsRepository {
         CriteriaQuery<Long> selectT = totalQ.select(cb.count(fromT));
 
         if (filter != null) {
-            List<Predicate> predicatesW = new ArrayList<>();
-            List<Predicate> predicatesT = new ArrayList<>();
-
-            if (filter.getMinX() != null) {
-                predicatesW.add(cb.ge(fromW.get("x"), filter.getMinX()));
-                predicatesT.add(cb.ge(fromT.get("x"), filter.getMinX()));
-            }
-            if (filter.getMinY() != null) {
-                predicatesW.add(cb.ge(fromW.get("y"), filter.getMinY()));
-                predicatesT.add(cb.ge(fromT.get("y"), filter.getMinY()));
-            }
-            if (filter.getMaxX() != null) {
-                predicatesW.add(cb.le(cb.sum(fromW.get("x"), fromW.get("width")), filter.getMaxX()));
-                predicatesT.add(cb.le(cb.sum(fromT.get("x"), fromT.get("width")), filter.getMaxX()));
-            }
-            if (filter.getMaxY() != null) {
-                predicatesW.add(cb.le(cb.sum(fromW.get("y"), fromW.get("height")), filter.getMaxY()));
-                predicatesT.add(cb.le(cb.sum(fromT.get("y"), fromT.get("height")), filter.getMaxY()));
-            }
+            List<Predicate> predicatesW = toPredicates(cb, fromW, filter);
+            List<Predicate> predicatesT = toPredicates(cb, fromT, filter);
             if (!predicatesW.isEmpty()) {
                 selectW = selectW.where(cb.and(predicatesW.toArray(new Predicate[0])));
             }
@@ -117,14 +108,170 @@ public class WidgetsH2Repository implements WidgetsRepository {
         return new PageImpl<>(typedQW.getResultList(), pageable, totalCount);
     }
 
+    /**
+     * Candidates are searched in box around rectangle, which is widened until it contains every widget closer
+     * than the farthest found one. Box borders restrict x and y of widgets extended by maximal width and height,
+     * so that candidates are taken by index instead of ordering the whole table by distance.
+     */
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        if (limit <= 0) {
+            return List.of();
+        }
+        Integer maxWidth = repository.findMaxWidth();
+        Integer maxHeight = repository.findMaxHeight();
+        if (maxWidth == null || maxHeight == null) {
+            return List.of();
+        }
+        long margin = NEAREST_SEARCH_INITIAL_MARGIN;
+        while (true) {
+            int boxMinX = clamp((long) minX - margin - maxWidth);
+            int boxMinY = clamp((long) minY - margin - maxHeight);
+            int boxMaxX = clamp((long) maxX + margin);
+            int boxMaxY = clamp((long) maxY + margin);
+            List<WidgetEntity> nearest = repository.findNearestInBox(minX, minY, maxX, maxY,
+                    boxMinX, boxMinY, boxMaxX, boxMaxY, (long) minX - margin, (long) minY - margin, limit);
+            // every widget outside of box is farther than margin
+            boolean complete = nearest.size() == limit && nearest.get(limit - 1)
+                    .squaredDistanceTo(minX, minY, maxX, maxY) <= (double) margin * margin;
+            boolean wholeTable = boxMinX == Integer.MIN_VALUE && boxMinY == Integer.MIN_VALUE
+                    && boxMaxX == Integer.MAX_VALUE && boxMaxY == Integer.MAX_VALUE;
+            if (complete || wholeTable) {
+                return nearest;
+            }
+            margin *= 4;
+        }
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    /**
+     * Overlapping pairs are found by self join of widgets table, widget with lower z is taken from the first table,
+     * results are streamed from database without loading all of them.
+     */
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<Object[]> pairsQuery = cb.createQuery(Object[].class);
+        Root<WidgetEntity> bottom = pairsQuery.from(WidgetEntity.class);
+        Root<WidgetEntity> top = pairsQuery.from(WidgetEntity.class);
+        List<Predicate> predicates = new ArrayList<>();
+        predicates.add(cb.lt(bottom.get("z"), top.get("z")));
+        predicates.add(cb.lt(bottom.get("x"), cb.sum(top.get("x"), top.get("width"))));
+        predicates.add(cb.lt(top.get("x"), cb.sum(bottom.get("x"), bottom.get("width"))));
+        predicates.add(cb.lt(bottom.get("y"), cb.sum(top.get("y"), top.get("height"))));
+        predicates.add(cb.lt(top.get("y"), cb.sum(bottom.get("y"), bottom.get("height"))));
+        if (filter != null) {
+            predicates.addAll(toPredicates(cb, bottom, filter));
+            predicates.addAll(toPredicates(cb, top, filter));
+        }
+        pairsQuery.multiselect(bottom.get("id"), top.get("id"))
+                .where(predicates.toArray(new Predicate[0]));
+        try (Stream<Object[]> pairs = entityManager.createQuery(pairsQuery).getResultStream()) {
+            Iterator<Object[]> iterator = pairs.iterator();
+            while (iterator.hasNext()) {
+                Object[] pair = iterator.next();
+                if (!visitor.visit((String) pair[0], (String) pair[1])) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Build predicates matching widgets to search area according to its query mode,
+     * null borders of search area are not restricting widgets except for {@link QueryMode#CONTAINS} mode,
+     * z range is applied in every mode.
+     */
+    private List<Predicate> toPredicates(CriteriaBuilder cb, Root<WidgetEntity> from, SearchArea filter) {
+        List<Predicate> predicates = new ArrayList<>();
+        Expression<Integer> minX = from.get("x");
+        Expression<Integer> minY = from.get("y");
+        Expression<Integer> maxX = cb.sum(from.get("x"), from.get("width"));
+        Expression<Integer> maxY = cb.sum(from.get("y"), from.get("height"));
+        switch (filter.getMode()) {
+            case INTERSECTS:
+                if (filter.getMinX() != null) {
+                    predicates.add(cb.ge(maxX, filter.getMinX()));
+                }
+                if (filter.getMinY() != null) {
+                    predicates.add(cb.ge(maxY, filter.getMinY()));
+                }
+                if (filter.getMaxX() != null) {
+                    predicates.add(cb.le(minX, filter.getMaxX()));
+                }
+                if (filter.getMaxY() != null) {
+                    predicates.add(cb.le(minY, filter.getMaxY()));
+                }
+                break;
+            case CONTAINS:
+                if (filter.getMinX() == null || filter.getMinY() == null
+                        || filter.getMaxX() == null || filter.getMaxY() == null) {
+                    predicates.add(cb.disjunction());
+                    break;
+                }
+                predicates.add(cb.le(minX, filter.getMinX()));
+                predicates.add(cb.le(minY, filter.getMinY()));
+                predicates.add(cb.ge(maxX, filter.getMaxX()));
+                predicates.add(cb.ge(maxY, filter.getMaxY()));
+                break;
+            default:
+                if (filter.getMinX() != null) {
+                    predicates.add(cb.ge(minX, filter.getMinX()));
+                }
+                if (filter.getMinY() != null) {
+                    predicates.add(cb.ge(minY, filter.getMinY()));
+                }
+                if (filter.getMaxX() != null) {
+                    predicates.add(cb.le(maxX, filter.getMaxX()));
+                }
+                if (filter.getMaxY() != null) {
+                    predicates.add(cb.le(maxY, filter.getMaxY()));
+                }
+        }
+        if (filter.getMinZ() != null) {
+            predicates.add(cb.ge(from.get("z"), filter.getMinZ()));
+        }
+        if (filter.getMaxZ() != null) {
+            predicates.add(cb.le(from.get("z"), filter.getMaxZ()));
+        }
+        return predicates;
+    }
+
     @Override
     public long count() {
         return repository.count();
     }
 
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        CriteriaBuilder cb = entityManager.getCriteriaBuilder();
+        CriteriaQuery<WidgetEntity> widgetsQuery = cb.createQuery(WidgetEntity.class);
+        Root<WidgetEntity> fromW = widgetsQuery.from(WidgetEntity.class);
+        widgetsQuery.select(fromW)
+                .where(
+                        cb.le(fromW.get("x"), x),
+                        cb.le(fromW.get("y"), y),
+                        cb.ge(cb.sum(fromW.get("x"), fromW.get("width")), x),
+                        cb.ge(cb.sum(fromW.get("y"), fromW.get("height")), y)
+                )
+                .orderBy(cb.desc(fromW.get("z")));
+        return entityManager.createQuery(widgetsQuery)
+                .setMaxResults(limit)
+                .getResultList();
+    }
+
     @Override
     public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
         repository.saveAll(updatedWidgets);
     }
 
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        repository.deleteAll();
+        repository.saveAll(widgets);
+    }
+
 }
@@ -0,0 +1,143 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.rtree.LsmRectangleRTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Repository for write bursts: spatial index is {@link LsmRectangleRTree}, so saving widget takes constant time
+ * instead of rebalancing r-tree, while index is compacted into packed trees in background.
+ * Stored widgets are never modified: each save puts a new copy of widget to the maps and to spatial index.
+ * Modifications must be still serialized by caller.
+ */
+public class InMemoryLsmRTreeWidgetsRepository implements WidgetsRepository {
+
+    private final WidgetsMaps widgets = WidgetsMaps.concurrent();
+
+    private final LsmRectangleRTree<WidgetEntity> spatialIndex;
+
+    /**
+     * @param bufferCapacity     - count of widgets saved since the last compaction, after which index is compacted
+     *                           immediately
+     * @param compactionPeriodMs - period of compaction of widgets saved since the last compaction
+     */
+    public InMemoryLsmRTreeWidgetsRepository(int bufferCapacity, long compactionPeriodMs) {
+        this.spatialIndex = new LsmRectangleRTree<>(bufferCapacity, compactionPeriodMs);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findById(String id) {
+        return widgets.findById(id);
+    }
+
+    @Override
+    public WidgetEntity save(WidgetEntity entity) {
+        WidgetEntity newEntity = widgets.saveCopy(entity);
+        spatialIndex.insert(newEntity, newEntity, newEntity.getZ());
+        return entity.clone();
+    }
+
+    @Override
+    public void deleteById(String id) {
+        if (widgets.remove(id) != null) {
+            spatialIndex.delete(id);
+        }
+    }
+
+    @Override
+    public boolean existsByZ(int z) {
+        return widgets.existsByZ(z);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findByZ(int z) {
+        return widgets.findByZ(z);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return widgets.getMaxZ();
+    }
+
+    @Override
+    public void deleteAll() {
+        spatialIndex.clear();
+        widgets.clear();
+    }
+
+    @Override
+    public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
+        // packed trees are not ordered by z, so all matching widgets are sorted
+        List<WidgetEntity> widgetsMatchFilter = new ArrayList<>();
+        spatialIndex.search(searchArea, widgetsMatchFilter::add);
+        widgetsMatchFilter.sort(Comparator.comparing(WidgetEntity::getZ));
+
+        List<WidgetEntity> widgetsInPage = widgetsMatchFilter
+                .stream()
+                .skip(pageable.getOffset())
+                .limit(pageable.getPageSize())
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+
+        return new PageImpl<>(widgetsInPage, pageable, widgetsMatchFilter.size());
+    }
+
+    @Override
+    public long count() {
+        return widgets.count();
+    }
+
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return spatialIndex.searchTopmostAtPoint(x, y, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        spatialIndex.searchOverlappingPairs(filter, (bottom, top) -> visitor.visit(bottom.getId(), top.getId()));
+    }
+
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        return spatialIndex.searchNearest(minX, minY, maxX, maxY, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
+        if (updatedWidgets != null) {
+            updatedWidgets.forEach(this::save);
+        }
+    }
+
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        List<WidgetEntity> storedWidgets = this.widgets.replaceAll(widgets, WidgetEntity::clone);
+        spatialIndex.clear();
+        storedWidgets.forEach(entity -> spatialIndex.insert(entity, entity, entity.getZ()));
+    }
+
+    /**
+     * Stop background compaction of spatial index, invoked on context shutdown.
+     */
+    public void close() {
+        spatialIndex.close();
+    }
+}
@@ -5,15 +5,21 @@ import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
 import ru.ohapegor.widgets.utils.WidgetUtils;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.TreeMap;
 import java.util.UUID;
 import java.util.stream.Collectors;
@@ -90,9 +96,10 @@ public class InMemoryMapsWidgetsRepository implements WidgetsRepository {
 
     @Override
     public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
-        List<WidgetEntity> widgetsMatchFilter = widgetsByZ.values()
+        List<WidgetEntity> widgetsMatchFilter = widgetsInZRange(searchArea)
+                .values()
                 .stream()
-                .filter(searchArea::includes)
+                .filter(searchArea::matches)
                 .collect(Collectors.toList());
 
         List<WidgetEntity> widgetsInPage = widgetsMatchFilter
@@ -105,11 +112,95 @@ public class InMemoryMapsWidgetsRepository implements WidgetsRepository {
         return new PageImpl<>(widgetsInPage, pageable, widgetsMatchFilter.size());
     }
 
+    private NavigableMap<Integer, WidgetEntity> widgetsInZRange(SearchArea searchArea) {
+        NavigableMap<Integer, WidgetEntity> widgets = widgetsByZ;
+        if (searchArea.getMinZ() != null && searchArea.getMaxZ() != null && searchArea.getMinZ() > searchArea.getMaxZ()) {
+            return Collections.emptyNavigableMap();
+        }
+        if (searchArea.getMinZ() != null) {
+            widgets = widgets.tailMap(searchArea.getMinZ(), true);
+        }
+        if (searchArea.getMaxZ() != null) {
+            widgets = widgets.headMap(searchArea.getMaxZ(), true);
+        }
+        return widgets;
+    }
+
     @Override
     public long count() {
         return widgetsById.size();
     }
 
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return widgetsByZ.descendingMap().values()
+                .stream()
+                .filter(widget -> widget.containsPoint(x, y))
+                .limit(limit)
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Plane sweep: widgets matching search area are sorted by left border and each widget is checked only against
+     * active widgets, whose x ranges are still open at its left border.
+     */
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        List<WidgetEntity> widgets = widgetsById.values()
+                .stream()
+                .filter(filter::matches)
+                .sorted(Comparator.comparingInt(WidgetEntity::getMinX))
+                .collect(Collectors.toList());
+        List<WidgetEntity> active = new ArrayList<>();
+        for (WidgetEntity widget : widgets) {
+            active.removeIf(activeWidget -> activeWidget.getMaxX() <= widget.getMinX());
+            for (WidgetEntity activeWidget : active) {
+                if (activeWidget.getMinX() < widget.getMaxX()
+                        && activeWidget.getMinY() < widget.getMaxY() && widget.getMinY() < activeWidget.getMaxY()) {
+                    boolean proceed = activeWidget.getZ() < widget.getZ()
+                            ? visitor.visit(activeWidget.getId(), widget.getId())
+                            : visitor.visit(widget.getId(), activeWidget.getId());
+                    if (!proceed) {
+                        return;
+                    }
+                }
+            }
+            active.add(widget);
+        }
+    }
+
+    /**
+     * Widgets are scanned in ascending order of z keeping only {@param limit} nearest of them in a heap,
+     * so that ties by distance are resolved by z without sorting all widgets.
+     */
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        // the farthest of kept widgets is on the top of the heap, widget with higher z goes first among the same distance
+        PriorityQueue<WidgetEntity> nearest = new PriorityQueue<>(Comparator
+                .comparingDouble((WidgetEntity widget) -> widget.squaredDistanceTo(minX, minY, maxX, maxY))
+                .thenComparing(WidgetEntity::getZ)
+                .reversed());
+        for (WidgetEntity widget : widgetsByZ.values()) {
+            if (nearest.size() < limit) {
+                nearest.add(widget);
+            } else if (widget.squaredDistanceTo(minX, minY, maxX, maxY)
+                    < nearest.peek().squaredDistanceTo(minX, minY, maxX, maxY)) {
+                nearest.poll();
+                nearest.add(widget);
+            }
+        }
+        List<WidgetEntity> result = new ArrayList<>(nearest.size());
+        while (!nearest.isEmpty()) {
+            result.add(nearest.poll().clone());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
     @Override
     public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
         if (updatedWidgets != null) {
@@ -117,6 +208,12 @@ public class InMemoryMapsWidgetsRepository implements WidgetsRepository {
         }
     }
 
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        deleteAll();
+        saveAll(widgets);
+    }
+
     private String generateId() {
         while (true) { //check possible collision
             String id = UUID.randomUUID().toString();
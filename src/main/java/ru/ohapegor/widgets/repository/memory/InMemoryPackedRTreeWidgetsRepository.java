@@ -0,0 +1,250 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryNode;
+import ru.ohapegor.widgets.repository.memory.rtree.PackedRectangleRTree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Read optimized repository for canvases which are read much more often than modified.
+ * Spatial queries are served by {@link PackedRectangleRTree}, which is rebuilt from all widgets by background thread
+ * after modifications and published atomically, several modifications made during one rebuild
+ * are picked up by the next one. Spatial query waits until the index reflecting all completed modifications
+ * is published. Stored widgets are never modified: each save puts a new copy of widget to the maps,
+ * so index can be built concurrently with modifications. Modifications must be still serialized by caller.
+ */
+@Slf4j
+public class InMemoryPackedRTreeWidgetsRepository implements WidgetsRepository {
+
+    /**
+     * maximum count of children in one node of spatial index
+     */
+    private static final int NODE_SIZE = 16;
+
+    private final WidgetsMaps widgets = WidgetsMaps.concurrent();
+
+    private final ExecutorService rebuildExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "packed-r-tree-rebuild");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * count of completed modifications, incremented after modification is completed
+     */
+    private final AtomicLong modificationCount = new AtomicLong();
+
+    /**
+     * guards {@link InMemoryPackedRTreeWidgetsRepository#rebuildScheduled} and increments of modification count,
+     * so that rebuild is always scheduled when published index is outdated, notified when index is published
+     */
+    private final Object rebuildMonitor = new Object();
+
+    private boolean rebuildScheduled;
+
+    private volatile IndexVersion spatialIndex = new IndexVersion(
+            PackedRectangleRTree.build(List.of(), NODE_SIZE), 0);
+
+    @Override
+    public Optional<WidgetEntity> findById(String id) {
+        return widgets.findById(id);
+    }
+
+    @Override
+    public WidgetEntity save(WidgetEntity entity) {
+        widgets.saveCopy(entity);
+        scheduleRebuild();
+        return entity.clone();
+    }
+
+    @Override
+    public void deleteById(String id) {
+        if (widgets.remove(id) != null) {
+            scheduleRebuild();
+        }
+    }
+
+    @Override
+    public boolean existsByZ(int z) {
+        return widgets.existsByZ(z);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findByZ(int z) {
+        return widgets.findByZ(z);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return widgets.getMaxZ();
+    }
+
+    @Override
+    public void deleteAll() {
+        widgets.clear();
+        scheduleRebuild();
+    }
+
+    @Override
+    public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
+        // packed tree is not ordered by z, so all matching widgets are sorted
+        List<WidgetEntity> widgetsMatchFilter = new ArrayList<>();
+        currentSpatialIndex().search(searchArea, widgetsMatchFilter::add);
+        widgetsMatchFilter.sort(Comparator.comparing(WidgetEntity::getZ));
+
+        List<WidgetEntity> widgetsInPage = widgetsMatchFilter
+                .stream()
+                .skip(pageable.getOffset())
+                .limit(pageable.getPageSize())
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+
+        return new PageImpl<>(widgetsInPage, pageable, widgetsMatchFilter.size());
+    }
+
+    @Override
+    public long count() {
+        return widgets.count();
+    }
+
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return currentSpatialIndex().searchTopmostAtPoint(x, y, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        currentSpatialIndex().searchOverlappingPairs(filter,
+                (bottom, top) -> visitor.visit(bottom.getId(), top.getId()));
+    }
+
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        return currentSpatialIndex().searchNearest(minX, minY, maxX, maxY, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
+        if (updatedWidgets != null) {
+            // counted as one modification, so that readers never get index with widgets shifted only partially
+            updatedWidgets.forEach(widgets::saveCopy);
+            scheduleRebuild();
+        }
+    }
+
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        this.widgets.replaceAll(widgets, WidgetEntity::clone);
+        scheduleRebuild();
+    }
+
+    /**
+     * Stop background thread rebuilding spatial index, invoked on context shutdown.
+     */
+    public void close() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    /**
+     * Count completed modification and start rebuild of spatial index unless it is already running:
+     * running rebuild repeats itself if modifications have been completed since it started.
+     */
+    private void scheduleRebuild() {
+        synchronized (rebuildMonitor) {
+            modificationCount.incrementAndGet();
+            if (!rebuildScheduled) {
+                rebuildScheduled = true;
+                rebuildExecutor.execute(this::rebuild);
+            }
+        }
+    }
+
+    private void rebuild() {
+        try {
+            while (true) {
+                long version = modificationCount.get();
+                List<EntryNode<WidgetEntity>> entryNodes = new ArrayList<>();
+                widgets.values().forEach(entity -> entryNodes.add(toEntryNode(entity)));
+                IndexVersion indexVersion = new IndexVersion(PackedRectangleRTree.build(entryNodes, NODE_SIZE), version);
+                synchronized (rebuildMonitor) {
+                    spatialIndex = indexVersion;
+                    rebuildMonitor.notifyAll();
+                    if (modificationCount.get() == version) {
+                        rebuildScheduled = false;
+                        return;
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("failed to rebuild spatial index", e);
+            synchronized (rebuildMonitor) {
+                rebuildScheduled = false;
+                rebuildMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Get spatial index reflecting all completed modifications, waiting for its rebuild if required.
+     */
+    @SneakyThrows
+    private PackedRectangleRTree<WidgetEntity> currentSpatialIndex() {
+        long version = modificationCount.get();
+        IndexVersion indexVersion = spatialIndex;
+        if (indexVersion.version >= version) {
+            return indexVersion.index;
+        }
+        synchronized (rebuildMonitor) {
+            while ((indexVersion = spatialIndex).version < version) {
+                if (!rebuildScheduled) {
+                    throw new IllegalStateException("spatial index rebuild failed, it is retried on the next modification");
+                }
+                rebuildMonitor.wait();
+            }
+        }
+        return indexVersion.index;
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity entity) {
+        var entryNode = new EntryNode<>(entity);
+        entryNode.setDimensions(entity);
+        entryNode.setZ(entity.getZ());
+        return entryNode;
+    }
+
+    /**
+     * Spatial index built from widgets after given count of modifications.
+     */
+    private static final class IndexVersion {
+        private final PackedRectangleRTree<WidgetEntity> index;
+        private final long version;
+
+        private IndexVersion(PackedRectangleRTree<WidgetEntity> index, long version) {
+            this.index = index;
+            this.version = version;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import lombok.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.persistent.PersistentSortedMap;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryNode;
+import ru.ohapegor.widgets.repository.memory.rtree.PersistentRectangleRTree;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Repository which can be read without locks while it is being modified.
+ * Stored widgets are never modified: each save puts a new copy of widget to new versions of persistent maps
+ * and of {@link PersistentRectangleRTree}, which are published together as one immutable {@link State},
+ * so every read works with a consistent snapshot of all of them. Modifications must be still serialized by caller.
+ */
+public class InMemoryPersistentRTreeWidgetsRepository implements WidgetsRepository {
+
+    private final State emptyState;
+
+    private volatile State state;
+
+    public InMemoryPersistentRTreeWidgetsRepository() {
+        this(InMemoryRTreeWidgetsRepository.DEFAULT_MIN_ENTRIES, InMemoryRTreeWidgetsRepository.DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param minEntries - minimum count of children in one node of spatial index
+     * @param maxEntries - maximum count of children in one node of spatial index, at least 2 * minEntries - 1
+     */
+    public InMemoryPersistentRTreeWidgetsRepository(int minEntries, int maxEntries) {
+        this.emptyState = new State(PersistentSortedMap.empty(), PersistentSortedMap.empty(),
+                PersistentRectangleRTree.empty(minEntries, maxEntries));
+        this.state = emptyState;
+    }
+
+    @Override
+    public boolean supportsLockFreeReads() {
+        return true;
+    }
+
+    @Override
+    public Optional<WidgetEntity> findById(String id) {
+        return Optional.ofNullable(state.widgetsById.get(id)).map(WidgetEntity::clone);
+    }
+
+    @Override
+    public WidgetEntity save(WidgetEntity entity) {
+        state = save(entity, state);
+        return entity.clone();
+    }
+
+    /**
+     * Put entity to given version of maps and spatial index without publishing them.
+     *
+     * @return new version of state
+     */
+    private State save(WidgetEntity entity, State state) {
+        WidgetsMaps.prepareSave(entity, Instant.now(), state.widgetsById::containsKey);
+        WidgetEntity newEntity = entity.clone();
+        PersistentSortedMap<Integer, WidgetEntity> widgetsByZ = state.widgetsByZ;
+        PersistentRectangleRTree<WidgetEntity> spatialIndex = state.spatialIndex;
+        WidgetEntity oldEntity = state.widgetsById.get(entity.getId());
+        if (oldEntity != null) {
+            // entity in z index could be already overridden by shifting
+            if (widgetsByZ.get(oldEntity.getZ()) == oldEntity) {
+                widgetsByZ = widgetsByZ.remove(oldEntity.getZ());
+            }
+            spatialIndex = spatialIndex.delete(oldEntity.getId(), oldEntity);
+        }
+        return new State(state.widgetsById.put(newEntity.getId(), newEntity),
+                widgetsByZ.put(newEntity.getZ(), newEntity),
+                spatialIndex.insert(toEntryNode(newEntity)));
+    }
+
+    @Override
+    public void deleteById(String id) {
+        State current = state;
+        WidgetEntity widgetEntity = current.widgetsById.get(id);
+        if (widgetEntity != null) {
+            PersistentSortedMap<Integer, WidgetEntity> widgetsByZ = current.widgetsByZ;
+            if (widgetsByZ.get(widgetEntity.getZ()) == widgetEntity) {
+                widgetsByZ = widgetsByZ.remove(widgetEntity.getZ());
+            }
+            state = new State(current.widgetsById.remove(id), widgetsByZ,
+                    current.spatialIndex.delete(id, widgetEntity));
+        }
+    }
+
+    @Override
+    public boolean existsByZ(int z) {
+        return state.widgetsByZ.containsKey(z);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findByZ(int z) {
+        return Optional.ofNullable(state.widgetsByZ.get(z)).map(WidgetEntity::clone);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        Integer maxZ = state.widgetsByZ.lastKey();
+        return maxZ == null ? 0 : maxZ;
+    }
+
+    @Override
+    public void deleteAll() {
+        state = emptyState;
+    }
+
+    @Override
+    public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
+        // page and total count are taken from the same snapshot
+        PersistentRectangleRTree<WidgetEntity> snapshot = state.spatialIndex;
+        List<WidgetEntity> widgetsInPage = snapshot
+                .searchFirstByZ(searchArea, pageable.getOffset() + pageable.getPageSize())
+                .stream()
+                .skip(pageable.getOffset())
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+
+        return new PageImpl<>(widgetsInPage, pageable, snapshot.count(searchArea));
+    }
+
+    @Override
+    public long count() {
+        return state.widgetsById.size();
+    }
+
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return state.spatialIndex.searchTopmostAtPoint(x, y, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        state.spatialIndex.searchOverlappingPairs(filter, (bottom, top) -> visitor.visit(bottom.getId(), top.getId()));
+    }
+
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        return state.spatialIndex.searchNearest(minX, minY, maxX, maxY, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
+        if (updatedWidgets != null) {
+            // publish once, so that readers never see widgets shifted only partially
+            State newState = state;
+            for (WidgetEntity entity : updatedWidgets) {
+                newState = save(entity, newState);
+            }
+            state = newState;
+        }
+    }
+
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        widgets.forEach(WidgetsMaps::requireZ);
+        Instant now = Instant.now();
+        PersistentSortedMap<String, WidgetEntity> widgetsById = PersistentSortedMap.empty();
+        PersistentSortedMap<Integer, WidgetEntity> widgetsByZ = PersistentSortedMap.empty();
+        List<EntryNode<WidgetEntity>> entryNodes = new ArrayList<>(widgets.size());
+        for (WidgetEntity entity : widgets) {
+            WidgetsMaps.prepareSave(entity, now, widgetsById::containsKey);
+            WidgetEntity newEntity = entity.clone();
+            widgetsById = widgetsById.put(newEntity.getId(), newEntity);
+            widgetsByZ = widgetsByZ.put(newEntity.getZ(), newEntity);
+            entryNodes.add(toEntryNode(newEntity));
+        }
+        state = new State(widgetsById, widgetsByZ, emptyState.spatialIndex.bulkLoad(entryNodes));
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity entity) {
+        var entryNode = new EntryNode<>(entity);
+        entryNode.setDimensions(entity);
+        entryNode.setZ(entity.getZ());
+        return entryNode;
+    }
+
+    /**
+     * Versions of maps and spatial index published to readers at once.
+     */
+    @Value
+    private static class State {
+        PersistentSortedMap<String, WidgetEntity> widgetsById;
+        PersistentSortedMap<Integer, WidgetEntity> widgetsByZ;
+        PersistentRectangleRTree<WidgetEntity> spatialIndex;
+    }
+
+}
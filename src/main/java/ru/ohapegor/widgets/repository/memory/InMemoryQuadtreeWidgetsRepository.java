@@ -0,0 +1,149 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.quadtree.RegionQuadtree;
+import ru.ohapegor.widgets.utils.WidgetUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+
+/**
+ * Repository keeping widgets in memory, indexed with {@link RegionQuadtree} for spatial search
+ * and with tree map for search by z index. Quadtree adapts to local density of widgets, unlike uniform grid,
+ * and moving widget inside of its quadrant doesn't change the tree, unlike r-tree.
+ */
+@Slf4j
+public class InMemoryQuadtreeWidgetsRepository implements WidgetsRepository {
+
+    private final WidgetsMaps widgets = WidgetsMaps.create();
+
+    private final RegionQuadtree<WidgetEntity> spatialIndex;
+
+    /**
+     * @param bucketCapacity - maximum count of widgets in quadtree leaf before it is split
+     */
+    public InMemoryQuadtreeWidgetsRepository(int bucketCapacity) {
+        this.spatialIndex = new RegionQuadtree<>(bucketCapacity);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findById(String id) {
+        return widgets.findById(id);
+    }
+
+    @Override
+    public WidgetEntity save(WidgetEntity entity) {
+        WidgetEntity oldEntity = widgets.prepareSave(entity);
+        if (oldEntity != null) {
+            // if corresponding index not changed we can just update data in entity by reference
+            boolean spacialIndexIsModified = WidgetUtils.isSpacialIndexModified(oldEntity, entity);
+            boolean zIndexModified = widgets.update(oldEntity, entity);
+            if (spacialIndexIsModified) {
+                spatialIndex.insert(oldEntity, oldEntity, oldEntity.getZ());
+            } else if (zIndexModified) {
+                spatialIndex.updateZ(oldEntity.getId(), oldEntity.getZ());
+            }
+        } else {
+            widgets.put(entity);
+            spatialIndex.insert(entity, entity, entity.getZ());
+        }
+        return entity.clone();
+    }
+
+    @Override
+    public void deleteById(String id) {
+        if (widgets.remove(id) != null) {
+            spatialIndex.delete(id);
+        }
+    }
+
+    @Override
+    public boolean existsByZ(int z) {
+        return widgets.existsByZ(z);
+    }
+
+    @Override
+    public Optional<WidgetEntity> findByZ(int z) {
+        return widgets.findByZ(z);
+    }
+
+    @Override
+    public Integer getMaxZ() {
+        return widgets.getMaxZ();
+    }
+
+    @Override
+    public void deleteAll() {
+        spatialIndex.clear();
+        widgets.clear();
+    }
+
+    @Override
+    public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
+        // quadtree nodes are not ordered by z, so all matching widgets are sorted
+        List<WidgetEntity> widgetsMatchFilter = new ArrayList<>();
+        spatialIndex.search(searchArea, widgetsMatchFilter::add);
+        widgetsMatchFilter.sort(Comparator.comparing(WidgetEntity::getZ));
+
+        List<WidgetEntity> widgetsInPage = widgetsMatchFilter
+                .stream()
+                .skip(pageable.getOffset())
+                .limit(pageable.getPageSize())
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+
+        return new PageImpl<>(widgetsInPage, pageable, widgetsMatchFilter.size());
+    }
+
+    @Override
+    public long count() {
+        return widgets.count();
+    }
+
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return spatialIndex.searchTopmostAtPoint(x, y, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        spatialIndex.searchOverlappingPairs(filter, (bottom, top) -> visitor.visit(bottom.getId(), top.getId()));
+    }
+
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        return spatialIndex.searchNearest(minX, minY, maxX, maxY, limit)
+                .stream()
+                .map(WidgetEntity::clone)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
+        if (updatedWidgets != null) {
+            updatedWidgets.forEach(this::save);
+        }
+    }
+
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        List<WidgetEntity> storedWidgets = this.widgets.replaceAll(widgets, UnaryOperator.identity());
+        spatialIndex.clear();
+        storedWidgets.forEach(entity -> spatialIndex.insert(entity, entity, entity.getZ()));
+    }
+}
@@ -1,5 +1,6 @@
 package ru.ohapegor.widgets.repository.memory;
 
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.annotation.Transient;
 import org.springframework.data.domain.Page;
@@ -7,35 +8,111 @@ import org.springframework.data.domain.PageImpl;
 import org.springframework.data.domain.Pageable;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.SpatialIndexRebuild;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
 import ru.ohapegor.widgets.repository.memory.rtree.EntryNode;
+import ru.ohapegor.widgets.repository.memory.rtree.InsertionStrategy;
+import ru.ohapegor.widgets.repository.memory.rtree.RTreeCalibrator;
+import ru.ohapegor.widgets.repository.memory.rtree.RTreeQuality;
 import ru.ohapegor.widgets.repository.memory.rtree.RectangleRTree;
+import ru.ohapegor.widgets.repository.memory.zorder.ZOrderTree;
 import ru.ohapegor.widgets.utils.WidgetUtils;
 
 import java.time.Instant;
-import java.util.Comparator;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableMap;
-import java.util.Objects;
 import java.util.Optional;
-import java.util.TreeMap;
+import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.stream.Collectors;
 
+/**
+ * Widgets are kept in r-tree ordered by keys of {@link ZOrderTree} instead of z indexes, so shifting of widgets
+ * to free z index doesn't touch spatial index. Z indexes of stored widgets are not updated by shifting,
+ * actual ones are taken from z order for every returned widget.
+ */
 @Slf4j
 public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
 
+    public static final int DEFAULT_MIN_ENTRIES = 20;
+
+    public static final int DEFAULT_MAX_ENTRIES = 50;
+
     private final Map<String, WidgetEntity> widgetsById = new HashMap<>();
 
-    private final NavigableMap<Integer, WidgetEntity> widgetsByZ = new TreeMap<>();
+    private final ZOrderTree zOrder = new ZOrderTree(this::updateZOrderKey);
+
+    private final int parallelSearchThreshold;
+
+    private final int looseMargin;
 
-    private final RectangleRTree<WidgetEntity> spatialIndex = new RectangleRTree<>(2, 50);
+    private RectangleRTree<WidgetEntity> spatialIndex;
+
+    /**
+     * prepared rebuild of spatial index, which records ids of widgets modified after its snapshot
+     */
+    private SpatialIndexRebuildTask pendingRebuild;
+
+    /**
+     * prepared calibration of spatial index, which is obsolete once widgets are replaced
+     */
+    private SpatialIndexCalibrationTask pendingCalibration;
+
+    public InMemoryRTreeWidgetsRepository() {
+        this(InsertionStrategy.GUTTMAN_LINEAR);
+    }
+
+    public InMemoryRTreeWidgetsRepository(InsertionStrategy insertionStrategy) {
+        this(insertionStrategy, 0);
+    }
+
+    public InMemoryRTreeWidgetsRepository(InsertionStrategy insertionStrategy, int parallelSearchThreshold) {
+        this(DEFAULT_MIN_ENTRIES, DEFAULT_MAX_ENTRIES, insertionStrategy, parallelSearchThreshold);
+    }
+
+    public InMemoryRTreeWidgetsRepository(int minEntries, int maxEntries, InsertionStrategy insertionStrategy,
+                                          int parallelSearchThreshold) {
+        this(minEntries, maxEntries, insertionStrategy, parallelSearchThreshold, 0);
+    }
+
+    /**
+     * @param minEntries              - minimum count of children in one node of spatial index
+     * @param maxEntries              - maximum count of children in one node of spatial index
+     * @param insertionStrategy       - algorithms used by spatial index on insertion
+     * @param parallelSearchThreshold - minimal count of widgets in spatial index subtree for which search is split
+     *                                between threads of common fork join pool, 0 disables parallel search
+     * @param looseMargin             - margin by which widgets are enlarged in spatial index, so that moves
+     *                                by less than margin don't modify index, 0 indexes exact widget dimensions
+     */
+    public InMemoryRTreeWidgetsRepository(int minEntries, int maxEntries, InsertionStrategy insertionStrategy,
+                                          int parallelSearchThreshold, int looseMargin) {
+        this.parallelSearchThreshold = parallelSearchThreshold;
+        this.looseMargin = looseMargin;
+        this.spatialIndex = createSpatialIndex(minEntries, maxEntries, insertionStrategy);
+    }
+
+    private RectangleRTree<WidgetEntity> createSpatialIndex(int minEntries, int maxEntries,
+                                                            InsertionStrategy insertionStrategy) {
+        var rTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, insertionStrategy);
+        if (parallelSearchThreshold > 0) {
+            rTree.enableParallelSearch(ForkJoinPool.commonPool(), parallelSearchThreshold);
+        }
+        rTree.enableLooseBounds(looseMargin);
+        return rTree;
+    }
 
     @Override
     public Optional<WidgetEntity> findById(String id) {
-        return Optional.ofNullable(widgetsById.get(id));
+        return Optional.ofNullable(widgetsById.get(id)).map(this::withActualZ);
     }
 
     @Override
@@ -57,31 +134,27 @@ public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
              * and skip inserting entity which would cause expensive redistribution of elements inside indexing trees
              */
             boolean spacialIndexIsModified = WidgetUtils.isSpacialIndexModified(oldEntity, entity);
-            boolean zIndexModified = WidgetUtils.isZIndexModified(oldEntity, entity);
-            // check additionally if entity in z index was overridden with by shifting
-            boolean zIndexNotOverridden = Objects.equals(widgetsByZ.get(oldEntity.getZ()).getId(), oldEntity.getId());
-            if (zIndexModified && zIndexNotOverridden) {
-                widgetsByZ.remove(oldEntity.getZ());
-            }
-            if (spacialIndexIsModified) {
-                spatialIndex.deleteEntry(oldEntity.getId(), oldEntity);
-            }
-            oldEntity.updateData(entity);
+            boolean zIndexModified = zOrder.zOf(id) != entity.getZ();
             if (zIndexModified) {
-                widgetsByZ.put(oldEntity.getZ(), oldEntity);
+                zOrder.remove(id);
+                freeZIndex(entity.getZ());
+                zOrder.insert(id, entity.getZ());
             }
+            oldEntity.updateData(entity);
+            int key = zOrder.keyOf(id);
             if (spacialIndexIsModified) {
-                var entryNode = new EntryNode<>(entity);
-                entryNode.setDimensions(entity);
-                spatialIndex.insert(entryNode);
+                // small moves are applied in place, entry is reinserted only when it leaves its neighbourhood
+                spatialIndex.update(oldEntity.getId(), oldEntity, key);
+            } else if (zIndexModified) {
+                spatialIndex.updateZ(oldEntity.getId(), key);
             }
         } else {
+            freeZIndex(entity.getZ());
+            int key = zOrder.insert(id, entity.getZ());
             widgetsById.put(entity.getId(), entity);
-            widgetsByZ.put(entity.getZ(), entity);
-            var entryNode = new EntryNode<>(entity);
-            entryNode.setDimensions(entity);
-            spatialIndex.insert(entryNode);
+            spatialIndex.insert(toEntryNode(entity, key));
         }
+        recordModification(entity.getId());
         return entity.clone();
     }
 
@@ -90,45 +163,63 @@ public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
     public void deleteById(String id) {
         WidgetEntity widgetEntity = widgetsById.remove(id);
         if (widgetEntity != null) {
-            widgetsByZ.remove(widgetEntity.getZ());
-            spatialIndex.deleteEntry(id, widgetEntity);
+            zOrder.remove(id);
+            spatialIndex.deleteEntry(id);
+            recordModification(id);
         }
     }
 
     @Override
     public boolean existsByZ(int z) {
-        return widgetsByZ.containsKey(z);
+        return zOrder.idAt(z) != null;
     }
 
     @Override
     public Optional<WidgetEntity> findByZ(int z) {
-        return Optional.ofNullable(widgetsByZ.get(z)).map(WidgetEntity::clone);
+        return Optional.ofNullable(zOrder.idAt(z)).map(widgetsById::get).map(this::withActualZ);
     }
 
     @Override
     public Integer getMaxZ() {
-        return widgetsByZ.isEmpty() ? 0 : widgetsByZ.lastKey();
+        Integer maxZ = zOrder.maxZ();
+        return maxZ == null ? 0 : maxZ;
+    }
+
+    /**
+     * Widgets are shifted in z order only, keys of widgets in spatial index are not changed,
+     * so shifting takes O(log n) regardless of count of shifted widgets.
+     */
+    @Override
+    public boolean shiftZ(int z) {
+        zOrder.shiftUp(z);
+        return true;
     }
 
     @Override
     @Transient
     public void deleteAll() {
+        pendingRebuild = null;
+        pendingCalibration = null;
         spatialIndex.clear();
         widgetsById.clear();
-        widgetsByZ.clear();
+        zOrder.clear();
     }
 
     @Override
     public Page<WidgetEntity> getPage(Pageable pageable, SearchArea searchArea) {
-        List<WidgetEntity> widgetsMatchFilter = spatialIndex.search(searchArea);
+        Optional<SearchArea> keyArea = toKeyArea(searchArea);
+        if (keyArea.isEmpty()) {
+            return new PageImpl<>(List.of(), pageable, 0);
+        }
+        // widgets are taken from spatial index already ordered by z, so only widgets up to the page end are visited
+        List<WidgetEntity> widgetsUpToPageEnd = spatialIndex.searchFirstByZ(
+                keyArea.get(), pageable.getOffset() + pageable.getPageSize());
 
-        int size = widgetsMatchFilter.size();
-        List<WidgetEntity> widgetsInPage = widgetsMatchFilter
+        int size = spatialIndex.count(keyArea.get());
+        List<WidgetEntity> widgetsInPage = widgetsUpToPageEnd
                 .stream()
-                .sorted(Comparator.comparing(WidgetEntity::getZ))
                 .skip(pageable.getOffset())
-                .limit(pageable.getPageSize())
-                .map(WidgetEntity::clone)
+                .map(this::withActualZ)
                 .collect(Collectors.toList());
 
         return new PageImpl<>(widgetsInPage, pageable, size);
@@ -139,6 +230,28 @@ public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
         return widgetsById.size();
     }
 
+    @Override
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        return spatialIndex.searchTopmostAtPoint(x, y, limit)
+                .stream()
+                .map(this::withActualZ)
+                .collect(Collectors.toList());
+    }
+
+    @Override
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        toKeyArea(filter).ifPresent(keyArea -> spatialIndex.searchOverlappingPairs(keyArea,
+                (bottom, top) -> visitor.visit(bottom.getId(), top.getId())));
+    }
+
+    @Override
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        return spatialIndex.searchNearest(minX, minY, maxX, maxY, limit)
+                .stream()
+                .map(this::withActualZ)
+                .collect(Collectors.toList());
+    }
+
     @Override
     public void saveAll(Iterable<WidgetEntity> updatedWidgets) {
         if (updatedWidgets != null) {
@@ -146,6 +259,153 @@ public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
         }
     }
 
+    /**
+     * Instead of inserting widgets one by one spatial index is built with bulk loading
+     * which is much faster for big amounts of widgets.
+     */
+    @Override
+    public void replaceAll(Collection<WidgetEntity> widgets) {
+        Set<Integer> zIndexes = new HashSet<>();
+        for (WidgetEntity entity : widgets) {
+            if (entity.getZ() == null) {
+                throw new IllegalStateException("z number should not be null");
+            }
+            if (!zIndexes.add(entity.getZ())) {
+                throw new IllegalStateException("z number should be unique, z = " + entity.getZ());
+            }
+        }
+        deleteAll();
+        Instant now = Instant.now();
+        Map<String, Integer> zIndexesById = new HashMap<>();
+        for (WidgetEntity entity : widgets) {
+            if (entity.getId() == null) {
+                entity.setId(generateId());
+            }
+            entity.setLastModifiedAt(now);
+            widgetsById.put(entity.getId(), entity);
+            zIndexesById.put(entity.getId(), entity.getZ());
+        }
+        zOrder.load(zIndexesById);
+        spatialIndex.bulkLoad(toEntryNodes());
+    }
+
+    /**
+     * Sample stored widgets to measure r-tree configurations on them with {@link RTreeCalibrator}. Hilbert r-tree
+     * is only compared with other fan-outs of hilbert r-tree, since its strategy is chosen explicitly
+     * by repository type, other strategies compete with each other.
+     */
+    @Override
+    public Optional<SpatialIndexRebuild> prepareSpatialIndexCalibration(int sampleSize, double readsPerWrite) {
+        List<WidgetEntity> widgets = new ArrayList<>(widgetsById.values());
+        int size = Math.min(sampleSize, widgets.size());
+        Random random = ThreadLocalRandom.current();
+        List<WidgetEntity> sample = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            // partial shuffle, only sampled widgets are swapped to the head of the list
+            Collections.swap(widgets, i, i + random.nextInt(widgets.size() - i));
+            // widgets are copied, since stored ones are updated in place while calibration is measured
+            sample.add(widgets.get(i).clone());
+        }
+        List<InsertionStrategy> strategies = spatialIndex.getInsertionStrategy() == InsertionStrategy.HILBERT
+                ? List.of(InsertionStrategy.HILBERT)
+                : List.of(InsertionStrategy.GUTTMAN_LINEAR, InsertionStrategy.R_STAR);
+        pendingCalibration = new SpatialIndexCalibrationTask(sample, strategies, readsPerWrite);
+        return Optional.of(pendingCalibration);
+    }
+
+    /**
+     * Index is rebuilt if its nodes are underfilled, its subtrees overlap too much or it is higher than
+     * tree of the same fan-out can be by more than one level.
+     */
+    @Override
+    public Optional<SpatialIndexRebuild> prepareSpatialIndexRebuild(double minFillFactor, double maxOverlapRatio) {
+        RTreeQuality quality = spatialIndex.measureQuality();
+        boolean degraded = quality.getFillFactor() < minFillFactor
+                || quality.getOverlapRatio() > maxOverlapRatio
+                || quality.getHeight() > quality.minimalHeight(spatialIndex.getMaxEntries()) + 1;
+        if (!degraded) {
+            return Optional.empty();
+        }
+        log.info("spatial index is degraded, rebuild is prepared: {}", quality);
+        pendingRebuild = new SpatialIndexRebuildTask(toEntryNodes(), createSpatialIndex(spatialIndex.getMinEntries(),
+                spatialIndex.getMaxEntries(), spatialIndex.getInsertionStrategy()));
+        return Optional.of(pendingRebuild);
+    }
+
+    private void recordModification(String id) {
+        if (pendingRebuild != null) {
+            pendingRebuild.modifiedIds.add(id);
+        }
+    }
+
+    /**
+     * Z index of widget taken by other widget is freed by shifting, as service does before saving.
+     */
+    private void freeZIndex(int z) {
+        zOrder.shiftUp(z);
+    }
+
+    /**
+     * Spatial index orders widgets by keys of z order, so keys changed to make room for other keys are updated in it.
+     */
+    private void updateZOrderKey(String id, int key) {
+        spatialIndex.updateZ(id, key);
+        recordModification(id);
+    }
+
+    /**
+     * Z range of search area is translated to range of keys of z order, which have the same order as z indexes.
+     *
+     * @return empty if no widget has z index inside of z range
+     */
+    private Optional<SearchArea> toKeyArea(SearchArea searchArea) {
+        if (searchArea == null || searchArea.getMinZ() == null && searchArea.getMaxZ() == null) {
+            return Optional.ofNullable(searchArea);
+        }
+        Integer minKey = null;
+        Integer maxKey = null;
+        if (searchArea.getMinZ() != null) {
+            minKey = zOrder.ceilingKey(searchArea.getMinZ());
+            if (minKey == null) {
+                return Optional.empty();
+            }
+        }
+        if (searchArea.getMaxZ() != null) {
+            maxKey = zOrder.floorKey(searchArea.getMaxZ());
+            if (maxKey == null || minKey != null && minKey > maxKey) {
+                return Optional.empty();
+            }
+        }
+        return Optional.of(new SearchArea(searchArea.getMinX(), searchArea.getMinY(), searchArea.getMaxX(),
+                searchArea.getMaxY(), searchArea.getMode(), minKey, maxKey));
+    }
+
+    /**
+     * Shifts don't modify stored widgets, so z index and modification time of shifted widget are taken from z order.
+     */
+    private WidgetEntity withActualZ(WidgetEntity entity) {
+        WidgetEntity clone = entity.clone();
+        clone.setZ(zOrder.zOf(entity.getId()));
+        Instant shiftedAt = zOrder.shiftedAtOf(entity.getId());
+        if (shiftedAt != null && (clone.getLastModifiedAt() == null || shiftedAt.isAfter(clone.getLastModifiedAt()))) {
+            clone.setLastModifiedAt(shiftedAt);
+        }
+        return clone;
+    }
+
+    private List<EntryNode<WidgetEntity>> toEntryNodes() {
+        List<EntryNode<WidgetEntity>> entryNodes = new ArrayList<>(widgetsById.size());
+        widgetsById.values().forEach(entity -> entryNodes.add(toEntryNode(entity, zOrder.keyOf(entity.getId()))));
+        return entryNodes;
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity entity, int key) {
+        var entryNode = new EntryNode<>(entity);
+        entryNode.setDimensions(entity);
+        entryNode.setZ(key);
+        return entryNode;
+    }
+
     private String generateId() {
         while (true) { //check possible collision
             String id = UUID.randomUUID().toString();
@@ -155,5 +415,82 @@ public class InMemoryRTreeWidgetsRepository implements WidgetsRepository {
         }
     }
 
+    /**
+     * Configurations are measured on sample copied when calibration is prepared, spatial index is rebuilt
+     * with the best configuration from actual widgets on apply, if it differs from the current one.
+     */
+    @RequiredArgsConstructor
+    private class SpatialIndexCalibrationTask implements SpatialIndexRebuild {
+        private final List<WidgetEntity> sample;
+        private final List<InsertionStrategy> strategies;
+        private final double readsPerWrite;
+        private RTreeCalibrator.Measurement best;
+
+        @Override
+        public void build() {
+            if (sample.isEmpty()) {
+                log.info("spatial index calibration skipped, there are no widgets to sample");
+                return;
+            }
+            best = RTreeCalibrator.calibrate(sample, strategies, readsPerWrite).get(0);
+            log.info("spatial index calibrated on {} widgets, chosen configuration {}", sample.size(), best);
+        }
+
+        @Override
+        public boolean apply() {
+            if (pendingCalibration != this) {
+                return false;
+            }
+            pendingCalibration = null;
+            if (best == null) {
+                return true;
+            }
+            if (best.getMinEntries() != spatialIndex.getMinEntries()
+                    || best.getMaxEntries() != spatialIndex.getMaxEntries()
+                    || best.getInsertionStrategy() != spatialIndex.getInsertionStrategy()) {
+                RectangleRTree<WidgetEntity> calibratedIndex = createSpatialIndex(
+                        best.getMinEntries(), best.getMaxEntries(), best.getInsertionStrategy());
+                calibratedIndex.bulkLoad(toEntryNodes());
+                spatialIndex = calibratedIndex;
+                pendingRebuild = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Spatial index is bulk loaded from entry nodes copied from widgets when rebuild is prepared,
+     * so building doesn't read widgets modified concurrently. Widgets modified after that are reinserted on apply.
+     */
+    @RequiredArgsConstructor
+    private class SpatialIndexRebuildTask implements SpatialIndexRebuild {
+        private final List<EntryNode<WidgetEntity>> entryNodes;
+        private final RectangleRTree<WidgetEntity> rebuiltIndex;
+        private final Set<String> modifiedIds = new HashSet<>();
+
+        @Override
+        public void build() {
+            rebuiltIndex.bulkLoad(entryNodes);
+        }
+
+        @Override
+        public boolean apply() {
+            if (pendingRebuild != this) {
+                return false;
+            }
+            for (String id : modifiedIds) {
+                rebuiltIndex.deleteEntry(id);
+                WidgetEntity entity = widgetsById.get(id);
+                if (entity != null) {
+                    rebuiltIndex.insert(toEntryNode(entity, zOrder.keyOf(id)));
+                }
+            }
+            spatialIndex = rebuiltIndex;
+            pendingRebuild = null;
+            log.info("spatial index is rebuilt: {}", rebuiltIndex.measureQuality());
+            return true;
+        }
+    }
+
 
 }
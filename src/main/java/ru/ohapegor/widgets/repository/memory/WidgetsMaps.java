@@ -0,0 +1,195 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.utils.WidgetUtils;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ * Widgets of in-memory repository indexed by id and by z index, repositories keep their spatial indexes
+ * in sync with it. Widgets are either updated in place by {@link WidgetsMaps#update}, or replaced
+ * with copies by {@link WidgetsMaps#saveCopy}, so that stored widgets are never modified
+ * and {@link WidgetsMaps#concurrent() concurrent maps} can be read while widgets are saved.
+ */
+final class WidgetsMaps {
+
+    private final Map<String, WidgetEntity> widgetsById;
+
+    private final NavigableMap<Integer, WidgetEntity> widgetsByZ;
+
+    private WidgetsMaps(Map<String, WidgetEntity> widgetsById, NavigableMap<Integer, WidgetEntity> widgetsByZ) {
+        this.widgetsById = widgetsById;
+        this.widgetsByZ = widgetsByZ;
+    }
+
+    /**
+     * @return maps for repository which is not read concurrently with modifications
+     */
+    static WidgetsMaps create() {
+        return new WidgetsMaps(new HashMap<>(), new TreeMap<>());
+    }
+
+    /**
+     * @return maps which can be read concurrently with modifications
+     */
+    static WidgetsMaps concurrent() {
+        return new WidgetsMaps(new ConcurrentHashMap<>(), new ConcurrentSkipListMap<>());
+    }
+
+    Optional<WidgetEntity> findById(String id) {
+        return Optional.ofNullable(widgetsById.get(id)).map(WidgetEntity::clone);
+    }
+
+    boolean existsByZ(int z) {
+        return widgetsByZ.containsKey(z);
+    }
+
+    Optional<WidgetEntity> findByZ(int z) {
+        return Optional.ofNullable(widgetsByZ.get(z)).map(WidgetEntity::clone);
+    }
+
+    Integer getMaxZ() {
+        return widgetsByZ.isEmpty() ? 0 : widgetsByZ.lastKey();
+    }
+
+    long count() {
+        return widgetsById.size();
+    }
+
+    /**
+     * @return stored widgets, which must not be modified
+     */
+    Collection<WidgetEntity> values() {
+        return widgetsById.values();
+    }
+
+    /**
+     * Check z index of entity, generate id of new entity and set its modification time.
+     *
+     * @return stored widget with id of entity or null if entity is new
+     */
+    WidgetEntity prepareSave(WidgetEntity entity) {
+        prepareSave(entity, Instant.now(), widgetsById::containsKey);
+        return widgetsById.get(entity.getId());
+    }
+
+    /**
+     * Put new widget to the maps.
+     */
+    void put(WidgetEntity entity) {
+        WidgetEntity oldEntity = widgetsById.put(entity.getId(), entity);
+        if (oldEntity != null) {
+            // entity in z index could be already overridden by shifting
+            widgetsByZ.remove(oldEntity.getZ(), oldEntity);
+        }
+        widgetsByZ.put(entity.getZ(), entity);
+    }
+
+    /**
+     * Update stored widget in place with data of entity.
+     *
+     * @return true if z index of widget is modified
+     */
+    boolean update(WidgetEntity storedEntity, WidgetEntity entity) {
+        boolean zIndexModified = WidgetUtils.isZIndexModified(storedEntity, entity);
+        if (zIndexModified) {
+            // entity in z index could be already overridden by shifting
+            widgetsByZ.remove(storedEntity.getZ(), storedEntity);
+        }
+        storedEntity.updateData(entity);
+        if (zIndexModified) {
+            widgetsByZ.put(storedEntity.getZ(), storedEntity);
+        }
+        return zIndexModified;
+    }
+
+    /**
+     * Replace stored widget with copy of entity.
+     *
+     * @return stored copy
+     */
+    WidgetEntity saveCopy(WidgetEntity entity) {
+        prepareSave(entity, Instant.now(), widgetsById::containsKey);
+        WidgetEntity newEntity = entity.clone();
+        put(newEntity);
+        return newEntity;
+    }
+
+    /**
+     * @return removed widget or null if there is no widget with such id
+     */
+    WidgetEntity remove(String id) {
+        WidgetEntity widgetEntity = widgetsById.remove(id);
+        if (widgetEntity != null) {
+            widgetsByZ.remove(widgetEntity.getZ(), widgetEntity);
+        }
+        return widgetEntity;
+    }
+
+    void clear() {
+        widgetsById.clear();
+        widgetsByZ.clear();
+    }
+
+    /**
+     * Replace all stored widgets, maps are not modified if any widget has no z index.
+     *
+     * @param toStored - converts widget to stored one, e.g. copies it
+     * @return stored widgets
+     */
+    List<WidgetEntity> replaceAll(Collection<WidgetEntity> widgets, UnaryOperator<WidgetEntity> toStored) {
+        widgets.forEach(WidgetsMaps::requireZ);
+        clear();
+        Instant now = Instant.now();
+        List<WidgetEntity> storedWidgets = new ArrayList<>(widgets.size());
+        for (WidgetEntity entity : widgets) {
+            prepareSave(entity, now, widgetsById::containsKey);
+            WidgetEntity storedEntity = toStored.apply(entity);
+            widgetsById.put(storedEntity.getId(), storedEntity);
+            widgetsByZ.put(storedEntity.getZ(), storedEntity);
+            storedWidgets.add(storedEntity);
+        }
+        return storedWidgets;
+    }
+
+    static void requireZ(WidgetEntity entity) {
+        if (entity.getZ() == null) {
+            throw new IllegalStateException("z number should not be null");
+        }
+    }
+
+    /**
+     * Check z index of entity, generate id of new entity and set its modification time.
+     *
+     * @param isIdTaken - checks if id is already taken by stored widget
+     */
+    static void prepareSave(WidgetEntity entity, Instant now, Predicate<String> isIdTaken) {
+        requireZ(entity);
+        if (entity.getId() == null) {
+            entity.setId(generateId(isIdTaken));
+        }
+        entity.setLastModifiedAt(now);
+    }
+
+    private static String generateId(Predicate<String> isIdTaken) {
+        while (true) { //check possible collision
+            String id = UUID.randomUUID().toString();
+            if (!isIdTaken.test(id)) {
+                return id;
+            }
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ru.ohapegor.widgets.repository.memory.grid;
+
+import java.util.Arrays;
+
+/**
+ * Growable list of primitive ints, which doesn't box stored values.
+ * Order of values is not kept on removal.
+ */
+class IntList {
+    private int[] values = new int[4];
+    private int size;
+
+    void add(int value) {
+        if (size == values.length) {
+            values = Arrays.copyOf(values, size * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Removes the first occurrence of value, moving the last value to its position.
+     *
+     * @return true if value has been found
+     */
+    boolean remove(int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                values[i] = values[--size];
+                return true;
+            }
+        }
+        return false;
+    }
+
+    int removeLast() {
+        if (size == 0) {
+            throw new IndexOutOfBoundsException(0);
+        }
+        return values[--size];
+    }
+
+    int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return values[index];
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,447 @@
+package ru.ohapegor.widgets.repository.memory.grid;
+
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryPairVisitor;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryVisitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Uniform grid (spatial hash) of rectangles: plane is cut into square cells of the same size and every entry
+ * is registered in each cell its rectangle touches, so that search visits only cells covered by search area.
+ * Only non-empty cells are stored, in hash map by packed coordinates of cell.
+ * <p>Entries are addressed by int slots: coordinates and z indexes of entries are kept in primitive arrays
+ * by slot and every cell holds primitive list of slots, so cells don't reference entry objects.
+ * Entries touching more than {@link UniformGrid#MAX_CELLS_PER_ENTRY} cells are not registered in cells
+ * and are checked by every search instead.</p>
+ * <p>Grid works best for entries of similar size comparable with cell size spread over bounded area,
+ * while r-tree adapts to skewed data.</p>
+ *
+ * @param <E> - type of object (entry) which is actually will be stored in this grid.
+ */
+public class UniformGrid<E extends HasId> {
+
+    /**
+     * maximum count of cells entry is registered in, larger entries are kept in {@link UniformGrid#oversizedSlots}
+     */
+    static final int MAX_CELLS_PER_ENTRY = 1024;
+
+    private final int cellSize;
+
+    /**
+     * lists of slots of entries touching cell by packed coordinates of cell, see {@link UniformGrid#cellKey}
+     */
+    private final Map<Long, IntList> cells = new HashMap<>();
+
+    private final Map<String, Integer> slotsById = new HashMap<>();
+
+    /**
+     * slots of entries which are not registered in cells
+     */
+    private final IntList oversizedSlots = new IntList();
+
+    /**
+     * slots released by deleted entries, which are reused by next inserts
+     */
+    private final IntList freeSlots = new IntList();
+
+    private Object[] entries = new Object[16];
+    private int[] minX = new int[16];
+    private int[] minY = new int[16];
+    private int[] maxX = new int[16];
+    private int[] maxY = new int[16];
+    private int[] z = new int[16];
+
+    /**
+     * count of slots ever used, slots below are either occupied or free
+     */
+    private int usedSlots;
+
+    /**
+     * @param cellSize - side of square cell
+     */
+    public UniformGrid(int cellSize) {
+        if (cellSize < 1) {
+            throw new IllegalArgumentException("cellSize must be grater than 0");
+        }
+        this.cellSize = cellSize;
+    }
+
+    /**
+     * Inserts entry into every cell touched by its rectangle. Entry with the same id is replaced.
+     *
+     * @param entry  - stored object
+     * @param bounds - rectangle of entry, its coordinates are copied
+     * @param z      - z index of entry
+     */
+    public void insert(E entry, Rectangle bounds, int z) {
+        Objects.requireNonNull(entry, "null entry");
+        delete(entry.getId());
+        int slot = freeSlots.isEmpty() ? allocateSlot() : freeSlots.removeLast();
+        entries[slot] = entry;
+        this.minX[slot] = bounds.getMinX();
+        this.minY[slot] = bounds.getMinY();
+        this.maxX[slot] = bounds.getMaxX();
+        this.maxY[slot] = bounds.getMaxY();
+        this.z[slot] = z;
+        slotsById.put(entry.getId(), slot);
+        if (isOversized(slot)) {
+            oversizedSlots.add(slot);
+            return;
+        }
+        for (long cellX = cellOf(minX[slot]); cellX <= cellOf(maxX[slot]); cellX++) {
+            for (long cellY = cellOf(minY[slot]); cellY <= cellOf(maxY[slot]); cellY++) {
+                cells.computeIfAbsent(cellKey((int) cellX, (int) cellY), key -> new IntList()).add(slot);
+            }
+        }
+    }
+
+    /**
+     * Removes entry from all cells it has been inserted to, cells left empty are dropped.
+     *
+     * @param id - id of deleting entry
+     * @return true if entry is actually has been deleted
+     */
+    public boolean delete(String id) {
+        Objects.requireNonNull(id, "null id");
+        Integer slot = slotsById.remove(id);
+        if (slot == null) {
+            return false;
+        }
+        if (isOversized(slot)) {
+            oversizedSlots.remove(slot);
+        } else {
+            for (long cellX = cellOf(minX[slot]); cellX <= cellOf(maxX[slot]); cellX++) {
+                for (long cellY = cellOf(minY[slot]); cellY <= cellOf(maxY[slot]); cellY++) {
+                    long key = cellKey((int) cellX, (int) cellY);
+                    IntList cellSlots = cells.get(key);
+                    cellSlots.remove(slot);
+                    if (cellSlots.isEmpty()) {
+                        cells.remove(key);
+                    }
+                }
+            }
+        }
+        entries[slot] = null;
+        freeSlots.add(slot);
+        return true;
+    }
+
+    /**
+     * Change z index of the entry, which doesn't change cells of the entry.
+     *
+     * @return true if entry has been found and updated
+     */
+    public boolean updateZ(String id, int z) {
+        Objects.requireNonNull(id, "null id");
+        Integer slot = slotsById.get(id);
+        if (slot == null) {
+            return false;
+        }
+        this.z[slot] = z;
+        return true;
+    }
+
+    public int size() {
+        return slotsById.size();
+    }
+
+    public void clear() {
+        cells.clear();
+        slotsById.clear();
+        oversizedSlots.clear();
+        freeSlots.clear();
+        Arrays.fill(entries, 0, usedSlots, null);
+        usedSlots = 0;
+    }
+
+    /**
+     * Pass to {@param visitor} every entry matching search area ({@param searchArea}) according to its query mode
+     * in no particular order. Every mode matches only entries touching search area, so only cells covered by search
+     * area are visited. Entry registered in several visited cells is passed only from the first of them
+     * (with minimal cell coordinates), so no shared state is needed to skip duplicates and concurrent searches are safe.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        long fromCellX = searchArea.getMinX() == null ? Long.MIN_VALUE : cellOf(searchArea.getMinX());
+        long fromCellY = searchArea.getMinY() == null ? Long.MIN_VALUE : cellOf(searchArea.getMinY());
+        long toCellX = searchArea.getMaxX() == null ? Long.MAX_VALUE : cellOf(searchArea.getMaxX());
+        long toCellY = searchArea.getMaxY() == null ? Long.MAX_VALUE : cellOf(searchArea.getMaxY());
+        for (int i = 0; i < oversizedSlots.size(); i++) {
+            int slot = oversizedSlots.get(i);
+            if (matches(searchArea, slot) && !visitor.visit(entry(slot))) {
+                return false;
+            }
+        }
+        return forEachCell(fromCellX, fromCellY, toCellX, toCellY, (cellX, cellY, cellSlots) -> {
+            for (int i = 0; i < cellSlots.size(); i++) {
+                int slot = cellSlots.get(i);
+                if (cellX == Math.max(cellOf(minX[slot]), fromCellX) && cellY == Math.max(cellOf(minY[slot]), fromCellY)
+                        && matches(searchArea, slot) && !visitor.visit(entry(slot))) {
+                    return false;
+                }
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes. Point on the border of rectangle is considered to be contained by it.
+     * Only the cell of the point is visited.
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < oversizedSlots.size(); i++) {
+            addIfContainsPoint(oversizedSlots.get(i), x, y, found);
+        }
+        IntList cellSlots = cells.get(cellKey(cellOf(x), cellOf(y)));
+        for (int i = 0; cellSlots != null && i < cellSlots.size(); i++) {
+            addIfContainsPoint(cellSlots.get(i), x, y, found);
+        }
+        found.sort(Comparator.comparingInt((Integer slot) -> z[slot]).reversed());
+        List<E> results = new ArrayList<>();
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            results.add(entry(found.get(i)));
+        }
+        return results;
+    }
+
+    private void addIfContainsPoint(int slot, int x, int y, List<Integer> found) {
+        if (minX[slot] <= x && x <= maxX[slot] && minY[slot] <= y && y <= maxY[slot]) {
+            found.add(slot);
+        }
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY})
+     * in ascending order of distance, entries at the same distance are ordered by z index.
+     * <p>Algorithm:</p>
+     * <p>1. [Initialize] Check all oversized entries keeping {@param limit} nearest of them in a heap.</p>
+     * <p>2. [Visit ring] Visit cells of ring r around cells of the rectangle (r = 0 are cells of rectangle itself),
+     * checking entries not seen before. If ring has more cells than grid has non-empty cells, check all entries
+     * of remaining cells instead and stop.</p>
+     * <p>3. [Check if done] Entries not seen yet are registered only in cells outside of ring r, so they are farther
+     * than r * cellSize from the rectangle. Stop if heap is full and its farthest entry is not farther than that,
+     * or if all non-empty cells are visited. Otherwise, repeat from 2 with ring r + 1.</p>
+     */
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (limit <= 0 || slotsById.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Comparator<Integer> byDistance = Comparator
+                .comparingDouble((Integer slot) -> squaredDistance(slot, minX, minY, maxX, maxY))
+                .thenComparingInt(slot -> z[slot]);
+        PriorityQueue<Integer> nearest = new PriorityQueue<>(byDistance.reversed());
+        Set<Integer> seen = new HashSet<>();
+        EntrySlotVisitor offer = slot -> {
+            if (seen.add(slot)) {
+                nearest.add(slot);
+                if (nearest.size() > limit) {
+                    nearest.poll();
+                }
+            }
+        };
+        for (int i = 0; i < oversizedSlots.size(); i++) { //1 [Initialize]
+            offer.visit(oversizedSlots.get(i));
+        }
+        long fromCellX = cellOf(minX), fromCellY = cellOf(minY), toCellX = cellOf(maxX), toCellY = cellOf(maxY);
+        int visitedCells = 0;
+        for (long ring = 0; ; ring++) {
+            long ringFromX = fromCellX - ring, ringFromY = fromCellY - ring, ringToX = toCellX + ring, ringToY = toCellY + ring;
+            long ringCells = ring == 0
+                    ? (ringToX - ringFromX + 1) * (ringToY - ringFromY + 1)
+                    : 2 * (ringToX - ringFromX + 1) + 2 * (ringToY - ringFromY - 1);
+            boolean outOfCellsRange = ringFromX < Integer.MIN_VALUE || ringFromY < Integer.MIN_VALUE
+                    || ringToX > Integer.MAX_VALUE || ringToY > Integer.MAX_VALUE;
+            if (outOfCellsRange || ringCells > cells.size() - visitedCells) { //2 [Visit ring]
+                for (IntList cellSlots : cells.values()) {
+                    for (int i = 0; i < cellSlots.size(); i++) {
+                        offer.visit(cellSlots.get(i));
+                    }
+                }
+                break;
+            }
+            for (long cellX = ringFromX; cellX <= ringToX; cellX++) {
+                boolean border = cellX == ringFromX || cellX == ringToX;
+                for (long cellY = ringFromY; cellY <= ringToY; cellY += border || ring == 0 ? 1 : ringToY - ringFromY) {
+                    IntList cellSlots = cells.get(cellKey((int) cellX, (int) cellY));
+                    if (cellSlots != null) {
+                        visitedCells++;
+                        for (int i = 0; i < cellSlots.size(); i++) {
+                            offer.visit(cellSlots.get(i));
+                        }
+                    }
+                }
+            }
+            double ringDistance = (double) ring * cellSize; //3 [Check if done]
+            if (visitedCells == cells.size() || nearest.size() == limit
+                    && squaredDistance(nearest.peek(), minX, minY, maxX, maxY) <= ringDistance * ringDistance) {
+                break;
+            }
+        }
+        List<E> results = new ArrayList<>(nearest.size());
+        while (!nearest.isEmpty()) {
+            results.add(entry(nearest.poll()));
+        }
+        Collections.reverse(results);
+        return results;
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of entries overlapping each other (having common inner points), which both
+     * match search area ({@param searchArea}), entry with lower z index goes first. Entries are compared only with
+     * entries of the same cell, pair is passed only from the cell holding the lower left corner of intersection
+     * of entries, clamped to visited cells, so that pairs sharing several cells are passed once. Oversized entries are compared with all entries.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        for (int i = 0; i < oversizedSlots.size(); i++) {
+            int oversized = oversizedSlots.get(i);
+            if (!matches(searchArea, oversized)) {
+                continue;
+            }
+            for (int slot : slotsById.values()) {
+                boolean checkedAlready = slot == oversized || isOversized(slot) && slot < oversized;
+                if (!checkedAlready && matches(searchArea, slot) && overlaps(oversized, slot)
+                        && !visitPair(oversized, slot, visitor)) {
+                    return false;
+                }
+            }
+        }
+        long fromCellX = searchArea.getMinX() == null ? Long.MIN_VALUE : cellOf(searchArea.getMinX());
+        long fromCellY = searchArea.getMinY() == null ? Long.MIN_VALUE : cellOf(searchArea.getMinY());
+        long toCellX = searchArea.getMaxX() == null ? Long.MAX_VALUE : cellOf(searchArea.getMaxX());
+        long toCellY = searchArea.getMaxY() == null ? Long.MAX_VALUE : cellOf(searchArea.getMaxY());
+        return forEachCell(fromCellX, fromCellY, toCellX, toCellY, (cellX, cellY, cellSlots) -> {
+            for (int i = 0; i < cellSlots.size(); i++) {
+                int first = cellSlots.get(i);
+                if (!matches(searchArea, first)) {
+                    continue;
+                }
+                for (int j = i + 1; j < cellSlots.size(); j++) {
+                    int second = cellSlots.get(j);
+                    if (overlaps(first, second)
+                            && Math.max(cellOf(Math.max(minX[first], minX[second])), fromCellX) == cellX
+                            && Math.max(cellOf(Math.max(minY[first], minY[second])), fromCellY) == cellY
+                            && matches(searchArea, second)
+                            && !visitPair(first, second, visitor)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        });
+    }
+
+    private boolean visitPair(int first, int second, EntryPairVisitor<? super E> visitor) {
+        return z[first] < z[second]
+                ? visitor.visit(entry(first), entry(second))
+                : visitor.visit(entry(second), entry(first));
+    }
+
+    /**
+     * Pass to visitor non-empty cells inside given range of cells. Cells are looked up one by one if range
+     * is bounded and has fewer cells than grid has non-empty cells, otherwise all non-empty cells are scanned.
+     *
+     * @return false if visitor has stopped iteration
+     */
+    private boolean forEachCell(long fromCellX, long fromCellY, long toCellX, long toCellY, CellVisitor visitor) {
+        double rangeCells = ((double) toCellX - fromCellX + 1) * ((double) toCellY - fromCellY + 1);
+        if (rangeCells > cells.size()) {
+            for (Map.Entry<Long, IntList> cell : cells.entrySet()) {
+                int cellX = (int) (cell.getKey() >> 32);
+                int cellY = (int) (long) cell.getKey();
+                if (fromCellX <= cellX && cellX <= toCellX && fromCellY <= cellY && cellY <= toCellY
+                        && !visitor.visit(cellX, cellY, cell.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (long cellX = fromCellX; cellX <= toCellX; cellX++) {
+            for (long cellY = fromCellY; cellY <= toCellY; cellY++) {
+                IntList cellSlots = cells.get(cellKey((int) cellX, (int) cellY));
+                if (cellSlots != null && !visitor.visit((int) cellX, (int) cellY, cellSlots)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean matches(SearchArea searchArea, int slot) {
+        return searchArea.matches(minX[slot], minY[slot], maxX[slot], maxY[slot], z[slot], z[slot]);
+    }
+
+    private boolean overlaps(int first, int second) {
+        return minX[first] < maxX[second] && minX[second] < maxX[first]
+                && minY[first] < maxY[second] && minY[second] < maxY[first];
+    }
+
+    private double squaredDistance(int slot, int minX, int minY, int maxX, int maxY) {
+        return Rectangle.squaredDistance(this.minX[slot], this.minY[slot], this.maxX[slot], this.maxY[slot],
+                minX, minY, maxX, maxY);
+    }
+
+    private boolean isOversized(int slot) {
+        long cellsCount = ((long) cellOf(maxX[slot]) - cellOf(minX[slot]) + 1)
+                * ((long) cellOf(maxY[slot]) - cellOf(minY[slot]) + 1);
+        return cellsCount > MAX_CELLS_PER_ENTRY;
+    }
+
+    private int cellOf(int coordinate) {
+        return Math.floorDiv(coordinate, cellSize);
+    }
+
+    private static long cellKey(int cellX, int cellY) {
+        return (long) cellX << 32 | cellY & 0xFFFF_FFFFL;
+    }
+
+    @SuppressWarnings("unchecked")
+    private E entry(int slot) {
+        return (E) entries[slot];
+    }
+
+    private int allocateSlot() {
+        if (usedSlots == entries.length) {
+            int capacity = usedSlots * 2;
+            entries = Arrays.copyOf(entries, capacity);
+            minX = Arrays.copyOf(minX, capacity);
+            minY = Arrays.copyOf(minY, capacity);
+            maxX = Arrays.copyOf(maxX, capacity);
+            maxY = Arrays.copyOf(maxY, capacity);
+            z = Arrays.copyOf(z, capacity);
+        }
+        return usedSlots++;
+    }
+
+    @FunctionalInterface
+    private interface CellVisitor {
+        boolean visit(int cellX, int cellY, IntList cellSlots);
+    }
+
+    @FunctionalInterface
+    private interface EntrySlotVisitor {
+        void visit(int slot);
+    }
+}
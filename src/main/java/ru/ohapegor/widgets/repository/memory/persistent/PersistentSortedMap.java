@@ -0,0 +1,165 @@
+package ru.ohapegor.widgets.repository.memory.persistent;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Immutable (persistent) sorted map. Map is a treap (binary search tree balanced by random priorities of nodes),
+ * every modification copies only the nodes on the path from the root to the modified node and returns a new map
+ * sharing all the other nodes with the original one, so that modification takes O(log n) and original map
+ * can be read by any count of threads without synchronization.
+ * <p>New version of map must be published to reading threads safely, e.g. through volatile field.</p>
+ *
+ * @param <K> - type of keys
+ * @param <V> - type of values, null values are not allowed
+ */
+public final class PersistentSortedMap<K extends Comparable<? super K>, V> {
+
+    private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null);
+
+    /**
+     * null if map is empty
+     */
+    private final Node<K, V> root;
+
+    private PersistentSortedMap(Node<K, V> root) {
+        this.root = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+        return (PersistentSortedMap<K, V>) EMPTY;
+    }
+
+    public int size() {
+        return root == null ? 0 : root.size;
+    }
+
+    public boolean isEmpty() {
+        return root == null;
+    }
+
+    /**
+     * @return value mapped to key or null if there is no such key
+     */
+    public V get(K key) {
+        Node<K, V> node = root;
+        while (node != null) {
+            int comparison = key.compareTo(node.key);
+            if (comparison == 0) {
+                return node.value;
+            }
+            node = comparison < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the greatest key or null if map is empty
+     */
+    public K lastKey() {
+        Node<K, V> node = root;
+        if (node == null) {
+            return null;
+        }
+        while (node.right != null) {
+            node = node.right;
+        }
+        return node.key;
+    }
+
+    /**
+     * @return new map with value mapped to key
+     */
+    public PersistentSortedMap<K, V> put(K key, V value) {
+        Objects.requireNonNull(key, "null key");
+        Objects.requireNonNull(value, "null value");
+        return new PersistentSortedMap<>(put(root, key, value));
+    }
+
+    /**
+     * @return new map without key, this map if there is no such key
+     */
+    public PersistentSortedMap<K, V> remove(K key) {
+        Node<K, V> newRoot = remove(root, key);
+        return newRoot == root ? this : new PersistentSortedMap<>(newRoot);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(Node<K, V> node, K key, V value) {
+        if (node == null) {
+            return new Node<>(key, value, ThreadLocalRandom.current().nextInt(), null, null);
+        }
+        int comparison = key.compareTo(node.key);
+        if (comparison == 0) {
+            return new Node<>(key, value, node.priority, node.left, node.right);
+        }
+        if (comparison < 0) {
+            Node<K, V> left = put(node.left, key, value);
+            if (left.priority > node.priority) { // rotate right
+                return new Node<>(left.key, left.value, left.priority, left.left,
+                        new Node<>(node.key, node.value, node.priority, left.right, node.right));
+            }
+            return new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        Node<K, V> right = put(node.right, key, value);
+        if (right.priority > node.priority) { // rotate left
+            return new Node<>(right.key, right.value, right.priority,
+                    new Node<>(node.key, node.value, node.priority, node.left, right.left), right.right);
+        }
+        return new Node<>(node.key, node.value, node.priority, node.left, right);
+    }
+
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(Node<K, V> node, K key) {
+        if (node == null) {
+            return null;
+        }
+        int comparison = key.compareTo(node.key);
+        if (comparison == 0) {
+            return merge(node.left, node.right);
+        }
+        if (comparison < 0) {
+            Node<K, V> left = remove(node.left, key);
+            return left == node.left ? node : new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        Node<K, V> right = remove(node.right, key);
+        return right == node.right ? node : new Node<>(node.key, node.value, node.priority, node.left, right);
+    }
+
+    /**
+     * Merge subtrees, every key of the first one is less than every key of the second one.
+     */
+    private static <K extends Comparable<? super K>, V> Node<K, V> merge(Node<K, V> first, Node<K, V> second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            return new Node<>(first.key, first.value, first.priority, first.left, merge(first.right, second));
+        }
+        return new Node<>(second.key, second.value, second.priority, merge(first, second.left), second.right);
+    }
+
+    private static final class Node<K, V> {
+        final K key;
+        final V value;
+        final int priority;
+        final Node<K, V> left;
+        final Node<K, V> right;
+        final int size;
+
+        Node(K key, V value, int priority, Node<K, V> left, Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + (left == null ? 0 : left.size) + (right == null ? 0 : right.size);
+        }
+    }
+}
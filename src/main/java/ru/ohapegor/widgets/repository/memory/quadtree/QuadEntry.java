@@ -0,0 +1,44 @@
+package ru.ohapegor.widgets.repository.memory.quadtree;
+
+import lombok.Getter;
+import lombok.Setter;
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+
+/**
+ * Entry of {@link RegionQuadtree} holding copy of entry rectangle, its z index and link to the node storing it.
+ */
+@Getter
+@Setter
+class QuadEntry<E extends HasId> implements Rectangle {
+    private final E entry;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private int z;
+    private QuadNode<E> node;
+
+    QuadEntry(E entry) {
+        this.entry = entry;
+    }
+
+    void setBounds(Rectangle bounds) {
+        this.x = bounds.getMinX();
+        this.y = bounds.getMinY();
+        this.width = bounds.getMaxX() - bounds.getMinX();
+        this.height = bounds.getMaxY() - bounds.getMinY();
+    }
+
+    @Override
+    public String toString() {
+        return "QuadEntry{" +
+                "minX=" + getMinX() +
+                ", maxX=" + getMaxX() +
+                ", minY=" + getMinY() +
+                ", maxY=" + getMaxY() +
+                ", z=" + z +
+                ", entry=" + entry +
+                '}';
+    }
+}
@@ -0,0 +1,99 @@
+package ru.ohapegor.widgets.repository.memory.quadtree;
+
+import lombok.Getter;
+import lombok.Setter;
+import ru.ohapegor.widgets.model.HasId;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Node of {@link RegionQuadtree} covering square quadrant of plane.
+ * Leaf node holds all entries inside its quadrant, inner node has four children splitting quadrant into equal
+ * quadrants and holds only entries crossing borders between them.
+ */
+@Getter
+class QuadNode<E extends HasId> {
+
+    /**
+     * lower left corner and side of quadrant, quadrant of root covers the whole plane of int coordinates,
+     * so side may exceed int range
+     */
+    private final long minX;
+    private final long minY;
+    private final long side;
+    private final QuadNode<E> parent;
+    private final List<QuadEntry<E>> entries = new ArrayList<>();
+
+    /**
+     * children in order: lower left, lower right, upper left, upper right, null for leaf node
+     */
+    @Setter
+    private QuadNode<E>[] children;
+
+    /**
+     * count of entries stored in the subtree of this node
+     */
+    @Setter
+    private int entryCount;
+
+    QuadNode(long minX, long minY, long side, QuadNode<E> parent) {
+        this.minX = minX;
+        this.minY = minY;
+        this.side = side;
+        this.parent = parent;
+    }
+
+    boolean isLeaf() {
+        return children == null;
+    }
+
+    int getMaxX() {
+        return (int) (minX + side - 1);
+    }
+
+    int getMaxY() {
+        return (int) (minY + side - 1);
+    }
+
+    /**
+     * @return true if rectangle is inside of quadrant, border of quadrant included
+     */
+    boolean encloses(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        return minX <= rectMinX && rectMaxX <= minX + side - 1 && minY <= rectMinY && rectMaxY <= minY + side - 1;
+    }
+
+    /**
+     * @return index of the child quadrant enclosing rectangle or -1 if rectangle crosses borders between children
+     */
+    int childIndexEnclosing(int rectMinX, int rectMinY, int rectMaxX, int rectMaxY) {
+        long middleX = minX + side / 2;
+        long middleY = minY + side / 2;
+        int index;
+        if (rectMaxX < middleX) {
+            index = 0;
+        } else if (rectMinX >= middleX) {
+            index = 1;
+        } else {
+            return -1;
+        }
+        if (rectMaxY < middleY) {
+            return index;
+        } else if (rectMinY >= middleY) {
+            return index + 2;
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "QuadNode{" +
+                "minX=" + minX +
+                ", minY=" + minY +
+                ", side=" + side +
+                ", entries=" + entries.size() +
+                ", entryCount=" + entryCount +
+                ", leaf=" + isLeaf() +
+                '}';
+    }
+}
@@ -0,0 +1,424 @@
+package ru.ohapegor.widgets.repository.memory.quadtree;
+
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryPairVisitor;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryVisitor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * Region quadtree of rectangles (MX-CIF quadtree): root covers the whole plane of int coordinates
+ * and every node is split into four equal quadrants as soon as its leaf holds more than bucketCapacity entries.
+ * Entry is stored in the smallest quadrant fully enclosing it, so entries crossing borders between quadrants
+ * stay in inner nodes, while small entries descend to leafs. Subtree holding not more than bucketCapacity entries
+ * is merged back into a leaf after deletions, so the tree adapts to density of entries.
+ * <p>Entry moved inside of quadrant of its node without reaching smaller quadrant is updated in place,
+ * so local moves don't change the tree.</p>
+ *
+ * @param <E> - type of object (entry) which is actually will be stored in this tree.
+ */
+public class RegionQuadtree<E extends HasId> {
+
+    /**
+     * maximum count of entries in leaf before it is split
+     */
+    private final int bucketCapacity;
+
+    private QuadNode<E> root = newRoot();
+
+    /**
+     * entries by ids, so that node storing entry can be reached without search
+     */
+    private final Map<String, QuadEntry<E>> entriesById = new HashMap<>();
+
+    /**
+     * @param bucketCapacity - maximum count of entries in leaf node
+     */
+    public RegionQuadtree(int bucketCapacity) {
+        if (bucketCapacity < 1) {
+            throw new IllegalArgumentException("bucketCapacity must be grater than 0");
+        }
+        this.bucketCapacity = bucketCapacity;
+    }
+
+    /**
+     * Insert entry into the smallest quadrant enclosing its rectangle. Entry with the same id is moved:
+     * if new rectangle still belongs to the same node, it is updated in place.
+     * <p>Algorithm:</p>
+     * <p>1. [Move in place] If entry is already stored and its node encloses new rectangle, while no child of the node
+     * does, update rectangle and stop. Otherwise, delete entry.</p>
+     * <p>2. [Descend] Starting from root, descend to the child enclosing rectangle until a leaf is reached
+     * or rectangle crosses borders between children.</p>
+     * <p>3. [Add entry] Add entry to the node found in [2], increment entry counts on the path to the root.</p>
+     * <p>4. [Split overflowed leaf] If leaf holds more than bucketCapacity entries, invoke {@link RegionQuadtree#split}.</p>
+     *
+     * @param entry  - stored object
+     * @param bounds - rectangle of entry, its coordinates are copied
+     * @param z      - z index of entry
+     */
+    public void insert(E entry, Rectangle bounds, int z) {
+        Objects.requireNonNull(entry, "null entry");
+        QuadEntry<E> quadEntry = entriesById.get(entry.getId());
+        if (quadEntry != null) { //1 [Move in place]
+            QuadNode<E> node = quadEntry.getNode();
+            int minX = bounds.getMinX(), minY = bounds.getMinY(), maxX = bounds.getMaxX(), maxY = bounds.getMaxY();
+            if (node.encloses(minX, minY, maxX, maxY)
+                    && (node.isLeaf() || node.childIndexEnclosing(minX, minY, maxX, maxY) < 0)) {
+                quadEntry.setBounds(bounds);
+                quadEntry.setZ(z);
+                return;
+            }
+            delete(entry.getId());
+        }
+        quadEntry = new QuadEntry<>(entry);
+        quadEntry.setBounds(bounds);
+        quadEntry.setZ(z);
+        entriesById.put(entry.getId(), quadEntry);
+        QuadNode<E> node = root;
+        while (!node.isLeaf()) { //2 [Descend]
+            int childIndex = node.childIndexEnclosing(
+                    quadEntry.getMinX(), quadEntry.getMinY(), quadEntry.getMaxX(), quadEntry.getMaxY());
+            if (childIndex < 0) {
+                break;
+            }
+            node = node.getChildren()[childIndex];
+        }
+        addEntry(node, quadEntry); //3 [Add entry]
+        for (QuadNode<E> ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            ancestor.setEntryCount(ancestor.getEntryCount() + 1);
+        }
+        if (node.isLeaf() && node.getEntries().size() > bucketCapacity) { //4 [Split overflowed leaf]
+            split(node);
+        }
+    }
+
+    /**
+     * Split leaf into four children and move down entries enclosed by children quadrants,
+     * children which are still overflowed are split too. Quadrant of one point is never split.
+     */
+    @SuppressWarnings("unchecked")
+    private void split(QuadNode<E> node) {
+        if (node.getSide() == 1) {
+            return;
+        }
+        long half = node.getSide() / 2;
+        QuadNode<E>[] children = new QuadNode[]{
+                new QuadNode<>(node.getMinX(), node.getMinY(), half, node),
+                new QuadNode<>(node.getMinX() + half, node.getMinY(), half, node),
+                new QuadNode<>(node.getMinX(), node.getMinY() + half, half, node),
+                new QuadNode<>(node.getMinX() + half, node.getMinY() + half, half, node)
+        };
+        node.setChildren(children);
+        List<QuadEntry<E>> entries = new ArrayList<>(node.getEntries());
+        node.getEntries().clear();
+        for (QuadEntry<E> quadEntry : entries) {
+            int childIndex = node.childIndexEnclosing(
+                    quadEntry.getMinX(), quadEntry.getMinY(), quadEntry.getMaxX(), quadEntry.getMaxY());
+            QuadNode<E> target = childIndex < 0 ? node : children[childIndex];
+            addEntry(target, quadEntry);
+            if (target != node) {
+                target.setEntryCount(target.getEntryCount() + 1);
+            }
+        }
+        for (QuadNode<E> child : children) {
+            if (child.getEntries().size() > bucketCapacity) {
+                split(child);
+            }
+        }
+    }
+
+    /**
+     * Remove entry from its node. Ascending to the root, every subtree holding not more than bucketCapacity entries
+     * is merged into a leaf.
+     *
+     * @param id - id of deleting entry
+     * @return true if entry is actually has been deleted
+     */
+    public boolean delete(String id) {
+        Objects.requireNonNull(id, "null id");
+        QuadEntry<E> quadEntry = entriesById.remove(id);
+        if (quadEntry == null) {
+            return false;
+        }
+        QuadNode<E> node = quadEntry.getNode();
+        node.getEntries().remove(quadEntry);
+        quadEntry.setNode(null);
+        QuadNode<E> mergeCandidate = null;
+        for (QuadNode<E> ancestor = node; ancestor != null; ancestor = ancestor.getParent()) {
+            ancestor.setEntryCount(ancestor.getEntryCount() - 1);
+            if (!ancestor.isLeaf() && ancestor.getEntryCount() <= bucketCapacity) {
+                mergeCandidate = ancestor;
+            }
+        }
+        if (mergeCandidate != null) {
+            merge(mergeCandidate);
+        }
+        return true;
+    }
+
+    /**
+     * Move all entries of the subtree into the node, which becomes a leaf.
+     */
+    private void merge(QuadNode<E> node) {
+        List<QuadEntry<E>> subtreeEntries = new ArrayList<>();
+        collectEntries(node, subtreeEntries);
+        node.getEntries().clear();
+        node.setChildren(null);
+        subtreeEntries.forEach(quadEntry -> addEntry(node, quadEntry));
+    }
+
+    private void collectEntries(QuadNode<E> node, List<QuadEntry<E>> collector) {
+        collector.addAll(node.getEntries());
+        if (!node.isLeaf()) {
+            for (QuadNode<E> child : node.getChildren()) {
+                collectEntries(child, collector);
+            }
+        }
+    }
+
+    private void addEntry(QuadNode<E> node, QuadEntry<E> quadEntry) {
+        node.getEntries().add(quadEntry);
+        quadEntry.setNode(node);
+    }
+
+    /**
+     * Change z index of the entry without changing its position in the tree.
+     *
+     * @return true if entry has been found and updated
+     */
+    public boolean updateZ(String id, int z) {
+        Objects.requireNonNull(id, "null id");
+        QuadEntry<E> quadEntry = entriesById.get(id);
+        if (quadEntry == null) {
+            return false;
+        }
+        quadEntry.setZ(z);
+        return true;
+    }
+
+    public int size() {
+        return entriesById.size();
+    }
+
+    public void clear() {
+        entriesById.clear();
+        root = newRoot();
+    }
+
+    /**
+     * Pass to {@param visitor} every entry matching search area ({@param searchArea}) according to its query mode
+     * in no particular order, children whose quadrants can't hold matching entries are skipped.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        return search(searchArea, root, visitor);
+    }
+
+    private boolean search(SearchArea searchArea, QuadNode<E> node, EntryVisitor<? super E> visitor) {
+        for (QuadEntry<E> quadEntry : node.getEntries()) {
+            if (matches(searchArea, quadEntry) && !visitor.visit(quadEntry.getEntry())) {
+                return false;
+            }
+        }
+        if (!node.isLeaf()) {
+            for (QuadNode<E> child : node.getChildren()) {
+                if (child.getEntryCount() > 0 && mayHaveMatches(searchArea, child) && !search(searchArea, child, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes. Point on the border of rectangle is considered to be contained by it.
+     * Only nodes on the path to the quadrant of the point are visited.
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<QuadEntry<E>> found = new ArrayList<>();
+        QuadNode<E> node = root;
+        while (node != null) {
+            for (QuadEntry<E> quadEntry : node.getEntries()) {
+                if (quadEntry.containsPoint(x, y)) {
+                    found.add(quadEntry);
+                }
+            }
+            node = node.isLeaf() ? null : node.getChildren()[node.childIndexEnclosing(x, y, x, y)];
+        }
+        found.sort(Comparator.comparingInt(QuadEntry<E>::getZ).reversed());
+        List<E> results = new ArrayList<>();
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            results.add(found.get(i).getEntry());
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY})
+     * in ascending order of distance, entries at the same distance are ordered by z index.
+     * Nodes and entries are taken from priority queue ordered by distance to them, node is expanded before entries
+     * at the same distance, so entry is emitted only when no closer entry is left in queue or in unexpanded nodes.
+     */
+    @SuppressWarnings("unchecked")
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (limit <= 0 || entriesById.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        PriorityQueue<Object> queue = new PriorityQueue<>(Comparator
+                .comparingDouble((Object item) -> squaredDistance(item, minX, minY, maxX, maxY))
+                .thenComparingLong(item -> item instanceof QuadNode ? Long.MIN_VALUE : ((QuadEntry<?>) item).getZ()));
+        queue.add(root);
+        while (!queue.isEmpty() && results.size() < limit) {
+            Object item = queue.poll();
+            if (item instanceof QuadEntry) {
+                results.add(((QuadEntry<E>) item).getEntry());
+                continue;
+            }
+            QuadNode<E> node = (QuadNode<E>) item;
+            queue.addAll(node.getEntries());
+            if (!node.isLeaf()) {
+                for (QuadNode<E> child : node.getChildren()) {
+                    if (child.getEntryCount() > 0) {
+                        queue.add(child);
+                    }
+                }
+            }
+        }
+        return results;
+    }
+
+    @SuppressWarnings("unchecked")
+    private double squaredDistance(Object item, int minX, int minY, int maxX, int maxY) {
+        if (item instanceof QuadEntry) {
+            return ((QuadEntry<E>) item).squaredDistanceTo(minX, minY, maxX, maxY);
+        }
+        QuadNode<E> node = (QuadNode<E>) item;
+        return Rectangle.squaredDistance((int) node.getMinX(), (int) node.getMinY(), node.getMaxX(), node.getMaxY(),
+                minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of entries overlapping each other (having common inner points), which both
+     * match search area ({@param searchArea}), entry with lower z index goes first. Quadrants of different children
+     * have no common points, so overlapping entries are always stored either in the same node or in a node and
+     * its descendant: every entry is checked against the following entries of its node and against entries
+     * of descendant quadrants overlapping it. Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        return searchOverlappingPairs(searchArea, root, visitor);
+    }
+
+    private boolean searchOverlappingPairs(SearchArea searchArea, QuadNode<E> node, EntryPairVisitor<? super E> visitor) {
+        List<QuadEntry<E>> entries = node.getEntries();
+        for (int i = 0; i < entries.size(); i++) {
+            QuadEntry<E> first = entries.get(i);
+            if (!matches(searchArea, first)) {
+                continue;
+            }
+            for (int j = i + 1; j < entries.size(); j++) {
+                QuadEntry<E> second = entries.get(j);
+                if (overlaps(first, second) && matches(searchArea, second) && !visitPair(first, second, visitor)) {
+                    return false;
+                }
+            }
+            if (!node.isLeaf()) {
+                for (QuadNode<E> child : node.getChildren()) {
+                    if (!joinDescendants(searchArea, first, child, visitor)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        if (!node.isLeaf()) {
+            for (QuadNode<E> child : node.getChildren()) {
+                if (child.getEntryCount() > 0 && mayHaveMatches(searchArea, child)
+                        && !searchOverlappingPairs(searchArea, child, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean joinDescendants(SearchArea searchArea, QuadEntry<E> first, QuadNode<E> node,
+                                    EntryPairVisitor<? super E> visitor) {
+        boolean quadrantOverlaps = first.getMinX() < node.getMaxX() && node.getMinX() < first.getMaxX()
+                && first.getMinY() < node.getMaxY() && node.getMinY() < first.getMaxY();
+        if (node.getEntryCount() == 0 || !quadrantOverlaps || !mayHaveMatches(searchArea, node)) {
+            return true;
+        }
+        for (QuadEntry<E> second : node.getEntries()) {
+            if (overlaps(first, second) && matches(searchArea, second) && !visitPair(first, second, visitor)) {
+                return false;
+            }
+        }
+        if (!node.isLeaf()) {
+            for (QuadNode<E> child : node.getChildren()) {
+                if (!joinDescendants(searchArea, first, child, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean visitPair(QuadEntry<E> first, QuadEntry<E> second, EntryPairVisitor<? super E> visitor) {
+        return first.getZ() < second.getZ()
+                ? visitor.visit(first.getEntry(), second.getEntry())
+                : visitor.visit(second.getEntry(), first.getEntry());
+    }
+
+    private static boolean overlaps(QuadEntry<?> first, QuadEntry<?> second) {
+        return first.getMinX() < second.getMaxX() && second.getMinX() < first.getMaxX()
+                && first.getMinY() < second.getMaxY() && second.getMinY() < first.getMaxY();
+    }
+
+    private static boolean matches(SearchArea searchArea, QuadEntry<?> quadEntry) {
+        return searchArea.matches(quadEntry.getMinX(), quadEntry.getMinY(), quadEntry.getMaxX(), quadEntry.getMaxY(),
+                quadEntry.getZ(), quadEntry.getZ());
+    }
+
+    private static boolean mayHaveMatches(SearchArea searchArea, QuadNode<?> node) {
+        return searchArea.mayHaveMatchesInside((int) node.getMinX(), (int) node.getMinY(), node.getMaxX(), node.getMaxY(),
+                Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Depth of the deepest node, root has depth 0.
+     */
+    int depth() {
+        return depth(root);
+    }
+
+    private int depth(QuadNode<E> node) {
+        int depth = 0;
+        if (!node.isLeaf()) {
+            for (QuadNode<E> child : node.getChildren()) {
+                depth = Math.max(depth, depth(child) + 1);
+            }
+        }
+        return depth;
+    }
+
+    private QuadNode<E> newRoot() {
+        return new QuadNode<>(Integer.MIN_VALUE, Integer.MIN_VALUE, 1L << 32, null);
+    }
+}
@@ -1,8 +1,11 @@
 package ru.ohapegor.widgets.repository.memory.rtree;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
 
 import java.util.Objects;
 
@@ -15,8 +18,81 @@ import java.util.Objects;
 public class EntryNode<E extends HasId> extends Node<E> {
     private E entry;
 
+    /**
+     * exact dimensions of the entry: in loose r-tree node bounds are enlarged by margin, so that small moves
+     * stay inside of them, otherwise node bounds are the same as exact dimensions
+     */
+    @Setter(AccessLevel.NONE)
+    private int exactMinX;
+    @Setter(AccessLevel.NONE)
+    private int exactMinY;
+    @Setter(AccessLevel.NONE)
+    private int exactMaxX;
+    @Setter(AccessLevel.NONE)
+    private int exactMaxY;
+
     public EntryNode(E entry) {
         this.entry = Objects.requireNonNull(entry, "EntryNode should contain non-null entry");
+        this.entryCount = 1;
+    }
+
+    /**
+     * @return z index of the entry, by which {@link RectangleRTree#searchFirstByZ} orders results
+     */
+    public int getZ() {
+        return getMinZ();
+    }
+
+    public void setZ(int z) {
+        setZRange(z, z);
+    }
+
+    /**
+     * Set both exact dimensions and node bounds.
+     */
+    @Override
+    public void setDimensions(Rectangle rectangle) {
+        setExactDimensions(rectangle);
+        super.setDimensions(rectangle);
+    }
+
+    /**
+     * Set exact dimensions only, leaving node bounds as is.
+     */
+    void setExactDimensions(Rectangle rectangle) {
+        this.exactMinX = rectangle.getMinX();
+        this.exactMinY = rectangle.getMinY();
+        this.exactMaxX = rectangle.getMaxX();
+        this.exactMaxY = rectangle.getMaxY();
+    }
+
+    /**
+     * @return true if exact dimensions of the entry match search area and its z index is inside z range of search area
+     */
+    boolean exactlyMatches(SearchArea searchArea) {
+        return searchArea.matches(exactMinX, exactMinY, exactMaxX, exactMaxY, getZ(), getZ());
+    }
+
+    /**
+     * @return true if point is inside of exact dimensions of the entry or on their border
+     */
+    boolean exactlyContainsPoint(int x, int y) {
+        return exactMinX <= x && x <= exactMaxX && exactMinY <= y && y <= exactMaxY;
+    }
+
+    /**
+     * @return true if exact dimensions of entries have common inner points
+     */
+    boolean exactlyOverlaps(EntryNode<?> another) {
+        return RectangleRTree.overlaps(exactMinX, exactMinY, exactMaxX, exactMaxY,
+                another.exactMinX, another.exactMinY, another.exactMaxX, another.exactMaxY);
+    }
+
+    /**
+     * @return squared minimal distance between points of exact dimensions of the entry and given rectangle
+     */
+    double exactSquaredDistanceTo(int minX, int minY, int maxX, int maxY) {
+        return Rectangle.squaredDistance(exactMinX, exactMinY, exactMaxX, exactMaxY, minX, minY, maxX, maxY);
     }
 
     @Override
@@ -41,10 +117,15 @@ public class EntryNode<E extends HasId> extends Node<E> {
     @Override
     public String toString() {
         return "EntryNode{" +
-                "minX=" + getMinX() +
+                "exactMinX=" + exactMinX +
+                ", exactMaxX=" + exactMaxX +
+                ", exactMinY=" + exactMinY +
+                ", exactMaxY=" + exactMaxY +
+                ", minX=" + getMinX() +
                 ", maxX=" + getMaxX() +
                 ", minY=" + getMinY() +
                 ", maxY=" + getMaxY() +
+                ", z=" + getZ() +
                 ", entry=" + entry +
                 '}';
     }
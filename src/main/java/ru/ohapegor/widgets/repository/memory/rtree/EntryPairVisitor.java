@@ -0,0 +1,19 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+/**
+ * Callback which receives pairs of entries found by
+ * {@link RectangleRTree#searchOverlappingPairs(ru.ohapegor.widgets.model.SearchArea, EntryPairVisitor)} one by one,
+ * so that results don't need to be collected.
+ *
+ * @param <E> - type of entries stored in tree
+ */
+@FunctionalInterface
+public interface EntryPairVisitor<E> {
+
+    /**
+     * @param first  - entry with lower z index
+     * @param second - entry with higher z index
+     * @return true to continue search, false to stop it
+     */
+    boolean visit(E first, E second);
+}
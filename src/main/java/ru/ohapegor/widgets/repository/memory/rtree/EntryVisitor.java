@@ -0,0 +1,17 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+/**
+ * Callback which receives entries found by {@link RectangleRTree#search(ru.ohapegor.widgets.model.SearchArea, EntryVisitor)}
+ * one by one, so that results don't need to be collected.
+ *
+ * @param <E> - type of entries stored in tree
+ */
+@FunctionalInterface
+public interface EntryVisitor<E> {
+
+    /**
+     * @param entry - found entry
+     * @return true to continue search, false to stop it
+     */
+    boolean visit(E entry);
+}
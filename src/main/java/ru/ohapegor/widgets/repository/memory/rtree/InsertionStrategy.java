@@ -0,0 +1,33 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+/**
+ * Algorithms {@link RectangleRTree} uses to choose subtree for a new entry and to handle overflowed nodes.
+ */
+public enum InsertionStrategy {
+
+    /**
+     * Original Guttman's algorithm: subtree is chosen by least area enlargement, overflowed node is split
+     * with linear cost algorithm.
+     */
+    GUTTMAN_LINEAR,
+
+    /**
+     * R*-tree algorithm described by Beckmann, Kriegel, Schneider and Seeger
+     * <a href="https://infolab.usc.edu/csci599/Fall2001/paper/rstar-tree.pdf">rstar-tree.pdf</a>:
+     * subtree is chosen by least overlap enlargement on the level above leafs, overflowed node is first
+     * handled with forced reinsert of its farthest entries and only then split by axis with minimal
+     * margin and distribution with minimal overlap.
+     */
+    R_STAR,
+
+    /**
+     * Hilbert R-tree described by Kamel and Faloutsos
+     * <a href="https://www.vldb.org/conf/1994/P500.PDF">hilbert-r-tree.pdf</a>:
+     * children of every node are kept ordered by Hilbert value of their centers, new entry goes to the first subtree
+     * whose largest Hilbert value is not less than its own. Overflowed node shares children with its sibling
+     * and only when both are full they are split into three nodes (2-to-3 split), underflowed node borrows children
+     * from its sibling or is merged with it, so deletions never reinsert orphaned entries.
+     * Requires minEntries to be at most half of maxEntries + 1.
+     */
+    HILBERT
+}
@@ -0,0 +1,502 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Log-structured spatial index: insertions and deletions land in a small mutable buffer in constant time,
+ * while the bulk of entries is kept in a few immutable {@link PackedRectangleRTree}s. Background compactor
+ * periodically (or as soon as buffer is full) folds the buffer into a new packed tree, and merges all trees
+ * into one when there are too many of them or too many obsolete entries in them.
+ * <p>Trees are never modified, so replaced and deleted entries stay in them until merge. Map of current entry nodes
+ * by ids serves as the table of tombstones: entry found in a tree or in the buffer being compacted is alive only while
+ * it is the entry of the current node of its id. Therefore, entries must be immutable: moved entry must be inserted
+ * as a new object.</p>
+ * <p>Searches merge results of all trees and of the buffer and can run concurrently with compaction.
+ * Modifications must be serialized by caller.</p>
+ *
+ * @param <E> - type of object (entry) which is actually will be stored in this tree.
+ */
+@Slf4j
+public class LsmRectangleRTree<E extends HasId> {
+
+    /**
+     * maximum count of packed trees, all trees are merged into one when it is exceeded
+     */
+    private static final int MAX_TREES = 4;
+
+    /**
+     * maximum count of children in one node of packed tree
+     */
+    private static final int NODE_SIZE = 16;
+
+    /**
+     * count of entries in buffer, after which compaction is started without waiting for its period
+     */
+    private final int bufferCapacity;
+
+    /**
+     * current entry node of each stored entry
+     */
+    private final Map<String, EntryNode<E>> entryNodesById = new ConcurrentHashMap<>();
+
+    /**
+     * guards replacing of {@link LsmRectangleRTree#levels} and modifications of buffer
+     */
+    private final Object levelsMonitor = new Object();
+
+    private volatile Levels<E> levels = Levels.empty();
+
+    /**
+     * count of obsolete entries in trees and in the buffer being compacted, written under levels monitor
+     */
+    private int obsoleteCount;
+
+    private final AtomicBoolean compactionRequested = new AtomicBoolean();
+
+    /**
+     * serializes compactions, so that the next buffer is not frozen until the previous one is published
+     */
+    private final Object compactionMonitor = new Object();
+
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "lsm-r-tree-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param bufferCapacity     - count of entries in buffer, after which compaction is started immediately
+     * @param compactionPeriodMs - period of compaction of not empty buffer
+     */
+    public LsmRectangleRTree(int bufferCapacity, long compactionPeriodMs) {
+        if (bufferCapacity < 1) {
+            throw new IllegalArgumentException("bufferCapacity must be grater than 0");
+        }
+        if (compactionPeriodMs < 1) {
+            throw new IllegalArgumentException("compactionPeriodMs must be grater than 0");
+        }
+        this.bufferCapacity = bufferCapacity;
+        compactor.scheduleWithFixedDelay(this::compact, compactionPeriodMs, compactionPeriodMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Put entry into buffer, replacing entry with the same id.
+     *
+     * @param entry  - stored object, must not be modified after insertion
+     * @param bounds - rectangle of entry, its coordinates are copied
+     * @param z      - z index of entry
+     */
+    public void insert(E entry, Rectangle bounds, int z) {
+        Objects.requireNonNull(entry, "null entry");
+        var entryNode = new EntryNode<>(entry);
+        entryNode.setDimensions(bounds);
+        entryNode.setZ(z);
+        boolean bufferFull;
+        synchronized (levelsMonitor) {
+            Map<String, EntryNode<E>> buffer = levels.buffer;
+            EntryNode<E> replaced = entryNodesById.put(entry.getId(), entryNode);
+            if (buffer.put(entry.getId(), entryNode) == null && replaced != null) {
+                obsoleteCount++; // replaced entry is left in tree or in buffer being compacted
+            }
+            bufferFull = buffer.size() >= bufferCapacity;
+        }
+        if (bufferFull) {
+            requestCompaction();
+        }
+    }
+
+    /**
+     * @return true if entry is actually has been deleted
+     */
+    public boolean delete(String id) {
+        Objects.requireNonNull(id, "null id");
+        synchronized (levelsMonitor) {
+            if (entryNodesById.remove(id) == null) {
+                return false;
+            }
+            if (levels.buffer.remove(id) == null) {
+                obsoleteCount++;
+            }
+            return true;
+        }
+    }
+
+    public int size() {
+        return entryNodesById.size();
+    }
+
+    /**
+     * Remove all entries, compaction running at the moment is discarded.
+     */
+    public void clear() {
+        synchronized (levelsMonitor) {
+            entryNodesById.clear();
+            levels = Levels.empty();
+            obsoleteCount = 0;
+        }
+    }
+
+    /**
+     * Stop background compaction, invoked on context shutdown.
+     */
+    public void close() {
+        compactor.shutdownNow();
+    }
+
+    /**
+     * Pass to {@param visitor} every alive entry matching search area ({@param searchArea}) in no particular order.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        Levels<E> snapshot = levels;
+        for (PackedRectangleRTree<E> tree : snapshot.trees) {
+            if (!tree.search(searchArea, entry -> !isAlive(entry) || visitor.visit(entry))) {
+                return false;
+            }
+        }
+        for (EntryNode<E> entryNode : snapshot.bufferedEntryNodes()) {
+            if (isAlive(entryNode) && matches(searchArea, entryNode) && !visitor.visit(entryNode.getEntry())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes. Point on the border of rectangle is considered to be contained by it.
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        Levels<E> snapshot = levels;
+        List<EntryNode<E>> found = new ArrayList<>();
+        for (PackedRectangleRTree<E> tree : snapshot.trees) {
+            // obsolete entries may be on top, so every tree is searched without limit
+            for (E entry : tree.searchTopmostAtPoint(x, y, Long.MAX_VALUE)) {
+                addIfAlive(entry, found);
+            }
+        }
+        for (EntryNode<E> entryNode : snapshot.bufferedEntryNodes()) {
+            if (isAlive(entryNode) && entryNode.containsPoint(x, y)) {
+                found.add(entryNode);
+            }
+        }
+        found.sort(Comparator.comparingInt(EntryNode<E>::getZ).reversed());
+        return entriesOf(found, limit);
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY})
+     * in ascending order of distance, entries at the same distance are ordered by z index.
+     * First {@param limit} alive entries are taken from every tree and merged with alive entries of the buffer.
+     */
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        Levels<E> snapshot = levels;
+        List<EntryNode<E>> found = new ArrayList<>();
+        for (PackedRectangleRTree<E> tree : snapshot.trees) {
+            int sizeBefore = found.size();
+            tree.searchNearest(minX, minY, maxX, maxY,
+                    entry -> addIfAlive(entry, found) == null || found.size() - sizeBefore < limit);
+        }
+        for (EntryNode<E> entryNode : snapshot.bufferedEntryNodes()) {
+            if (isAlive(entryNode)) {
+                found.add(entryNode);
+            }
+        }
+        found.sort(Comparator
+                .comparingDouble((EntryNode<E> entryNode) -> entryNode.squaredDistanceTo(minX, minY, maxX, maxY))
+                .thenComparingInt(EntryNode::getZ));
+        return entriesOf(found, limit);
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of alive entries overlapping each other (having common inner points),
+     * which both match search area ({@param searchArea}), entry with lower z index goes first.
+     * Pairs inside each tree are found by its self-join, pairs of entries from different trees or from the buffer
+     * are found by searching the bigger part for entries overlapping each entry of the smaller one.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return false if search has been stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        Levels<E> snapshot = levels;
+        List<PackedRectangleRTree<E>> trees = snapshot.trees;
+        for (PackedRectangleRTree<E> tree : trees) {
+            if (!tree.searchOverlappingPairs(searchArea,
+                    (first, second) -> !isAlive(first) || !isAlive(second) || visitor.visit(first, second))) {
+                return false;
+            }
+        }
+        List<EntryNode<E>> buffered = new ArrayList<>();
+        for (EntryNode<E> entryNode : snapshot.bufferedEntryNodes()) {
+            if (isAlive(entryNode) && matches(searchArea, entryNode)) {
+                buffered.add(entryNode);
+            }
+        }
+        for (int i = 0; i < buffered.size(); i++) {
+            for (int j = i + 1; j < buffered.size(); j++) {
+                if (overlaps(buffered.get(i), buffered.get(j)) && !visitPair(buffered.get(i), buffered.get(j), visitor)) {
+                    return false;
+                }
+            }
+            for (PackedRectangleRTree<E> tree : trees) {
+                if (!joinTree(searchArea, buffered.get(i), tree, visitor)) {
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < trees.size(); i++) {
+            for (int j = i + 1; j < trees.size(); j++) {
+                PackedRectangleRTree<E> smaller = trees.get(i).size() <= trees.get(j).size() ? trees.get(i) : trees.get(j);
+                PackedRectangleRTree<E> bigger = smaller == trees.get(i) ? trees.get(j) : trees.get(i);
+                boolean completed = smaller.search(searchArea, entry -> {
+                    EntryNode<E> entryNode = aliveEntryNode(entry);
+                    return entryNode == null || joinTree(searchArea, entryNode, bigger, visitor);
+                });
+                if (!completed) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass to visitor pairs of given entry node with alive entries of the tree overlapping it and matching search area.
+     */
+    private boolean joinTree(SearchArea searchArea, EntryNode<E> entryNode, PackedRectangleRTree<E> tree,
+                             EntryPairVisitor<? super E> visitor) {
+        var overlapArea = new SearchArea(entryNode.getMinX(), entryNode.getMinY(), entryNode.getMaxX(),
+                entryNode.getMaxY(), QueryMode.INTERSECTS);
+        return tree.search(overlapArea, entry -> {
+            EntryNode<E> another = aliveEntryNode(entry);
+            return another == null || !overlaps(entryNode, another) || !matches(searchArea, another)
+                    || visitPair(entryNode, another, visitor);
+        });
+    }
+
+    private boolean visitPair(EntryNode<E> first, EntryNode<E> second, EntryPairVisitor<? super E> visitor) {
+        return first.getZ() < second.getZ()
+                ? visitor.visit(first.getEntry(), second.getEntry())
+                : visitor.visit(second.getEntry(), first.getEntry());
+    }
+
+    private static boolean overlaps(Rectangle first, Rectangle second) {
+        return first.getMinX() < second.getMaxX() && second.getMinX() < first.getMaxX()
+                && first.getMinY() < second.getMaxY() && second.getMinY() < first.getMaxY();
+    }
+
+    private static boolean matches(SearchArea searchArea, EntryNode<?> entryNode) {
+        return searchArea.matches(entryNode.getMinX(), entryNode.getMinY(), entryNode.getMaxX(), entryNode.getMaxY(),
+                entryNode.getZ(), entryNode.getZ());
+    }
+
+    /**
+     * @return current entry node of entry or null if entry has been replaced or deleted
+     */
+    private EntryNode<E> aliveEntryNode(E entry) {
+        EntryNode<E> entryNode = entryNodesById.get(entry.getId());
+        return entryNode != null && entryNode.getEntry() == entry ? entryNode : null;
+    }
+
+    private boolean isAlive(E entry) {
+        return aliveEntryNode(entry) != null;
+    }
+
+    private boolean isAlive(EntryNode<E> entryNode) {
+        return entryNodesById.get(entryNode.getEntry().getId()) == entryNode;
+    }
+
+    private EntryNode<E> addIfAlive(E entry, List<EntryNode<E>> collector) {
+        EntryNode<E> entryNode = aliveEntryNode(entry);
+        if (entryNode != null) {
+            collector.add(entryNode);
+        }
+        return entryNode;
+    }
+
+    private List<E> entriesOf(List<EntryNode<E>> entryNodes, long limit) {
+        List<E> results = new ArrayList<>();
+        for (int i = 0; i < entryNodes.size() && i < limit; i++) {
+            results.add(entryNodes.get(i).getEntry());
+        }
+        return results;
+    }
+
+    /**
+     * @return count of packed trees, used by tests
+     */
+    int treeCount() {
+        return levels.trees.size();
+    }
+
+    /**
+     * Start compaction immediately, unless it is already requested.
+     */
+    private void requestCompaction() {
+        if (compactionRequested.compareAndSet(false, true)) {
+            try {
+                compactor.execute(this::compact);
+            } catch (RuntimeException e) {
+                compactionRequested.set(false);
+                log.error("failed to request compaction", e);
+            }
+        }
+    }
+
+    /**
+     * Fold the buffer into a new packed tree.
+     * <p>Algorithm:</p>
+     * <p>1. [Freeze buffer] Replace buffer with an empty one, frozen buffer stays visible to searches
+     * until its tree is published.</p>
+     * <p>2. [Build tree] Build packed tree of alive entries of frozen buffer.</p>
+     * <p>3. [Merge trees] If there are more than MAX_TREES trees or obsolete entries make up more than half of them
+     * (and there are at least bufferCapacity of obsolete entries), build one tree of alive entries of all trees.</p>
+     * <p>4. [Publish] Replace trees and frozen buffer with the built trees, unless index has been cleared meanwhile.</p>
+     * <p>If compaction fails, frozen buffer is returned to the buffer to be compacted next time.</p>
+     */
+    void compact() {
+        synchronized (compactionMonitor) {
+            compactionRequested.set(false);
+            Levels<E> frozen = null;
+            try {
+                int obsoleteBeforeFreeze;
+                synchronized (levelsMonitor) { //1 [Freeze buffer]
+                    Levels<E> current = levels;
+                    obsoleteBeforeFreeze = obsoleteCount;
+                    if (current.buffer.isEmpty() && !isMergeRequired(current.trees, obsoleteBeforeFreeze)) {
+                        return;
+                    }
+                    frozen = new Levels<>(current.trees, current.buffer, new ConcurrentHashMap<>());
+                    levels = frozen;
+                }
+                int dropped = 0;
+                List<EntryNode<E>> aliveEntryNodes = new ArrayList<>(); //2 [Build tree]
+                for (EntryNode<E> entryNode : frozen.frozenBuffer.values()) {
+                    if (isAlive(entryNode)) {
+                        aliveEntryNodes.add(entryNode);
+                    } else {
+                        dropped++;
+                    }
+                }
+                List<PackedRectangleRTree<E>> trees = new ArrayList<>(frozen.trees);
+                if (!aliveEntryNodes.isEmpty()) {
+                    trees.add(PackedRectangleRTree.build(aliveEntryNodes, NODE_SIZE));
+                }
+                if (isMergeRequired(trees, obsoleteBeforeFreeze - dropped)) { //3 [Merge trees]
+                    List<EntryNode<E>> merged = new ArrayList<>();
+                    for (PackedRectangleRTree<E> tree : trees) {
+                        tree.search(new SearchArea(), entry -> {
+                            EntryNode<E> entryNode = aliveEntryNode(entry);
+                            if (entryNode != null) {
+                                merged.add(entryNode);
+                            }
+                            return true;
+                        });
+                        dropped += tree.size();
+                    }
+                    dropped -= merged.size();
+                    trees = merged.isEmpty() ? List.of() : List.of(PackedRectangleRTree.build(merged, NODE_SIZE));
+                }
+                synchronized (levelsMonitor) { //4 [Publish]
+                    if (levels.frozenBuffer != frozen.frozenBuffer) {
+                        return; // cleared
+                    }
+                    levels = new Levels<>(List.copyOf(trees), Map.of(), levels.buffer);
+                    obsoleteCount -= dropped;
+                }
+            } catch (RuntimeException e) {
+                log.error("failed to compact spatial index", e);
+                if (frozen != null) {
+                    unfreeze(frozen);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return alive entries of buffer frozen by failed compaction to the buffer, obsolete ones are dropped.
+     */
+    private void unfreeze(Levels<E> frozen) {
+        synchronized (levelsMonitor) {
+            if (levels.frozenBuffer != frozen.frozenBuffer) {
+                return; // cleared
+            }
+            Map<String, EntryNode<E>> buffer = new ConcurrentHashMap<>();
+            for (EntryNode<E> entryNode : frozen.frozenBuffer.values()) {
+                if (isAlive(entryNode)) {
+                    buffer.put(entryNode.getEntry().getId(), entryNode);
+                } else {
+                    obsoleteCount--;
+                }
+            }
+            // alive entries of frozen buffer can't be replaced in the buffer, since replacement would make them obsolete
+            buffer.putAll(levels.buffer);
+            levels = new Levels<>(levels.trees, Map.of(), buffer);
+        }
+    }
+
+    private boolean isMergeRequired(List<PackedRectangleRTree<E>> trees, int obsolete) {
+        long treeEntries = trees.stream().mapToLong(PackedRectangleRTree::size).sum();
+        // a few obsolete entries are left in trees, so that small trees are not rebuilt after every deletion
+        return trees.size() > MAX_TREES || 2L * obsolete > treeEntries && obsolete >= bufferCapacity;
+    }
+
+    /**
+     * Immutable set of levels, replaced as a whole so that search always sees consistent state.
+     * Only buffer is modified, it is guarded by levels monitor.
+     */
+    private static final class Levels<E extends HasId> {
+        private final List<PackedRectangleRTree<E>> trees;
+        /**
+         * buffer being compacted, empty if no compaction is running
+         */
+        private final Map<String, EntryNode<E>> frozenBuffer;
+        private final Map<String, EntryNode<E>> buffer;
+
+        private Levels(List<PackedRectangleRTree<E>> trees, Map<String, EntryNode<E>> frozenBuffer,
+                       Map<String, EntryNode<E>> buffer) {
+            this.trees = trees;
+            this.frozenBuffer = frozenBuffer;
+            this.buffer = buffer;
+        }
+
+        private static <E extends HasId> Levels<E> empty() {
+            return new Levels<>(List.of(), new ConcurrentHashMap<>(), new ConcurrentHashMap<>());
+        }
+
+        private List<EntryNode<E>> bufferedEntryNodes() {
+            List<EntryNode<E>> entryNodes = new ArrayList<>(frozenBuffer.size() + buffer.size());
+            entryNodes.addAll(frozenBuffer.values());
+            entryNodes.addAll(buffer.values());
+            return entryNodes;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package ru.ohapegor.widgets.repository.memory.rtree;
 
+import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.Setter;
 import ru.ohapegor.widgets.model.HasId;
@@ -7,20 +8,73 @@ import ru.ohapegor.widgets.model.Rectangle;
 
 
 @Getter
-@Setter
 abstract class Node<E extends HasId> implements Rectangle {
     protected int x;
     protected int y;
     protected int height;
     protected int width;
+    /**
+     * range of z indexes of entries stored in the subtree of this node
+     */
+    protected int minZ;
+    protected int maxZ;
+    /**
+     * count of entries stored in the subtree of this node
+     */
+    protected int entryCount;
+    /**
+     * used by {@link InsertionStrategy#HILBERT} only: for entry node - position of its center on Hilbert curve,
+     * for tree node - the largest value of its children, values are compared as unsigned longs
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private long hilbertValue;
+    @Setter
     protected TreeNode<E> parent;
 
+    /**
+     * position of this node in children arrays of the parent node
+     */
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private int indexInParent;
+
     public void setDimensions(Rectangle rectangle) {
-        this.x = rectangle.getX();
-        this.y = rectangle.getY();
-        this.width = rectangle.getWidth();
-        this.height = rectangle.getHeight();
+        setBounds(rectangle.getMinX(), rectangle.getMinY(), rectangle.getMaxX(), rectangle.getMaxY());
+    }
+
+    /**
+     * Update coordinates of the node, also updating copy of them stored in parent node.
+     */
+    void setBounds(int minX, int minY, int maxX, int maxY) {
+        this.x = minX;
+        this.y = minY;
+        this.width = maxX - minX;
+        this.height = maxY - minY;
+        if (parent != null) {
+            parent.refreshChild(this);
+        }
     }
 
+    /**
+     * Update range of z indexes of the node, also updating copy of it stored in parent node.
+     */
+    void setZRange(int minZ, int maxZ) {
+        this.minZ = minZ;
+        this.maxZ = maxZ;
+        if (parent != null) {
+            parent.refreshChild(this);
+        }
+    }
+
+    /**
+     * Update count of entries in the subtree of the node, also updating copy of it stored in parent node.
+     */
+    void setEntryCount(int entryCount) {
+        this.entryCount = entryCount;
+        if (parent != null) {
+            parent.refreshChild(this);
+        }
+    }
 
 }
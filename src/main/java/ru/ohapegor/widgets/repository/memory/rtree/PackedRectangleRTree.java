@@ -0,0 +1,466 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Immutable r-tree packed into flat arrays (flatbush layout), built once from all entries.
+ * Entries are sorted by Hilbert values of their centers and grouped by nodeSize into nodes of the next level,
+ * which are grouped the same way until a single root is left. Every entry and node is identified by its position:
+ * entries take positions [0, size), nodes of each next level follow the previous one, root takes the last position.
+ * Bounds and z ranges of positions are stored in int arrays, node keeps only the position of its first child,
+ * so there are no node objects and no links between them, and search is a loop over a small explicit stack.
+ * <p>Tree can't be modified, it can be read by any count of threads without synchronization
+ * after being published safely, e.g. through volatile field.</p>
+ *
+ * @param <E> - type of object (entry) which is actually will be stored in this tree.
+ */
+public final class PackedRectangleRTree<E extends HasId> {
+
+    /**
+     * maximum count of children in one node
+     */
+    private final int nodeSize;
+
+    /**
+     * count of entries
+     */
+    private final int size;
+
+    /**
+     * entries in Hilbert order, entry at position i is entries[i]
+     */
+    private final Object[] entries;
+
+    /**
+     * minX, minY, maxX, maxY of each position
+     */
+    private final int[] boxes;
+
+    /**
+     * minZ, maxZ of each position
+     */
+    private final int[] zRanges;
+
+    /**
+     * position of the first child for node positions, unused for entry positions
+     */
+    private final int[] indices;
+
+    /**
+     * end (exclusive) of each level positions, level 0 holds entries, the last level holds only root
+     */
+    private final int[] levelBounds;
+
+    private PackedRectangleRTree(int nodeSize, int size, Object[] entries, int[] boxes, int[] zRanges, int[] indices,
+                                 int[] levelBounds) {
+        this.nodeSize = nodeSize;
+        this.size = size;
+        this.entries = entries;
+        this.boxes = boxes;
+        this.zRanges = zRanges;
+        this.indices = indices;
+        this.levelBounds = levelBounds;
+    }
+
+    /**
+     * Build tree of given entry nodes, entry nodes are used only to read entries, their rectangles and z indexes.
+     * <p>Algorithm:</p>
+     * <p>1. [Sort entries] Sort entries by Hilbert values of their centers, so that neighbouring entries
+     * are close to each other.</p>
+     * <p>2. [Pack level] Group every nodeSize consecutive positions of the level into a node of the next level,
+     * its bounds and z range cover bounds and z ranges of the group.</p>
+     * <p>3. [Move up one level] Repeat [2] for the created level until it consists of a single root.</p>
+     *
+     * @param nodeSize - maximum count of children in one node
+     */
+    public static <E extends HasId> PackedRectangleRTree<E> build(Collection<EntryNode<E>> entryNodes, int nodeSize) {
+        Objects.requireNonNull(entryNodes, "entryNodes can't be null");
+        if (nodeSize < 2) {
+            throw new IllegalArgumentException("nodeSize must be grater than 1");
+        }
+        int size = entryNodes.size();
+        List<Integer> levelEnds = new ArrayList<>();
+        int levelSize = size;
+        int numNodes = size;
+        levelEnds.add(numNodes);
+        while (size > 0 && (levelEnds.size() == 1 || levelSize > 1)) {
+            levelSize = (levelSize + nodeSize - 1) / nodeSize;
+            numNodes += levelSize;
+            levelEnds.add(numNodes);
+        }
+        int[] levelBounds = levelEnds.stream().mapToInt(Integer::intValue).toArray();
+        Object[] entries = new Object[size];
+        int[] boxes = new int[4 * numNodes];
+        int[] zRanges = new int[2 * numNodes];
+        int[] indices = new int[numNodes];
+
+        List<EntryNode<E>> sortedEntryNodes = new ArrayList<>(entryNodes); //1 [Sort entries]
+        sortedEntryNodes.forEach(entryNode -> entryNode.setHilbertValue(RectangleRTree.hilbertValue(entryNode)));
+        sortedEntryNodes.sort((first, second) -> Long.compareUnsigned(first.getHilbertValue(), second.getHilbertValue()));
+        for (int pos = 0; pos < size; pos++) {
+            EntryNode<E> entryNode = sortedEntryNodes.get(pos);
+            entries[pos] = Objects.requireNonNull(entryNode.getEntry(), "null entry");
+            setBounds(boxes, zRanges, pos, entryNode.getMinX(), entryNode.getMinY(), entryNode.getMaxX(),
+                    entryNode.getMaxY(), entryNode.getZ(), entryNode.getZ());
+        }
+
+        for (int level = 1; level < levelBounds.length; level++) { //3 [Move up one level]
+            int childPos = levelBounds[level - 1] - levelSizeOf(levelBounds, level - 1);
+            int childEnd = levelBounds[level - 1];
+            for (int pos = levelBounds[level - 1]; pos < levelBounds[level]; pos++) { //2 [Pack level]
+                int firstChild = childPos;
+                int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, minZ = Integer.MAX_VALUE;
+                int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE, maxZ = Integer.MIN_VALUE;
+                for (; childPos < childEnd && childPos < firstChild + nodeSize; childPos++) {
+                    minX = Math.min(minX, boxes[4 * childPos]);
+                    minY = Math.min(minY, boxes[4 * childPos + 1]);
+                    maxX = Math.max(maxX, boxes[4 * childPos + 2]);
+                    maxY = Math.max(maxY, boxes[4 * childPos + 3]);
+                    minZ = Math.min(minZ, zRanges[2 * childPos]);
+                    maxZ = Math.max(maxZ, zRanges[2 * childPos + 1]);
+                }
+                setBounds(boxes, zRanges, pos, minX, minY, maxX, maxY, minZ, maxZ);
+                indices[pos] = firstChild;
+            }
+        }
+        return new PackedRectangleRTree<>(nodeSize, size, entries, boxes, zRanges, indices, levelBounds);
+    }
+
+    private static int levelSizeOf(int[] levelBounds, int level) {
+        return level == 0 ? levelBounds[0] : levelBounds[level] - levelBounds[level - 1];
+    }
+
+    private static void setBounds(int[] boxes, int[] zRanges, int pos, int minX, int minY, int maxX, int maxY,
+                                  int minZ, int maxZ) {
+        boxes[4 * pos] = minX;
+        boxes[4 * pos + 1] = minY;
+        boxes[4 * pos + 2] = maxX;
+        boxes[4 * pos + 3] = maxY;
+        zRanges[2 * pos] = minZ;
+        zRanges[2 * pos + 1] = maxZ;
+    }
+
+    /**
+     * @return count of entries in tree
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Pass entries that match search area ({@param searchArea}) to {@param visitor} as soon as they are found,
+     * nodes are pruned by the predicate of the same mode. Search stops as soon as visitor returns false.
+     *
+     * @return true if search has visited all entries inside search area, false if it was stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        if (size == 0 || !mayHaveMatchesInside(searchArea, root())) {
+            return true;
+        }
+        int[] stack = new int[stackCapacity()];
+        int stackSize = 0;
+        stack[stackSize++] = root();
+        while (stackSize > 0) {
+            int nodePos = stack[--stackSize];
+            int end = childrenEnd(nodePos);
+            for (int pos = indices[nodePos]; pos < end; pos++) {
+                if (pos < size) {
+                    if (matches(searchArea, pos) && !visitor.visit(entryAt(pos))) {
+                        return false;
+                    }
+                } else if (mayHaveMatchesInside(searchArea, pos)) {
+                    stack[stackSize++] = pos;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes. Point on the border of rectangle is considered to be contained by it.
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (size == 0 || limit <= 0 || !containsPoint(root(), x, y)) {
+            return Collections.emptyList();
+        }
+        List<Integer> found = new ArrayList<>();
+        int[] stack = new int[stackCapacity()];
+        int stackSize = 0;
+        stack[stackSize++] = root();
+        while (stackSize > 0) {
+            int nodePos = stack[--stackSize];
+            int end = childrenEnd(nodePos);
+            for (int pos = indices[nodePos]; pos < end; pos++) {
+                if (containsPoint(pos, x, y)) {
+                    if (pos < size) {
+                        found.add(pos);
+                    } else {
+                        stack[stackSize++] = pos;
+                    }
+                }
+            }
+        }
+        found.sort(Comparator.comparingInt((Integer pos) -> zRanges[2 * pos]).reversed());
+        List<E> results = new ArrayList<>();
+        for (int i = 0; i < found.size() && i < limit; i++) {
+            results.add(entryAt(found.get(i)));
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY})
+     * in ascending order of distance, entries at the same distance are ordered by z index.
+     * Positions are taken from priority queue ordered by distance, then by minimal z index, node is expanded
+     * when it is taken, entry is emitted: distance to every position left in queue is not less than distance to it.
+     */
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        searchNearest(minX, minY, maxX, maxY, entry -> {
+            results.add(entry);
+            return results.size() < limit;
+        });
+        return results;
+    }
+
+    /**
+     * Pass entries to {@param visitor} in ascending order of distance to rectangle, in the same order as
+     * {@link PackedRectangleRTree#searchNearest(int, int, int, int, long)} returns them, so that caller skipping
+     * some of the entries doesn't need to guess the limit. Search stops as soon as visitor returns false.
+     *
+     * @return true if all entries have been visited, false if search was stopped by visitor
+     */
+    public boolean searchNearest(int minX, int minY, int maxX, int maxY, EntryVisitor<? super E> visitor) {
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        if (size == 0) {
+            return true;
+        }
+        PositionQueue queue = new PositionQueue();
+        queue.add(root(), squaredDistance(root(), minX, minY, maxX, maxY), zRanges[2 * root()]);
+        while (!queue.isEmpty()) {
+            int nodePos = queue.poll();
+            if (nodePos < size) {
+                if (!visitor.visit(entryAt(nodePos))) {
+                    return false;
+                }
+                continue;
+            }
+            int end = childrenEnd(nodePos);
+            for (int pos = indices[nodePos]; pos < end; pos++) {
+                queue.add(pos, squaredDistance(pos, minX, minY, maxX, maxY), zRanges[2 * pos]);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of entries overlapping each other (having common inner points), which both
+     * match search area ({@param searchArea}), entry with lower z index goes first. Tree is walked against itself:
+     * stack holds pairs of positions whose bounds overlap, pair of node with itself expands into pairs of its children,
+     * pair of different positions expands the node of the higher level into pairs of its children with the other one.
+     * Search stops as soon as visitor returns false.
+     *
+     * @return true if search has visited all pairs, false if it was stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        if (size == 0 || !mayHaveMatchesInside(searchArea, root())) {
+            return true;
+        }
+        int[] stack = new int[2 * stackCapacity()];
+        int stackSize = 0;
+        stack[stackSize++] = root();
+        stack[stackSize++] = root();
+        while (stackSize > 0) {
+            int second = stack[--stackSize];
+            int first = stack[--stackSize];
+            if (first < size && second < size) {
+                if (!visitPair(first, second, visitor)) {
+                    return false;
+                }
+                continue;
+            }
+            if (stackSize + 2 * nodeSize * nodeSize > stack.length) {
+                stack = Arrays.copyOf(stack, Math.max(2 * stack.length, stackSize + 2 * nodeSize * nodeSize));
+            }
+            // positions of higher levels are greater, so the node of the higher level is expanded
+            int expanded = Math.max(first, second);
+            int end = childrenEnd(expanded);
+            if (first == second) {
+                for (int i = indices[expanded]; i < end; i++) {
+                    if (!isAcceptable(searchArea, i)) {
+                        continue;
+                    }
+                    if (i >= size) {
+                        stack[stackSize++] = i;
+                        stack[stackSize++] = i;
+                    }
+                    for (int j = i + 1; j < end; j++) {
+                        if (overlaps(i, j) && isAcceptable(searchArea, j)) {
+                            stack[stackSize++] = i;
+                            stack[stackSize++] = j;
+                        }
+                    }
+                }
+            } else {
+                int other = Math.min(first, second);
+                for (int i = indices[expanded]; i < end; i++) {
+                    if (overlaps(i, other) && isAcceptable(searchArea, i)) {
+                        stack[stackSize++] = i;
+                        stack[stackSize++] = other;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean visitPair(int first, int second, EntryPairVisitor<? super E> visitor) {
+        return zRanges[2 * first] < zRanges[2 * second]
+                ? visitor.visit(entryAt(first), entryAt(second))
+                : visitor.visit(entryAt(second), entryAt(first));
+    }
+
+    /**
+     * @return true if entry at position matches search area or node at position may hold matching entries
+     */
+    private boolean isAcceptable(SearchArea searchArea, int pos) {
+        return pos < size ? matches(searchArea, pos) : mayHaveMatchesInside(searchArea, pos);
+    }
+
+    private boolean matches(SearchArea searchArea, int pos) {
+        return searchArea.matches(boxes[4 * pos], boxes[4 * pos + 1], boxes[4 * pos + 2], boxes[4 * pos + 3],
+                zRanges[2 * pos], zRanges[2 * pos + 1]);
+    }
+
+    private boolean mayHaveMatchesInside(SearchArea searchArea, int pos) {
+        return searchArea.mayHaveMatchesInside(boxes[4 * pos], boxes[4 * pos + 1], boxes[4 * pos + 2],
+                boxes[4 * pos + 3], zRanges[2 * pos], zRanges[2 * pos + 1]);
+    }
+
+    private boolean containsPoint(int pos, int x, int y) {
+        return boxes[4 * pos] <= x && x <= boxes[4 * pos + 2] && boxes[4 * pos + 1] <= y && y <= boxes[4 * pos + 3];
+    }
+
+    /**
+     * @return true if bounds at positions have common inner points
+     */
+    private boolean overlaps(int first, int second) {
+        return boxes[4 * first] < boxes[4 * second + 2] && boxes[4 * second] < boxes[4 * first + 2]
+                && boxes[4 * first + 1] < boxes[4 * second + 3] && boxes[4 * second + 1] < boxes[4 * first + 3];
+    }
+
+    private double squaredDistance(int pos, int minX, int minY, int maxX, int maxY) {
+        return Rectangle.squaredDistance(boxes[4 * pos], boxes[4 * pos + 1], boxes[4 * pos + 2], boxes[4 * pos + 3],
+                minX, minY, maxX, maxY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private E entryAt(int pos) {
+        return (E) entries[pos];
+    }
+
+    private int root() {
+        return indices.length - 1;
+    }
+
+    /**
+     * @return end (exclusive) of children positions of the node: children of the node follow children of the previous
+     * node of the same level, node has nodeSize children except the last node of level
+     */
+    private int childrenEnd(int nodePos) {
+        int level = 1;
+        while (levelBounds[level] <= nodePos) {
+            level++;
+        }
+        return Math.min(indices[nodePos] + nodeSize, levelBounds[level - 1]);
+    }
+
+    /**
+     * Each level adds to stack at most nodeSize positions instead of one taken.
+     */
+    private int stackCapacity() {
+        return levelBounds.length * nodeSize + 1;
+    }
+
+    /**
+     * Binary min heap of positions ordered by distance, then by z index, kept in parallel arrays.
+     */
+    private static final class PositionQueue {
+        private int[] positions = new int[64];
+        private double[] distances = new double[64];
+        private int[] zs = new int[64];
+        private int size;
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int pos, double distance, int z) {
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, 2 * size);
+                distances = Arrays.copyOf(distances, 2 * size);
+                zs = Arrays.copyOf(zs, 2 * size);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!less(distance, z, distances[parent], zs[parent])) {
+                    break;
+                }
+                set(i, positions[parent], distances[parent], zs[parent]);
+                i = parent;
+            }
+            set(i, pos, distance, z);
+        }
+
+        int poll() {
+            int result = positions[0];
+            size--;
+            int pos = positions[size];
+            double distance = distances[size];
+            int z = zs[size];
+            int i = 0;
+            while (2 * i + 1 < size) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && less(distances[child + 1], zs[child + 1], distances[child], zs[child])) {
+                    child++;
+                }
+                if (!less(distances[child], zs[child], distance, z)) {
+                    break;
+                }
+                set(i, positions[child], distances[child], zs[child]);
+                i = child;
+            }
+            set(i, pos, distance, z);
+            return result;
+        }
+
+        private void set(int i, int pos, double distance, int z) {
+            positions[i] = pos;
+            distances[i] = distance;
+            zs[i] = z;
+        }
+
+        private static boolean less(double firstDistance, int firstZ, double secondDistance, int secondZ) {
+            return firstDistance < secondDistance || firstDistance == secondDistance && firstZ < secondZ;
+        }
+    }
+}
@@ -0,0 +1,587 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.PriorityQueue;
+
+/**
+ * Immutable (persistent) r-tree. Every modification copies only the nodes on the path from the root to the modified
+ * leaf and returns a new tree sharing all the other nodes with the original one. Original tree stays unchanged,
+ * so it can be read by any count of threads without synchronization while new versions are being built.
+ * <p>Subtree is chosen for a new entry by least area enlargement as in {@link RectangleRTree}, overflowed node
+ * is split into halves along the axis with the biggest spread of children centers. Under-full nodes left after
+ * deletion are eliminated and their entries are reinserted.</p>
+ * <p>New version of tree must be published to reading threads safely, e.g. through volatile field.</p>
+ *
+ * @param <E> - type of object (entry) which is actually will be stored in this tree.
+ */
+public final class PersistentRectangleRTree<E extends HasId> {
+
+    /**
+     * minimum count of children in one node, except root
+     */
+    private final int minEntries;
+
+    /**
+     * maximum count of children in one node
+     */
+    private final int maxEntries;
+
+    /**
+     * null if tree is empty
+     */
+    private final Branch<E> root;
+
+    private PersistentRectangleRTree(int minEntries, int maxEntries, Branch<E> root) {
+        this.minEntries = minEntries;
+        this.maxEntries = maxEntries;
+        this.root = root;
+    }
+
+    /**
+     * Creates a new empty tree
+     *
+     * @param minEntries - minimum count of children in one node
+     * @param maxEntries - maximum count of children in one node, overflowed node is split into halves,
+     *                   so it must be at least 2 * minEntries - 1
+     */
+    public static <E extends HasId> PersistentRectangleRTree<E> empty(int minEntries, int maxEntries) {
+        if (minEntries < 1) {
+            throw new IllegalArgumentException("minNodes must be grater than 0");
+        }
+        if (maxEntries + 1 < 2 * minEntries) {
+            throw new IllegalArgumentException("maxNodes must be at least 2 * minNodes - 1");
+        }
+        return new PersistentRectangleRTree<>(minEntries, maxEntries, null);
+    }
+
+    /**
+     * @return count of entries in tree
+     */
+    public int size() {
+        return root == null ? 0 : root.entryCount;
+    }
+
+    /**
+     * Get tree with entry node inserted.
+     * <p>Algorithm:</p>
+     * <p>1. [Find position for new record] Descend from the root choosing child which requires least area
+     * enlargement to include entry, resolving ties by smaller area.</p>
+     * <p>2. [Add record to leaf node] Create copy of leaf with entry added. If copy has more than maxEntries
+     * children, split it into two nodes.</p>
+     * <p>3. [Propagate changes upward] Create copy of each node on the path replacing old child with new one
+     * (and adding split partner, splitting copy if required). If root has been split, create new root.</p>
+     *
+     * @param entryNode - entry node with reference to storing object, dimensions and z index,
+     *                  which are copied to the tree, so entry node itself can be reused
+     * @return new tree
+     */
+    public PersistentRectangleRTree<E> insert(EntryNode<E> entryNode) {
+        Objects.requireNonNull(entryNode, "null entryNode");
+        return new PersistentRectangleRTree<>(minEntries, maxEntries, insert(root, new Entry<>(entryNode)));
+    }
+
+    /**
+     * Get tree with entry removed.
+     * <p>Algorithm:</p>
+     * <p>1. [Find node containing record] Descend into children which contain {@param dimensions}
+     * until leaf with entry is found. Return this tree if not found.</p>
+     * <p>2. [Delete record] Create copy of leaf without entry.</p>
+     * <p>3. [Propagate changes upward] Create copy of each node on the path replacing old child with new one.
+     * If new child has fewer than minEntries children, exclude it and collect all its entries.</p>
+     * <p>4. [Shorten tree] If root has only one child, make this child a root.</p>
+     * <p>5. [Reinsert orphaned entries]</p>
+     *
+     * @param id         - id of deleting entry
+     * @param dimensions - rectangle where this entry expected to be.
+     * @return new tree or this tree if entry is not found
+     */
+    public PersistentRectangleRTree<E> delete(String id, Rectangle dimensions) {
+        Objects.requireNonNull(id, "null id");
+        Objects.requireNonNull(dimensions, "null dimensions");
+        if (root == null) {
+            return this;
+        }
+        List<Entry<E>> orphans = new ArrayList<>();
+        Branch<E> newRoot = delete(root, id, dimensions, orphans); //1-3
+        if (newRoot == root) {
+            return this;
+        }
+        if (newRoot.children.length == 0) { //4 [Shorten tree]
+            newRoot = null;
+        } else {
+            while (!newRoot.leaf && newRoot.children.length == 1) {
+                newRoot = (Branch<E>) newRoot.children[0];
+            }
+        }
+        for (Entry<E> orphan : orphans) { //5 [Reinsert orphaned entries]
+            newRoot = insert(newRoot, orphan);
+        }
+        return new PersistentRectangleRTree<>(minEntries, maxEntries, newRoot);
+    }
+
+    /**
+     * Get tree with the whole collection of entry nodes, built with Sort-Tile-Recursive packing
+     * the same way as {@link RectangleRTree#bulkLoad} does.
+     *
+     * @param entryNodes - entry nodes with references to storing objects, dimensions and z indexes
+     * @return new tree, holding only given entries
+     */
+    @SuppressWarnings("unchecked")
+    public PersistentRectangleRTree<E> bulkLoad(Collection<EntryNode<E>> entryNodes) {
+        Objects.requireNonNull(entryNodes, "null entryNodes");
+        if (entryNodes.isEmpty()) {
+            return new PersistentRectangleRTree<>(minEntries, maxEntries, null);
+        }
+        List<Item<E>> levelNodes = new ArrayList<>(entryNodes.size());
+        entryNodes.forEach(entryNode -> levelNodes.add(new Entry<>(entryNode)));
+        boolean leaf = true;
+        do {
+            levelNodes.sort(Comparator.comparingLong(node -> (long) node.minX + node.maxX));
+            int parentsCount = ceilDiv(levelNodes.size(), maxEntries);
+            int sliceSize = (int) Math.ceil(Math.sqrt(parentsCount)) * maxEntries;
+            List<Item<E>> parents = new ArrayList<>(parentsCount);
+            for (int sliceStart = 0; sliceStart < levelNodes.size(); sliceStart += sliceSize) {
+                List<Item<E>> slice = levelNodes.subList(sliceStart, Math.min(sliceStart + sliceSize, levelNodes.size()));
+                slice.sort(Comparator.comparingLong(node -> (long) node.minY + node.maxY));
+                int groupsCount = ceilDiv(slice.size(), maxEntries);
+                int groupStart = 0;
+                for (int group = 0; group < groupsCount; group++) {
+                    int groupEnd = groupStart + (slice.size() - groupStart) / (groupsCount - group);
+                    parents.add(new Branch<>(leaf, slice.subList(groupStart, groupEnd).toArray(new Item[0])));
+                    groupStart = groupEnd;
+                }
+            }
+            levelNodes.clear();
+            levelNodes.addAll(parents);
+            leaf = false;
+        } while (levelNodes.size() > 1);
+        return new PersistentRectangleRTree<>(minEntries, maxEntries, (Branch<E>) levelNodes.get(0));
+    }
+
+    /**
+     * Get list of entries that match search area ({@param searchArea}).
+     *
+     * @param searchArea - object which represents search area.
+     * @return list of entries or empty list
+     */
+    public List<E> search(SearchArea searchArea) {
+        List<E> results = new ArrayList<>();
+        search(searchArea, results::add);
+        return results;
+    }
+
+    /**
+     * Pass entries that match search area ({@param searchArea}) to {@param visitor}
+     * as soon as they are found. Search stops as soon as visitor returns false.
+     *
+     * @return true if search has visited all entries inside search area, false if it was stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        return root == null || search(searchArea, root, visitor);
+    }
+
+    /**
+     * Count entries that match search area ({@param searchArea}),
+     * counting subtrees holding only matching entries as a whole.
+     */
+    public int count(SearchArea searchArea) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        return root == null ? 0 : count(searchArea, root);
+    }
+
+    /**
+     * Get first {@param limit} entries in ascending order of their z indexes, that match search area
+     * ({@param searchArea}), using the same best-first traversal as
+     * {@link RectangleRTree#searchFirstByZ} does.
+     */
+    public List<E> searchFirstByZ(SearchArea searchArea, long limit) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        if (root == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        PriorityQueue<Item<E>> queue = new PriorityQueue<>(Comparator.comparingInt(item -> item.minZ));
+        queue.add(root);
+        while (!queue.isEmpty() && results.size() < limit) {
+            Item<E> item = queue.poll();
+            if (item instanceof Entry) {
+                results.add(((Entry<E>) item).entry);
+                continue;
+            }
+            Branch<E> branch = (Branch<E>) item;
+            for (Item<E> child : branch.children) {
+                if (branch.leaf ? child.matches(searchArea) : child.mayHaveMatches(searchArea)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes, using the same best-first traversal as {@link RectangleRTree#searchTopmostAtPoint} does.
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (root == null || limit <= 0 || !root.containsPoint(x, y)) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        PriorityQueue<Item<E>> queue = new PriorityQueue<>(Comparator.comparingInt((Item<E> item) -> item.maxZ).reversed());
+        queue.add(root);
+        while (!queue.isEmpty() && results.size() < limit) {
+            Item<E> item = queue.poll();
+            if (item instanceof Entry) {
+                results.add(((Entry<E>) item).entry);
+                continue;
+            }
+            for (Item<E> child : ((Branch<E>) item).children) {
+                if (child.containsPoint(x, y)) {
+                    queue.add(child);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY}),
+     * using the same best-first traversal as {@link RectangleRTree#searchNearest} does.
+     */
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (root == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        PriorityQueue<Item<E>> queue = new PriorityQueue<>(Comparator
+                .comparingDouble((Item<E> item) -> Rectangle.squaredDistance(
+                        item.minX, item.minY, item.maxX, item.maxY, minX, minY, maxX, maxY))
+                .thenComparingInt(item -> item.minZ));
+        queue.add(root);
+        while (!queue.isEmpty() && results.size() < limit) {
+            Item<E> item = queue.poll();
+            if (item instanceof Entry) {
+                results.add(((Entry<E>) item).entry);
+                continue;
+            }
+            queue.addAll(Arrays.asList(((Branch<E>) item).children));
+        }
+        return results;
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of entries overlapping each other, which both match search area,
+     * walking the tree against itself the same way as {@link RectangleRTree#searchOverlappingPairs} does.
+     *
+     * @return true if search has visited all pairs, false if it was stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        return root == null || selfJoin(searchArea, root, visitor);
+    }
+
+    private boolean selfJoin(SearchArea searchArea, Branch<E> node, EntryPairVisitor<? super E> visitor) {
+        Item<E>[] children = node.children;
+        for (int i = 0; i < children.length; i++) {
+            if (!isJoinCandidate(searchArea, node, children[i])) {
+                continue;
+            }
+            for (int j = i + 1; j < children.length; j++) {
+                if (isJoinCandidate(searchArea, node, children[j]) && children[i].overlaps(children[j])
+                        && !joinItems(searchArea, children[i], children[j], visitor)) {
+                    return false;
+                }
+            }
+            if (!node.leaf && !selfJoin(searchArea, (Branch<E>) children[i], visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean joinItems(SearchArea searchArea, Item<E> first, Item<E> second, EntryPairVisitor<? super E> visitor) {
+        if (first instanceof Entry) {
+            return first.minZ <= second.minZ
+                    ? visitor.visit(((Entry<E>) first).entry, ((Entry<E>) second).entry)
+                    : visitor.visit(((Entry<E>) second).entry, ((Entry<E>) first).entry);
+        }
+        Branch<E> firstBranch = (Branch<E>) first;
+        Branch<E> secondBranch = (Branch<E>) second;
+        for (Item<E> firstChild : firstBranch.children) {
+            if (!isJoinCandidate(searchArea, firstBranch, firstChild) || !firstChild.overlaps(secondBranch)) {
+                continue;
+            }
+            for (Item<E> secondChild : secondBranch.children) {
+                if (isJoinCandidate(searchArea, secondBranch, secondChild) && firstChild.overlaps(secondChild)
+                        && !joinItems(searchArea, firstChild, secondChild, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean isJoinCandidate(SearchArea searchArea, Branch<?> node, Item<?> child) {
+        return node.leaf ? child.matches(searchArea) : child.mayHaveMatches(searchArea);
+    }
+
+    private Branch<E> insert(Branch<E> node, Entry<E> entry) {
+        if (node == null) {
+            return new Branch<>(true, singleItem(entry));
+        }
+        Branch<E>[] nodes = insertInto(node, entry);
+        return nodes.length == 1 ? nodes[0] : new Branch<>(false, nodes);
+    }
+
+    /**
+     * @return copy of node with entry inserted or two nodes if copy has been split
+     */
+    @SuppressWarnings("unchecked")
+    private Branch<E>[] insertInto(Branch<E> node, Entry<E> entry) {
+        Item<E>[] children;
+        if (node.leaf) {
+            children = Arrays.copyOf(node.children, node.children.length + 1);
+            children[node.children.length] = entry;
+        } else {
+            int index = chooseSubtree(node, entry);
+            children = replaceChild(node.children, index, insertInto((Branch<E>) node.children[index], entry));
+        }
+        if (children.length > maxEntries) {
+            return split(children, node.leaf);
+        }
+        return new Branch[]{new Branch<>(node.leaf, children)};
+    }
+
+    private int chooseSubtree(Branch<E> node, Item<E> entry) {
+        int chosenIndex = 0;
+        double minEnlargement = Double.MAX_VALUE;
+        double minArea = Double.MAX_VALUE;
+        for (int i = 0; i < node.children.length; i++) {
+            Item<E> child = node.children[i];
+            double area = area(child.minX, child.minY, child.maxX, child.maxY);
+            double enlargement = area(
+                    Math.min(child.minX, entry.minX),
+                    Math.min(child.minY, entry.minY),
+                    Math.max(child.maxX, entry.maxX),
+                    Math.max(child.maxY, entry.maxY)
+            ) - area;
+            if (enlargement < minEnlargement || enlargement == minEnlargement && area < minArea) {
+                minEnlargement = enlargement;
+                minArea = area;
+                chosenIndex = i;
+            }
+        }
+        return chosenIndex;
+    }
+
+    private static double area(int minX, int minY, int maxX, int maxY) {
+        return ((double) maxX - minX) * ((double) maxY - minY);
+    }
+
+    /**
+     * Split overflowed children into two nodes of equal size along the axis with the biggest spread of their centers.
+     */
+    @SuppressWarnings("unchecked")
+    private Branch<E>[] split(Item<E>[] children, boolean leaf) {
+        long minCenterX = Long.MAX_VALUE, maxCenterX = Long.MIN_VALUE;
+        long minCenterY = Long.MAX_VALUE, maxCenterY = Long.MIN_VALUE;
+        for (Item<E> child : children) {
+            minCenterX = Math.min(minCenterX, (long) child.minX + child.maxX);
+            maxCenterX = Math.max(maxCenterX, (long) child.minX + child.maxX);
+            minCenterY = Math.min(minCenterY, (long) child.minY + child.maxY);
+            maxCenterY = Math.max(maxCenterY, (long) child.minY + child.maxY);
+        }
+        Item<E>[] sorted = children.clone();
+        if (maxCenterX - minCenterX >= maxCenterY - minCenterY) {
+            Arrays.sort(sorted, Comparator.comparingLong(child -> (long) child.minX + child.maxX));
+        } else {
+            Arrays.sort(sorted, Comparator.comparingLong(child -> (long) child.minY + child.maxY));
+        }
+        int half = sorted.length / 2;
+        return new Branch[]{
+                new Branch<>(leaf, Arrays.copyOfRange(sorted, 0, half)),
+                new Branch<>(leaf, Arrays.copyOfRange(sorted, half, sorted.length))
+        };
+    }
+
+    /**
+     * @return copy of node without entry, node itself if entry is not found in its subtree
+     */
+    private Branch<E> delete(Branch<E> node, String id, Rectangle dimensions, List<Entry<E>> orphans) {
+        for (int i = 0; i < node.children.length; i++) {
+            Item<E> child = node.children[i];
+            if (node.leaf) {
+                if (id.equals(((Entry<E>) child).entry.getId())) { //2 [Delete record]
+                    return new Branch<>(true, removeChild(node.children, i));
+                }
+            } else if (child.contains(dimensions)) { //1 [Find node containing record]
+                Branch<E> newChild = delete((Branch<E>) child, id, dimensions, orphans);
+                if (newChild != child) { //3 [Propagate changes upward]
+                    if (newChild.children.length < minEntries) {
+                        collectEntries(newChild, orphans);
+                        return new Branch<>(false, removeChild(node.children, i));
+                    }
+                    return new Branch<>(false, replaceChild(node.children, i, singleItem(newChild)));
+                }
+            }
+        }
+        return node;
+    }
+
+    private void collectEntries(Branch<E> node, List<Entry<E>> collector) {
+        for (Item<E> child : node.children) {
+            if (node.leaf) {
+                collector.add((Entry<E>) child);
+            } else {
+                collectEntries((Branch<E>) child, collector);
+            }
+        }
+    }
+
+    /**
+     * @return copy of children array with child on given index replaced by one or two new nodes
+     */
+    private static <E extends HasId> Item<E>[] replaceChild(Item<E>[] children, int index, Item<E>[] newChildren) {
+        Item<E>[] result = Arrays.copyOf(children, children.length + newChildren.length - 1);
+        result[index] = newChildren[0];
+        if (newChildren.length > 1) {
+            result[children.length] = newChildren[1];
+        }
+        return result;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends HasId> Item<E>[] singleItem(Item<E> item) {
+        return new Item[]{item};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends HasId> Item<E>[] removeChild(Item<E>[] children, int index) {
+        Item<E>[] result = new Item[children.length - 1];
+        System.arraycopy(children, 0, result, 0, index);
+        System.arraycopy(children, index + 1, result, index, children.length - index - 1);
+        return result;
+    }
+
+    private boolean search(SearchArea searchArea, Branch<E> node, EntryVisitor<? super E> visitor) {
+        for (Item<E> child : node.children) {
+            if (node.leaf) {
+                if (child.matches(searchArea) && !visitor.visit(((Entry<E>) child).entry)) {
+                    return false;
+                }
+            } else if (child.mayHaveMatches(searchArea) && !search(searchArea, (Branch<E>) child, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int count(SearchArea searchArea, Branch<E> node) {
+        int count = 0;
+        for (Item<E> child : node.children) {
+            if (node.leaf ? child.matches(searchArea) : child.allMatch(searchArea)) {
+                count += child.entryCount;
+            } else if (!node.leaf && child.mayHaveMatches(searchArea)) {
+                count += count(searchArea, (Branch<E>) child);
+            }
+        }
+        return count;
+    }
+
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
+    /**
+     * Immutable node of the tree: covering rectangle, z range and count of entries of its subtree.
+     */
+    private abstract static class Item<E extends HasId> {
+        int minX;
+        int minY;
+        int maxX;
+        int maxY;
+        int minZ;
+        int maxZ;
+        int entryCount;
+
+        boolean matches(SearchArea searchArea) {
+            return searchArea.matches(minX, minY, maxX, maxY, minZ, maxZ);
+        }
+
+        boolean mayHaveMatches(SearchArea searchArea) {
+            return searchArea.mayHaveMatchesInside(minX, minY, maxX, maxY, minZ, maxZ);
+        }
+
+        boolean allMatch(SearchArea searchArea) {
+            return searchArea.allMatchInside(minX, minY, maxX, maxY, minZ, maxZ);
+        }
+
+        boolean overlaps(Item<?> another) {
+            return RectangleRTree.overlaps(minX, minY, maxX, maxY, another.minX, another.minY, another.maxX, another.maxY);
+        }
+
+        boolean containsPoint(int x, int y) {
+            return minX <= x && x <= maxX && minY <= y && y <= maxY;
+        }
+
+        boolean contains(Rectangle rectangle) {
+            return minX <= rectangle.getMinX() && maxX >= rectangle.getMaxX()
+                    && minY <= rectangle.getMinY() && maxY >= rectangle.getMaxY();
+        }
+    }
+
+    private static final class Entry<E extends HasId> extends Item<E> {
+        final E entry;
+
+        Entry(EntryNode<E> entryNode) {
+            this.entry = entryNode.getEntry();
+            this.minX = entryNode.getMinX();
+            this.minY = entryNode.getMinY();
+            this.maxX = entryNode.getMaxX();
+            this.maxY = entryNode.getMaxY();
+            this.minZ = entryNode.getZ();
+            this.maxZ = entryNode.getZ();
+            this.entryCount = 1;
+        }
+    }
+
+    private static final class Branch<E extends HasId> extends Item<E> {
+        /**
+         * if leaf property equals true - only {@link Entry} can be a child of this node
+         */
+        final boolean leaf;
+        final Item<E>[] children;
+
+        Branch(boolean leaf, Item<E>[] children) {
+            this.leaf = leaf;
+            this.children = children;
+            if (children.length == 0) {
+                return;
+            }
+            minX = minY = minZ = Integer.MAX_VALUE;
+            maxX = maxY = maxZ = Integer.MIN_VALUE;
+            for (Item<E> child : children) {
+                minX = Math.min(minX, child.minX);
+                minY = Math.min(minY, child.minY);
+                maxX = Math.max(maxX, child.maxX);
+                maxY = Math.max(maxY, child.maxY);
+                minZ = Math.min(minZ, child.minZ);
+                maxZ = Math.max(maxZ, child.maxZ);
+                entryCount += child.entryCount;
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import ru.ohapegor.widgets.model.HasId;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.Rectangle;
+import ru.ohapegor.widgets.model.SearchArea;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Chooses configuration of {@link RectangleRTree} for a sample of real rectangles: trees of every candidate
+ * configuration are built from the sample by insertions and searched with windows around sample rectangles,
+ * configuration with the lowest cost of one insertion plus readsPerWrite searches wins.
+ * <p>Every configuration is measured twice and the best run is taken, so that the first measurements
+ * don't suffer from JIT compilation.</p>
+ */
+@Slf4j
+public final class RTreeCalibrator {
+
+    /**
+     * candidate counts of maximum children in one node
+     */
+    public static final List<Integer> MAX_ENTRIES_CANDIDATES = List.of(8, 16, 32, 64, 128);
+
+    /**
+     * minimum count of children is taken as 40% of maximum one, as recommended by R*-tree authors
+     */
+    private static final double MIN_FILL_FACTOR = 0.4;
+
+    /**
+     * maximum count of search queries performed on each tree
+     */
+    private static final int MAX_QUERIES = 1000;
+
+    private static final int RUNS = 2;
+
+    private RTreeCalibrator() {
+    }
+
+    /**
+     * @return minimum count of children for given maximum one used by calibration
+     */
+    public static int minEntriesFor(int maxEntries) {
+        return Math.max(2, (int) (maxEntries * MIN_FILL_FACTOR));
+    }
+
+    /**
+     * Measure every combination of candidate maximum entries and insertion strategies.
+     *
+     * @param sample        - rectangles of sampled entries, at least one
+     * @param strategies    - candidate insertion strategies
+     * @param readsPerWrite - expected count of searches per insertion, weight of search cost
+     * @return measurements sorted by cost, the best configuration first
+     */
+    public static List<Measurement> calibrate(List<? extends Rectangle> sample, List<InsertionStrategy> strategies,
+                                              double readsPerWrite) {
+        Objects.requireNonNull(sample, "sample can't be null");
+        if (sample.isEmpty()) {
+            throw new IllegalArgumentException("sample must not be empty");
+        }
+        if (strategies.isEmpty()) {
+            throw new IllegalArgumentException("at least one strategy is required");
+        }
+        List<SearchArea> queries = queriesFor(sample);
+        List<Measurement> measurements = new ArrayList<>();
+        for (InsertionStrategy strategy : strategies) {
+            for (int maxEntries : MAX_ENTRIES_CANDIDATES) {
+                measurements.add(measure(sample, queries, minEntriesFor(maxEntries), maxEntries, strategy, readsPerWrite));
+            }
+        }
+        measurements.sort(Comparator.comparingDouble(Measurement::getCost));
+        log.debug("r-tree calibration on {} rectangles: {}", sample.size(), measurements);
+        return measurements;
+    }
+
+    private static Measurement measure(List<? extends Rectangle> sample, List<SearchArea> queries, int minEntries,
+                                       int maxEntries, InsertionStrategy strategy, double readsPerWrite) {
+        long bestInsertNanos = Long.MAX_VALUE;
+        long bestSearchNanos = Long.MAX_VALUE;
+        for (int run = 0; run < RUNS; run++) {
+            RectangleRTree<SampleEntry> tree = new RectangleRTree<>(minEntries, maxEntries, strategy);
+            long start = System.nanoTime();
+            for (int i = 0; i < sample.size(); i++) {
+                var entryNode = new EntryNode<>(new SampleEntry(i));
+                entryNode.setDimensions(sample.get(i));
+                entryNode.setZ(i);
+                tree.insert(entryNode);
+            }
+            bestInsertNanos = Math.min(bestInsertNanos, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            for (SearchArea query : queries) {
+                tree.search(query, entry -> true);
+            }
+            bestSearchNanos = Math.min(bestSearchNanos, System.nanoTime() - start);
+        }
+        double insertNanos = (double) bestInsertNanos / sample.size();
+        double searchNanos = (double) bestSearchNanos / queries.size();
+        return new Measurement(minEntries, maxEntries, strategy, insertNanos, searchNanos,
+                insertNanos + readsPerWrite * searchNanos);
+    }
+
+    /**
+     * Query windows are centered at evenly taken sample rectangles and are twice as big as them,
+     * so that queries hit the same regions as real data.
+     */
+    private static List<SearchArea> queriesFor(List<? extends Rectangle> sample) {
+        int step = Math.max(1, sample.size() / MAX_QUERIES);
+        List<SearchArea> queries = new ArrayList<>();
+        for (int i = 0; i < sample.size(); i += step) {
+            Rectangle rectangle = sample.get(i);
+            long halfWidth = (long) rectangle.getMaxX() - rectangle.getMinX();
+            long halfHeight = (long) rectangle.getMaxY() - rectangle.getMinY();
+            long centerX = ((long) rectangle.getMinX() + rectangle.getMaxX()) / 2;
+            long centerY = ((long) rectangle.getMinY() + rectangle.getMaxY()) / 2;
+            queries.add(new SearchArea(clamp(centerX - halfWidth), clamp(centerY - halfHeight),
+                    clamp(centerX + halfWidth), clamp(centerY + halfHeight), QueryMode.INTERSECTS));
+        }
+        return queries;
+    }
+
+    private static int clamp(long value) {
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value));
+    }
+
+    /**
+     * Measured costs of one configuration.
+     */
+    @Value
+    public static class Measurement {
+        int minEntries;
+        int maxEntries;
+        InsertionStrategy insertionStrategy;
+        /**
+         * average duration of one insertion
+         */
+        double insertNanos;
+        /**
+         * average duration of one window search
+         */
+        double searchNanos;
+        /**
+         * insertNanos + readsPerWrite * searchNanos
+         */
+        double cost;
+    }
+
+    @Value
+    private static class SampleEntry implements HasId {
+        int index;
+
+        @Override
+        public String getId() {
+            return String.valueOf(index);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import lombok.Value;
+
+/**
+ * Metrics of {@link RectangleRTree} structure, which degrades after many updates and deletions
+ * and is restored by rebuilding the tree with bulk loading.
+ */
+@Value
+public class RTreeQuality {
+    /**
+     * count of entries stored in the tree
+     */
+    int entryCount;
+    /**
+     * count of levels of tree nodes, 0 for empty tree
+     */
+    int height;
+    /**
+     * count of tree nodes, not counting entry nodes
+     */
+    int nodeCount;
+    /**
+     * average count of children in tree nodes except root divided by maximum count of children, 1 for tree of root only
+     */
+    double fillFactor;
+    /**
+     * average over non-leaf nodes of area of intersection of two their children divided by node area,
+     * from 0 if subtrees never have to be searched together to 1 if all children cover the whole node
+     */
+    double overlapRatio;
+
+    /**
+     * @return minimal possible height of tree holding {@link RTreeQuality#entryCount} entries with given fan-out
+     */
+    public int minimalHeight(int maxEntries) {
+        int height = 1;
+        for (long capacity = maxEntries; capacity < entryCount; capacity *= maxEntries) {
+            height++;
+        }
+        return entryCount == 0 ? 0 : height;
+    }
+}
@@ -1,21 +1,28 @@
 package ru.ohapegor.widgets.repository.memory.rtree;
 
+import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
-import lombok.Data;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import ru.ohapegor.widgets.model.HasId;
 import ru.ohapegor.widgets.model.Rectangle;
 import ru.ohapegor.widgets.model.SearchArea;
 
-import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Implementation of r-tree described by Antonin Guttman
@@ -26,40 +33,155 @@ import java.util.stream.Collectors;
 @Slf4j
 public class RectangleRTree<E extends HasId> {
 
+    /**
+     * the largest coordinate on the grid of Hilbert curve, covering shifted int coordinates
+     */
+    private static final long HILBERT_SIDE_MASK = 0xFFFF_FFFFL;
+
     /**
      * minimum count of nodes one {@link TreeNode} can hold in its childNodes list,
      * except it is the only one node (root) in r-tree (tree size < minNodes)
      */
+    @Getter
     private final int minEntries;
 
     /**
      * maximum count of nodes one {@link TreeNode} can hold in its childNodes list
      */
+    @Getter
     private final int maxEntries;
 
+    /**
+     * algorithms used to choose subtree and to handle overflowed nodes on insertion
+     */
+    @Getter
+    private final InsertionStrategy insertionStrategy;
 
+    @Getter(AccessLevel.PACKAGE)
     private TreeNode<E> root;
 
     /**
-     * Creates a new R-tree
+     * entry nodes stored in the tree by ids of their entries, so that entry node can be reached without search
+     * and its leaf is reached through parent links
+     */
+    private final Map<String, EntryNode<E>> entryNodesById = new HashMap<>();
+
+    /**
+     * bit mask of tree levels on which forced reinsert has already been performed during current
+     * {@link InsertionStrategy#R_STAR} insertion
+     */
+    private long reinsertedLevels;
+
+    /**
+     * pool in which search is performed in parallel, null if parallel search is disabled
+     */
+    private ForkJoinPool parallelSearchPool;
+
+    /**
+     * minimal count of entries in subtree for which search is split between subtrees of children
+     */
+    private int parallelSearchThreshold;
+
+    /**
+     * margin by which bounds of entry nodes are enlarged on every side, 0 if tree is not loose
+     */
+    @Getter
+    private int looseMargin;
+
+    /**
+     * reusable buffer for children of the node being split with {@link InsertionStrategy#GUTTMAN_LINEAR} strategy
+     */
+    private final Node<E>[] splitBuffer;
+
+    /**
+     * reusable holder of indexes of the seeds chosen in {@link RectangleRTree#splitBuffer}
+     */
+    private final int[] splitSeeds = new int[2];
+
+    /**
+     * reusable buffer for children of two sibling nodes redistributed with {@link InsertionStrategy#HILBERT} strategy,
+     * null for other strategies
+     */
+    private final Node<E>[] siblingsBuffer;
+
+    /**
+     * Creates a new R-tree with {@link InsertionStrategy#GUTTMAN_LINEAR} insertion strategy
      *
      * @param minEntries - minimum count of children in one node
      * @param maxEntries - maximum count of children in one node
      */
     public RectangleRTree(int minEntries, int maxEntries) {
+        this(minEntries, maxEntries, InsertionStrategy.GUTTMAN_LINEAR);
+    }
+
+    /**
+     * Creates a new R-tree
+     *
+     * @param minEntries        - minimum count of children in one node
+     * @param maxEntries        - maximum count of children in one node
+     * @param insertionStrategy - algorithms used to choose subtree and to split nodes
+     */
+    @SuppressWarnings("unchecked")
+    public RectangleRTree(int minEntries, int maxEntries, InsertionStrategy insertionStrategy) {
         if (minEntries < 1) {
             throw new IllegalArgumentException("minNodes must be grater than 0");
         }
         if (maxEntries <= minEntries) {
             throw new IllegalArgumentException("maxNodes must be grater than minNodes");
         }
+        if (insertionStrategy == InsertionStrategy.HILBERT && minEntries > (maxEntries + 1) / 2) {
+            throw new IllegalArgumentException("minNodes must not be grater than half of maxNodes + 1 for hilbert r-tree");
+        }
         this.minEntries = minEntries;
         this.maxEntries = maxEntries;
+        this.insertionStrategy = Objects.requireNonNull(insertionStrategy, "null insertionStrategy");
+        this.splitBuffer = new Node[maxEntries + 1];
+        this.siblingsBuffer = insertionStrategy == InsertionStrategy.HILBERT ? new Node[maxEntries * 2 + 1] : null;
+    }
+
+    /**
+     * Enable parallel execution of {@link RectangleRTree#search(SearchArea)} and
+     * {@link RectangleRTree#searchFirstByZ}: subtrees holding at least {@param subtreeSizeThreshold} entries
+     * are searched by splitting work between their children as separate fork join tasks.
+     * Tree must not be modified while search is in progress, which is already required for sequential search.
+     *
+     * @param pool                 - pool executing search tasks
+     * @param subtreeSizeThreshold - minimal count of entries in subtree to split its search into tasks
+     */
+    public void enableParallelSearch(ForkJoinPool pool, int subtreeSizeThreshold) {
+        if (subtreeSizeThreshold < 1) {
+            throw new IllegalArgumentException("subtreeSizeThreshold must be grater than 0");
+        }
+        this.parallelSearchPool = Objects.requireNonNull(pool, "null pool");
+        this.parallelSearchThreshold = subtreeSizeThreshold;
+    }
+
+    public void disableParallelSearch() {
+        this.parallelSearchPool = null;
+        this.parallelSearchThreshold = 0;
+    }
+
+    /**
+     * Make tree loose: entry nodes are indexed with bounds enlarged by {@param margin} on every side,
+     * so that {@link RectangleRTree#update} of entry which stays inside of them doesn't change the tree at all.
+     * Entries are matched by searches using their exact dimensions, enlarged bounds are used only to prune subtrees.
+     * Must be invoked before any entry is added to the tree.
+     *
+     * @param margin - margin of entry bounds, 0 makes tree exact again
+     */
+    public void enableLooseBounds(int margin) {
+        if (margin < 0) {
+            throw new IllegalArgumentException("margin must not be negative");
+        }
+        if (!entryNodesById.isEmpty()) {
+            throw new IllegalStateException("loose bounds can be enabled for empty tree only");
+        }
+        this.looseMargin = margin;
     }
 
     /**
-     * Get list of entries that includes inside of dimensions of search area ({@param searchArea}).
-     * Search area can be open ( any of {@param searchArea} borders can be null).
+     * Get list of entries that match search area ({@param searchArea}) according to its query mode,
+     * subtrees are pruned by the predicate of the same mode. Search area can be open ( any of {@param searchArea} borders can be null).
      *
      * @param searchArea - object which represents search area.
      * @return list of entries or empty list
@@ -69,11 +191,275 @@ public class RectangleRTree<E extends HasId> {
         if (root == null) {
             return Collections.emptyList();
         }
-        List<E> results = new LinkedList<>();
-        search(searchArea, root, results);
+        if (isParallelSearchRequired()) {
+            return parallelSearchPool.invoke(new ParallelSearchTask(searchArea, root));
+        }
+        List<E> results = new ArrayList<>();
+        search(searchArea, root, results::add);
+        return results;
+    }
+
+    /**
+     * Pass entries that match search area ({@param searchArea}) to {@param visitor}
+     * as soon as they are found, without collecting them. Search stops as soon as visitor returns false,
+     * so that callers which need only some of the entries don't visit the rest of the tree.
+     * Nothing is allocated per found entry.
+     *
+     * @param searchArea - object which represents search area.
+     * @param visitor    - callback receiving found entries
+     * @return true if search has visited all entries inside search area, false if it was stopped by visitor
+     */
+    public boolean search(SearchArea searchArea, EntryVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        return root == null || search(searchArea, root, visitor);
+    }
+
+    /**
+     * Count entries that match search area ({@param searchArea}) without collecting them.
+     * Subtrees holding only matching entries are counted as a whole using their entry counts,
+     * so only nodes partially overlapping search area are visited.
+     *
+     * @param searchArea - object which represents search area.
+     * @return count of entries inside search area
+     */
+    public int count(SearchArea searchArea) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        if (root == null) {
+            return 0;
+        }
+        return count(searchArea, root);
+    }
+
+    /**
+     * Get first {@param limit} entries in ascending order of their z indexes, that match search area
+     * ({@param searchArea}). Unlike {@link RectangleRTree#search} only the part of the tree
+     * which is required to produce these entries is visited, and no sorting of all matched entries is performed.
+     * <p>Algorithm:</p>
+     * <p>1. [Initialize] Put root into priority queue ordered by minimal z index of nodes.</p>
+     * <p>2. [Take the best node] Take node with the lowest minimal z index from queue. Stop if queue is empty
+     * or {@param limit} entries have been found.</p>
+     * <p>3. [Emit entry] If node is an entry node, add its entry to results: z index of every node left in queue
+     * is not lower than z index of the entry. Repeat from 2.</p>
+     * <p>4. [Expand tree node] Otherwise, put into queue all entry children matching search area
+     * or all tree children which may hold matching entries. Repeat from 2.</p>
+     *
+     * @param searchArea - object which represents search area.
+     * @param limit      - maximum count of entries to return
+     * @return list of entries sorted by z index or empty list
+     */
+    public List<E> searchFirstByZ(SearchArea searchArea, long limit) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        if (root == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<EntryNode<E>> entryNodes = isParallelSearchRequired()
+                ? parallelSearchPool.invoke(new ParallelSearchFirstByZTask(searchArea, root, limit))
+                : searchFirstByZ(searchArea, root, limit);
+        List<E> results = new ArrayList<>(entryNodes.size());
+        entryNodes.forEach(entryNode -> results.add(entryNode.getEntry()));
         return results;
     }
 
+    private List<EntryNode<E>> searchFirstByZ(SearchArea searchArea, TreeNode<E> startNode, long limit) {
+        List<EntryNode<E>> results = new ArrayList<>();
+        PriorityQueue<Node<E>> queue = new PriorityQueue<>(Comparator.comparingInt(Node::getMinZ));
+        queue.add(startNode); //1 [Initialize]
+        while (!queue.isEmpty() && results.size() < limit) {
+            Node<E> node = queue.poll(); //2 [Take the best node]
+            if (node instanceof EntryNode) {
+                results.add((EntryNode<E>) node); //3 [Emit entry]
+                continue;
+            }
+            TreeNode<E> treeNode = (TreeNode<E>) node; //4 [Expand tree node]
+            int[] minX = treeNode.getChildMinX();
+            int[] minY = treeNode.getChildMinY();
+            int[] maxX = treeNode.getChildMaxX();
+            int[] maxY = treeNode.getChildMaxY();
+            int[] minZ = treeNode.getChildMinZ();
+            int[] maxZ = treeNode.getChildMaxZ();
+            for (int i = 0; i < treeNode.getSize(); i++) {
+                boolean matches = treeNode.isLeaf()
+                        ? entryMatches(searchArea, treeNode, i)
+                        : searchArea.mayHaveMatchesInside(minX[i], minY[i], maxX[i], maxY[i], minZ[i], maxZ[i]);
+                if (matches) {
+                    queue.add(treeNode.getChild(i));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries whose rectangles contain point ({@param x}, {@param y}) in descending order
+     * of their z indexes, so that the topmost entry under the point goes first. Point on the border of rectangle
+     * is considered to be contained by it.
+     * <p>Algorithm:</p>
+     * <p>1. [Initialize] Put root into priority queue ordered by maximal z index of nodes in descending order.</p>
+     * <p>2. [Take the best node] Take node with the highest maximal z index from queue. Stop if queue is empty
+     * or {@param limit} entries have been found.</p>
+     * <p>3. [Emit entry] If node is an entry node, add its entry to results: z index of every node left in queue
+     * is not higher than z index of the entry. Repeat from 2.</p>
+     * <p>4. [Expand tree node] Otherwise, put into queue all children whose rectangles contain the point.
+     * Repeat from 2.</p>
+     *
+     * @param x     - x coordinate of the point
+     * @param y     - y coordinate of the point
+     * @param limit - maximum count of entries to return
+     * @return list of entries sorted by z index in descending order or empty list
+     */
+    public List<E> searchTopmostAtPoint(int x, int y, long limit) {
+        if (root == null || limit <= 0 || !root.containsPoint(x, y)) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        PriorityQueue<Node<E>> queue = new PriorityQueue<>(Comparator.comparingInt(Node<E>::getMaxZ).reversed());
+        queue.add(root); //1 [Initialize]
+        while (!queue.isEmpty() && results.size() < limit) {
+            Node<E> node = queue.poll(); //2 [Take the best node]
+            if (node instanceof EntryNode) {
+                results.add(((EntryNode<E>) node).getEntry()); //3 [Emit entry]
+                continue;
+            }
+            TreeNode<E> treeNode = (TreeNode<E>) node; //4 [Expand tree node]
+            int[] minX = treeNode.getChildMinX();
+            int[] minY = treeNode.getChildMinY();
+            int[] maxX = treeNode.getChildMaxX();
+            int[] maxY = treeNode.getChildMaxY();
+            for (int i = 0; i < treeNode.getSize(); i++) {
+                if (minX[i] <= x && x <= maxX[i] && minY[i] <= y && y <= maxY[i]
+                        && (looseMargin == 0 || !treeNode.isLeaf()
+                        || ((EntryNode<E>) treeNode.getChild(i)).exactlyContainsPoint(x, y))) {
+                    queue.add(treeNode.getChild(i));
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Get first {@param limit} entries nearest to rectangle ({@param minX}, {@param minY}, {@param maxX}, {@param maxY})
+     * in ascending order of distance, entries at the same distance are ordered by z index. Distance between
+     * rectangles is the minimal distance between their points (MINDIST), so it is 0 for intersecting rectangles.
+     * Point can be passed as rectangle with zero sides.
+     * <p>Algorithm:</p>
+     * <p>1. [Initialize] Put root into priority queue ordered by distance to node rectangle,
+     * then by minimal z index of node.</p>
+     * <p>2. [Take the best node] Take the first node from queue. Stop if queue is empty
+     * or {@param limit} entries have been found.</p>
+     * <p>3. [Emit entry] If node is an entry node, add its entry to results: distance to every node left in queue
+     * is not less than distance to the entry, and it is not less than distance to any entry of its subtree. Repeat from 2.</p>
+     * <p>4. [Expand tree node] Otherwise, put into queue all children. Repeat from 2.</p>
+     *
+     * @param limit - maximum count of entries to return
+     * @return list of entries sorted by distance or empty list
+     */
+    public List<E> searchNearest(int minX, int minY, int maxX, int maxY, long limit) {
+        if (root == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+        List<E> results = new ArrayList<>();
+        // distance to bounds of tree node doesn't exceed exact distance to any entry of its subtree even in loose tree
+        PriorityQueue<Node<E>> queue = new PriorityQueue<>(Comparator
+                .comparingDouble((Node<E> node) -> node instanceof EntryNode
+                        ? ((EntryNode<E>) node).exactSquaredDistanceTo(minX, minY, maxX, maxY)
+                        : node.squaredDistanceTo(minX, minY, maxX, maxY))
+                .thenComparingInt(Node::getMinZ));
+        queue.add(root); //1 [Initialize]
+        while (!queue.isEmpty() && results.size() < limit) {
+            Node<E> node = queue.poll(); //2 [Take the best node]
+            if (node instanceof EntryNode) {
+                results.add(((EntryNode<E>) node).getEntry()); //3 [Emit entry]
+                continue;
+            }
+            TreeNode<E> treeNode = (TreeNode<E>) node; //4 [Expand tree node]
+            for (int i = 0; i < treeNode.getSize(); i++) {
+                queue.add(treeNode.getChild(i));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Pass to {@param visitor} every pair of entries overlapping each other (having common inner points), which both
+     * match search area ({@param searchArea}). Tree is walked against itself (spatial self-join), so that only pairs
+     * of subtrees overlapping each other are visited instead of searching overlapping entries for every entry.
+     * Search stops as soon as visitor returns false.
+     * <p>Algorithm:</p>
+     * <p>1. [Join children] Starting from root, invoke {@link RectangleRTree#joinNodes} for each pair of children
+     * of node overlapping each other.</p>
+     * <p>2. [Descend] If node is not a leaf, repeat from 1 for each child.</p>
+     * <p>Only children matching search area or, for tree nodes, which may hold matching entries are considered.</p>
+     *
+     * @param searchArea - object which represents search area.
+     * @param visitor    - callback receiving found pairs, entry with lower z index goes first
+     * @return true if search has visited all pairs, false if it was stopped by visitor
+     */
+    public boolean searchOverlappingPairs(SearchArea searchArea, EntryPairVisitor<? super E> visitor) {
+        Objects.requireNonNull(searchArea, "searchArea can't be null");
+        Objects.requireNonNull(visitor, "visitor can't be null");
+        return root == null || selfJoin(searchArea, root, visitor);
+    }
+
+    /**
+     * Measure quality of tree structure, every tree node is visited once.
+     *
+     * @return metrics of tree structure
+     */
+    public RTreeQuality measureQuality() {
+        if (root == null || root.getEntryCount() == 0) {
+            return new RTreeQuality(0, 0, 0, 1, 0);
+        }
+        int nodeCount = 0;
+        long nonRootChildren = 0;
+        int innerNodes = 0;
+        double overlapRatioSum = 0;
+        Deque<TreeNode<E>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            TreeNode<E> node = stack.pop();
+            nodeCount++;
+            if (node != root) {
+                nonRootChildren += node.getSize();
+            }
+            if (node.isLeaf()) {
+                continue;
+            }
+            innerNodes++;
+            double nodeArea = areaAsDouble(node.getMinX(), node.getMinY(), node.getMaxX(), node.getMaxY());
+            long pairs = (long) node.getSize() * (node.getSize() - 1) / 2;
+            if (nodeArea > 0 && pairs > 0) {
+                overlapRatioSum += childrenOverlapArea(node) / nodeArea / pairs;
+            }
+            for (int i = 0; i < node.getSize(); i++) {
+                stack.push((TreeNode<E>) node.getChild(i));
+            }
+        }
+        double fillFactor = nodeCount > 1 ? (double) nonRootChildren / ((long) (nodeCount - 1) * maxEntries) : 1;
+        return new RTreeQuality(root.getEntryCount(), levelOf(root) + 1, nodeCount, fillFactor,
+                innerNodes > 0 ? overlapRatioSum / innerNodes : 0);
+    }
+
+    private static double childrenOverlapArea(TreeNode<?> node) {
+        int[] minX = node.getChildMinX();
+        int[] minY = node.getChildMinY();
+        int[] maxX = node.getChildMaxX();
+        int[] maxY = node.getChildMaxY();
+        double overlapArea = 0;
+        for (int i = 0; i < node.getSize(); i++) {
+            for (int j = i + 1; j < node.getSize(); j++) {
+                int commonMinX = Math.max(minX[i], minX[j]);
+                int commonMinY = Math.max(minY[i], minY[j]);
+                int commonMaxX = Math.min(maxX[i], maxX[j]);
+                int commonMaxY = Math.min(maxY[i], maxY[j]);
+                if (commonMinX < commonMaxX && commonMinY < commonMaxY) {
+                    overlapArea += areaAsDouble(commonMinX, commonMinY, commonMaxX, commonMaxY);
+                }
+            }
+        }
+        return overlapArea;
+    }
+
     /**
      * Inserts entry node inside tree.
      * <p>Algorithm:</p>
@@ -83,18 +469,34 @@ public class RectangleRTree<E extends HasId> {
      * of leafNode inserting entry between leafNode and newLeafNode.</p>
      * <p>3. [Propagate changes upward] Invoke {@link RectangleRTree#adjustTree} on leafNode also passing newLeafNode
      * if a split was performed.</p>
+     * <p>With {@link InsertionStrategy#R_STAR} strategy insertion is delegated to {@link RectangleRTree#insertAtLevel},
+     * with {@link InsertionStrategy#HILBERT} strategy - to {@link RectangleRTree#insertByHilbertValue}.</p>
      *
      * @param entryNode - entry node with reference to storing object and dimensions
      */
     public void insert(EntryNode<E> entryNode) {
+        entryNodesById.put(entryNode.getEntry().getId(), entryNode);
+        loosen(entryNode);
+        if (insertionStrategy == InsertionStrategy.HILBERT) {
+            entryNode.setHilbertValue(hilbertValue(entryNode));
+        }
         if (root == null) {
-            root = new TreeNode<>(true);
+            root = newTreeNode(true);
             root.addChild(entryNode);
             return;
         }
+        if (insertionStrategy == InsertionStrategy.HILBERT) {
+            insertByHilbertValue(entryNode);
+            return;
+        }
+        if (insertionStrategy == InsertionStrategy.R_STAR) {
+            reinsertedLevels = 0;
+            insertAtLevel(entryNode, 0);
+            return;
+        }
         TreeNode<E> leafNode = chooseLeaf(root, entryNode);  //1. [Find position for new record]
         leafNode.addChild(entryNode);  //2. [Add record to leaf node]
-        if (leafNode.getChildNodes().size() > maxEntries) {
+        if (leafNode.getSize() > maxEntries) {
             TreeNode<E> newLeafNode = splitNode(leafNode);
             adjustTree(leafNode, newLeafNode);  //3. [Propagate changes upward]
         } else {
@@ -102,39 +504,256 @@ public class RectangleRTree<E extends HasId> {
         }
     }
 
+    /**
+     * Builds tree from the whole collection of entry nodes at once, replacing current content of the tree.
+     * Uses Sort-Tile-Recursive packing, which is much faster than inserting entries one by one
+     * and produces nodes with less overlap.
+     * <p>Algorithm:</p>
+     * <p>1. [Pack level] Invoke {@link RectangleRTree#packLevel} on entry nodes to obtain list of leaf nodes.</p>
+     * <p>2. [Move up one level in tree] While more than one node is obtained, invoke {@link RectangleRTree#packLevel}
+     * on nodes obtained on previous step.</p>
+     * <p>3. [Set root] The only node left becomes root.</p>
+     * <p>With {@link InsertionStrategy#HILBERT} strategy levels are packed by {@link RectangleRTree#packHilbertLevel}
+     * instead.</p>
+     *
+     * @param entryNodes - entry nodes with references to storing objects and dimensions
+     */
+    public void bulkLoad(Collection<EntryNode<E>> entryNodes) {
+        Objects.requireNonNull(entryNodes, "null entryNodes");
+        clear();
+        if (entryNodes.isEmpty()) {
+            return;
+        }
+        entryNodes.forEach(entryNode -> {
+            entryNodesById.put(entryNode.getEntry().getId(), entryNode);
+            loosen(entryNode);
+        });
+        if (insertionStrategy == InsertionStrategy.HILBERT) {
+            entryNodes.forEach(entryNode -> entryNode.setHilbertValue(hilbertValue(entryNode)));
+            List<Node<E>> sortedEntryNodes = new ArrayList<>(entryNodes);
+            sortedEntryNodes.sort((first, second) -> Long.compareUnsigned(first.getHilbertValue(), second.getHilbertValue()));
+            List<TreeNode<E>> levelNodes = packHilbertLevel(sortedEntryNodes, true); //1 [Pack level]
+            while (levelNodes.size() > 1) {
+                levelNodes = packHilbertLevel(new ArrayList<>(levelNodes), false); //2 [Move up one level in tree]
+            }
+            root = levelNodes.get(0); //3 [Set root]
+            return;
+        }
+        List<TreeNode<E>> levelNodes = packLevel(new ArrayList<>(entryNodes), true); //1 [Pack level]
+        while (levelNodes.size() > 1) {
+            levelNodes = packLevel(new ArrayList<>(levelNodes), false); //2 [Move up one level in tree]
+        }
+        root = levelNodes.get(0); //3 [Set root]
+    }
+
+    /**
+     * Group nodes of one tree level into parent nodes.
+     * <p>Algorithm:</p>
+     * <p>1. [Calculate slices] Having n nodes calculate count of parent nodes P = ceil(n / maxEntries)
+     * and count of vertical slices S = ceil(sqrt(P)).</p>
+     * <p>2. [Sort by X] Sort nodes by x coordinate of their centers and cut them into S slices
+     * of S * maxEntries nodes.</p>
+     * <p>3. [Sort by Y] Sort nodes of each slice by y coordinate of their centers and distribute them
+     * between parent nodes as evenly as possible, so that each parent node holds no more than maxEntries nodes.</p>
+     * <p>4. [Rebalance last groups] If the last slice is left with fewer than minEntries nodes, invoke
+     * {@link RectangleRTree#rebalanceLastGroups} on parent nodes.</p>
+     *
+     * @param nodes - nodes of one level, entry nodes if {@param leaf} is true, tree nodes otherwise
+     * @param leaf  - whether created parent nodes are leafs
+     * @return list of created parent nodes
+     */
+    private List<TreeNode<E>> packLevel(List<Node<E>> nodes, boolean leaf) {
+        //1 [Calculate slices]
+        int parentsCount = ceilDiv(nodes.size(), maxEntries);
+        int slicesCount = (int) Math.ceil(Math.sqrt(parentsCount));
+        int sliceSize = slicesCount * maxEntries;
+
+        //2 [Sort by X]
+        nodes.sort(Comparator.comparingLong(node -> (long) node.getMinX() + node.getMaxX()));
+        List<TreeNode<E>> parents = new ArrayList<>(parentsCount);
+        for (int sliceStart = 0; sliceStart < nodes.size(); sliceStart += sliceSize) {
+            List<Node<E>> slice = nodes.subList(sliceStart, Math.min(sliceStart + sliceSize, nodes.size()));
+            //3 [Sort by Y]
+            slice.sort(Comparator.comparingLong(node -> (long) node.getMinY() + node.getMaxY()));
+            addGroups(parents, slice, ceilDiv(slice.size(), maxEntries), leaf);
+        }
+        //4 [Rebalance last groups]
+        if (parents.size() > 1 && parents.get(parents.size() - 1).getSize() < minEntries) {
+            rebalanceLastGroups(parents, leaf);
+        }
+        return parents;
+    }
+
+    /**
+     * Redistribute children of the last two parent nodes created by {@link RectangleRTree#packLevel}, the last one
+     * having fewer than minEntries children. Children ordered by x coordinate of their centers are split evenly
+     * between two nodes if they are enough to fill both of them or don't fit into one node,
+     * otherwise they are merged into one node, as under-full node of Hilbert R-tree is handled.
+     * Both nodes get at least minEntries children unless minEntries exceeds half of maxEntries rounded up.
+     */
+    private void rebalanceLastGroups(List<TreeNode<E>> parents, boolean leaf) {
+        TreeNode<E> last = parents.remove(parents.size() - 1);
+        TreeNode<E> previous = parents.remove(parents.size() - 1);
+        List<Node<E>> children = new ArrayList<>(previous.getChildNodes());
+        children.addAll(last.getChildNodes());
+        children.sort(Comparator.comparingLong(node -> (long) node.getMinX() + node.getMaxX()));
+        int groupsCount = children.size() >= minEntries * 2 || children.size() > maxEntries ? 2 : 1;
+        addGroups(parents, children, groupsCount, leaf);
+    }
+
+    /**
+     * Distribute nodes between given count of new parent nodes as evenly as possible keeping their order.
+     */
+    private void addGroups(List<TreeNode<E>> parents, List<Node<E>> nodes, int groupsCount, boolean leaf) {
+        int groupStart = 0;
+        for (int group = 0; group < groupsCount; group++) {
+            int groupEnd = groupStart + (nodes.size() - groupStart) / (groupsCount - group);
+            TreeNode<E> parent = newTreeNode(leaf);
+            nodes.subList(groupStart, groupEnd).forEach(parent::addChild);
+            tightenDimensions(parent);
+            parents.add(parent);
+            groupStart = groupEnd;
+        }
+    }
+
+    /**
+     * Group nodes of one tree level, ordered by Hilbert values, into parent nodes: having n nodes
+     * P = ceil(n / maxEntries) parent nodes are created and consecutive nodes are distributed between them
+     * as evenly as possible, so that order by Hilbert values is kept on the parent level too.
+     *
+     * @param nodes - nodes of one level ordered by Hilbert values
+     * @param leaf  - whether created parent nodes are leafs
+     * @return list of created parent nodes ordered by Hilbert values
+     */
+    private List<TreeNode<E>> packHilbertLevel(List<Node<E>> nodes, boolean leaf) {
+        int parentsCount = ceilDiv(nodes.size(), maxEntries);
+        List<TreeNode<E>> parents = new ArrayList<>(parentsCount);
+        int groupStart = 0;
+        for (int group = 0; group < parentsCount; group++) {
+            int groupEnd = groupStart + (nodes.size() - groupStart) / (parentsCount - group);
+            TreeNode<E> parent = newTreeNode(leaf);
+            nodes.subList(groupStart, groupEnd).forEach(parent::addChild);
+            tightenDimensions(parent);
+            parents.add(parent);
+            groupStart = groupEnd;
+        }
+        return parents;
+    }
+
+    private TreeNode<E> newTreeNode(boolean leaf) {
+        //one extra slot for the child which overflows node before split
+        return new TreeNode<>(leaf, maxEntries + 1);
+    }
+
+    private static int ceilDiv(int dividend, int divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+
     /**
      * Remove index record from an R-tree.
      * <p>Algorithm:</p>
-     * <p>1. [Find node containing record] Invoke {@link RectangleRTree#findEntry} to find entryNode, containing entry.
-     * Stop if not found.</p>
+     * <p>1. [Find node containing record] Take entryNode, containing entry, from
+     * {@link RectangleRTree#entryNodesById}. Stop if not found.</p>
      * <p>2. [Delete record] Remove entry node from its parent.</p>
      * <p>3. [Propagate changes] Invoke {@link RectangleRTree#condenseTree} passing leaf node,
      * in which deleted entry has been contained.</p>
+     * <p>No search is performed, so deletion costs O(height) regardless of how many entries overlap the deleted one.</p>
+     * <p>With {@link InsertionStrategy#HILBERT} strategy entry node is removed keeping order of remaining children
+     * and changes are propagated by {@link RectangleRTree#condenseHilbertTree}.</p>
      *
-     * @param id         - id of deleting entry
-     * @param dimensions - rectangle where this entry expected to be.
+     * @param id - id of deleting entry
      * @return true if entry is actually has been deleted
      */
-    public boolean deleteEntry(String id, Rectangle dimensions) {
+    public boolean deleteEntry(String id) {
         Objects.requireNonNull(id, "null id");
-        Objects.requireNonNull(id, "null dimensions");
 
-        Optional<EntryNode<E>> entryNodeOpt = findEntry(root, id, dimensions); //1 [Find node containing record]
-        if (entryNodeOpt.isEmpty()) {
+        EntryNode<E> entryNode = entryNodesById.remove(id); //1 [Find node containing record]
+        if (entryNode == null) {
             return false;
         }
-        EntryNode<E> entryNode = entryNodeOpt.get();
         if (entryNode.getParent() == null) {
             throw new IllegalStateException("found entry with null parent by id = " + id);
         }
         TreeNode<E> parent = entryNode.getParent();
-        if (!parent.removeChild(entryNode)) { //2 [Delete record]
+        boolean hilbert = insertionStrategy == InsertionStrategy.HILBERT;
+        if (!(hilbert ? parent.removeChildKeepingOrder(entryNode) : parent.removeChild(entryNode))) { //2 [Delete record]
             log.error("failed to delete entryNode={}  from parent={}", entryNode, parent);
             throw new IllegalStateException("failed to delete entryNode");
         }
 
-        condenseTree(parent); //3 [Propagate changes]
+        if (hilbert) {
+            condenseHilbertTree(parent); //3 [Propagate changes]
+        } else {
+            condenseTree(parent); //3 [Propagate changes]
+        }
+
+        return true;
+    }
 
+    /**
+     * Change z index of the entry without changing its position in the tree,
+     * adjusting z ranges on the path to the root.
+     *
+     * @param id - id of updating entry
+     * @param z  - new z index of the entry
+     * @return true if entry has been found and updated
+     */
+    public boolean updateZ(String id, int z) {
+        Objects.requireNonNull(id, "null id");
+        EntryNode<E> entryNode = entryNodesById.get(id);
+        if (entryNode == null) {
+            return false;
+        }
+        entryNode.setZ(z);
+        tightenUpward(entryNode.getParent());
+        return true;
+    }
+
+    /**
+     * Change dimensions and z index of the entry, moving it inside the tree only when it leaves its neighbourhood.
+     * <p>Algorithm:</p>
+     * <p>1. [Find node containing record] Take entryNode from {@link RectangleRTree#entryNodesById}.
+     * Stop if not found.</p>
+     * <p>2. [Check neighbourhood] If leaf of entry node is root or new dimensions fit inside the parent of the leaf,
+     * so that leaf enlargement is local and doesn't enlarge any node above, update entry node in place
+     * and recalculate dimensions of its leaf and all ancestors, which may shrink after entry left its old place.</p>
+     * <p>3. [Move entry] Otherwise delete entry node and insert it again with new dimensions.</p>
+     * <p>With {@link InsertionStrategy#HILBERT} strategy entry is always moved, since children are ordered
+     * by Hilbert values of their centers.</p>
+     * <p>In loose tree entry which stays inside of its enlarged bounds is updated without changing the tree,
+     * otherwise its bounds are enlarged around new dimensions and neighbourhood is checked for them.</p>
+     *
+     * @param id         - id of updating entry
+     * @param dimensions - new dimensions of the entry
+     * @param z          - new z index of the entry
+     * @return true if entry has been found and updated
+     */
+    public boolean update(String id, Rectangle dimensions, int z) {
+        Objects.requireNonNull(id, "null id");
+        Objects.requireNonNull(dimensions, "null dimensions");
+        EntryNode<E> entryNode = entryNodesById.get(id); //1 [Find node containing record]
+        if (entryNode == null) {
+            return false;
+        }
+        TreeNode<E> leaf = entryNode.getParent();
+        if (looseMargin > 0 && contains(entryNode, dimensions)) {
+            entryNode.setExactDimensions(dimensions);
+            if (entryNode.getZ() != z) {
+                entryNode.setZ(z);
+                tightenUpward(leaf);
+            }
+            return true;
+        }
+        entryNode.setZ(z);
+        entryNode.setDimensions(dimensions);
+        loosen(entryNode);
+        if (insertionStrategy != InsertionStrategy.HILBERT
+                && (leaf == root || contains(leaf.getParent(), entryNode))) { //2 [Check neighbourhood]
+            tightenUpward(leaf);
+        } else {
+            deleteEntry(id); //3 [Move entry]
+            insert(entryNode);
+        }
         return true;
     }
 
@@ -154,7 +773,7 @@ public class RectangleRTree<E extends HasId> {
     private void condenseTree(TreeNode<E> node) {
         List<EntryNode<E>> nodesToReinsert = new LinkedList<>(); //1 [Initialize]
         while (node != root) {
-            if (node.getChildNodes().size() < minEntries) { //2 [Eliminate under-full node]
+            if (node.getSize() < minEntries) { //2 [Eliminate under-full node]
                 extractAllEntries(node, nodesToReinsert);
                 TreeNode<E> parent = node.getParent();
                 parent.removeChild(node);
@@ -164,57 +783,60 @@ public class RectangleRTree<E extends HasId> {
                 node = node.getParent(); //4 [Move up one level in tree]
             }
         }
-        if (!root.isLeaf() && root.getChildNodes().size() == 0) { //5 [Check if root becomes leaf]
-            root = new TreeNode<>(true);
+        if (!root.isLeaf() && root.getSize() == 0) { //5 [Check if root becomes leaf]
+            root = newTreeNode(true);
         }
+        tightenDimensions(root);
         nodesToReinsert.forEach(this::insert); //5 [Reinsert orphaned entries]
     }
 
     private void extractAllEntries(TreeNode<E> node, List<EntryNode<E>> collector) {
         if (node.isLeaf()) {
-            for (Node<E> entry : node.getChildNodes()) {
-                EntryNode<E> entryNode = (EntryNode<E>) entry;
+            for (int i = 0; i < node.getSize(); i++) {
+                EntryNode<E> entryNode = (EntryNode<E>) node.getChild(i);
                 collector.add(entryNode);
             }
         } else {
-            for (Node<E> child : node.getChildNodes()) {
-                TreeNode<E> treeNode = (TreeNode<E>) child;
+            for (int i = 0; i < node.getSize(); i++) {
+                TreeNode<E> treeNode = (TreeNode<E>) node.getChild(i);
                 extractAllEntries(treeNode, collector);
             }
         }
     }
 
-    private Optional<EntryNode<E>> findEntry(TreeNode<E> node, String id, Rectangle rectangle) {
-        for (Node<E> child : node.getChildNodes()) {
-            if (child instanceof TreeNode) {
-                if (isOverlap(child, rectangle)) {
-                    TreeNode<E> treeNode = (TreeNode<E>) child;
-                    Optional<EntryNode<E>> entryNodeOpt = findEntry(treeNode, id, rectangle);
-                    if (entryNodeOpt.isPresent()) {
-                        return entryNodeOpt;
-                    }
-                }
-            } else if (child instanceof EntryNode) {
-                EntryNode<E> entryNode = (EntryNode<E>) child;
-                String entryId = entryNode.getEntry().getId();
-                if (id.equals(entryId)) {
-                    return Optional.of(entryNode);
-                }
-            }
-        }
-        return Optional.empty();
+    /**
+     * Given node with overflowed children limit {@param origNode} then create new node and distribute children
+     * between them using algorithm of {@link RectangleRTree#insertionStrategy}.
+     *
+     * @param origNode - node with overflowed children limit
+     * @return newly created node
+     */
+    private TreeNode<E> splitNode(TreeNode<E> origNode) {
+        return insertionStrategy == InsertionStrategy.R_STAR ? rStarSplit(origNode) : linearSplit(origNode);
     }
 
-    private boolean isOverlap(Rectangle first, Rectangle second) {
-        return first.getMinX() < second.getMaxX() && first.getMaxX() > second.getMinX() //overlap by X
-                && first.getMinY() < second.getMaxY() && first.getMaxY() > second.getMinY(); //overlap by Y
+    /**
+     * Create new empty node for splitting {@param origNode}, which is placed into the same parent.
+     * If {@param origNode} is root, then new root is created to hold both nodes.
+     */
+    private TreeNode<E> createSplitPartner(TreeNode<E> origNode) {
+        TreeNode<E> parent = origNode.getParent();
+        if (origNode == root) {
+            root = newTreeNode(false);
+            parent = root;
+            parent.addChild(origNode);
+        }
+        TreeNode<E> newNode = newTreeNode(origNode.isLeaf());
+        parent.addChild(newNode);
+        return newNode;
     }
 
     /**
-     * Given node with overflowed children limit {@param origNode} then create new node and distribute children
-     * between them.
+     * Split node with Guttman's linear cost algorithm.
+     * All intermediate state is kept in {@link RectangleRTree#splitBuffer} and {@link RectangleRTree#splitSeeds},
+     * so splitting allocates nothing except the new node.
      * <p>Algorithm:</p>
-     * <p>1. [Pick first entry for each group] Apply Algorithm {@link RectangleRTree#linearPeekSeeds} to choose
+     * <p>1. [Pick first entry for each group] Apply Algorithm {@link RectangleRTree#linearPickSeeds} to choose
      * two entries to be the first elements of the groups. Assign each to a group.</p>
      * <p>2. [Check If done] If all entries have been assigned, stop If one group has so few entries
      * that all the rest must be assigned to it m order for it to have
@@ -227,62 +849,61 @@ public class RectangleRTree<E extends HasId> {
      * @param origNode - node with overflowed children limit
      * @return newly created node
      */
-    private TreeNode<E> splitNode(TreeNode<E> origNode) {
-        //1 [Pick first entry for each group] choose two entries
-        var seeds = linearPeekSeeds(origNode);
-        if (!origNode.removeChild(seeds.lowestNode)) {
-            throw new IllegalStateException("remove lowestNode failed");
-        }
-        if (!origNode.removeChild(seeds.highestNode)) {
-            throw new IllegalStateException("remove highestNode failed");
+    private TreeNode<E> linearSplit(TreeNode<E> origNode) {
+        //1 origNode becomes the first group, evicting all children to split buffer
+        int remainingSize = origNode.getSize();
+        for (int i = 0; i < remainingSize; i++) {
+            splitBuffer[i] = origNode.getChild(i);
         }
+        origNode.clearChildren();
 
-        //1 origNode becomes the first group, evicting all children to array
-        LinkedList<Node<E>> childrenToRearrange = new LinkedList<>(origNode.getChildNodes());
-        origNode.getChildNodes().clear();
-
-        TreeNode<E> parent = origNode.parent;
-        if (origNode == root) {
-            root = new TreeNode<>(false);
-            parent = root;
-            parent.addChild(origNode);
-        }
+        //1 [Pick first entry for each group] choose two entries
+        linearPickSeeds(remainingSize);
+        Node<E> firstSeed = splitBuffer[splitSeeds[0]];
+        Node<E> secondSeed = splitBuffer[splitSeeds[1]];
+        splitBuffer[Math.max(splitSeeds[0], splitSeeds[1])] = splitBuffer[--remainingSize];
+        splitBuffer[Math.min(splitSeeds[0], splitSeeds[1])] = splitBuffer[--remainingSize];
 
         //1 Create second group
-        TreeNode<E> newNode = new TreeNode<>(origNode.isLeaf());
-        parent.addChild(newNode);
+        TreeNode<E> newNode = createSplitPartner(origNode);
 
         //1 Assign chosen entries to groups
-        origNode.addChild(seeds.lowestNode);
-        newNode.addChild(seeds.highestNode);
+        origNode.addChild(firstSeed);
+        newNode.addChild(secondSeed);
 
         tightenDimensions(origNode);
         tightenDimensions(newNode);
 
         //2. [Check If done]
-        while (!childrenToRearrange.isEmpty()) {
-            int remainingSize = childrenToRearrange.size();
+        while (remainingSize > 0) {
             if (shouldAddAllRemainingToMatchMinSize(origNode, remainingSize)) {
-                childrenToRearrange.forEach(origNode::addChild);
-                tightenDimensions(origNode);
+                remainingSize = addAllRemaining(origNode, remainingSize);
                 break;
             }
             if (shouldAddAllRemainingToMatchMinSize(newNode, remainingSize)) {
-                childrenToRearrange.forEach(newNode::addChild);
-                tightenDimensions(newNode);
+                remainingSize = addAllRemaining(newNode, remainingSize);
                 break;
             }
-            Node<E> child = childrenToRearrange.remove();
+            Node<E> child = splitBuffer[--remainingSize];
             //3. [Select entry to assign]
             TreeNode<E> preferredNode = choosePreferredNode(origNode, newNode, child);
             preferredNode.addChild(child);
             tightenDimensions(preferredNode);
         }
+        Arrays.fill(splitBuffer, null);
         return newNode;
     }
 
     private boolean shouldAddAllRemainingToMatchMinSize(TreeNode<E> node, int remainingSize) {
-        return remainingSize <= minEntries && node.getChildNodes().size() + remainingSize == minEntries;
+        return remainingSize <= minEntries && node.getSize() + remainingSize == minEntries;
+    }
+
+    private int addAllRemaining(TreeNode<E> node, int remainingSize) {
+        for (int i = 0; i < remainingSize; i++) {
+            node.addChild(splitBuffer[i]);
+        }
+        tightenDimensions(node);
+        return 0;
     }
 
     /**
@@ -290,8 +911,8 @@ public class RectangleRTree<E extends HasId> {
      * <p>Algorithm:</p>
      * <p>1. [Determine cost of adding entry in each node] Calculate the area increase required in the
      * covering rectangle of node to include adding node.</p>
-     * <p>2. [Find node with the greatest preference] Choose a node with area increase is lower
-     * or node with fewer elements if calculated  area increase is th same.</p>
+     * <p>2. [Find node with the greatest preference] Choose a node with area increase is lower,
+     * then node with smaller area, then node with fewer elements.</p>
      *
      * @param first                - first node
      * @param second               - second node
@@ -300,134 +921,81 @@ public class RectangleRTree<E extends HasId> {
      */
     private TreeNode<E> choosePreferredNode(TreeNode<E> first, TreeNode<E> second, Rectangle addingNodeDimensions) {
         // [1]
-        BigDecimal enlargement1 = calculateRequiredEnlargement(first, addingNodeDimensions);
-        BigDecimal enlargement2 = calculateRequiredEnlargement(second, addingNodeDimensions);
+        long enlargement1 = calculateRequiredEnlargement(
+                first.getMinX(), first.getMinY(), first.getMaxX(), first.getMaxY(), addingNodeDimensions);
+        long enlargement2 = calculateRequiredEnlargement(
+                second.getMinX(), second.getMinY(), second.getMaxX(), second.getMaxY(), addingNodeDimensions);
         // [2]
-        int comparison = enlargement1.compareTo(enlargement2);
+        int comparison = Long.compareUnsigned(enlargement1, enlargement2);
+        if (comparison == 0) {
+            comparison = Long.compareUnsigned(
+                    area(first.getMinX(), first.getMinY(), first.getMaxX(), first.getMaxY()),
+                    area(second.getMinX(), second.getMinY(), second.getMaxX(), second.getMaxY())
+            );
+        }
         if (comparison < 0) {
             return first;
         } else if (comparison > 0) {
             return second;
         }
-        return first.getChildNodes().size() < second.getChildNodes().size() ? first : second;
+        return first.getSize() < second.getSize() ? first : second;
     }
 
     /**
-     * Select two entries among nodes children to be the first elements of the splitting groups.
+     * Select two entries among first {@param size} nodes of {@link RectangleRTree#splitBuffer} to be the first
+     * elements of the splitting groups. Indexes of chosen nodes are stored to {@link RectangleRTree#splitSeeds}.
      * <p>Algorithm:<p/>
      * <p>1. [Find extreme rectangles along all dimensions] Along each dimension, find the entry whose rectangle has
-     * the highest low side, and the one with the lowest high side. Record the separation. If a collision happens
-     * when it is not possible to find 2 extreme rectangles, then fallback to selecting just firs and last rectangles.</p>
+     * the highest low side, and among the others the one with the lowest high side. Record the separation.</p>
      * <p>2. [AdJust for shape of the rectangle cluster] Normalize the separations by dividing by the width of the entire
      * set along the corresponding dimension.</p>
      * <p>3. [Select the most extreme pair] Choose the pair with the greatest normalized separation along any dimension.</p>
      *
-     * @param node - node in which children we are choosing seeds
-     * @return object containing 2 chosen child nodes
+     * @param size - count of nodes in split buffer
      */
-    private SeparationByCoordinateResult<E> linearPeekSeeds(TreeNode<E> node) {
-        var separationByX = separationByX(node, new LinkedList<>());
-        var separationByY = separationByY(node, new LinkedList<>());
+    private void linearPickSeeds(int size) {
+        double separationByX = normalizedSeparation(size, true);
+        int firstSeedByX = splitSeeds[0];
+        int secondSeedByX = splitSeeds[1];
+        double separationByY = normalizedSeparation(size, false);
         //3 [Select the most extreme pair]
-        return separationByX.normalizedSeparation > separationByY.normalizedSeparation ? separationByX : separationByY;
+        if (separationByX > separationByY) {
+            splitSeeds[0] = firstSeedByX;
+            splitSeeds[1] = secondSeedByX;
+        }
     }
 
-    private SeparationByCoordinateResult<E> separationByX(TreeNode<E> node, List<Node<E>> excludeNodes) {
-        Node<E> lowestHighSideNode = null;
-        Node<E> highestLowSideNode = null;
-        int highestSide = Integer.MIN_VALUE, highestLowSide = Integer.MIN_VALUE;
-        int lowestSide = Integer.MAX_VALUE, lowestHighSide = Integer.MAX_VALUE;
-        if (node.getChildNodes().size() - excludeNodes.size() >= minEntries) {
-            //1. [Find extreme rectangles along all dimensions]
-            for (Node<E> child : node.getChildNodes()) {
-                if (excludeNodes.contains(child)) {
-                    continue;
-                }
-                if (child.getMinX() > highestLowSide) {
-                    highestLowSide = child.getMinX();
-                    highestLowSideNode = child;
-                }
-                if (child.getMaxX() < lowestHighSide) {
-                    lowestHighSide = child.getMaxX();
-                    lowestHighSideNode = child;
-                }
-                if (child.getMaxX() > highestSide) {
-                    highestSide = child.getMaxX();
-                }
-                if (child.getMinX() < lowestSide) {
-                    lowestSide = child.getMinX();
-                }
+    private double normalizedSeparation(int size, boolean byX) {
+        //1. [Find extreme rectangles along all dimensions]
+        int highestLowSideIndex = 0;
+        long lowestSide = Long.MAX_VALUE, highestSide = Long.MIN_VALUE;
+        for (int i = 0; i < size; i++) {
+            if (lowSide(splitBuffer[i], byX) > lowSide(splitBuffer[highestLowSideIndex], byX)) {
+                highestLowSideIndex = i;
             }
-            if (lowestHighSideNode == highestLowSideNode) {
-                log.warn("separationByX collision \nnode={} \nhighestSide={} \nhighestLowSide={} \nlowestSide={} \nlowestHighSide={} \namong: {}",
-                        highestLowSideNode, highestSide, highestLowSide, lowestSide, lowestHighSide,
-                        node.getChildNodes().stream().map(Node::toString).collect(Collectors.joining("\n")));
-                excludeNodes.add(lowestHighSideNode);
-                return separationByX(node, excludeNodes);
+            lowestSide = Math.min(lowestSide, lowSide(splitBuffer[i], byX));
+            highestSide = Math.max(highestSide, highSide(splitBuffer[i], byX));
+        }
+        int lowestHighSideIndex = -1;
+        for (int i = 0; i < size; i++) {
+            if (i != highestLowSideIndex && (lowestHighSideIndex < 0
+                    || highSide(splitBuffer[i], byX) < highSide(splitBuffer[lowestHighSideIndex], byX))) {
+                lowestHighSideIndex = i;
             }
-        } else {
-            /*
-             Fallback logic for handling collisions, when highestLowSideNode and lowestHighSideNode are pointing to the same node.
-             May happen when all child nodes have the same dimensions.
-             */
-            log.warn("unable to resolve separationByX collision for node : {}, returning just first and last nodes", node);
-            lowestHighSideNode = node.getChildNodes().get(0);
-            lowestHighSide = lowestHighSideNode.getMaxX();
-            highestLowSideNode = node.getChildNodes().get(node.getChildNodes().size() - 1);
-            highestLowSide = highestLowSideNode.getMinX();
-            highestSide = node.getChildNodes().stream().map(Node::getMaxX).max(Comparator.naturalOrder()).get();
-            lowestSide = node.getChildNodes().stream().map(Node::getMinX).min(Comparator.naturalOrder()).get();
         }
+        splitSeeds[0] = lowestHighSideIndex;
+        splitSeeds[1] = highestLowSideIndex;
         //2. [AdJust for shape of the rectangle cluster]
-        double separation = (highestLowSide - lowestHighSide) * 1.0 / (highestSide - lowestSide);
-        return new SeparationByCoordinateResult<>(separation, lowestHighSideNode, highestLowSideNode);
+        long separation = (long) lowSide(splitBuffer[highestLowSideIndex], byX) - highSide(splitBuffer[lowestHighSideIndex], byX);
+        return highestSide == lowestSide ? 0 : separation * 1.0 / (highestSide - lowestSide);
     }
 
-    private SeparationByCoordinateResult<E> separationByY(TreeNode<E> node, List<Node<E>> excludeNodes) {
-        Node<E> lowestHighSideNode = null;
-        Node<E> highestLowSideNode = null;
-        int highestSide = Integer.MIN_VALUE, highestLowSide = Integer.MIN_VALUE;
-        int lowestSide = Integer.MAX_VALUE, lowestHighSide = Integer.MAX_VALUE;
-        if (node.getChildNodes().size() - excludeNodes.size() >= minEntries) {
-            //1. [Find extreme rectangles along all dimensions]
-            for (Node<E> child : node.getChildNodes()) {
-                if (excludeNodes.contains(child)) {
-                    continue;
-                }
-                if (child.getMinY() > highestLowSide) {
-                    highestLowSide = child.getMinY();
-                    highestLowSideNode = child;
-                }
-                if (child.getMaxY() < lowestHighSide) {
-                    lowestHighSide = child.getMaxY();
-                    lowestHighSideNode = child;
-                }
-                if (child.getMaxY() > highestSide) {
-                    highestSide = child.getMaxY();
-                }
-                if (child.getMinY() < lowestSide) {
-                    lowestSide = child.getMinY();
-                }
-            }
-            if (lowestHighSideNode == highestLowSideNode) {
-                log.error("separationByY collision \nnode={} \nhighestSide={} \nhighestLowSide={} \nlowestSide={} \nlowestHighSide={} \namong: {}",
-                        lowestHighSideNode, highestSide, highestLowSide, lowestSide, lowestHighSide,
-                        node.getChildNodes().stream().map(Node::toString).collect(Collectors.joining("\n")));
-                excludeNodes.add(lowestHighSideNode);
-                return separationByX(node, excludeNodes);
-            }
-        } else {
-            log.warn("unable to resolve separationByY collision for node : {}, returning just first and last nodes", node);
-            lowestHighSideNode = node.getChildNodes().get(0);
-            lowestHighSide = lowestHighSideNode.getMaxY();
-            highestLowSideNode = node.getChildNodes().get(node.getChildNodes().size() - 1);
-            highestLowSide = highestLowSideNode.getMinY();
-            highestSide = node.getChildNodes().stream().map(Node::getMaxY).max(Comparator.naturalOrder()).get();
-            lowestSide = node.getChildNodes().stream().map(Node::getMinY).min(Comparator.naturalOrder()).get();
-        }
-        //2. [AdJust for shape of the rectangle cluster]
-        double separation = (highestLowSide - lowestHighSide) * 1.0 / (highestSide - lowestSide);
-        return new SeparationByCoordinateResult<>(separation, lowestHighSideNode, highestLowSideNode);
+    private static int lowSide(Rectangle rectangle, boolean byX) {
+        return byX ? rectangle.getMinX() : rectangle.getMinY();
+    }
+
+    private static int highSide(Rectangle rectangle, boolean byX) {
+        return byX ? rectangle.getMaxX() : rectangle.getMaxY();
     }
 
     /**
@@ -455,14 +1023,14 @@ public class RectangleRTree<E extends HasId> {
         //3 [Check if done]
         if (first == root) {
             if (second != null) {
-                root = new TreeNode<>(false);
+                root = newTreeNode(false);
                 root.addChild(first);
                 root.addChild(second);
                 tightenDimensions(root);
             }
             return;
         }
-        if (second != null && first.getParent().getChildNodes().size() > maxEntries) { //4 [Propagate node split upward]
+        if (second != null && first.getParent().getSize() > maxEntries) { //4 [Propagate node split upward]
             TreeNode<E> newNode = splitNode(first.getParent());
             adjustTree(first.getParent(), newNode); //5 [Move up to next level]
         } else {
@@ -471,29 +1039,45 @@ public class RectangleRTree<E extends HasId> {
     }
 
     /**
-     * Recalculate node dimensions so that they tightly enclose all child rectangles.
+     * Recalculate node dimensions so that they tightly enclose all child rectangles,
+     * node z range so that it encloses z ranges of all children and count of entries in node subtree.
      */
     private void tightenDimensions(TreeNode<E> node) {
-        Iterator<Node<E>> childIterator = node.getChildNodes().iterator();
-        if (!childIterator.hasNext()) {
+        int size = node.getSize();
+        if (size == 0) {
+            node.setEntryCount(0);
             return;
         }
-        Rectangle child = childIterator.next();
-        int minX = child.getMinX();
-        int maxX = child.getMaxX();
-        int minY = child.getMinY();
-        int maxY = child.getMaxY();
-        while (childIterator.hasNext()) {
-            child = childIterator.next();
-            minX = Math.min(minX, child.getMinX());
-            maxX = Math.max(maxX, child.getMaxX());
-            minY = Math.min(minY, child.getMinY());
-            maxY = Math.max(maxY, child.getMaxY());
+        int[] childMinX = node.getChildMinX();
+        int[] childMinY = node.getChildMinY();
+        int[] childMaxX = node.getChildMaxX();
+        int[] childMaxY = node.getChildMaxY();
+        int minX = childMinX[0];
+        int maxX = childMaxX[0];
+        int minY = childMinY[0];
+        int maxY = childMaxY[0];
+        int[] childMinZ = node.getChildMinZ();
+        int[] childMaxZ = node.getChildMaxZ();
+        int minZ = childMinZ[0];
+        int maxZ = childMaxZ[0];
+        int[] childEntryCount = node.getChildEntryCount();
+        int entryCount = childEntryCount[0];
+        for (int i = 1; i < size; i++) {
+            minX = Math.min(minX, childMinX[i]);
+            maxX = Math.max(maxX, childMaxX[i]);
+            minY = Math.min(minY, childMinY[i]);
+            maxY = Math.max(maxY, childMaxY[i]);
+            minZ = Math.min(minZ, childMinZ[i]);
+            maxZ = Math.max(maxZ, childMaxZ[i]);
+            entryCount += childEntryCount[i];
+        }
+        node.setBounds(minX, minY, maxX, maxY);
+        node.setZRange(minZ, maxZ);
+        node.setEntryCount(entryCount);
+        if (insertionStrategy == InsertionStrategy.HILBERT) {
+            //children are ordered by Hilbert values, so the last child has the largest one
+            node.setHilbertValue(node.getChild(size - 1).getHilbertValue());
         }
-        node.setX(minX);
-        node.setY(minY);
-        node.setWidth(maxX - minX);
-        node.setHeight(maxY - minY);
     }
 
     /**
@@ -502,7 +1086,8 @@ public class RectangleRTree<E extends HasId> {
      * <p>1. [Initialize] Fist invocation shod be done passing {@link RectangleRTree#root} as {@param node}.</p>
      * <p>2. [Check leaf] If {@param node} is a leaf - return {@param node} as found leaf.</p>
      * <p>3. [Choose subtree] If {@param node} is not a leaf - find node in {@param node} children
-     * which is required minimum enlargement to include {@param entryDimensions}.</p>
+     * which is required minimum enlargement to include {@param entryDimensions}.
+     * Resolve ties by choosing the node with smaller area.</p>
      * <p>4. [Descend until a leaf is reached] Set {@param node} to be the child node found in [3]. Repeat from [2].</p>
      *
      * @param node            - node inside which search for leaf node is conducted
@@ -510,74 +1095,800 @@ public class RectangleRTree<E extends HasId> {
      * @return leaf node matching dimensions
      */
     private TreeNode<E> chooseLeaf(TreeNode<E> node, Rectangle entryDimensions) {
-        if (node.isLeaf()) { //2 [Check leaf]
-            return node;
+        while (!node.isLeaf()) { //2 [Check leaf]
+            int[] minX = node.getChildMinX();
+            int[] minY = node.getChildMinY();
+            int[] maxX = node.getChildMaxX();
+            int[] maxY = node.getChildMaxY();
+            int chosenIndex = 0;
+            long minEnlargement = 0;
+            long minArea = 0;
+            for (int i = 0; i < node.getSize(); i++) { //3 [Choose subtree]
+                long area = area(minX[i], minY[i], maxX[i], maxY[i]);
+                long enlargement = calculateRequiredEnlargement(minX[i], minY[i], maxX[i], maxY[i], entryDimensions);
+                int comparison = Long.compareUnsigned(enlargement, minEnlargement);
+                if (i == 0 || comparison < 0 || comparison == 0 && Long.compareUnsigned(area, minArea) < 0) {
+                    minEnlargement = enlargement;
+                    minArea = area;
+                    chosenIndex = i;
+                }
+            }
+            node = (TreeNode<E>) node.getChild(chosenIndex); //4 [Descend until a leaf is reached]
         }
-        BigDecimal minEnlargement = null;
-        Node<E> minEnlargementNode = null;
-        for (Node<E> child : node.getChildNodes()) { //3 [Choose subtree]
-            BigDecimal enlargement = calculateRequiredEnlargement(child, entryDimensions);
-            if (minEnlargement == null || enlargement.compareTo(minEnlargement) < 0) {
-                minEnlargement = enlargement;
-                minEnlargementNode = child;
+        return node;
+    }
+
+    /**
+     * Calculate required enlargement of node with given bounds to include node with dimension {@param entryDimensions}
+     *
+     * @return difference in rectangle area between initial dimensions and dimensions after including entry,
+     * as unsigned long (see {@link RectangleRTree#area}).
+     */
+    private static long calculateRequiredEnlargement(int minX, int minY, int maxX, int maxY, Rectangle entryDimensions) {
+        long initialArea = area(minX, minY, maxX, maxY);
+        long resultArea = area(
+                Math.min(minX, entryDimensions.getMinX()),
+                Math.min(minY, entryDimensions.getMinY()),
+                Math.max(maxX, entryDimensions.getMaxX()),
+                Math.max(maxY, entryDimensions.getMaxY())
+        );
+        return resultArea - initialArea;
+    }
+
+    /**
+     * Calculate exact area of rectangle without allocations. Each side of rectangle with int coordinates is less
+     * than 2^32, so area is less than 2^64 and always fits into long treated as unsigned value.
+     * Areas must be compared with {@link Long#compareUnsigned}.
+     */
+    private static long area(int minX, int minY, int maxX, int maxY) {
+        return ((long) maxX - minX) * ((long) maxY - minY);
+    }
+
+    /**
+     * Inserts node as a child of some node on given level of the tree following R*-tree algorithm.
+     * Leaf nodes are on level 0, so entry nodes are inserted on level 0, and tree nodes orphaned by forced reinsert
+     * are inserted on the level next to their own.
+     * <p>Algorithm:</p>
+     * <p>1. [Find position for new node] Invoke {@link RectangleRTree#chooseSubtree} to select target node
+     * on given level.</p>
+     * <p>2. [Add node] Install node to target node. If target node has more than maxEntries children
+     * invoke overflow treatment: if target node is not root and it is the first overflow on this level during
+     * current insertion, invoke {@link RectangleRTree#forcedReinsert} and stop. Otherwise, invoke
+     * {@link RectangleRTree#splitNode} and repeat overflow treatment for parent node if it is overflowed too.</p>
+     * <p>3. [Propagate changes upward] Adjust covering rectangles on the path from target node to the root.</p>
+     *
+     * @param node  - entry node or orphaned tree node
+     * @param level - level of the node in which {@param node} should be installed
+     */
+    private void insertAtLevel(Node<E> node, int level) {
+        TreeNode<E> targetNode = chooseSubtree(node, level); //1 [Find position for new node]
+        targetNode.addChild(node); //2 [Add node]
+        TreeNode<E> overflowedNode = targetNode;
+        int overflowedLevel = level;
+        while (overflowedNode != null && overflowedNode.getSize() > maxEntries) {
+            long levelMask = 1L << overflowedLevel;
+            if (overflowedNode != root && (reinsertedLevels & levelMask) == 0) {
+                reinsertedLevels |= levelMask;
+                tightenUpward(targetNode);
+                forcedReinsert(overflowedNode, overflowedLevel);
+                return;
             }
+            TreeNode<E> newNode = splitNode(overflowedNode);
+            overflowedNode = newNode.getParent();
+            overflowedLevel++;
         }
-        TreeNode<E> chosenNode = (TreeNode<E>) minEnlargementNode;
-        return chooseLeaf(chosenNode, entryDimensions); //4 [Descend until a leaf is reached]
+        tightenUpward(targetNode); //3 [Propagate changes upward]
     }
 
     /**
-     * Calculate required enlargement of node with dimensions {@param nodeDimensions}
-     * to include node with dimension {@param entryDimensions}
+     * Select a node on given level in which to place a new node.
+     * <p>Algorithm:</p>
+     * <p>1. [Initialize] Set node to be the root.</p>
+     * <p>2. [Check level] If node is on required level - return node.</p>
+     * <p>3. [Choose subtree] If children of node are leafs, choose the child whose rectangle needs least overlap
+     * enlargement with its siblings to include new node. Otherwise, choose the child whose rectangle needs least
+     * area enlargement. Resolve ties by choosing the child with smaller area.</p>
+     * <p>4. [Descend until required level is reached] Set node to be the child node found in [3]. Repeat from [2].</p>
      *
-     * @return difference in rectangle area between initial dimensions and dimensions after including entry.
+     * @param dimensions - dimensions of new node
+     * @param level      - level of the node to choose
+     * @return node on given level
      */
-    private BigDecimal calculateRequiredEnlargement(Rectangle nodeDimensions, Rectangle entryDimensions) {
-        BigDecimal initialArea = nodeDimensions.getArea();
+    private TreeNode<E> chooseSubtree(Rectangle dimensions, int level) {
+        TreeNode<E> node = root; //1 [Initialize]
+        for (int nodeLevel = levelOf(root); nodeLevel > level; nodeLevel--) { //2 [Check level]
+            Node<E> chosenChild = null; //3 [Choose subtree]
+            double minOverlapEnlargement = Double.MAX_VALUE;
+            double minAreaEnlargement = Double.MAX_VALUE;
+            double minArea = Double.MAX_VALUE;
+            for (Node<E> child : node.getChildNodes()) {
+                double overlapEnlargement = nodeLevel == 1 ? overlapEnlargement(node, child, dimensions) : 0;
+                double area = areaAsDouble(child.getMinX(), child.getMinY(), child.getMaxX(), child.getMaxY());
+                double areaEnlargement = areaAsDouble(
+                        Math.min(child.getMinX(), dimensions.getMinX()),
+                        Math.min(child.getMinY(), dimensions.getMinY()),
+                        Math.max(child.getMaxX(), dimensions.getMaxX()),
+                        Math.max(child.getMaxY(), dimensions.getMaxY())
+                ) - area;
+                if (overlapEnlargement < minOverlapEnlargement
+                        || overlapEnlargement == minOverlapEnlargement && areaEnlargement < minAreaEnlargement
+                        || overlapEnlargement == minOverlapEnlargement && areaEnlargement == minAreaEnlargement && area < minArea) {
+                    minOverlapEnlargement = overlapEnlargement;
+                    minAreaEnlargement = areaEnlargement;
+                    minArea = area;
+                    chosenChild = child;
+                }
+            }
+            node = (TreeNode<E>) chosenChild; //4 [Descend until required level is reached]
+        }
+        return node;
+    }
 
-        int minX = Math.min(nodeDimensions.getMinX(), entryDimensions.getMinX());
-        int minY = Math.min(nodeDimensions.getMinY(), entryDimensions.getMinY());
-        int maxX = Math.max(nodeDimensions.getMaxX(), entryDimensions.getMaxX());
-        int maxY = Math.max(nodeDimensions.getMaxY(), entryDimensions.getMaxY());
+    /**
+     * Calculate how much overlap of {@param child} with its siblings grows when it is enlarged
+     * to include {@param dimensions}.
+     */
+    private double overlapEnlargement(TreeNode<E> parent, Node<E> child, Rectangle dimensions) {
+        int minX = Math.min(child.getMinX(), dimensions.getMinX());
+        int minY = Math.min(child.getMinY(), dimensions.getMinY());
+        int maxX = Math.max(child.getMaxX(), dimensions.getMaxX());
+        int maxY = Math.max(child.getMaxY(), dimensions.getMaxY());
+        double enlargement = 0;
+        for (Node<E> sibling : parent.getChildNodes()) {
+            if (sibling != child) {
+                enlargement += overlapArea(minX, minY, maxX, maxY, sibling)
+                        - overlapArea(child.getMinX(), child.getMinY(), child.getMaxX(), child.getMaxY(), sibling);
+            }
+        }
+        return enlargement;
+    }
 
-        BigDecimal resultHeight = BigDecimal.valueOf(maxY - minY);
-        BigDecimal resultWidth = BigDecimal.valueOf(maxX - minX);
+    /**
+     * Remove from overflowed node its children, which are the most distant from the node center
+     * and insert them again, which lets the tree to reorganize before splitting nodes.
+     * <p>Algorithm:</p>
+     * <p>1. [Compute distances] For all children of node compute the distance between centers of their rectangles
+     * and the center of node rectangle.</p>
+     * <p>2. [Remove farthest children] Sort children in decreasing order of their distances and remove first
+     * 30% of maxEntries children (but keeping at least minEntries children in node).
+     * Adjust covering rectangles on the path from node to the root.</p>
+     * <p>3. [Reinsert] Starting with the closest one, invoke {@link RectangleRTree#insertAtLevel}
+     * for removed children.</p>
+     *
+     * @param node  - node with overflowed children limit
+     * @param level - level of the node
+     */
+    private void forcedReinsert(TreeNode<E> node, int level) {
+        //1 [Compute distances]
+        long nodeCenterX = (long) node.getMinX() + node.getMaxX();
+        long nodeCenterY = (long) node.getMinY() + node.getMaxY();
+        List<Node<E>> children = new ArrayList<>(node.getChildNodes());
+        children.sort(Comparator.comparingDouble((Node<E> child) -> {
+            double dx = (long) child.getMinX() + child.getMaxX() - nodeCenterX;
+            double dy = (long) child.getMinY() + child.getMaxY() - nodeCenterY;
+            return dx * dx + dy * dy;
+        }).reversed());
 
-        BigDecimal resultArea = resultHeight.multiply(resultWidth);
+        //2 [Remove farthest children]
+        int reinsertCount = Math.min(Math.max(1, maxEntries * 3 / 10), children.size() - minEntries);
+        List<Node<E>> childrenToReinsert = children.subList(0, reinsertCount);
+        childrenToReinsert.forEach(node::removeChild);
+        tightenUpward(node);
 
-        return resultArea.min(initialArea);
+        //3 [Reinsert]
+        for (int i = childrenToReinsert.size() - 1; i >= 0; i--) {
+            insertAtLevel(childrenToReinsert.get(i), level);
+        }
     }
 
-    private void search(SearchArea searchArea, TreeNode<E> node, List<E> results) {
-        if (node.isLeaf()) {
-            for (Node<E> child : node.getChildNodes()) {
-                if (!(child instanceof EntryNode)) {
-                    throw new IllegalStateException("leaf node can contain only entries");
+    /**
+     * Split node with R*-tree algorithm.
+     * <p>Algorithm:</p>
+     * <p>1. [Choose split axis] For each axis sort children by lower and then by upper values of their rectangles.
+     * For each sort consider all distributions into two groups of at least minEntries children and compute sum
+     * of margins of both groups. Choose axis with minimum total sum of margins.</p>
+     * <p>2. [Choose split index] Along chosen axis choose the distribution with minimum overlap of groups rectangles.
+     * Resolve ties by choosing the distribution with minimum total area.</p>
+     * <p>3. [Distribute children] Leave first group in original node and move second group to new node.</p>
+     *
+     * @param origNode - node with overflowed children limit
+     * @return newly created node
+     */
+    private TreeNode<E> rStarSplit(TreeNode<E> origNode) {
+        List<Node<E>> children = new ArrayList<>(origNode.getChildNodes());
+        int groupMinSize = Math.min(minEntries, children.size() / 2);
+
+        //1 [Choose split axis]
+        List<Comparator<Node<E>>> xSorts = List.of(
+                Comparator.comparingInt(Node<E>::getMinX).thenComparingInt(Node::getMaxX),
+                Comparator.comparingInt(Node<E>::getMaxX).thenComparingInt(Node::getMinX)
+        );
+        List<Comparator<Node<E>>> ySorts = List.of(
+                Comparator.comparingInt(Node<E>::getMinY).thenComparingInt(Node::getMaxY),
+                Comparator.comparingInt(Node<E>::getMaxY).thenComparingInt(Node::getMinY)
+        );
+        List<Comparator<Node<E>>> axisSorts = marginSum(children, xSorts, groupMinSize) <= marginSum(children, ySorts, groupMinSize)
+                ? xSorts : ySorts;
+
+        //2 [Choose split index]
+        Comparator<Node<E>> bestSort = null;
+        int bestSplitIndex = -1;
+        double minOverlap = Double.MAX_VALUE;
+        double minArea = Double.MAX_VALUE;
+        for (Comparator<Node<E>> sort : axisSorts) {
+            children.sort(sort);
+            for (int splitIndex = groupMinSize; splitIndex <= children.size() - groupMinSize; splitIndex++) {
+                SplitGroupBounds first = SplitGroupBounds.of(children.subList(0, splitIndex));
+                SplitGroupBounds second = SplitGroupBounds.of(children.subList(splitIndex, children.size()));
+                double overlap = first.overlapArea(second);
+                double area = first.area() + second.area();
+                if (overlap < minOverlap || overlap == minOverlap && area < minArea) {
+                    minOverlap = overlap;
+                    minArea = area;
+                    bestSort = sort;
+                    bestSplitIndex = splitIndex;
                 }
-                if (searchArea.includes(child)) {
-                    EntryNode<E> entryNode = (EntryNode<E>) child;
-                    results.add(entryNode.getEntry());
+            }
+        }
+
+        //3 [Distribute children]
+        children.sort(bestSort);
+        origNode.clearChildren();
+        TreeNode<E> newNode = createSplitPartner(origNode);
+        children.subList(0, bestSplitIndex).forEach(origNode::addChild);
+        children.subList(bestSplitIndex, children.size()).forEach(newNode::addChild);
+        tightenDimensions(origNode);
+        tightenDimensions(newNode);
+        return newNode;
+    }
+
+    private double marginSum(List<Node<E>> children, List<Comparator<Node<E>>> sorts, int groupMinSize) {
+        double marginSum = 0;
+        for (Comparator<Node<E>> sort : sorts) {
+            children.sort(sort);
+            for (int splitIndex = groupMinSize; splitIndex <= children.size() - groupMinSize; splitIndex++) {
+                marginSum += SplitGroupBounds.of(children.subList(0, splitIndex)).margin()
+                        + SplitGroupBounds.of(children.subList(splitIndex, children.size())).margin();
+            }
+        }
+        return marginSum;
+    }
+
+    private double overlapArea(int minX, int minY, int maxX, int maxY, Rectangle another) {
+        return areaAsDouble(
+                Math.max(minX, another.getMinX()),
+                Math.max(minY, another.getMinY()),
+                Math.min(maxX, another.getMaxX()),
+                Math.min(maxY, another.getMaxY())
+        );
+    }
+
+    private static double areaAsDouble(int minX, int minY, int maxX, int maxY) {
+        if (maxX <= minX || maxY <= minY) {
+            return 0;
+        }
+        return ((double) maxX - minX) * ((double) maxY - minY);
+    }
+
+    /**
+     * Inserts entry node into Hilbert R-tree.
+     * <p>Algorithm:</p>
+     * <p>1. [Find position for new record] Starting from the root descend to the first child whose largest Hilbert
+     * value is not less than Hilbert value of entry (or to the last child if there is no such one)
+     * until a leaf is reached.</p>
+     * <p>2. [Add record to leaf node] Insert entry node into the leaf after all children with not greater
+     * Hilbert values.</p>
+     * <p>3. [Propagate changes upward] Ascend from the leaf to the root adjusting covering rectangles,
+     * if node is overflowed invoke {@link RectangleRTree#shareWithSibling}, which may add a new node to the parent
+     * and overflow it too.</p>
+     *
+     * @param entryNode - entry node with calculated Hilbert value
+     */
+    private void insertByHilbertValue(EntryNode<E> entryNode) {
+        long value = entryNode.getHilbertValue();
+        TreeNode<E> node = root; //1 [Find position for new record]
+        while (!node.isLeaf()) {
+            int chosenIndex = node.getSize() - 1;
+            for (int i = 0; i < node.getSize(); i++) {
+                if (Long.compareUnsigned(node.getChild(i).getHilbertValue(), value) >= 0) {
+                    chosenIndex = i;
+                    break;
                 }
             }
+            node = (TreeNode<E>) node.getChild(chosenIndex);
+        }
+        int position = node.getSize(); //2 [Add record to leaf node]
+        while (position > 0 && Long.compareUnsigned(node.getChild(position - 1).getHilbertValue(), value) > 0) {
+            position--;
+        }
+        node.insertChild(position, entryNode);
+        while (node != null) { //3 [Propagate changes upward]
+            if (node.getSize() > maxEntries) {
+                shareWithSibling(node);
+            } else {
+                tightenDimensions(node);
+            }
+            node = node.getParent();
+        }
+    }
+
+    /**
+     * Handle overflowed node of Hilbert R-tree.
+     * <p>Algorithm:</p>
+     * <p>1. [Grow tree] If node is root, create new root holding node as the only child.</p>
+     * <p>2. [Find cooperating sibling] Take the next child of the parent as sibling, or the previous one
+     * if node is the last child.</p>
+     * <p>3. [Redistribute] If children of node and sibling fit into two nodes distribute them evenly
+     * between both nodes keeping their order. Otherwise, create new node after them in the parent
+     * and distribute children evenly between three nodes (2-to-3 split). If node has no siblings it is split
+     * into two nodes.</p>
+     *
+     * @param node - node with overflowed children limit
+     */
+    private void shareWithSibling(TreeNode<E> node) {
+        if (node == root) { //1 [Grow tree]
+            root = newTreeNode(false);
+            root.addChild(node);
+        }
+        TreeNode<E> parent = node.getParent();
+        int index = node.getIndexInParent(); //2 [Find cooperating sibling]
+        int firstIndex = index + 1 < parent.getSize() ? index : index - 1;
+        TreeNode<E> first = firstIndex < 0 ? node : (TreeNode<E>) parent.getChild(firstIndex);
+        TreeNode<E> second = firstIndex < 0 ? null : (TreeNode<E>) parent.getChild(firstIndex + 1);
+        int totalSize = moveChildrenToSiblingsBuffer(first, second);
+        //3 [Redistribute]
+        if (second == null || totalSize > maxEntries * 2) {
+            TreeNode<E> newNode = newTreeNode(node.isLeaf());
+            if (second == null) {
+                parent.insertChild(first.getIndexInParent() + 1, newNode);
+                distributeSiblingsBuffer(totalSize, first, newNode, null);
+            } else {
+                parent.insertChild(second.getIndexInParent() + 1, newNode);
+                distributeSiblingsBuffer(totalSize, first, second, newNode);
+            }
+        } else {
+            distributeSiblingsBuffer(totalSize, first, second, null);
+        }
+    }
+
+    /**
+     * Given a leaf of Hilbert R-tree from which entry has been deleted, ascend to the root adjusting covering
+     * rectangles. Every node having fewer than minEntries children borrows children from its sibling, if both of
+     * them have not enough children to be redistributed, they are merged into one node, which may leave the parent
+     * under-full too. Finally, root having the only child is replaced with the child.
+     */
+    private void condenseHilbertTree(TreeNode<E> node) {
+        while (node != root) {
+            TreeNode<E> parent = node.getParent();
+            if (node.getSize() < minEntries) {
+                borrowFromSibling(node);
+            } else {
+                tightenDimensions(node);
+            }
+            node = parent;
+        }
+        tightenDimensions(root);
+        while (!root.isLeaf() && root.getSize() == 1) {
+            root = (TreeNode<E>) root.getChild(0);
+            root.getParent().removeChild(root);
+        }
+        if (!root.isLeaf() && root.getSize() == 0) {
+            root = newTreeNode(true);
+        }
+    }
+
+    /**
+     * Handle under-full node of Hilbert R-tree: redistribute children of node and its sibling evenly
+     * if they are enough to fill two nodes, otherwise merge them into one node and remove another one from the parent.
+     *
+     * @param node - not root node with less than minEntries children
+     */
+    private void borrowFromSibling(TreeNode<E> node) {
+        TreeNode<E> parent = node.getParent();
+        int index = node.getIndexInParent();
+        int firstIndex = index + 1 < parent.getSize() ? index : index - 1;
+        if (firstIndex < 0) {
+            if (node.getSize() == 0) {
+                parent.removeChildKeepingOrder(node);
+            } else {
+                tightenDimensions(node);
+            }
             return;
         }
-        if (node.getChildNodes() != null) {
-            node.getChildNodes().stream()
-                    .filter(searchArea::isOverlap)
-                    .forEach(childNode -> search(searchArea, (TreeNode<E>) childNode, results));
+        TreeNode<E> first = (TreeNode<E>) parent.getChild(firstIndex);
+        TreeNode<E> second = (TreeNode<E>) parent.getChild(firstIndex + 1);
+        int totalSize = moveChildrenToSiblingsBuffer(first, second);
+        if (totalSize >= minEntries * 2) {
+            distributeSiblingsBuffer(totalSize, first, second, null);
+        } else {
+            parent.removeChildKeepingOrder(second);
+            distributeSiblingsBuffer(totalSize, first, null, null);
+        }
+    }
+
+    /**
+     * Move children of the nodes in their order into {@link RectangleRTree#siblingsBuffer}.
+     *
+     * @param first  - not null node
+     * @param second - nullable node following the first one
+     * @return count of moved children
+     */
+    private int moveChildrenToSiblingsBuffer(TreeNode<E> first, TreeNode<E> second) {
+        int totalSize = moveChildrenToSiblingsBuffer(first, 0);
+        return second == null ? totalSize : moveChildrenToSiblingsBuffer(second, totalSize);
+    }
+
+    private int moveChildrenToSiblingsBuffer(TreeNode<E> node, int offset) {
+        for (int i = 0; i < node.getSize(); i++) {
+            siblingsBuffer[offset++] = node.getChild(i);
+        }
+        node.clearChildren();
+        return offset;
+    }
+
+    /**
+     * Distribute children from {@link RectangleRTree#siblingsBuffer} between nodes as evenly as possible keeping
+     * their order.
+     *
+     * @param first  - not null node
+     * @param second - nullable node
+     * @param third  - nullable node, not null only if second is not null
+     */
+    private void distributeSiblingsBuffer(int totalSize, TreeNode<E> first, TreeNode<E> second, TreeNode<E> third) {
+        int nodesCount = third != null ? 3 : second != null ? 2 : 1;
+        int end = fillFromSiblingsBuffer(first, 0, totalSize / nodesCount);
+        if (second != null) {
+            end = fillFromSiblingsBuffer(second, end, end + (totalSize - end) / (nodesCount - 1));
+        }
+        if (third != null) {
+            fillFromSiblingsBuffer(third, end, totalSize);
+        }
+    }
+
+    private int fillFromSiblingsBuffer(TreeNode<E> node, int start, int end) {
+        for (int i = start; i < end; i++) {
+            node.addChild(siblingsBuffer[i]);
+            siblingsBuffer[i] = null;
+        }
+        tightenDimensions(node);
+        return end;
+    }
+
+    /**
+     * Calculate position of the rectangle center on Hilbert curve of order 32, which fills the whole plane
+     * of int coordinates. Coordinates of center are shifted to be non-negative, so that curve starts at
+     * (Integer.MIN_VALUE, Integer.MIN_VALUE).
+     *
+     * @return distance along the curve as unsigned long, values must be compared with {@link Long#compareUnsigned}
+     */
+    static long hilbertValue(Rectangle rectangle) {
+        long x = (((long) rectangle.getMinX() + rectangle.getMaxX()) >> 1) - Integer.MIN_VALUE;
+        long y = (((long) rectangle.getMinY() + rectangle.getMaxY()) >> 1) - Integer.MIN_VALUE;
+        long value = 0;
+        for (long s = 1L << 31; s > 0; s >>= 1) {
+            int rx = (x & s) != 0 ? 1 : 0;
+            int ry = (y & s) != 0 ? 1 : 0;
+            value += s * s * ((3 * rx) ^ ry);
+            //rotate quadrant, so that curve of lower order is traversed in the right direction
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = HILBERT_SIDE_MASK - x;
+                    y = HILBERT_SIDE_MASK - y;
+                }
+                long t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Recalculate dimensions of the node and all its ancestors.
+     */
+    private void tightenUpward(TreeNode<E> node) {
+        while (node != null) {
+            tightenDimensions(node);
+            node = node.getParent();
+        }
+    }
+
+    /**
+     * Calculate level of the node, leaf nodes are on level 0.
+     */
+    private int levelOf(TreeNode<E> node) {
+        int level = 0;
+        while (!node.isLeaf()) {
+            node = (TreeNode<E>) node.getChild(0);
+            level++;
+        }
+        return level;
+    }
+
+    private boolean selfJoin(SearchArea searchArea, TreeNode<E> node, EntryPairVisitor<? super E> visitor) {
+        int[] minX = node.getChildMinX();
+        int[] minY = node.getChildMinY();
+        int[] maxX = node.getChildMaxX();
+        int[] maxY = node.getChildMaxY();
+        int size = node.getSize();
+        for (int i = 0; i < size; i++) {
+            if (!isJoinCandidate(searchArea, node, i)) {
+                continue;
+            }
+            for (int j = i + 1; j < size; j++) { //1 [Join children]
+                if (isJoinCandidate(searchArea, node, j)
+                        && overlaps(minX[i], minY[i], maxX[i], maxY[i], minX[j], minY[j], maxX[j], maxY[j])
+                        && !joinNodes(searchArea, node.getChild(i), node.getChild(j), visitor)) {
+                    return false;
+                }
+            }
+            if (!node.isLeaf() && !selfJoin(searchArea, (TreeNode<E>) node.getChild(i), visitor)) { //2 [Descend]
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visit overlapping pairs of entries taken one from the first subtree and another one from the second subtree.
+     * Both nodes are on the same level, since tree is balanced, and only children overlapping the common part
+     * of both nodes are joined.
+     */
+    private boolean joinNodes(SearchArea searchArea, Node<E> first, Node<E> second, EntryPairVisitor<? super E> visitor) {
+        if (first instanceof EntryNode) {
+            EntryNode<E> firstEntry = (EntryNode<E>) first;
+            EntryNode<E> secondEntry = (EntryNode<E>) second;
+            if (looseMargin > 0 && !firstEntry.exactlyOverlaps(secondEntry)) {
+                return true;
+            }
+            return firstEntry.getZ() <= secondEntry.getZ()
+                    ? visitor.visit(firstEntry.getEntry(), secondEntry.getEntry())
+                    : visitor.visit(secondEntry.getEntry(), firstEntry.getEntry());
+        }
+        TreeNode<E> firstNode = (TreeNode<E>) first;
+        TreeNode<E> secondNode = (TreeNode<E>) second;
+        int commonMinX = Math.max(firstNode.getMinX(), secondNode.getMinX());
+        int commonMinY = Math.max(firstNode.getMinY(), secondNode.getMinY());
+        int commonMaxX = Math.min(firstNode.getMaxX(), secondNode.getMaxX());
+        int commonMaxY = Math.min(firstNode.getMaxY(), secondNode.getMaxY());
+        int[] firstMinX = firstNode.getChildMinX();
+        int[] firstMinY = firstNode.getChildMinY();
+        int[] firstMaxX = firstNode.getChildMaxX();
+        int[] firstMaxY = firstNode.getChildMaxY();
+        int[] secondMinX = secondNode.getChildMinX();
+        int[] secondMinY = secondNode.getChildMinY();
+        int[] secondMaxX = secondNode.getChildMaxX();
+        int[] secondMaxY = secondNode.getChildMaxY();
+        for (int i = 0; i < firstNode.getSize(); i++) {
+            if (!isJoinCandidate(searchArea, firstNode, i) || !overlaps(firstMinX[i], firstMinY[i], firstMaxX[i], firstMaxY[i],
+                    commonMinX, commonMinY, commonMaxX, commonMaxY)) {
+                continue;
+            }
+            for (int j = 0; j < secondNode.getSize(); j++) {
+                if (isJoinCandidate(searchArea, secondNode, j)
+                        && overlaps(firstMinX[i], firstMinY[i], firstMaxX[i], firstMaxY[i],
+                        secondMinX[j], secondMinY[j], secondMaxX[j], secondMaxY[j])
+                        && !joinNodes(searchArea, firstNode.getChild(i), secondNode.getChild(j), visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isJoinCandidate(SearchArea searchArea, TreeNode<E> node, int index) {
+        if (node.isLeaf()) {
+            return entryMatches(searchArea, node, index);
+        }
+        int minX = node.getChildMinX()[index];
+        int minY = node.getChildMinY()[index];
+        int maxX = node.getChildMaxX()[index];
+        int maxY = node.getChildMaxY()[index];
+        int minZ = node.getChildMinZ()[index];
+        int maxZ = node.getChildMaxZ()[index];
+        return searchArea.mayHaveMatchesInside(minX, minY, maxX, maxY, minZ, maxZ);
+    }
+
+    /**
+     * Check entry child of leaf node against search area: packed bounds of children are checked in exact tree,
+     * exact dimensions of entry node in loose tree.
+     */
+    private boolean entryMatches(SearchArea searchArea, TreeNode<E> leaf, int index) {
+        if (looseMargin > 0) {
+            return ((EntryNode<E>) leaf.getChild(index)).exactlyMatches(searchArea);
+        }
+        return searchArea.matches(leaf.getChildMinX()[index], leaf.getChildMinY()[index], leaf.getChildMaxX()[index],
+                leaf.getChildMaxY()[index], leaf.getChildMinZ()[index], leaf.getChildMaxZ()[index]);
+    }
+
+    /**
+     * Enlarge bounds of entry node by {@link RectangleRTree#looseMargin} around its exact dimensions,
+     * bounds are clamped to int range.
+     */
+    private void loosen(EntryNode<E> entryNode) {
+        if (looseMargin > 0) {
+            entryNode.setBounds(
+                    (int) Math.max(Integer.MIN_VALUE, (long) entryNode.getExactMinX() - looseMargin),
+                    (int) Math.max(Integer.MIN_VALUE, (long) entryNode.getExactMinY() - looseMargin),
+                    (int) Math.min(Integer.MAX_VALUE, (long) entryNode.getExactMaxX() + looseMargin),
+                    (int) Math.min(Integer.MAX_VALUE, (long) entryNode.getExactMaxY() + looseMargin));
         }
     }
 
+    /**
+     * @return true if rectangles have common inner points, touching by border is not overlapping
+     */
+    static boolean overlaps(int firstMinX, int firstMinY, int firstMaxX, int firstMaxY,
+                            int secondMinX, int secondMinY, int secondMaxX, int secondMaxY) {
+        return firstMinX < secondMaxX && secondMinX < firstMaxX && firstMinY < secondMaxY && secondMinY < firstMaxY;
+    }
+
+    private static boolean contains(Rectangle outer, Rectangle inner) {
+        return outer.getMinX() <= inner.getMinX() && inner.getMaxX() <= outer.getMaxX()
+                && outer.getMinY() <= inner.getMinY() && inner.getMaxY() <= outer.getMaxY();
+    }
+
+    private boolean search(SearchArea searchArea, TreeNode<E> node, EntryVisitor<? super E> visitor) {
+        int[] minX = node.getChildMinX();
+        int[] minY = node.getChildMinY();
+        int[] maxX = node.getChildMaxX();
+        int[] maxY = node.getChildMaxY();
+        int[] minZ = node.getChildMinZ();
+        int[] maxZ = node.getChildMaxZ();
+        int size = node.getSize();
+        if (node.isLeaf()) {
+            for (int i = 0; i < size; i++) {
+                if (entryMatches(searchArea, node, i)) {
+                    EntryNode<E> entryNode = (EntryNode<E>) node.getChild(i);
+                    if (!visitor.visit(entryNode.getEntry())) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        for (int i = 0; i < size; i++) {
+            if (searchArea.mayHaveMatchesInside(minX[i], minY[i], maxX[i], maxY[i], minZ[i], maxZ[i])
+                    && !search(searchArea, (TreeNode<E>) node.getChild(i), visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int count(SearchArea searchArea, TreeNode<E> node) {
+        int[] minX = node.getChildMinX();
+        int[] minY = node.getChildMinY();
+        int[] maxX = node.getChildMaxX();
+        int[] maxY = node.getChildMaxY();
+        int[] minZ = node.getChildMinZ();
+        int[] maxZ = node.getChildMaxZ();
+        int[] entryCount = node.getChildEntryCount();
+        int count = 0;
+        for (int i = 0; i < node.getSize(); i++) {
+            // enlarged bounds inside search area have exact dimensions inside it too, so loose subtrees are counted as well
+            boolean allMatch = node.isLeaf()
+                    ? entryMatches(searchArea, node, i)
+                    : searchArea.allMatchInside(minX[i], minY[i], maxX[i], maxY[i], minZ[i], maxZ[i]);
+            if (allMatch) {
+                count += entryCount[i];
+            } else if (!node.isLeaf() && searchArea.mayHaveMatchesInside(minX[i], minY[i], maxX[i], maxY[i], minZ[i], maxZ[i])) {
+                count += count(searchArea, (TreeNode<E>) node.getChild(i));
+            }
+        }
+        return count;
+    }
+
+    private boolean isParallelSearchRequired() {
+        return parallelSearchPool != null && root.getEntryCount() >= parallelSearchThreshold;
+    }
+
     public void clear() {
         root = null;
+        entryNodesById.clear();
     }
 
-    @Data
+    /**
+     * Collects entries of subtree inside search area, searching subtrees of children in separate tasks
+     * if subtree is big enough. Entries are returned in the same order as sequential search returns them.
+     */
+    @AllArgsConstructor
+    private class ParallelSearchTask extends RecursiveTask<List<E>> {
+        private final SearchArea searchArea;
+        private final TreeNode<E> node;
+
+        @Override
+        protected List<E> compute() {
+            if (node.isLeaf() || node.getEntryCount() < parallelSearchThreshold) {
+                List<E> results = new ArrayList<>();
+                search(searchArea, node, results::add);
+                return results;
+            }
+            List<ParallelSearchTask> subtasks = new ArrayList<>(node.getSize());
+            for (int i = 0; i < node.getSize(); i++) {
+                TreeNode<E> child = (TreeNode<E>) node.getChild(i);
+                if (searchArea.mayHaveMatchesInside(child.getMinX(), child.getMinY(), child.getMaxX(), child.getMaxY(),
+                        child.getMinZ(), child.getMaxZ())) {
+                    subtasks.add(new ParallelSearchTask(searchArea, child));
+                }
+            }
+            invokeAll(subtasks);
+            List<E> results = new ArrayList<>();
+            subtasks.forEach(subtask -> results.addAll(subtask.join()));
+            return results;
+        }
+    }
+
+    /**
+     * Finds first entries by z inside search area, searching subtrees of children in separate tasks
+     * if subtree is big enough. Each task finds its own first {@link ParallelSearchFirstByZTask#limit} entries,
+     * which are merged by z, so that result is the same as the result of sequential search.
+     */
+    @AllArgsConstructor
+    private class ParallelSearchFirstByZTask extends RecursiveTask<List<EntryNode<E>>> {
+        private final SearchArea searchArea;
+        private final TreeNode<E> node;
+        private final long limit;
+
+        @Override
+        protected List<EntryNode<E>> compute() {
+            if (node.isLeaf() || node.getEntryCount() < parallelSearchThreshold) {
+                return searchFirstByZ(searchArea, node, limit);
+            }
+            List<ParallelSearchFirstByZTask> subtasks = new ArrayList<>(node.getSize());
+            for (int i = 0; i < node.getSize(); i++) {
+                TreeNode<E> child = (TreeNode<E>) node.getChild(i);
+                if (searchArea.mayHaveMatchesInside(child.getMinX(), child.getMinY(), child.getMaxX(), child.getMaxY(),
+                        child.getMinZ(), child.getMaxZ())) {
+                    subtasks.add(new ParallelSearchFirstByZTask(searchArea, child, limit));
+                }
+            }
+            invokeAll(subtasks);
+            List<EntryNode<E>> results = new ArrayList<>();
+            subtasks.forEach(subtask -> results.addAll(subtask.join()));
+            results.sort(Comparator.comparingInt(EntryNode::getZ));
+            return results.size() > limit ? new ArrayList<>(results.subList(0, (int) limit)) : results;
+        }
+    }
+
+    /**
+     * Covering rectangle of the group of nodes considered during {@link InsertionStrategy#R_STAR} split.
+     */
     @AllArgsConstructor
-    private static class SeparationByCoordinateResult<E extends HasId> {
-        private double normalizedSeparation;
-        private Node<E> lowestNode;
-        private Node<E> highestNode;
+    private static class SplitGroupBounds {
+        private final int minX;
+        private final int minY;
+        private final int maxX;
+        private final int maxY;
+
+        static SplitGroupBounds of(List<? extends Rectangle> group) {
+            int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+            for (Rectangle rectangle : group) {
+                minX = Math.min(minX, rectangle.getMinX());
+                minY = Math.min(minY, rectangle.getMinY());
+                maxX = Math.max(maxX, rectangle.getMaxX());
+                maxY = Math.max(maxY, rectangle.getMaxY());
+            }
+            return new SplitGroupBounds(minX, minY, maxX, maxY);
+        }
+
+        double margin() {
+            return ((double) maxX - minX) + ((double) maxY - minY);
+        }
+
+        double area() {
+            return RectangleRTree.areaAsDouble(minX, minY, maxX, maxY);
+        }
+
+        double overlapArea(SplitGroupBounds another) {
+            return RectangleRTree.areaAsDouble(
+                    Math.max(minX, another.minX),
+                    Math.max(minY, another.minY),
+                    Math.min(maxX, another.maxX),
+                    Math.min(maxY, another.maxY)
+            );
+        }
     }
 
 }
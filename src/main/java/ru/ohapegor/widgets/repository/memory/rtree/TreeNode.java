@@ -1,41 +1,180 @@
 package ru.ohapegor.widgets.repository.memory.rtree;
 
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.Setter;
 import ru.ohapegor.widgets.model.HasId;
 
-import java.util.LinkedList;
+import java.util.AbstractList;
 import java.util.List;
 import java.util.stream.Collectors;
 
 /**
  * R-Tree node which holds array of another tree nodes {@link Node}.
- *
+ * Coordinates, z ranges and subtree entry counts of children are additionally packed into primitive arrays (one slot per child),
+ * so that overlap checks during search are performed as a loop over these arrays
+ * without dereferencing child nodes.
  */
 @Getter
-@Setter
 class TreeNode<E extends HasId> extends Node<E> {
 
     /**
      * if leaf property equals true - only {@link EntryNode} can be a child of this node
      * if leaf property equals false - only {@link TreeNode} can be a child of this node
      */
-    private boolean leaf;
-    private final List<Node<E>> childNodes;
+    private final boolean leaf;
 
-    TreeNode(boolean isLeaf) {
+    @Getter(AccessLevel.NONE)
+    private final Node<E>[] children;
+    private final int[] childMinX;
+    private final int[] childMinY;
+    private final int[] childMaxX;
+    private final int[] childMaxY;
+    private final int[] childMinZ;
+    private final int[] childMaxZ;
+    private final int[] childEntryCount;
+    private int size;
+
+    /**
+     * @param isLeaf   - whether node is leaf
+     * @param capacity - maximum count of children node can hold
+     */
+    @SuppressWarnings("unchecked")
+    TreeNode(boolean isLeaf, int capacity) {
         this.leaf = isLeaf;
-        this.childNodes = new LinkedList<>();
+        this.children = new Node[capacity];
+        this.childMinX = new int[capacity];
+        this.childMinY = new int[capacity];
+        this.childMaxX = new int[capacity];
+        this.childMaxY = new int[capacity];
+        this.childMinZ = new int[capacity];
+        this.childMaxZ = new int[capacity];
+        this.childEntryCount = new int[capacity];
+    }
+
+    Node<E> getChild(int index) {
+        return children[index];
     }
 
     void addChild(Node<E> node) {
-        childNodes.add(node);
+        if (size == children.length) {
+            throw new IllegalStateException("node capacity " + children.length + " exceeded");
+        }
+        children[size] = node;
         node.setParent(this);
+        node.setIndexInParent(size);
+        size++;
+        refreshChild(node);
+    }
+
+    /**
+     * Inserts child at given position, shifting following children to the right, so that order of children is kept.
+     */
+    void insertChild(int index, Node<E> node) {
+        if (size == children.length) {
+            throw new IllegalStateException("node capacity " + children.length + " exceeded");
+        }
+        shiftChildren(index, index + 1, size - index);
+        children[index] = node;
+        node.setParent(this);
+        node.setIndexInParent(index);
+        size++;
+        refreshChild(node);
+    }
+
+    /**
+     * Removes child, shifting following children to the left, so that order of remaining children is kept.
+     */
+    boolean removeChildKeepingOrder(Node<E> node) {
+        int index = node.getIndexInParent();
+        if (node.getParent() != this || index >= size || children[index] != node) {
+            return false;
+        }
+        node.setParent(null);
+        shiftChildren(index + 1, index, size - index - 1);
+        size--;
+        children[size] = null;
+        return true;
     }
 
+    private void shiftChildren(int from, int to, int count) {
+        System.arraycopy(children, from, children, to, count);
+        System.arraycopy(childMinX, from, childMinX, to, count);
+        System.arraycopy(childMinY, from, childMinY, to, count);
+        System.arraycopy(childMaxX, from, childMaxX, to, count);
+        System.arraycopy(childMaxY, from, childMaxY, to, count);
+        System.arraycopy(childMinZ, from, childMinZ, to, count);
+        System.arraycopy(childMaxZ, from, childMaxZ, to, count);
+        System.arraycopy(childEntryCount, from, childEntryCount, to, count);
+        for (int i = to; i < to + count; i++) {
+            children[i].setIndexInParent(i);
+        }
+    }
+
+    /**
+     * Removes child, moving the last child to its slot.
+     */
     boolean removeChild(Node<E> node) {
+        int index = node.getIndexInParent();
+        if (node.getParent() != this || index >= size || children[index] != node) {
+            return false;
+        }
         node.setParent(null);
-        return childNodes.remove(node);
+        size--;
+        if (index != size) {
+            Node<E> last = children[size];
+            children[index] = last;
+            last.setIndexInParent(index);
+            childMinX[index] = childMinX[size];
+            childMinY[index] = childMinY[size];
+            childMaxX[index] = childMaxX[size];
+            childMaxY[index] = childMaxY[size];
+            childMinZ[index] = childMinZ[size];
+            childMaxZ[index] = childMaxZ[size];
+            childEntryCount[index] = childEntryCount[size];
+        }
+        children[size] = null;
+        return true;
+    }
+
+    void clearChildren() {
+        for (int i = 0; i < size; i++) {
+            children[i] = null;
+        }
+        size = 0;
+    }
+
+    /**
+     * Copy coordinates, z range and entry count of the child into packed arrays.
+     */
+    void refreshChild(Node<E> child) {
+        int index = child.getIndexInParent();
+        childMinX[index] = child.getMinX();
+        childMinY[index] = child.getMinY();
+        childMaxX[index] = child.getMaxX();
+        childMaxY[index] = child.getMaxY();
+        childMinZ[index] = child.getMinZ();
+        childMaxZ[index] = child.getMaxZ();
+        childEntryCount[index] = child.getEntryCount();
+    }
+
+    /**
+     * @return read-only view of children
+     */
+    List<Node<E>> getChildNodes() {
+        return new AbstractList<>() {
+            @Override
+            public Node<E> get(int index) {
+                if (index >= size) {
+                    throw new IndexOutOfBoundsException(index);
+                }
+                return children[index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
     }
 
     @Override
@@ -45,8 +184,11 @@ class TreeNode<E extends HasId> extends Node<E> {
                 ", maxX=" + getMaxX() +
                 ", minY=" + getMinY() +
                 ", maxY=" + getMaxY() +
+                ", minZ=" + getMinZ() +
+                ", maxZ=" + getMaxZ() +
+                ", entryCount=" + getEntryCount() +
                 ", leaf=" + leaf +
-                ", childNodes=\n" + childNodes.stream().map(Node::toString).collect(Collectors.joining("\n")) +
+                ", childNodes=\n" + getChildNodes().stream().map(Node::toString).collect(Collectors.joining("\n")) +
                 '}';
     }
 }
@@ -0,0 +1,596 @@
+package ru.ohapegor.widgets.repository.memory.zorder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Order of entries by unique z indexes, in which run of entries with consecutive z indexes is shifted up by one
+ * in O(log n) instead of updating z index of every shifted entry.
+ * <p>Entries are kept in treap (binary search tree balanced by random priorities) ordered by z index, every node
+ * knows size of its subtree, so that entries are also addressed by position. Shift is applied lazily: z indexes
+ * of the whole subtree are increased by increasing z index of its root and remembering increase pending
+ * for its children, pending increase is pushed to children only when tree is restructured. Readers sum pending
+ * increases of ancestors on the way down, so reads don't modify the tree and may run concurrently.
+ * Time of the last shift of entry is kept the same lazy way next to pending increase.</p>
+ * <p>Besides z index every entry has a key, int which has the same order as z indexes but isn't changed by shifts,
+ * so that structures ordering entries by z (like spatial index) may store keys and stay untouched by shifts.
+ * Key of inserted entry is taken between keys of its neighbours, when there is no free key between them, keys
+ * of the smallest enclosing range which is sparse enough are spread evenly (order maintenance algorithm
+ * of Bender et al.), so that O(log n) keys are changed amortized. Changed keys are passed to listener.</p>
+ */
+public class ZOrderTree {
+
+    /**
+     * keys are labels from [0, 2^32) shifted to int range, see {@link ZOrderTree#toKey}
+     */
+    private static final int LABEL_BITS = 32;
+
+    private static final long LABELS = 1L << LABEL_BITS;
+
+    /**
+     * Range of 2^i labels is sparse enough to be relabeled if it holds at most (2 / T)^i entries,
+     * with T = 1.2 every range including the whole one is checked up to ~12 millions of entries.
+     */
+    private static final double DENSITY_BASE = 2 / 1.2;
+
+    /**
+     * Entries are mostly added on top or at the bottom, so labels at the ends of order are taken with fixed step
+     * instead of halving free range, which would be exhausted by 32 additions. With the first label in the middle
+     * 2^19 entries are added to each end before the first relabeling.
+     */
+    private static final long END_STEP = 1 << 12;
+
+    private final Map<String, Node> nodesById = new HashMap<>();
+
+    private final Random random = new Random();
+
+    /**
+     * accepts id and new key of every entry which key has been changed by insertion of other entry
+     */
+    private final ObjIntConsumer<String> keyChangeListener;
+
+    private Node root;
+
+    public ZOrderTree(ObjIntConsumer<String> keyChangeListener) {
+        this.keyChangeListener = Objects.requireNonNull(keyChangeListener, "null keyChangeListener");
+    }
+
+    public int size() {
+        return nodesById.size();
+    }
+
+    /**
+     * @return id of entry having given z index or null if there is no such entry
+     */
+    public String idAt(int z) {
+        Node node = root;
+        long shift = 0;
+        while (node != null) {
+            long nodeZ = node.z + shift;
+            if (nodeZ == z) {
+                return node.id;
+            }
+            shift += node.pendingShift;
+            node = z < nodeZ ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * @return current z index of entry
+     * @throws IllegalArgumentException if there is no entry with given id
+     */
+    public int zOf(String id) {
+        Node target = getNode(id);
+        Node node = root;
+        long shift = 0;
+        while (node != target) {
+            shift += node.pendingShift;
+            node = target.label < node.label ? node.left : node.right;
+        }
+        return (int) (target.z + shift);
+    }
+
+    /**
+     * @return time of the last shift of entry or null if entry hasn't been shifted since insertion
+     * @throws IllegalArgumentException if there is no entry with given id
+     */
+    public Instant shiftedAtOf(String id) {
+        Node target = getNode(id);
+        Node node = root;
+        Instant shiftedAt = null;
+        while (node != target) {
+            shiftedAt = latest(shiftedAt, node.pendingShiftedAt);
+            node = target.label < node.label ? node.left : node.right;
+        }
+        return latest(shiftedAt, target.shiftedAt);
+    }
+
+    /**
+     * @return key of entry, keys have the same order as z indexes
+     * @throws IllegalArgumentException if there is no entry with given id
+     */
+    public int keyOf(String id) {
+        return toKey(getNode(id).label);
+    }
+
+    /**
+     * @return the greatest z index or null if tree is empty
+     */
+    public Integer maxZ() {
+        if (root == null) {
+            return null;
+        }
+        Node node = root;
+        long shift = 0;
+        while (node.right != null) {
+            shift += node.pendingShift;
+            node = node.right;
+        }
+        return (int) (node.z + shift);
+    }
+
+    /**
+     * @return key of entry with the least z index greater than or equal to given one or null if there is no such entry
+     */
+    public Integer ceilingKey(int z) {
+        Node node = root;
+        Node found = null;
+        long shift = 0;
+        while (node != null) {
+            long nodeZ = node.z + shift;
+            shift += node.pendingShift;
+            if (nodeZ >= z) {
+                found = node;
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return found == null ? null : toKey(found.label);
+    }
+
+    /**
+     * @return key of entry with the greatest z index less than or equal to given one or null if there is no such entry
+     */
+    public Integer floorKey(int z) {
+        Node node = root;
+        Node found = null;
+        long shift = 0;
+        while (node != null) {
+            long nodeZ = node.z + shift;
+            shift += node.pendingShift;
+            if (nodeZ <= z) {
+                found = node;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return found == null ? null : toKey(found.label);
+    }
+
+    /**
+     * Insert entry at free z index, keys of other entries may be changed to make room for its key.
+     *
+     * @return key of inserted entry
+     * @throws IllegalArgumentException if entry is already present or z index is occupied
+     */
+    public int insert(String id, int z) {
+        Objects.requireNonNull(id, "null id");
+        if (nodesById.containsKey(id)) {
+            throw new IllegalArgumentException("entry is already present, id = " + id);
+        }
+        if (idAt(z) != null) {
+            throw new IllegalArgumentException("z index is occupied, z = " + z);
+        }
+        int position = countBelow(z);
+        var node = new Node(id, freeLabel(position), z, random.nextInt());
+        Node[] parts = splitByPosition(root, position);
+        root = merge(merge(parts[0], node), parts[1]);
+        nodesById.put(id, node);
+        return toKey(node.label);
+    }
+
+    /**
+     * @return false if there is no entry with given id
+     */
+    public boolean remove(String id) {
+        Node node = nodesById.remove(id);
+        if (node == null) {
+            return false;
+        }
+        Node[] lower = splitByLabel(root, node.label);
+        Node[] removed = splitByPosition(lower[1], 1);
+        root = merge(lower[0], removed[1]);
+        return true;
+    }
+
+    /**
+     * Shift entries at current time, see {@link ZOrderTree#shiftUp(int, Instant)}.
+     */
+    public int shiftUp(int z) {
+        return shiftUp(z, Instant.now());
+    }
+
+    /**
+     * Free z index by shifting entry having it and every entry above it up to the first gap in z indexes by one.
+     * Keys of entries are not changed.
+     *
+     * @param shiftedAt - time of shift, remembered as time of the last shift of every shifted entry
+     * @return count of shifted entries, 0 if z index is already free
+     * @throws ArithmeticException if z index of the topmost shifted entry overflows
+     */
+    public int shiftUp(int z, Instant shiftedAt) {
+        Objects.requireNonNull(shiftedAt, "null shiftedAt");
+        int first = positionOf(z);
+        if (first < 0) {
+            return 0;
+        }
+        // in run of consecutive z indexes difference between z index and position is the same,
+        // outside of run it is greater, since z indexes grow at least as fast as positions
+        long difference = (long) z - first;
+        int last = lastPositionWithDifferenceAtMost(difference);
+        if (difference + last >= Integer.MAX_VALUE) {
+            throw new ArithmeticException("z index overflowed");
+        }
+        Node[] lower = splitByPosition(root, first);
+        Node[] run = splitByPosition(lower[1], last - first + 1);
+        run[0].z++;
+        run[0].pendingShift++;
+        run[0].shiftedAt = latest(run[0].shiftedAt, shiftedAt);
+        run[0].pendingShiftedAt = latest(run[0].pendingShiftedAt, shiftedAt);
+        root = merge(lower[0], merge(run[0], run[1]));
+        return last - first + 1;
+    }
+
+    /**
+     * Replace all entries, keys are spread evenly over the whole range.
+     *
+     * @param zIndexesById - unique z indexes of entries by their ids
+     * @throws IllegalArgumentException if z indexes are not unique
+     */
+    public void load(Map<String, Integer> zIndexesById) {
+        List<Map.Entry<String, Integer>> entries = new ArrayList<>(zIndexesById.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        for (int i = 1; i < entries.size(); i++) {
+            if (entries.get(i - 1).getValue().equals(entries.get(i).getValue())) {
+                throw new IllegalArgumentException("z indexes are not unique, z = " + entries.get(i).getValue());
+            }
+        }
+        clear();
+        long spacing = LABELS / (entries.size() + 1);
+        for (int i = 0; i < entries.size(); i++) {
+            var entry = entries.get(i);
+            var node = new Node(entry.getKey(), (i + 1) * spacing, entry.getValue(), random.nextInt());
+            root = merge(root, node);
+            nodesById.put(node.id, node);
+        }
+    }
+
+    public void clear() {
+        root = null;
+        nodesById.clear();
+    }
+
+    private Node getNode(String id) {
+        Node node = nodesById.get(id);
+        if (node == null) {
+            throw new IllegalArgumentException("no entry with id = " + id);
+        }
+        return node;
+    }
+
+    /**
+     * Labels from [0, 2^32) are shifted to int range keeping the order.
+     */
+    private static int toKey(long label) {
+        return (int) (label + Integer.MIN_VALUE);
+    }
+
+    /**
+     * @return count of entries with z index less than given one
+     */
+    private int countBelow(int z) {
+        Node node = root;
+        int count = 0;
+        long shift = 0;
+        while (node != null) {
+            long nodeZ = node.z + shift;
+            shift += node.pendingShift;
+            if (nodeZ < z) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return count of entries with label less than given one
+     */
+    private int countLabelsBelow(long label) {
+        Node node = root;
+        int count = 0;
+        while (node != null) {
+            if (node.label < label) {
+                count += size(node.left) + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return position of entry having given z index or -1 if there is no such entry
+     */
+    private int positionOf(int z) {
+        Node node = root;
+        int base = 0;
+        long shift = 0;
+        while (node != null) {
+            long nodeZ = node.z + shift;
+            if (nodeZ == z) {
+                return base + size(node.left);
+            }
+            shift += node.pendingShift;
+            if (z < nodeZ) {
+                node = node.left;
+            } else {
+                base += size(node.left) + 1;
+                node = node.right;
+            }
+        }
+        return -1;
+    }
+
+    private int lastPositionWithDifferenceAtMost(long difference) {
+        Node node = root;
+        int base = 0;
+        int found = -1;
+        long shift = 0;
+        while (node != null) {
+            int position = base + size(node.left);
+            long nodeZ = node.z + shift;
+            shift += node.pendingShift;
+            if (nodeZ - position <= difference) {
+                found = position;
+                base = position + 1;
+                node = node.right;
+            } else {
+                node = node.left;
+            }
+        }
+        return found;
+    }
+
+    private Node nodeAt(int position) {
+        Node node = root;
+        while (node != null) {
+            int leftSize = size(node.left);
+            if (position == leftSize) {
+                return node;
+            }
+            if (position < leftSize) {
+                node = node.left;
+            } else {
+                position -= leftSize + 1;
+                node = node.right;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return free label between labels of entries at position - 1 and position
+     */
+    private long freeLabel(int position) {
+        Node predecessor = position > 0 ? nodeAt(position - 1) : null;
+        Node successor = nodeAt(position);
+        long lower = predecessor == null ? -1 : predecessor.label;
+        long upper = successor == null ? LABELS : successor.label;
+        if (upper - lower > 1) {
+            long halfStep = (upper - lower) / 2;
+            if (predecessor != null && successor == null) {
+                return lower + Math.min(halfStep, END_STEP);
+            }
+            if (predecessor == null && successor != null) {
+                return upper - Math.min(halfStep, END_STEP);
+            }
+            return lower + halfStep;
+        }
+        return relabel(predecessor != null ? predecessor.label : successor.label, position);
+    }
+
+    /**
+     * Find the smallest range of 2^i labels enclosing anchor label which is sparse enough, including new entry,
+     * and spread labels of its entries evenly, leaving room for new entry.
+     *
+     * @param anchorLabel - label of neighbour of new entry
+     * @param position    - position of new entry
+     * @return label of new entry
+     */
+    private long relabel(long anchorLabel, int position) {
+        for (int bits = 1; bits <= LABEL_BITS; bits++) {
+            long rangeStart = anchorLabel >>> bits << bits;
+            long rangeSize = 1L << bits;
+            int first = countLabelsBelow(rangeStart);
+            int count = countLabelsBelow(rangeStart + rangeSize) - first + 1;
+            if (count <= Math.pow(DENSITY_BASE, bits) || bits == LABEL_BITS) {
+                List<Node> nodes = new ArrayList<>(count - 1);
+                collect(root, first, first + count - 1, nodes);
+                long spacing = rangeSize / count;
+                // labels are centered in their slots, so that room is left at both ends of range
+                long start = rangeStart + spacing / 2;
+                int newSlot = position - first;
+                for (int i = 0; i < nodes.size(); i++) {
+                    Node node = nodes.get(i);
+                    long label = start + (i < newSlot ? i : i + 1) * spacing;
+                    if (node.label != label) {
+                        node.label = label;
+                        keyChangeListener.accept(node.id, toKey(label));
+                    }
+                }
+                return start + newSlot * spacing;
+            }
+        }
+        throw new IllegalStateException("labels are exhausted");
+    }
+
+    /**
+     * Add nodes of subtree at positions [from, to) to list in order.
+     */
+    private void collect(Node node, int from, int to, List<Node> nodes) {
+        if (node == null || from >= to) {
+            return;
+        }
+        int leftSize = size(node.left);
+        if (from < leftSize) {
+            collect(node.left, from, Math.min(to, leftSize), nodes);
+        }
+        if (from <= leftSize && leftSize < to) {
+            nodes.add(node);
+        }
+        if (to > leftSize + 1) {
+            collect(node.right, Math.max(0, from - leftSize - 1), to - leftSize - 1, nodes);
+        }
+    }
+
+    /**
+     * @return subtree with the first count nodes and subtree with the rest of nodes
+     */
+    private Node[] splitByPosition(Node node, int count) {
+        if (node == null) {
+            return new Node[2];
+        }
+        push(node);
+        Node[] parts;
+        if (size(node.left) < count) {
+            parts = splitByPosition(node.right, count - size(node.left) - 1);
+            node.right = parts[0];
+            parts[0] = node;
+        } else {
+            parts = splitByPosition(node.left, count);
+            node.left = parts[1];
+            parts[1] = node;
+        }
+        node.updateSize();
+        return parts;
+    }
+
+    /**
+     * @return subtree with nodes having label less than given one and subtree with the rest of nodes
+     */
+    private Node[] splitByLabel(Node node, long label) {
+        if (node == null) {
+            return new Node[2];
+        }
+        push(node);
+        Node[] parts;
+        if (node.label < label) {
+            parts = splitByLabel(node.right, label);
+            node.right = parts[0];
+            parts[0] = node;
+        } else {
+            parts = splitByLabel(node.left, label);
+            node.left = parts[1];
+            parts[1] = node;
+        }
+        node.updateSize();
+        return parts;
+    }
+
+    /**
+     * Merge subtrees, every node of the first one precedes every node of the second one.
+     */
+    private Node merge(Node first, Node second) {
+        if (first == null) {
+            return second;
+        }
+        if (second == null) {
+            return first;
+        }
+        if (first.priority > second.priority) {
+            push(first);
+            first.right = merge(first.right, second);
+            first.updateSize();
+            return first;
+        }
+        push(second);
+        second.left = merge(first, second.left);
+        second.updateSize();
+        return second;
+    }
+
+    private void push(Node node) {
+        if (node.pendingShift != 0) {
+            for (Node child : new Node[]{node.left, node.right}) {
+                if (child != null) {
+                    child.z += node.pendingShift;
+                    child.pendingShift += node.pendingShift;
+                    child.shiftedAt = latest(child.shiftedAt, node.pendingShiftedAt);
+                    child.pendingShiftedAt = latest(child.pendingShiftedAt, node.pendingShiftedAt);
+                }
+            }
+            node.pendingShift = 0;
+            node.pendingShiftedAt = null;
+        }
+    }
+
+    private static Instant latest(Instant first, Instant second) {
+        if (first == null) {
+            return second;
+        }
+        return second == null || first.isAfter(second) ? first : second;
+    }
+
+    private static int size(Node node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static final class Node {
+        private final String id;
+        private final int priority;
+        private long label;
+        /**
+         * z index without increases pending in ancestors
+         */
+        private long z;
+        /**
+         * increase of z indexes of both children subtrees not applied yet
+         */
+        private long pendingShift;
+        /**
+         * time of the last shift without shifts pending in ancestors, null if node hasn't been shifted
+         */
+        private Instant shiftedAt;
+        /**
+         * time of the last shift of both children subtrees not applied yet
+         */
+        private Instant pendingShiftedAt;
+        private int size = 1;
+        private Node left;
+        private Node right;
+
+        private Node(String id, long label, long z, int priority) {
+            this.id = id;
+            this.label = label;
+            this.z = z;
+            this.priority = priority;
+        }
+
+        private void updateSize() {
+            size = 1 + ZOrderTree.size(left) + ZOrderTree.size(right);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package ru.ohapegor.widgets.service;
+
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+
+/**
+ * Search of overlapping pairs prepared by {@link WidgetsService#prepareOverlappingPairsSearch},
+ * which runs without holding locks of service, so that slow visitor doesn't block modifications.
+ */
+@FunctionalInterface
+public interface OverlapSearch {
+
+    /**
+     * Pass ids of every overlapping pair to visitor as soon as it is found, stop as soon as visitor returns false.
+     */
+    void run(OverlapVisitor visitor);
+}
@@ -6,15 +6,22 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Sort;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import ru.ohapegor.widgets.config.WidgetServiceProps;
 import ru.ohapegor.widgets.exception.OperationLockTimeoutExceededException;
 import ru.ohapegor.widgets.exception.WidgetNotFoundException;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.OverlapVisitor;
+import ru.ohapegor.widgets.repository.SpatialIndexRebuild;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.rtree.EntryNode;
+import ru.ohapegor.widgets.repository.memory.rtree.PackedRectangleRTree;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.concurrent.TimeUnit;
@@ -25,6 +32,11 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 @RequiredArgsConstructor
 public class WidgetsService {
 
+    /**
+     * maximum count of children in one node of packed r-tree built from copied widgets to find overlapping pairs
+     */
+    private static final int OVERLAP_SEARCH_NODE_SIZE = 16;
+
     private final ReentrantReadWriteLock rwLock = new ReentrantReadWriteLock(true);
     private final ReentrantReadWriteLock.ReadLock readLock = rwLock.readLock();
     private final ReentrantReadWriteLock.WriteLock writeLock = rwLock.writeLock();
@@ -34,6 +46,9 @@ public class WidgetsService {
 
     @SneakyThrows
     public Optional<WidgetEntity> findById(String id) {
+        if (widgetsRepository.supportsLockFreeReads()) {
+            return widgetsRepository.findById(id);
+        }
         try {
             if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
                 throw new OperationLockTimeoutExceededException("findById id = " + id);
@@ -98,6 +113,9 @@ public class WidgetsService {
     @SneakyThrows
     public Page<WidgetEntity> getPage(int page, int size, SearchArea filter) {
         var pageable = PageRequest.of(page, size, Sort.by(Sort.Direction.ASC, "z"));
+        if (widgetsRepository.supportsLockFreeReads()) {
+            return widgetsRepository.getPage(pageable, filter);
+        }
         try {
             if (!readLock.tryLock(props.getWriteTimeoutMs(), TimeUnit.MILLISECONDS)) {
                 throw new OperationLockTimeoutExceededException("getAll pageable = " + pageable);
@@ -108,10 +126,150 @@ public class WidgetsService {
         }
     }
 
+    @SneakyThrows
+    public List<WidgetEntity> findAtPoint(int x, int y, int limit) {
+        if (widgetsRepository.supportsLockFreeReads()) {
+            return widgetsRepository.findAtPoint(x, y, limit);
+        }
+        if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            throw new OperationLockTimeoutExceededException("findAtPoint x = " + x + ", y = " + y);
+        }
+        try {
+            return widgetsRepository.findAtPoint(x, y, limit);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    @SneakyThrows
+    public List<WidgetEntity> findNearest(int minX, int minY, int maxX, int maxY, int limit) {
+        if (widgetsRepository.supportsLockFreeReads()) {
+            return widgetsRepository.findNearest(minX, minY, maxX, maxY, limit);
+        }
+        if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            throw new OperationLockTimeoutExceededException(
+                    String.format("findNearest minX = %d, minY = %d, maxX = %d, maxY = %d", minX, minY, maxX, maxY));
+        }
+        try {
+            return widgetsRepository.findNearest(minX, minY, maxX, maxY, limit);
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    public void findOverlappingPairs(SearchArea filter, OverlapVisitor visitor) {
+        prepareOverlappingPairsSearch(filter).run(visitor);
+    }
+
+    /**
+     * Pairs are found without holding locks. Unless repository supports lock free reads, widgets matching filter
+     * are copied while read lock is held and pairs are found among the copies, so memory is proportional
+     * to count of matching widgets rather than to count of pairs, which is quadratic in the worst case.
+     */
+    @SneakyThrows
+    public OverlapSearch prepareOverlappingPairsSearch(SearchArea filter) {
+        if (widgetsRepository.supportsLockFreeReads()) {
+            return visitor -> widgetsRepository.findOverlappingPairs(filter, visitor);
+        }
+        List<WidgetEntity> widgets;
+        if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            throw new OperationLockTimeoutExceededException("findOverlappingPairs filter = " + filter);
+        }
+        try {
+            widgets = widgetsRepository.getPage(PageRequest.of(0, Integer.MAX_VALUE), filter).getContent();
+        } finally {
+            readLock.unlock();
+        }
+        return visitor -> {
+            List<EntryNode<WidgetEntity>> entryNodes = new ArrayList<>(widgets.size());
+            for (WidgetEntity widget : widgets) {
+                var entryNode = new EntryNode<>(widget);
+                entryNode.setDimensions(widget);
+                entryNode.setZ(widget.getZ());
+                entryNodes.add(entryNode);
+            }
+            PackedRectangleRTree.build(entryNodes, OVERLAP_SEARCH_NODE_SIZE).searchOverlappingPairs(new SearchArea(),
+                    (bottom, top) -> visitor.visit(bottom.getId(), top.getId()));
+        };
+    }
+
+    /**
+     * Configurations of spatial index are measured outside of locks, read lock is held while sample of widgets
+     * is taken and write lock - while spatial index is rebuilt with the chosen configuration.
+     *
+     * @return false if repository has no configurable spatial index or widgets have been replaced
+     * while calibration was measured
+     */
+    @SneakyThrows
+    public boolean calibrateSpatialIndex() {
+        var spatialIndexProps = props.getSpatialIndex();
+        Optional<SpatialIndexRebuild> calibration;
+        if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            throw new OperationLockTimeoutExceededException("calibrateSpatialIndex");
+        }
+        try {
+            calibration = widgetsRepository.prepareSpatialIndexCalibration(
+                    spatialIndexProps.getCalibrationSampleSize(), spatialIndexProps.getCalibrationReadsPerWrite());
+        } finally {
+            readLock.unlock();
+        }
+        if (calibration.isEmpty()) {
+            return false;
+        }
+        calibration.get().build();
+        try {
+            if (!writeLock.tryLock(props.getWriteTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                throw new OperationLockTimeoutExceededException("calibrateSpatialIndex");
+            }
+            return calibration.get().apply();
+        } finally {
+            if (writeLock.isHeldByCurrentThread()) {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Check quality of spatial index and rebuild it if it is degraded. Index is built outside of locks,
+     * read lock is held while snapshot of widgets is taken and write lock - while built index replaces the old one.
+     *
+     * @return true if spatial index has been rebuilt
+     */
+    @Scheduled(fixedDelayString = "${widgets.spatial-index.maintenance-period-ms:60000}",
+            initialDelayString = "${widgets.spatial-index.maintenance-period-ms:60000}")
+    @SneakyThrows
+    public boolean maintainSpatialIndex() {
+        var spatialIndexProps = props.getSpatialIndex();
+        Optional<SpatialIndexRebuild> rebuild;
+        if (!readLock.tryLock(props.getReadTimeoutMs(), TimeUnit.MILLISECONDS)) {
+            throw new OperationLockTimeoutExceededException("maintainSpatialIndex");
+        }
+        try {
+            rebuild = widgetsRepository.prepareSpatialIndexRebuild(spatialIndexProps.getMaintenanceMinFillFactor(),
+                    spatialIndexProps.getMaintenanceMaxOverlapRatio());
+        } finally {
+            readLock.unlock();
+        }
+        if (rebuild.isEmpty()) {
+            return false;
+        }
+        rebuild.get().build();
+        try {
+            if (!writeLock.tryLock(props.getWriteTimeoutMs(), TimeUnit.MILLISECONDS)) {
+                throw new OperationLockTimeoutExceededException("maintainSpatialIndex");
+            }
+            return rebuild.get().apply();
+        } finally {
+            if (writeLock.isHeldByCurrentThread()) {
+                writeLock.unlock();
+            }
+        }
+    }
+
     private void ensureZIndex(WidgetEntity widget) {
         if (widget.getZ() == null) {
             widget.setZ(nextZ(widgetsRepository.getMaxZ()));
-        } else if (widgetsRepository.existsByZ(widget.getZ())) {
+        } else if (widgetsRepository.existsByZ(widget.getZ()) && !widgetsRepository.shiftZ(widget.getZ())) {
             shiftWidgets(widget.getZ());
         }
     }
@@ -0,0 +1,2 @@
+CREATE INDEX "WIDTH_INDEX" ON WIDGETS (WIDTH);
+CREATE INDEX "HEIGHT_INDEX" ON WIDGETS (HEIGHT);
@@ -12,21 +12,26 @@ import org.springframework.test.web.servlet.MockMvc;
 import org.springframework.test.web.servlet.MvcResult;
 import ru.ohapegor.widgets.TestObjectsFactory;
 import ru.ohapegor.widgets.dto.WidgetDTO;
+import ru.ohapegor.widgets.dto.WidgetsOverlapDTO;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
+import ru.ohapegor.widgets.repository.memory.InMemoryRTreeWidgetsRepository;
 import ru.ohapegor.widgets.service.WidgetsService;
 
 import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.springframework.http.MediaType.APPLICATION_JSON;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
@@ -34,6 +39,7 @@ import static org.springframework.test.web.servlet.request.MockMvcRequestBuilder
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
 @AutoConfigureMockMvc
@@ -265,6 +271,205 @@ abstract class AbstractWidgetsIntegrationTest {
         widgetsList.forEach(w -> assertTrue(insideAreaWidgetsIds.contains(w.getId())));
     }
 
+    @Test
+    void verifySpacialFilterSupportsQueryModes() throws Exception {
+        var inside = service.create(TestObjectsFactory.randomWidgetWithCoords(20, 20, 40, 40));
+        var intersecting = service.create(TestObjectsFactory.randomWidgetWithCoords(90, 90, 150, 150));
+        var containing = service.create(TestObjectsFactory.randomWidgetWithCoords(-10, -10, 110, 110));
+        service.create(TestObjectsFactory.randomWidgetWithCoords(200, 200, 300, 300));
+
+        String area = "&minX=0&minY=0&maxX=100&maxY=100";
+        assertEquals(List.of(inside.getId()), findPageIds("?mode=INSIDE" + area));
+        assertEquals(List.of(inside.getId(), intersecting.getId(), containing.getId()), findPageIds("?mode=INTERSECTS" + area));
+        assertEquals(List.of(containing.getId()), findPageIds("?mode=CONTAINS" + area));
+
+        mockMvc.perform(get("/api/v1/widgets?mode=CONTAINS&minX=0&minY=0"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void verifySpacialFilterSupportsZRange() throws Exception {
+        var first = service.create(TestObjectsFactory.randomWidgetWithCoords(10, 10, 20, 20));
+        var second = service.create(TestObjectsFactory.randomWidgetWithCoords(30, 30, 40, 40));
+        var third = service.create(TestObjectsFactory.randomWidgetWithCoords(50, 50, 60, 60));
+        var outside = service.create(TestObjectsFactory.randomWidgetWithCoords(200, 200, 300, 300));
+
+        String area = "&minX=0&minY=0&maxX=100&maxY=100";
+        assertEquals(List.of(second.getId(), third.getId()), findPageIds("?minZ=" + second.getZ() + area));
+        assertEquals(List.of(first.getId(), second.getId()), findPageIds("?maxZ=" + second.getZ() + area));
+        assertEquals(List.of(second.getId()), findPageIds("?minZ=" + second.getZ() + "&maxZ=" + second.getZ() + area));
+        assertEquals(List.of(third.getId(), outside.getId()), findPageIds("?minZ=" + third.getZ()));
+
+        mockMvc.perform(get("/api/v1/widgets?minZ=5&maxZ=4"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    void verifyWidgetsAtPointAreReturnedTopmostFirst() throws Exception {
+        var bottom = service.create(TestObjectsFactory.randomWidgetWithCoords(0, 0, 100, 100));
+        var middle = service.create(TestObjectsFactory.randomWidgetWithCoords(40, 40, 60, 60));
+        var top = service.create(TestObjectsFactory.randomWidgetWithCoords(50, 50, 70, 70));
+        service.create(TestObjectsFactory.randomWidgetWithCoords(200, 200, 300, 300));
+
+        var allResult = mockMvc.perform(get("/api/v1/widgets/at-point?x=55&y=60&limit=10"))
+                .andExpect(status().isOk())
+                .andReturn();
+        var widgetsList = getWidgetsListFromResult(allResult);
+        assertEquals(List.of(top.getId(), middle.getId(), bottom.getId()),
+                widgetsList.stream().map(WidgetDTO::getId).collect(Collectors.toList()));
+
+        //widgets partially covering the point are found by their borders, single topmost widget by default
+        mockMvc.perform(get("/api/v1/widgets/at-point?x=60&y=40"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(jsonPath("$[0].id").value(middle.getId()));
+
+        mockMvc.perform(get("/api/v1/widgets/at-point?x=150&y=150"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0));
+    }
+
+    @Test
+    void verifyNearestWidgetsAreReturnedOrderedByDistance() throws Exception {
+        var covering = service.create(TestObjectsFactory.randomWidgetWithCoords(0, 0, 10, 10));
+        var far = service.create(TestObjectsFactory.randomWidgetWithCoords(100, 100, 110, 110));
+        var near = service.create(TestObjectsFactory.randomWidgetWithCoords(20, 0, 30, 10));
+        var touching = service.create(TestObjectsFactory.randomWidgetWithCoords(-10, -10, 0, 0));
+
+        var result = mockMvc.perform(get("/api/v1/widgets/nearest?x=5&y=5&limit=3"))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(List.of(covering.getId(), touching.getId(), near.getId()), getWidgetsListFromResult(result)
+                .stream().map(WidgetDTO::getId).collect(Collectors.toList()));
+
+        //rectangle touching first two widgets, ties are resolved by z
+        result = mockMvc.perform(get("/api/v1/widgets/nearest?x=10&y=0&width=10&height=10"))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(List.of(covering.getId(), near.getId(), touching.getId(), far.getId()), getWidgetsListFromResult(result)
+                .stream().map(WidgetDTO::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void verifyNearestWidgetsAreFoundFarFromRectangle() throws Exception {
+        var lowerLeft = service.create(TestObjectsFactory.randomWidgetWithCoords(
+                Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE + 10, Integer.MIN_VALUE + 10));
+        var upperRight = service.create(TestObjectsFactory.randomWidgetWithCoords(
+                Integer.MAX_VALUE - 10, Integer.MAX_VALUE - 10, Integer.MAX_VALUE, Integer.MAX_VALUE));
+        var wide = service.create(TestObjectsFactory.randomWidgetWithCoords(-1_000_000, 50_000, 0, 50_010));
+        var near = service.create(TestObjectsFactory.randomWidgetWithCoords(10_000, 0, 10_010, 10));
+
+        var result = mockMvc.perform(get("/api/v1/widgets/nearest?x=0&y=0&limit=4"))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(List.of(near.getId(), wide.getId(), upperRight.getId(), lowerLeft.getId()),
+                getWidgetsListFromResult(result).stream().map(WidgetDTO::getId).collect(Collectors.toList()));
+
+        result = mockMvc.perform(get("/api/v1/widgets/nearest?x=-2000000&y=50000&limit=1"))
+                .andExpect(status().isOk())
+                .andReturn();
+        assertEquals(List.of(wide.getId()),
+                getWidgetsListFromResult(result).stream().map(WidgetDTO::getId).collect(Collectors.toList()));
+    }
+
+    @Test
+    void verifyOverlappingWidgetsAreStreamed() throws Exception {
+        var bottom = service.create(TestObjectsFactory.randomWidgetWithCoords(0, 0, 100, 100));
+        var middle = service.create(TestObjectsFactory.randomWidgetWithCoords(50, 50, 150, 150));
+        var top = service.create(TestObjectsFactory.randomWidgetWithCoords(90, 90, 200, 200));
+        //touching by border is not overlapping
+        service.create(TestObjectsFactory.randomWidgetWithCoords(200, 0, 300, 90));
+
+        var asyncResult = mockMvc.perform(get("/api/v1/widgets/overlaps"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        var result = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andReturn();
+        List<WidgetsOverlapDTO> overlaps = om.readValue(result.getResponse().getContentAsString(), new TypeReference<>() {
+        });
+        assertEquals(Set.of(
+                new WidgetsOverlapDTO(bottom.getId(), middle.getId()),
+                new WidgetsOverlapDTO(bottom.getId(), top.getId()),
+                new WidgetsOverlapDTO(middle.getId(), top.getId())
+        ), Set.copyOf(overlaps));
+        assertEquals(3, overlaps.size());
+
+        asyncResult = mockMvc.perform(get("/api/v1/widgets/overlaps?minX=0&minY=0&maxX=150&maxY=150"))
+                .andExpect(request().asyncStarted())
+                .andReturn();
+        result = mockMvc.perform(asyncDispatch(asyncResult))
+                .andExpect(status().isOk())
+                .andReturn();
+        overlaps = om.readValue(result.getResponse().getContentAsString(), new TypeReference<>() {
+        });
+        assertEquals(List.of(new WidgetsOverlapDTO(bottom.getId(), middle.getId())), overlaps);
+    }
+
+    @Test
+    void verifyWidgetsCanBeReplacedInBulk() throws Exception {
+        var oldWidget = persistedRandomWidget();
+        int widgetsCount = 100;
+        var newWidgets = IntStream.rangeClosed(1, widgetsCount)
+                .mapToObj(z -> {
+                    WidgetEntity widget = TestObjectsFactory.randomWidget();
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+
+        repository.replaceAll(newWidgets);
+
+        assertEquals(widgetsCount, repository.count());
+        assertTrue(repository.findById(oldWidget.getId()).isEmpty());
+        assertEquals(widgetsCount, repository.getMaxZ());
+
+        var pageResult = mockMvc.perform(get("/api/v1/widgets?page=0&size=10"))
+                .andExpect(status().isOk())
+                .andExpect(header().string("x-total-count", String.valueOf(widgetsCount)))
+                .andReturn();
+        var widgetsList = getWidgetsListFromResult(pageResult);
+        for (int i = 0; i < widgetsList.size(); i++) {
+            assertEquals(i + 1, widgetsList.get(i).getZ());
+        }
+    }
+
+    @Test
+    void verifySpatialIndexCalibrationKeepsWidgets() throws Exception {
+        int widgetsCount = 300;
+        for (int i = 0; i < widgetsCount; i++) {
+            int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+            service.create(TestObjectsFactory.randomWidgetWithCoords(minX, minY, minX + 100, minY + 100));
+        }
+        String query = "?minX=0&minY=0&maxX=1000&maxY=1000&size=500";
+        List<String> idsBeforeCalibration = findPageIds(query);
+
+        var calibration = mockMvc.perform(post("/api/v1/widgets/spatial-index/calibration"));
+        if (repository instanceof InMemoryRTreeWidgetsRepository) {
+            calibration.andExpect(status().isNoContent());
+        } else {
+            calibration.andExpect(status().isBadRequest());
+        }
+
+        assertEquals(idsBeforeCalibration, findPageIds(query));
+        assertEquals(widgetsCount, repository.count());
+    }
+
+    @Test
+    void verifySpatialIndexMaintenanceKeepsWidgets() throws Exception {
+        List<WidgetEntity> widgets = IntStream.range(0, 300)
+                .mapToObj(i -> service.create(TestObjectsFactory.randomWidget()))
+                .collect(Collectors.toList());
+        widgets.subList(0, 200).forEach(w -> service.deleteById(w.getId()));
+        String query = "?minX=0&minY=0&maxX=2000&maxY=2000&size=500";
+        List<String> idsBeforeMaintenance = findPageIds(query);
+
+        service.maintainSpatialIndex();
+
+        assertEquals(idsBeforeMaintenance, findPageIds(query));
+        assertEquals(100, repository.count());
+    }
+
     private WidgetEntity persistedRandomWidget() {
         return repository.save(TestObjectsFactory.randomWidget());
     }
@@ -274,4 +479,12 @@ abstract class AbstractWidgetsIntegrationTest {
         return om.readValue(result.getResponse().getContentAsString(), new TypeReference<>() {
         });
     }
+
+    @SneakyThrows
+    private List<String> findPageIds(String query) {
+        var pageResult = mockMvc.perform(get("/api/v1/widgets" + query))
+                .andExpect(status().isOk())
+                .andReturn();
+        return getWidgetsListFromResult(pageResult).stream().map(WidgetDTO::getId).collect(Collectors.toList());
+    }
 }
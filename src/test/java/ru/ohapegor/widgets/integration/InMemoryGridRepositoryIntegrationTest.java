@@ -0,0 +1,7 @@
+package ru.ohapegor.widgets.integration;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = "widgets.repository=grid")
+class InMemoryGridRepositoryIntegrationTest extends AbstractWidgetsIntegrationTest {
+}
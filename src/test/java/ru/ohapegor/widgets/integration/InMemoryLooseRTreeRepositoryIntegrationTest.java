@@ -0,0 +1,7 @@
+package ru.ohapegor.widgets.integration;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = {"widgets.repository=r-tree", "widgets.spatial-index.rtree-loose-margin=20"})
+class InMemoryLooseRTreeRepositoryIntegrationTest extends AbstractWidgetsIntegrationTest {
+}
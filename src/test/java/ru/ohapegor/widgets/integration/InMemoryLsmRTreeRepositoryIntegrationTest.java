@@ -0,0 +1,7 @@
+package ru.ohapegor.widgets.integration;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = "widgets.repository=lsm-r-tree")
+class InMemoryLsmRTreeRepositoryIntegrationTest extends AbstractWidgetsIntegrationTest {
+}
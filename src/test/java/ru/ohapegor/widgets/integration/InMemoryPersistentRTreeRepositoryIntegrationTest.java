@@ -0,0 +1,7 @@
+package ru.ohapegor.widgets.integration;
+
+import org.springframework.boot.test.context.SpringBootTest;
+
+@SpringBootTest(properties = "widgets.repository=persistent-r-tree")
+class InMemoryPersistentRTreeRepositoryIntegrationTest extends AbstractWidgetsIntegrationTest {
+}
@@ -2,6 +2,7 @@ package ru.ohapegor.widgets.model;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -66,4 +67,45 @@ class SearchAreaTest {
                 .build();
         assertTrue(s.isOverlap(w));
     }
-}
\ No newline at end of file
+
+    @Test
+    void matchesInsideByDefault() {
+        SearchArea s = new SearchArea();
+        assertEquals(QueryMode.INSIDE, s.getMode());
+        assertEquals(QueryMode.INSIDE, SearchArea.builder().build().getMode());
+        assertTrue(new SearchArea(0, 0, 5, 5).matches(WidgetEntity.builder().x(0).y(0).width(5).height(5).build()));
+        assertFalse(new SearchArea(0, 0, 5, 5).matches(WidgetEntity.builder().x(1).y(1).width(5).height(2).build()));
+    }
+
+    @Test
+    void matchesIntersecting() {
+        SearchArea s = SearchArea.builder().minX(0).minY(0).maxX(5).maxY(5).mode(QueryMode.INTERSECTS).build();
+        assertTrue(s.matches(WidgetEntity.builder().x(4).y(4).width(5).height(5).build()));
+        assertTrue(s.matches(WidgetEntity.builder().x(5).y(-3).width(2).height(3).build()));
+        assertFalse(s.matches(WidgetEntity.builder().x(6).y(0).width(2).height(2).build()));
+    }
+
+    @Test
+    void matchesContaining() {
+        SearchArea s = SearchArea.builder().minX(1).minY(1).maxX(3).maxY(3).mode(QueryMode.CONTAINS).build();
+        assertTrue(s.matches(WidgetEntity.builder().x(0).y(0).width(5).height(5).build()));
+        assertTrue(s.matches(WidgetEntity.builder().x(1).y(1).width(2).height(2).build()));
+        assertFalse(s.matches(WidgetEntity.builder().x(2).y(0).width(5).height(5).build()));
+        assertFalse(SearchArea.builder().mode(QueryMode.CONTAINS).build()
+                .matches(WidgetEntity.builder().x(0).y(0).width(5).height(5).build()));
+    }
+
+    @Test
+    void matchesZRange() {
+        SearchArea s = SearchArea.builder().minX(0).minY(0).maxX(5).maxY(5).minZ(2).maxZ(4).build();
+        assertTrue(s.matches(WidgetEntity.builder().x(1).y(1).width(2).height(2).z(2).build()));
+        assertTrue(s.matches(WidgetEntity.builder().x(1).y(1).width(2).height(2).z(4).build()));
+        assertFalse(s.matches(WidgetEntity.builder().x(1).y(1).width(2).height(2).z(5).build()));
+        assertFalse(s.matches(WidgetEntity.builder().x(1).y(1).width(2).height(2).build()));
+        assertTrue(s.mayHaveMatchesInside(0, 0, 10, 10, 4, 8));
+        assertFalse(s.mayHaveMatchesInside(0, 0, 10, 10, 5, 8));
+        assertTrue(s.allMatchInside(0, 0, 5, 5, 2, 4));
+        assertFalse(s.allMatchInside(0, 0, 5, 5, 1, 4));
+        assertTrue(SearchArea.builder().maxZ(0).build().matches(0, 0, 1, 1, -10, 0));
+    }
+}
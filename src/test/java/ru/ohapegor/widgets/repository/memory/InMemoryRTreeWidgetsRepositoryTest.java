@@ -0,0 +1,182 @@
+package ru.ohapegor.widgets.repository.memory;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.PageRequest;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.SpatialIndexRebuild;
+import ru.ohapegor.widgets.repository.memory.rtree.InsertionStrategy;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class InMemoryRTreeWidgetsRepositoryTest {
+
+    private final InMemoryRTreeWidgetsRepository repository =
+            new InMemoryRTreeWidgetsRepository(2, 50, InsertionStrategy.GUTTMAN_LINEAR, 0);
+
+    /**
+     * Widgets are laid out in fixed grid, so that index degraded by deletions is the same in every run.
+     */
+    @Test
+    void verifyRebuildCatchesUpWithModificationsMadeDuringBuild() {
+        List<WidgetEntity> widgets = new ArrayList<>();
+        for (int z = 0; z < 2000; z++) {
+            widgets.add(repository.save(gridWidget(z)));
+        }
+        widgets.subList(0, 1500).forEach(w -> repository.deleteById(w.getId()));
+        assertTrue(repository.prepareSpatialIndexRebuild(0, Double.MAX_VALUE).isEmpty());
+
+        SpatialIndexRebuild rebuild = repository.prepareSpatialIndexRebuild(0.9, Double.MAX_VALUE).orElseThrow();
+        rebuild.build();
+        //modifications made after snapshot
+        WidgetEntity moved = widgets.get(1500);
+        moved.setX(moved.getX() + 5000);
+        repository.save(moved);
+        repository.deleteById(widgets.get(1501).getId());
+        WidgetEntity created = repository.save(gridWidget(5000));
+        assertTrue(rebuild.apply());
+        assertFalse(rebuild.apply());
+
+        List<WidgetEntity> expected = new ArrayList<>(widgets.subList(1502, 2000));
+        expected.add(moved);
+        expected.add(created);
+        verifySearches(expected);
+
+        // fill factor never exceeds 1, so rebuild is always prepared
+        rebuild = repository.prepareSpatialIndexRebuild(2, Double.MAX_VALUE).orElseThrow();
+        rebuild.build();
+        repository.deleteAll();
+        assertFalse(rebuild.apply());
+        verifySearches(List.of());
+    }
+
+    @Test
+    void verifyCalibrationIsObsoleteAfterWidgetsAreReplaced() {
+        List<WidgetEntity> widgets = new ArrayList<>();
+        for (int z = 0; z < 500; z++) {
+            widgets.add(repository.save(gridWidget(z)));
+        }
+        SpatialIndexRebuild calibration = repository.prepareSpatialIndexCalibration(100, 1).orElseThrow();
+        calibration.build();
+        WidgetEntity created = repository.save(gridWidget(5000));
+        assertTrue(calibration.apply());
+        assertFalse(calibration.apply());
+        widgets.add(created);
+        verifySearches(widgets);
+
+        calibration = repository.prepareSpatialIndexCalibration(100, 1).orElseThrow();
+        calibration.build();
+        List<WidgetEntity> replaced = List.of(gridWidget(0), gridWidget(1));
+        repository.replaceAll(replaced);
+        assertFalse(calibration.apply());
+        verifySearches(replaced);
+    }
+
+    @Test
+    void verifyShiftedWidgetsAreFoundByActualZ() {
+        List<WidgetEntity> widgets = new ArrayList<>();
+        for (int z = 0; z < 1000; z++) {
+            // gap in z indexes stops shifting
+            widgets.add(repository.save(randomWidget(z < 500 ? z : z + 400)));
+        }
+        for (int i = 0; i < 300; i++) {
+            assertTrue(repository.shiftZ(0));
+            shiftExpected(widgets, 0);
+            widgets.add(repository.save(randomWidget(0)));
+        }
+        // widget moved inside of shifted run and widget saved at occupied z index
+        WidgetEntity moved = widgets.remove(10);
+        shiftExpected(widgets, 700);
+        moved.setZ(700);
+        repository.save(moved);
+        widgets.add(moved);
+        shiftExpected(widgets, 5);
+        widgets.add(repository.save(randomWidget(5)));
+
+        Instant beforeShift = Instant.now();
+        WidgetEntity bottom = widgets.stream().filter(w -> w.getZ() == 0).findFirst().orElseThrow();
+        assertTrue(repository.shiftZ(0));
+        shiftExpected(widgets, 0);
+        WidgetEntity shifted = repository.findById(bottom.getId()).orElseThrow();
+        assertEquals(1, shifted.getZ());
+        assertFalse(shifted.getLastModifiedAt().isBefore(beforeShift), "shift must refresh modification time");
+        widgets.add(repository.save(randomWidget(0)));
+
+        assertEquals(1302, repository.count());
+        assertEquals(1399, repository.getMaxZ());
+        for (WidgetEntity widget : widgets) {
+            assertEquals(widget.getZ(), repository.findById(widget.getId()).orElseThrow().getZ());
+            assertEquals(widget.getId(), repository.findByZ(widget.getZ()).orElseThrow().getId());
+        }
+        verifySearches(widgets);
+        for (int minZ = -10; minZ < 1410; minZ += 97) {
+            var searchArea = SearchArea.builder().mode(QueryMode.INTERSECTS).minZ(minZ).maxZ(minZ + 150).build();
+            // modification time of shifted widgets is refreshed by repository, so widgets are compared by id and z
+            List<String> expected = widgets.stream()
+                    .filter(searchArea::matches)
+                    .sorted((first, second) -> Integer.compare(first.getZ(), second.getZ()))
+                    .map(w -> w.getId() + ":" + w.getZ())
+                    .collect(Collectors.toList());
+            List<String> found = repository.getPage(PageRequest.of(0, 3000), searchArea)
+                    .map(w -> w.getId() + ":" + w.getZ())
+                    .getContent();
+            assertEquals(expected, found);
+        }
+    }
+
+    private void verifySearches(List<WidgetEntity> widgets) {
+        for (QueryMode mode : QueryMode.values()) {
+            for (int offset = 0; offset < 6000; offset += 1000) {
+                var searchArea = new SearchArea(offset, offset, offset + 1500, offset + 1500, mode);
+                List<String> expectedIds = widgets.stream()
+                        .filter(searchArea::matches)
+                        .sorted((first, second) -> Integer.compare(first.getZ(), second.getZ()))
+                        .map(WidgetEntity::getId)
+                        .collect(Collectors.toList());
+                List<String> foundIds = repository.getPage(PageRequest.of(0, 3000), searchArea)
+                        .map(WidgetEntity::getId)
+                        .getContent();
+                assertEquals(expectedIds, foundIds);
+            }
+        }
+    }
+
+    /**
+     * Shift widgets one by one, as service does for repositories which don't shift widgets themselves.
+     */
+    private void shiftExpected(List<WidgetEntity> widgets, int z) {
+        Map<Integer, WidgetEntity> widgetsByZ = new HashMap<>();
+        widgets.forEach(w -> widgetsByZ.put(w.getZ(), w));
+        List<WidgetEntity> run = new ArrayList<>();
+        for (int current = z; widgetsByZ.containsKey(current); current++) {
+            run.add(widgetsByZ.get(current));
+        }
+        run.forEach(w -> w.setZ(w.getZ() + 1));
+    }
+
+    private WidgetEntity gridWidget(int index) {
+        int minX = index % 50 * 100, minY = index / 50 % 50 * 100;
+        var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY, minX + 150, minY + 150);
+        widget.setZ(index);
+        return widget;
+    }
+
+    private WidgetEntity randomWidget(int z) {
+        int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+        var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                minX + TestObjectsFactory.randomInt() / 4, minY + TestObjectsFactory.randomInt() / 4);
+        widget.setZ(z);
+        return widget;
+    }
+}
@@ -0,0 +1,199 @@
+package ru.ohapegor.widgets.repository.memory.grid;
+
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class UniformGridTest {
+
+    private final UniformGrid<WidgetEntity> grid = new UniformGrid<>(100);
+
+    @Test
+    void verifySearchMatchesEntriesAccordingToQueryMode() {
+        List<WidgetEntity> widgets = insertWidgets(1000);
+        widgets.subList(0, 300).forEach(w -> assertTrue(grid.delete(w.getId())));
+        List<WidgetEntity> remaining = widgets.subList(300, 1000);
+        assertFalse(grid.delete(widgets.get(0).getId()));
+        assertEquals(700, grid.size());
+
+        for (QueryMode mode : QueryMode.values()) {
+            for (int offset = 0; offset < 2000; offset += 250) {
+                var searchArea = new SearchArea(offset, offset, offset + 300, offset + 300, mode);
+                assertEquals(idsOf(filter(remaining, searchArea)), search(searchArea));
+            }
+        }
+        var zRangeArea = SearchArea.builder().minX(0).maxX(1000).minZ(400).maxZ(800).build();
+        assertEquals(idsOf(filter(remaining, zRangeArea)), search(zRangeArea));
+        assertEquals(idsOf(remaining), search(new SearchArea()));
+    }
+
+    @Test
+    void verifyOversizedEntriesAreFound() {
+        List<WidgetEntity> widgets = insertWidgets(200);
+        var huge = TestObjectsFactory.randomWidgetWithCoords(-100_000, -100_000, 100_000, 100_000);
+        huge.setZ(1000);
+        grid.insert(huge, huge, huge.getZ());
+        widgets.add(huge);
+
+        var searchArea = new SearchArea(500, 500, 600, 600, QueryMode.INTERSECTS);
+        assertEquals(idsOf(filter(widgets, searchArea)), search(searchArea));
+        assertEquals(huge.getId(), grid.searchTopmostAtPoint(550, 550, 1).get(0).getId());
+        assertEquals(expectedPairs(widgets, new SearchArea()), searchPairs(new SearchArea()));
+        assertTrue(grid.delete(huge.getId()));
+        assertTrue(grid.searchTopmostAtPoint(-50_000, -50_000, 1).isEmpty());
+    }
+
+    @Test
+    void verifySearchTopmostAtPointReturnsEntriesOrderedByZDescending() {
+        List<WidgetEntity> widgets = insertWidgets(1000);
+        for (int point = 0; point < 2000; point += 100) {
+            int x = point, y = point;
+            List<WidgetEntity> expected = widgets.stream()
+                    .filter(w -> w.containsPoint(x, y))
+                    .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                    .limit(5)
+                    .collect(Collectors.toList());
+            assertEquals(expected, grid.searchTopmostAtPoint(x, y, 5));
+        }
+    }
+
+    @Test
+    void verifySearchNearestReturnsEntriesOrderedByDistance() {
+        List<WidgetEntity> widgets = insertWidgets(300);
+        int[][] rectangles = {{0, 0, 0, 0}, {500, 500, 520, 520}, {-5000, 3000, -5000, 3000}, {1000, -20, 1300, 50}};
+        for (int[] r : rectangles) {
+            List<WidgetEntity> expected = widgets.stream()
+                    .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(r[0], r[1], r[2], r[3]))
+                            .thenComparing(WidgetEntity::getZ))
+                    .limit(10)
+                    .collect(Collectors.toList());
+            assertEquals(expected, grid.searchNearest(r[0], r[1], r[2], r[3], 10));
+        }
+        assertEquals(300, grid.searchNearest(0, 0, 0, 0, 1000).size());
+    }
+
+    @Test
+    void verifySearchOverlappingPairsFindsEachPairOnce() {
+        List<WidgetEntity> widgets = insertWidgets(500);
+        for (QueryMode mode : QueryMode.values()) {
+            // search areas start inside of widgets, so that many overlaps start in cells which are not visited
+            for (int offset = 250; offset < 1500; offset += 330) {
+                var searchArea = new SearchArea(offset, offset, offset + 400, offset + 400, mode);
+                assertEquals(expectedPairs(widgets, searchArea), searchPairs(searchArea));
+            }
+        }
+        assertEquals(expectedPairs(widgets, new SearchArea()), searchPairs(new SearchArea()));
+
+        List<String> firstPair = new ArrayList<>();
+        assertFalse(grid.searchOverlappingPairs(new SearchArea(), (bottom, top) -> {
+            assertTrue(bottom.getZ() < top.getZ());
+            firstPair.add(bottom.getId());
+            return false;
+        }));
+        assertEquals(1, firstPair.size());
+    }
+
+    @Test
+    void verifyOverlapStartingOutsideOfSearchAreaIsFound() {
+        List<WidgetEntity> widgets = new ArrayList<>();
+        for (int z = 0; z < 2; z++) {
+            var widget = TestObjectsFactory.randomWidgetWithCoords(0, 0, 250, 250);
+            widget.setZ(z);
+            grid.insert(widget, widget, widget.getZ());
+            widgets.add(widget);
+        }
+        var intersectsArea = new SearchArea(200, 200, 300, 300, QueryMode.INTERSECTS);
+        assertEquals(1, searchPairs(intersectsArea).size());
+        assertEquals(expectedPairs(widgets, intersectsArea), searchPairs(intersectsArea));
+        var containsArea = new SearchArea(210, 220, 230, 240, QueryMode.CONTAINS);
+        assertEquals(1, searchPairs(containsArea).size());
+        assertEquals(expectedPairs(widgets, containsArea), searchPairs(containsArea));
+    }
+
+    @Test
+    void verifyEntriesCanBeMovedAndCleared() {
+        List<WidgetEntity> widgets = insertWidgets(100);
+        for (WidgetEntity widget : widgets) {
+            widget.setX(widget.getX() + 5000);
+            grid.insert(widget, widget, widget.getZ());
+            assertTrue(grid.updateZ(widget.getId(), widget.getZ() + 1000));
+        }
+        assertEquals(100, grid.size());
+        assertTrue(search(new SearchArea(0, 0, 4999, 5000, QueryMode.INTERSECTS)).isEmpty());
+        assertEquals(idsOf(widgets), search(SearchArea.builder().minX(5000).minZ(1000).build()));
+
+        grid.clear();
+        assertEquals(0, grid.size());
+        assertTrue(search(new SearchArea()).isEmpty());
+        assertFalse(grid.updateZ(widgets.get(0).getId(), 0));
+    }
+
+    private List<WidgetEntity> insertWidgets(int count) {
+        List<WidgetEntity> widgets = IntStream.range(0, count)
+                .mapToObj(z -> {
+                    int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+                    var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + TestObjectsFactory.randomInt() / 4, minY + TestObjectsFactory.randomInt() / 4);
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+        widgets.forEach(w -> grid.insert(w, w, w.getZ()));
+        return widgets;
+    }
+
+    private List<WidgetEntity> filter(List<WidgetEntity> widgets, SearchArea searchArea) {
+        return widgets.stream().filter(searchArea::matches).collect(Collectors.toList());
+    }
+
+    private Set<String> search(SearchArea searchArea) {
+        List<WidgetEntity> found = new ArrayList<>();
+        assertTrue(grid.search(searchArea, found::add));
+        return idsOf(found);
+    }
+
+    private Set<String> searchPairs(SearchArea searchArea) {
+        Set<String> pairs = new HashSet<>();
+        grid.searchOverlappingPairs(searchArea, (bottom, top) -> {
+            assertTrue(pairs.add(bottom.getId() + ":" + top.getId()));
+            return true;
+        });
+        return pairs;
+    }
+
+    private Set<String> expectedPairs(List<WidgetEntity> widgets, SearchArea searchArea) {
+        List<WidgetEntity> matching = filter(widgets, searchArea);
+        Set<String> pairs = new HashSet<>();
+        for (WidgetEntity bottom : matching) {
+            for (WidgetEntity top : matching) {
+                if (bottom.getZ() < top.getZ()
+                        && bottom.getMinX() < top.getMaxX() && top.getMinX() < bottom.getMaxX()
+                        && bottom.getMinY() < top.getMaxY() && top.getMinY() < bottom.getMaxY()) {
+                    pairs.add(bottom.getId() + ":" + top.getId());
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+}
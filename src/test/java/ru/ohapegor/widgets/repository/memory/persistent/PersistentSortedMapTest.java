@@ -0,0 +1,75 @@
+package ru.ohapegor.widgets.repository.memory.persistent;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentSortedMapTest {
+
+    private final Random random = new Random();
+
+    @Test
+    void verifyMapMatchesTreeMap() {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, String> map = PersistentSortedMap.empty();
+        for (int i = 0; i < 5000; i++) {
+            int key = random.nextInt(1000);
+            if (random.nextInt(3) == 0) {
+                expected.remove(key);
+                map = map.remove(key);
+            } else {
+                expected.put(key, "value" + i);
+                map = map.put(key, "value" + i);
+            }
+            if (i % 100 == 0) {
+                verifyMap(expected, map);
+            }
+        }
+        verifyMap(expected, map);
+    }
+
+    @Test
+    void verifyOldVersionsAreNotModified() {
+        TreeMap<Integer, String> expected = new TreeMap<>();
+        PersistentSortedMap<Integer, String> map = PersistentSortedMap.empty();
+        for (int i = 0; i < 500; i++) {
+            expected.put(i, "value" + i);
+            map = map.put(i, "value" + i);
+        }
+        PersistentSortedMap<Integer, String> snapshot = map;
+        for (int i = 0; i < 500; i++) {
+            map = random.nextBoolean() ? map.remove(random.nextInt(500)) : map.put(random.nextInt(1000), "changed");
+        }
+        verifyMap(expected, snapshot);
+    }
+
+    @Test
+    void verifyEmptyMap() {
+        PersistentSortedMap<String, String> map = PersistentSortedMap.empty();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.size());
+        assertNull(map.get("key"));
+        assertNull(map.lastKey());
+        assertSame(map, map.remove("key"));
+    }
+
+    private void verifyMap(TreeMap<Integer, String> expected, PersistentSortedMap<Integer, String> map) {
+        assertEquals(expected.size(), map.size());
+        assertEquals(expected.isEmpty(), map.isEmpty());
+        assertEquals(expected.isEmpty() ? null : expected.lastKey(), map.lastKey());
+        for (int key = -1; key <= 1000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+            assertEquals(expected.containsKey(key), map.containsKey(key));
+        }
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ru.ohapegor.widgets.repository.memory.quadtree;
+
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionQuadtreeTest {
+
+    private final RegionQuadtree<WidgetEntity> quadtree = new RegionQuadtree<>(4);
+
+    @Test
+    void verifySearchMatchesEntriesAccordingToQueryMode() {
+        List<WidgetEntity> widgets = insertWidgets(1000);
+        widgets.subList(0, 300).forEach(w -> assertTrue(quadtree.delete(w.getId())));
+        List<WidgetEntity> remaining = widgets.subList(300, 1000);
+        assertFalse(quadtree.delete(widgets.get(0).getId()));
+        assertEquals(700, quadtree.size());
+
+        for (QueryMode mode : QueryMode.values()) {
+            for (int offset = 0; offset < 2000; offset += 250) {
+                var searchArea = new SearchArea(offset, offset, offset + 300, offset + 300, mode);
+                assertEquals(idsOf(filter(remaining, searchArea)), search(searchArea));
+            }
+        }
+        var zRangeArea = SearchArea.builder().minX(0).maxX(1000).minZ(400).maxZ(800).build();
+        assertEquals(idsOf(filter(remaining, zRangeArea)), search(zRangeArea));
+        assertEquals(idsOf(remaining), search(new SearchArea()));
+    }
+
+    @Test
+    void verifyEntriesCrossingQuadrantBordersAreFound() {
+        List<WidgetEntity> widgets = insertWidgets(200);
+        var huge = TestObjectsFactory.randomWidgetWithCoords(-100_000, -100_000, 100_000, 100_000);
+        huge.setZ(1000);
+        quadtree.insert(huge, huge, huge.getZ());
+        widgets.add(huge);
+        var extreme = TestObjectsFactory.randomWidgetWithCoords(Integer.MAX_VALUE - 10, Integer.MAX_VALUE - 10,
+                Integer.MAX_VALUE, Integer.MAX_VALUE);
+        extreme.setZ(1001);
+        quadtree.insert(extreme, extreme, extreme.getZ());
+        widgets.add(extreme);
+
+        var searchArea = new SearchArea(500, 500, 600, 600, QueryMode.INTERSECTS);
+        assertEquals(idsOf(filter(widgets, searchArea)), search(searchArea));
+        assertEquals(huge.getId(), quadtree.searchTopmostAtPoint(550, 550, 1).get(0).getId());
+        assertEquals(extreme.getId(), quadtree.searchTopmostAtPoint(Integer.MAX_VALUE, Integer.MAX_VALUE, 1).get(0).getId());
+        assertEquals(expectedPairs(widgets, new SearchArea()), searchPairs(new SearchArea()));
+        assertTrue(quadtree.delete(huge.getId()));
+        assertTrue(quadtree.searchTopmostAtPoint(-50_000, -50_000, 1).isEmpty());
+    }
+
+    @Test
+    void verifyTreeIsSplitByDensityAndMergedAfterDeletions() {
+        List<WidgetEntity> widgets = insertWidgets(1000);
+        assertTrue(quadtree.depth() > 20);
+        widgets.forEach(w -> assertTrue(quadtree.delete(w.getId())));
+        assertEquals(0, quadtree.depth());
+
+        // identical entries can't be separated, so splitting stops at quadrant of one point
+        for (int z = 0; z < 10; z++) {
+            var widget = TestObjectsFactory.randomWidgetWithCoords(7, 7, 7, 7);
+            widget.setZ(z);
+            quadtree.insert(widget, widget, z);
+        }
+        assertEquals(32, quadtree.depth());
+        assertEquals(10, quadtree.searchTopmostAtPoint(7, 7, 100).size());
+    }
+
+    @Test
+    void verifySearchTopmostAtPointReturnsEntriesOrderedByZDescending() {
+        List<WidgetEntity> widgets = insertWidgets(1000);
+        for (int point = 0; point < 2000; point += 100) {
+            int x = point, y = point;
+            List<WidgetEntity> expected = widgets.stream()
+                    .filter(w -> w.containsPoint(x, y))
+                    .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                    .limit(5)
+                    .collect(Collectors.toList());
+            assertEquals(expected, quadtree.searchTopmostAtPoint(x, y, 5));
+        }
+    }
+
+    @Test
+    void verifySearchNearestReturnsEntriesOrderedByDistance() {
+        List<WidgetEntity> widgets = insertWidgets(300);
+        int[][] rectangles = {{0, 0, 0, 0}, {500, 500, 520, 520}, {-5000, 3000, -5000, 3000}, {1000, -20, 1300, 50}};
+        for (int[] r : rectangles) {
+            List<WidgetEntity> expected = widgets.stream()
+                    .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(r[0], r[1], r[2], r[3]))
+                            .thenComparing(WidgetEntity::getZ))
+                    .limit(10)
+                    .collect(Collectors.toList());
+            assertEquals(expected, quadtree.searchNearest(r[0], r[1], r[2], r[3], 10));
+        }
+        assertEquals(300, quadtree.searchNearest(0, 0, 0, 0, 1000).size());
+    }
+
+    @Test
+    void verifySearchOverlappingPairsFindsEachPairOnce() {
+        List<WidgetEntity> widgets = insertWidgets(500);
+        var searchArea = new SearchArea(0, 0, 1500, 1500, QueryMode.INTERSECTS);
+        assertEquals(expectedPairs(widgets, searchArea), searchPairs(searchArea));
+        assertEquals(expectedPairs(widgets, new SearchArea()), searchPairs(new SearchArea()));
+
+        List<String> firstPair = new ArrayList<>();
+        assertFalse(quadtree.searchOverlappingPairs(new SearchArea(), (bottom, top) -> {
+            assertTrue(bottom.getZ() < top.getZ());
+            firstPair.add(bottom.getId());
+            return false;
+        }));
+        assertEquals(1, firstPair.size());
+    }
+
+    @Test
+    void verifyEntriesCanBeMovedAndCleared() {
+        List<WidgetEntity> widgets = insertWidgets(100);
+        for (WidgetEntity widget : widgets) {
+            widget.setX(widget.getX() + 5000);
+            quadtree.insert(widget, widget, widget.getZ());
+            assertTrue(quadtree.updateZ(widget.getId(), widget.getZ() + 1000));
+        }
+        assertEquals(100, quadtree.size());
+        assertTrue(search(new SearchArea(0, 0, 4999, 5000, QueryMode.INTERSECTS)).isEmpty());
+        assertEquals(idsOf(widgets), search(SearchArea.builder().minX(5000).minZ(1000).build()));
+
+        quadtree.clear();
+        assertEquals(0, quadtree.size());
+        assertTrue(search(new SearchArea()).isEmpty());
+        assertFalse(quadtree.updateZ(widgets.get(0).getId(), 0));
+    }
+
+    private List<WidgetEntity> insertWidgets(int count) {
+        List<WidgetEntity> widgets = IntStream.range(0, count)
+                .mapToObj(z -> {
+                    int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+                    var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + TestObjectsFactory.randomInt() / 4, minY + TestObjectsFactory.randomInt() / 4);
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+        widgets.forEach(w -> quadtree.insert(w, w, w.getZ()));
+        return widgets;
+    }
+
+    private List<WidgetEntity> filter(List<WidgetEntity> widgets, SearchArea searchArea) {
+        return widgets.stream().filter(searchArea::matches).collect(Collectors.toList());
+    }
+
+    private Set<String> search(SearchArea searchArea) {
+        List<WidgetEntity> found = new ArrayList<>();
+        assertTrue(quadtree.search(searchArea, found::add));
+        return idsOf(found);
+    }
+
+    private Set<String> searchPairs(SearchArea searchArea) {
+        Set<String> pairs = new HashSet<>();
+        quadtree.searchOverlappingPairs(searchArea, (bottom, top) -> {
+            assertTrue(pairs.add(bottom.getId() + ":" + top.getId()));
+            return true;
+        });
+        return pairs;
+    }
+
+    private Set<String> expectedPairs(List<WidgetEntity> widgets, SearchArea searchArea) {
+        List<WidgetEntity> matching = filter(widgets, searchArea);
+        Set<String> pairs = new HashSet<>();
+        for (WidgetEntity bottom : matching) {
+            for (WidgetEntity top : matching) {
+                if (bottom.getZ() < top.getZ()
+                        && bottom.getMinX() < top.getMaxX() && top.getMinX() < bottom.getMaxX()
+                        && bottom.getMinY() < top.getMaxY() && top.getMinY() < bottom.getMaxY()) {
+                    pairs.add(bottom.getId() + ":" + top.getId());
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+}
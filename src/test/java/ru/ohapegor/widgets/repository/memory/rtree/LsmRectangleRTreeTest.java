@@ -0,0 +1,227 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LsmRectangleRTreeTest {
+
+    /**
+     * compaction is invoked by tests explicitly
+     */
+    private final LsmRectangleRTree<WidgetEntity> tree = new LsmRectangleRTree<>(Integer.MAX_VALUE, 3_600_000);
+
+    private final Map<String, WidgetEntity> widgets = new LinkedHashMap<>();
+
+    @AfterEach
+    void tearDown() {
+        tree.close();
+    }
+
+    @Test
+    void verifySearchesMergeTreesWithBuffer() {
+        for (int round = 0; round < 8; round++) {
+            insertRandomWidgets(150);
+            moveWidgets(50);
+            deleteWidgets(30);
+            verifySearches();
+            tree.compact();
+            assertTrue(tree.treeCount() <= 4);
+            verifySearches();
+        }
+        assertEquals(widgets.size(), tree.size());
+    }
+
+    @Test
+    void verifyObsoleteEntriesAreDroppedByMerge() {
+        var smallBufferTree = new LsmRectangleRTree<WidgetEntity>(10, 3_600_000);
+        try {
+            List<WidgetEntity> inserted = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                WidgetEntity widget = randomWidget(i);
+                inserted.add(widget);
+                smallBufferTree.insert(widget, widget, widget.getZ());
+            }
+            smallBufferTree.compact();
+            assertTrue(smallBufferTree.treeCount() <= 4);
+            inserted.subList(0, 60).forEach(w -> assertTrue(smallBufferTree.delete(w.getId())));
+            assertFalse(smallBufferTree.delete(inserted.get(0).getId()));
+            smallBufferTree.compact();
+            assertEquals(1, smallBufferTree.treeCount());
+
+            List<WidgetEntity> found = new ArrayList<>();
+            smallBufferTree.search(new SearchArea(), found::add);
+            assertEquals(idsOf(inserted.subList(60, 100)), idsOf(found));
+
+            inserted.subList(60, 100).forEach(w -> smallBufferTree.delete(w.getId()));
+            smallBufferTree.compact();
+            assertEquals(0, smallBufferTree.treeCount());
+            assertEquals(0, smallBufferTree.size());
+        } finally {
+            smallBufferTree.close();
+        }
+    }
+
+    @Test
+    void verifyClearDiscardsAllLevels() {
+        insertRandomWidgets(100);
+        tree.compact();
+        insertRandomWidgets(10);
+        tree.clear();
+        widgets.clear();
+        assertEquals(0, tree.size());
+        assertEquals(0, tree.treeCount());
+        verifySearches();
+        insertRandomWidgets(10);
+        verifySearches();
+    }
+
+    @Test
+    void verifyBufferFrozenByFailedCompactionIsCompactedLater() {
+        insertRandomWidgets(50);
+        var failOnce = new AtomicBoolean();
+        WidgetEntity failing = new WidgetEntity() {
+            @Override
+            public String getId() {
+                if (failOnce.getAndSet(false)) {
+                    throw new IllegalStateException("test failure");
+                }
+                return super.getId();
+            }
+        };
+        WidgetEntity random = randomWidget(-1);
+        failing.setId(random.getId());
+        failing.setX(random.getX());
+        failing.setY(random.getY());
+        failing.setWidth(random.getWidth());
+        failing.setHeight(random.getHeight());
+        failing.setZ(random.getZ());
+        widgets.put(failing.getId(), failing);
+        tree.insert(failing, failing, failing.getZ());
+
+        failOnce.set(true);
+        tree.compact();
+        assertFalse(failOnce.get());
+        assertEquals(0, tree.treeCount());
+        verifySearches();
+
+        insertRandomWidgets(10);
+        tree.compact();
+        assertEquals(1, tree.treeCount());
+        verifySearches();
+    }
+
+    private void verifySearches() {
+        List<WidgetEntity> current = new ArrayList<>(widgets.values());
+        for (QueryMode mode : QueryMode.values()) {
+            for (int offset = 0; offset < 2000; offset += 500) {
+                var searchArea = new SearchArea(offset, offset, offset + 700, offset + 700, mode);
+                List<WidgetEntity> found = new ArrayList<>();
+                assertTrue(tree.search(searchArea, found::add));
+                assertEquals(idsOf(filter(current, searchArea)), idsOf(found));
+            }
+        }
+        for (int point = 0; point < 2000; point += 200) {
+            int x = point, y = point;
+            List<WidgetEntity> expected = current.stream()
+                    .filter(w -> w.containsPoint(x, y))
+                    .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                    .limit(5)
+                    .collect(Collectors.toList());
+            assertEquals(expected, tree.searchTopmostAtPoint(x, y, 5));
+        }
+        List<WidgetEntity> expectedNearest = current.stream()
+                .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(-300, 2500, -300, 2500))
+                        .thenComparing(WidgetEntity::getZ))
+                .limit(20)
+                .collect(Collectors.toList());
+        assertEquals(expectedNearest, tree.searchNearest(-300, 2500, -300, 2500, 20));
+
+        var pairsArea = new SearchArea(0, 0, 1500, 1500, QueryMode.INTERSECTS);
+        Set<String> pairs = new HashSet<>();
+        assertTrue(tree.searchOverlappingPairs(pairsArea, (bottom, top) -> {
+            assertTrue(pairs.add(bottom.getId() + ":" + top.getId()));
+            return true;
+        }));
+        assertEquals(expectedPairs(current, pairsArea), pairs);
+    }
+
+    private void insertRandomWidgets(int count) {
+        for (int i = 0; i < count; i++) {
+            WidgetEntity widget = randomWidget(widgets.size() + 10_000 * i);
+            widgets.put(widget.getId(), widget);
+            tree.insert(widget, widget, widget.getZ());
+        }
+    }
+
+    private void moveWidgets(int count) {
+        List<WidgetEntity> moved = new ArrayList<>(widgets.values()).subList(0, Math.min(count, widgets.size()));
+        for (WidgetEntity widget : new ArrayList<>(moved)) {
+            WidgetEntity copy = widget.clone();
+            copy.setX(widget.getX() + TestObjectsFactory.randomInt() / 10);
+            copy.setZ(widget.getZ() + 100_000_000);
+            widgets.remove(widget.getId());
+            widgets.put(copy.getId(), copy);
+            tree.insert(copy, copy, copy.getZ());
+        }
+    }
+
+    private void deleteWidgets(int count) {
+        List<String> ids = new ArrayList<>(widgets.keySet()).subList(0, Math.min(count, widgets.size()));
+        for (String id : new ArrayList<>(ids)) {
+            widgets.remove(id);
+            assertTrue(tree.delete(id));
+        }
+    }
+
+    private WidgetEntity randomWidget(int z) {
+        int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+        var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                minX + TestObjectsFactory.randomInt() / 4, minY + TestObjectsFactory.randomInt() / 4);
+        widget.setZ(z);
+        return widget;
+    }
+
+    private List<WidgetEntity> filter(List<WidgetEntity> widgets, SearchArea searchArea) {
+        return widgets.stream().filter(searchArea::matches).collect(Collectors.toList());
+    }
+
+    private Set<String> expectedPairs(List<WidgetEntity> widgets, SearchArea searchArea) {
+        List<WidgetEntity> matching = filter(widgets, searchArea);
+        Set<String> pairs = new HashSet<>();
+        for (WidgetEntity bottom : matching) {
+            for (WidgetEntity top : matching) {
+                if (bottom.getZ() < top.getZ()
+                        && bottom.getMinX() < top.getMaxX() && top.getMinX() < bottom.getMaxX()
+                        && bottom.getMinY() < top.getMaxY() && top.getMinY() < bottom.getMaxY()) {
+                    pairs.add(bottom.getId() + ":" + top.getId());
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+}
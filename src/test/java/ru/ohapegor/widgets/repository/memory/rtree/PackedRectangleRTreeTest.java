@@ -0,0 +1,164 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PackedRectangleRTreeTest {
+
+    @Test
+    void verifySearchMatchesEntriesAccordingToQueryMode() {
+        for (int count : new int[]{1, 16, 17, 2000}) {
+            List<WidgetEntity> widgets = randomWidgets(count);
+            PackedRectangleRTree<WidgetEntity> tree = build(widgets, 4);
+            assertEquals(count, tree.size());
+            for (QueryMode mode : QueryMode.values()) {
+                for (int offset = 0; offset < 2000; offset += 250) {
+                    var searchArea = new SearchArea(offset, offset, offset + 500, offset + 500, mode);
+                    assertEquals(idsOf(filter(widgets, searchArea)), search(tree, searchArea));
+                }
+            }
+            var zRangeArea = SearchArea.builder().minX(0).maxX(1000).minZ(400).maxZ(800).build();
+            assertEquals(idsOf(filter(widgets, zRangeArea)), search(tree, zRangeArea));
+            assertEquals(idsOf(widgets), search(tree, new SearchArea()));
+        }
+    }
+
+    @Test
+    void verifyEmptyTreeFindsNothing() {
+        PackedRectangleRTree<WidgetEntity> tree = build(List.of(), 16);
+        assertEquals(0, tree.size());
+        assertTrue(search(tree, new SearchArea()).isEmpty());
+        assertTrue(tree.searchTopmostAtPoint(0, 0, 10).isEmpty());
+        assertTrue(tree.searchNearest(0, 0, 0, 0, 10).isEmpty());
+        assertTrue(tree.searchOverlappingPairs(new SearchArea(), (bottom, top) -> false));
+        assertThrows(IllegalArgumentException.class, () -> build(List.of(), 1));
+    }
+
+    @Test
+    void verifySearchTopmostAtPointReturnsEntriesOrderedByZDescending() {
+        List<WidgetEntity> widgets = randomWidgets(1000);
+        PackedRectangleRTree<WidgetEntity> tree = build(widgets, 16);
+        for (int point = 0; point < 2000; point += 100) {
+            int x = point, y = point;
+            List<WidgetEntity> expected = widgets.stream()
+                    .filter(w -> w.containsPoint(x, y))
+                    .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                    .limit(5)
+                    .collect(Collectors.toList());
+            assertEquals(expected, tree.searchTopmostAtPoint(x, y, 5));
+        }
+    }
+
+    @Test
+    void verifySearchNearestReturnsEntriesOrderedByDistance() {
+        List<WidgetEntity> widgets = randomWidgets(300);
+        PackedRectangleRTree<WidgetEntity> tree = build(widgets, 8);
+        int[][] rectangles = {{0, 0, 0, 0}, {500, 500, 520, 520}, {-5000, 3000, -5000, 3000}, {1000, -20, 1300, 50}};
+        for (int[] r : rectangles) {
+            List<WidgetEntity> expected = widgets.stream()
+                    .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(r[0], r[1], r[2], r[3]))
+                            .thenComparing(WidgetEntity::getZ))
+                    .limit(100)
+                    .collect(Collectors.toList());
+            assertEquals(expected, tree.searchNearest(r[0], r[1], r[2], r[3], 100));
+        }
+        assertEquals(300, tree.searchNearest(0, 0, 0, 0, 1000).size());
+    }
+
+    @Test
+    void verifySearchOverlappingPairsFindsEachPairOnce() {
+        List<WidgetEntity> widgets = randomWidgets(500);
+        PackedRectangleRTree<WidgetEntity> tree = build(widgets, 4);
+        var searchArea = new SearchArea(0, 0, 1500, 1500, QueryMode.INTERSECTS);
+        assertEquals(expectedPairs(widgets, searchArea), searchPairs(tree, searchArea));
+        assertEquals(expectedPairs(widgets, new SearchArea()), searchPairs(tree, new SearchArea()));
+
+        List<String> firstPair = new ArrayList<>();
+        assertFalse(tree.searchOverlappingPairs(new SearchArea(), (bottom, top) -> {
+            assertTrue(bottom.getZ() < top.getZ());
+            firstPair.add(bottom.getId());
+            return false;
+        }));
+        assertEquals(1, firstPair.size());
+    }
+
+    private PackedRectangleRTree<WidgetEntity> build(List<WidgetEntity> widgets, int nodeSize) {
+        return PackedRectangleRTree.build(widgets.stream().map(this::toEntryNode).collect(Collectors.toList()), nodeSize);
+    }
+
+    private List<WidgetEntity> randomWidgets(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(z -> {
+                    int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+                    var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + TestObjectsFactory.randomInt() / 4, minY + TestObjectsFactory.randomInt() / 4);
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity widget) {
+        var node = new EntryNode<>(widget);
+        node.setDimensions(widget);
+        node.setZ(widget.getZ());
+        return node;
+    }
+
+    private List<WidgetEntity> filter(List<WidgetEntity> widgets, SearchArea searchArea) {
+        return widgets.stream().filter(searchArea::matches).collect(Collectors.toList());
+    }
+
+    private Set<String> search(PackedRectangleRTree<WidgetEntity> tree, SearchArea searchArea) {
+        List<WidgetEntity> found = new ArrayList<>();
+        assertTrue(tree.search(searchArea, found::add));
+        return idsOf(found);
+    }
+
+    private Set<String> searchPairs(PackedRectangleRTree<WidgetEntity> tree, SearchArea searchArea) {
+        Set<String> pairs = new HashSet<>();
+        tree.searchOverlappingPairs(searchArea, (bottom, top) -> {
+            assertTrue(pairs.add(bottom.getId() + ":" + top.getId()));
+            return true;
+        });
+        return pairs;
+    }
+
+    private Set<String> expectedPairs(List<WidgetEntity> widgets, SearchArea searchArea) {
+        List<WidgetEntity> matching = filter(widgets, searchArea);
+        Set<String> pairs = new HashSet<>();
+        for (WidgetEntity bottom : matching) {
+            for (WidgetEntity top : matching) {
+                if (bottom.getZ() < top.getZ()
+                        && bottom.getMinX() < top.getMaxX() && top.getMinX() < bottom.getMaxX()
+                        && bottom.getMinY() < top.getMaxY() && top.getMinY() < bottom.getMaxY()) {
+                    pairs.add(bottom.getId() + ":" + top.getId());
+                }
+            }
+        }
+        return pairs;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+}
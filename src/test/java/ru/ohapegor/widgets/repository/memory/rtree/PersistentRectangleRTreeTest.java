@@ -0,0 +1,109 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.SearchArea;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PersistentRectangleRTreeTest {
+
+    private final PersistentRectangleRTree<WidgetEntity> emptyTree = PersistentRectangleRTree.empty(2, 5);
+
+    @Test
+    void verifyModificationsDoNotChangeOriginalTree() {
+        List<WidgetEntity> widgets = randomWidgets(1000);
+        PersistentRectangleRTree<WidgetEntity> tree = emptyTree;
+        for (WidgetEntity widget : widgets.subList(0, 500)) {
+            tree = tree.insert(toEntryNode(widget));
+        }
+        PersistentRectangleRTree<WidgetEntity> snapshot = tree;
+        Set<String> snapshotIds = idsOf(snapshot.search(new SearchArea()));
+
+        for (WidgetEntity widget : widgets.subList(500, 1000)) {
+            tree = tree.insert(toEntryNode(widget));
+        }
+        for (WidgetEntity widget : widgets.subList(0, 300)) {
+            tree = tree.delete(widget.getId(), widget);
+        }
+
+        assertEquals(idsOf(widgets.subList(0, 500)), snapshotIds);
+        assertEquals(snapshotIds, idsOf(snapshot.search(new SearchArea())));
+        assertEquals(500, snapshot.size());
+        assertEquals(idsOf(widgets.subList(300, 1000)), idsOf(tree.search(new SearchArea())));
+        assertEquals(700, tree.size());
+        assertTrue(emptyTree.search(new SearchArea()).isEmpty());
+    }
+
+    @Test
+    void verifySearchResultsMatchFilteredWidgets() {
+        List<WidgetEntity> widgets = randomWidgets(2000);
+        PersistentRectangleRTree<WidgetEntity> tree = emptyTree.bulkLoad(widgets.subList(0, 1000).stream()
+                .map(this::toEntryNode)
+                .collect(Collectors.toList()));
+        for (WidgetEntity widget : widgets.subList(1000, 2000)) {
+            tree = tree.insert(toEntryNode(widget));
+        }
+        for (WidgetEntity widget : widgets.subList(500, 1500)) {
+            tree = tree.delete(widget.getId(), widget);
+        }
+        assertSame(tree, tree.delete("unknown", widgets.get(0)));
+        List<WidgetEntity> remaining = new ArrayList<>(widgets.subList(0, 500));
+        remaining.addAll(widgets.subList(1500, 2000));
+
+        for (int offset = 0; offset < 2000; offset += 250) {
+            var searchArea = new SearchArea(offset, offset, offset + 1000, offset + 1000);
+            List<WidgetEntity> expected = remaining.stream()
+                    .filter(searchArea::includes)
+                    .sorted(Comparator.comparing(WidgetEntity::getZ))
+                    .collect(Collectors.toList());
+            assertEquals(idsOf(expected), idsOf(tree.search(searchArea)));
+            assertEquals(expected.size(), tree.count(searchArea));
+            assertEquals(expected.subList(0, Math.min(50, expected.size())), tree.searchFirstByZ(searchArea, 50));
+        }
+
+        var zRangeArea = SearchArea.builder().minZ(200).maxZ(1700).build();
+        List<WidgetEntity> expectedInZRange = remaining.stream()
+                .filter(zRangeArea::matches)
+                .collect(Collectors.toList());
+        assertEquals(idsOf(expectedInZRange), idsOf(tree.search(zRangeArea)));
+        assertEquals(expectedInZRange.size(), tree.count(zRangeArea));
+    }
+
+    private List<WidgetEntity> randomWidgets(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(z -> {
+                    int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+                    var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + TestObjectsFactory.randomInt(), minY + TestObjectsFactory.randomInt());
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity widget) {
+        var node = new EntryNode<>(widget);
+        node.setDimensions(widget);
+        node.setZ(widget.getZ());
+        return node;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+}
@@ -0,0 +1,49 @@
+package ru.ohapegor.widgets.repository.memory.rtree;
+
+import org.junit.jupiter.api.Test;
+import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.WidgetEntity;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RTreeCalibratorTest {
+
+    @Test
+    void verifyEveryConfigurationIsMeasuredAndSortedByCost() {
+        List<WidgetEntity> sample = IntStream.range(0, 500)
+                .mapToObj(i -> TestObjectsFactory.randomWidget())
+                .collect(Collectors.toList());
+        List<InsertionStrategy> strategies = List.of(InsertionStrategy.GUTTMAN_LINEAR, InsertionStrategy.R_STAR);
+
+        List<RTreeCalibrator.Measurement> measurements = RTreeCalibrator.calibrate(sample, strategies, 10);
+
+        assertEquals(strategies.size() * RTreeCalibrator.MAX_ENTRIES_CANDIDATES.size(), measurements.size());
+        for (int i = 0; i < measurements.size(); i++) {
+            var measurement = measurements.get(i);
+            assertTrue(strategies.contains(measurement.getInsertionStrategy()));
+            assertTrue(measurement.getMinEntries() < measurement.getMaxEntries());
+            assertEquals(measurement.getInsertNanos() + 10 * measurement.getSearchNanos(), measurement.getCost(), 1e-6);
+            if (i > 0) {
+                assertTrue(measurements.get(i - 1).getCost() <= measurement.getCost());
+            }
+        }
+    }
+
+    @Test
+    void verifyChosenConfigurationsAreValidForHilbertRTree() {
+        for (int maxEntries : RTreeCalibrator.MAX_ENTRIES_CANDIDATES) {
+            new RectangleRTree<WidgetEntity>(RTreeCalibrator.minEntriesFor(maxEntries), maxEntries, InsertionStrategy.HILBERT);
+        }
+        List<RTreeCalibrator.Measurement> measurements = RTreeCalibrator.calibrate(
+                List.of(TestObjectsFactory.randomWidget()), List.of(InsertionStrategy.HILBERT), 0);
+        measurements.forEach(m -> assertEquals(InsertionStrategy.HILBERT, m.getInsertionStrategy()));
+        assertThrows(IllegalArgumentException.class,
+                () -> RTreeCalibrator.calibrate(List.of(), List.of(InsertionStrategy.R_STAR), 1));
+    }
+}
@@ -1,17 +1,35 @@
 package ru.ohapegor.widgets.repository.memory.rtree;
 
+import org.junit.jupiter.api.Tag;
 import org.junit.jupiter.api.Test;
 import ru.ohapegor.widgets.TestObjectsFactory;
+import ru.ohapegor.widgets.model.QueryMode;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
 
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 class RectangleRTreeTest {
 
@@ -69,7 +87,7 @@ class RectangleRTreeTest {
 
         //verify search widgets returns correct result after deletion of half widgets inside area
         widgetsToDelete.forEach((id, widget) -> {
-                    tree.deleteEntry(id, widget);
+                    tree.deleteEntry(id);
                     widgetsInsideArea.remove(id);
                 }
         );
@@ -94,8 +112,763 @@ class RectangleRTreeTest {
 
         assertEquals(sawedWidgets.size(), tree.search(infiniteSearchArea).size());
 
-        sawedWidgets.forEach(w -> assertTrue(tree.deleteEntry(w.getId(), w)));
+        sawedWidgets.forEach(w -> assertTrue(tree.deleteEntry(w.getId())));
         assertEquals(0, tree.search(infiniteSearchArea).size());
     }
 
-}
\ No newline at end of file
+    @Test
+    void verifyStackedAndDegenerateEntriesCanBeDeletedById() {
+        List<WidgetEntity> widgets = Stream.generate(() -> TestObjectsFactory.randomWidgetWithCoords(3, 3, 3, 3))
+                .limit(maxEntries * 4L)
+                .collect(Collectors.toList());
+        widgets.addAll(Stream.generate(() -> TestObjectsFactory.randomWidgetWithCoords(0, 0, 10, 10))
+                .limit(maxEntries * 4L)
+                .collect(Collectors.toList()));
+        widgets.forEach(w -> {
+            var node = new EntryNode<>(w);
+            node.setDimensions(w);
+            tree.insert(node);
+        });
+
+        assertFalse(tree.deleteEntry("unknown"));
+        widgets.forEach(w -> assertTrue(tree.deleteEntry(w.getId())));
+        widgets.forEach(w -> assertFalse(tree.deleteEntry(w.getId())));
+        assertEquals(0, tree.search(new SearchArea()).size());
+    }
+
+    @Test
+    void verifyBulkLoadedTreeFindsSameEntriesAsIncrementallyBuilt() {
+        List<WidgetEntity> widgets = randomWidgets(1000);
+
+        var bulkLoadedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries);
+        bulkLoadedTree.bulkLoad(widgets.stream().map(this::toEntryNode).collect(Collectors.toList()));
+        widgets.forEach(w -> tree.insert(toEntryNode(w)));
+
+        var searchAreas = List.of(
+                new SearchArea(),
+                new SearchArea(0, 0, 500, 500),
+                new SearchArea(250, 250, 1000, 1000),
+                new SearchArea(500, 0, 2000, 1500)
+        );
+        for (SearchArea searchArea : searchAreas) {
+            assertEquals(idsOf(tree.search(searchArea)), idsOf(bulkLoadedTree.search(searchArea)));
+        }
+
+        //verify bulk loaded tree stays consistent after modifications
+        var infiniteSearchArea = new SearchArea();
+        widgets.subList(0, 500).forEach(w -> assertTrue(bulkLoadedTree.deleteEntry(w.getId())));
+        assertEquals(idsOf(widgets.subList(500, 1000)), idsOf(bulkLoadedTree.search(infiniteSearchArea)));
+        widgets.subList(0, 500).forEach(w -> bulkLoadedTree.insert(toEntryNode(w)));
+        assertEquals(idsOf(widgets), idsOf(bulkLoadedTree.search(infiniteSearchArea)));
+    }
+
+    /**
+     * 31 entries are packed into slices of 15, 15 and 1 entries, 2801 entries - into slices of 400 and 1 entry.
+     */
+    @Test
+    void verifyBulkLoadedNodesHoldAtLeastMinEntries() {
+        for (int count = 1; count <= 300; count++) {
+            verifyBulkLoadedNodesAreFilled(new RectangleRTree<>(minEntries, maxEntries), randomWidgets(count));
+        }
+        verifyBulkLoadedNodesAreFilled(new RectangleRTree<>(3, 5), randomWidgets(31));
+        verifyBulkLoadedNodesAreFilled(new RectangleRTree<>(20, 50), randomWidgets(2801));
+    }
+
+    private void verifyBulkLoadedNodesAreFilled(RectangleRTree<WidgetEntity> testedTree, List<WidgetEntity> widgets) {
+        testedTree.bulkLoad(widgets.stream().map(this::toEntryNode).collect(Collectors.toList()));
+        assertNodeIsConsistent(testedTree.getRoot());
+        assertNodesAreFilled(testedTree.getRoot(), testedTree.getRoot(), testedTree.getMinEntries(), testedTree.getMaxEntries());
+        assertEquals(idsOf(widgets), idsOf(testedTree.search(new SearchArea())));
+    }
+
+    private void assertNodesAreFilled(TreeNode<WidgetEntity> node, TreeNode<WidgetEntity> root, int min, int max) {
+        assertTrue(node.getSize() <= max);
+        if (node != root) {
+            assertTrue(node.getSize() >= min, () -> "node has " + node.getSize() + " children");
+        }
+        if (!node.isLeaf()) {
+            node.getChildNodes().forEach(child -> assertNodesAreFilled((TreeNode<WidgetEntity>) child, root, min, max));
+        }
+    }
+
+    @Test
+    void verifyBulkLoadReplacesTreeContent() {
+        var oldWidget = TestObjectsFactory.randomWidgetWithCoords(0, 0, 5, 5);
+        var newWidget = TestObjectsFactory.randomWidgetWithCoords(0, 0, 5, 5);
+        tree.insert(toEntryNode(oldWidget));
+
+        tree.bulkLoad(List.of(toEntryNode(newWidget)));
+
+        List<WidgetEntity> found = tree.search(new SearchArea());
+        assertEquals(1, found.size());
+        assertEquals(newWidget.getId(), found.get(0).getId());
+    }
+
+    @Test
+    void verifyRStarTreeFindsSameEntriesAsGuttmanTree() {
+        var rStarTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, InsertionStrategy.R_STAR);
+        //clustered widgets produce heavily overlapping nodes with linear split, fixed seed keeps comparison stable
+        var random = new Random(42);
+        List<WidgetEntity> widgets = Stream.generate(() -> {
+                    int clusterOffset = random.nextInt(4) * 1000;
+                    int minX = clusterOffset + random.nextInt(100);
+                    int minY = clusterOffset + random.nextInt(100);
+                    return TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + random.nextInt(100) + 1, minY + random.nextInt(100) + 1);
+                })
+                .limit(2000)
+                .collect(Collectors.toList());
+        widgets.forEach(w -> {
+            tree.insert(toEntryNode(w));
+            rStarTree.insert(toEntryNode(w));
+        });
+        widgets.subList(0, 500).forEach(w -> assertTrue(rStarTree.deleteEntry(w.getId())));
+        widgets.subList(0, 500).forEach(w -> assertTrue(tree.deleteEntry(w.getId())));
+
+        long guttmanVisits = 0, rStarVisits = 0;
+        for (int offset = 0; offset < 4000; offset += 250) {
+            var searchArea = new SearchArea(offset, offset, offset + 250, offset + 250);
+            assertEquals(idsOf(tree.search(searchArea)), idsOf(rStarTree.search(searchArea)));
+            guttmanVisits += countVisitedNodes(tree.getRoot(), searchArea);
+            rStarVisits += countVisitedNodes(rStarTree.getRoot(), searchArea);
+        }
+        assertEquals(idsOf(widgets.subList(500, 2000)), idsOf(rStarTree.search(new SearchArea())));
+        assertTrue(rStarVisits < guttmanVisits,
+                "r* tree visited " + rStarVisits + " nodes, guttman tree - " + guttmanVisits);
+    }
+
+    @Test
+    void verifyHilbertTreeKeepsChildrenOrderedByHilbertValue() {
+        var hilbertTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, InsertionStrategy.HILBERT);
+        var bulkLoadedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, InsertionStrategy.HILBERT);
+        List<WidgetEntity> widgets = randomWidgets(2000);
+        widgets.forEach(w -> {
+            tree.insert(toEntryNode(w));
+            hilbertTree.insert(toEntryNode(w));
+        });
+        bulkLoadedTree.bulkLoad(widgets.stream().map(this::toEntryNode).collect(Collectors.toList()));
+        for (WidgetEntity widget : widgets.subList(0, 1500)) {
+            assertTrue(tree.deleteEntry(widget.getId()));
+            assertTrue(hilbertTree.deleteEntry(widget.getId()));
+            assertTrue(bulkLoadedTree.deleteEntry(widget.getId()));
+        }
+        for (WidgetEntity widget : widgets.subList(0, 700)) {
+            tree.insert(toEntryNode(widget));
+            hilbertTree.insert(toEntryNode(widget));
+            bulkLoadedTree.insert(toEntryNode(widget));
+        }
+
+        for (RectangleRTree<WidgetEntity> testedTree : List.of(hilbertTree, bulkLoadedTree)) {
+            assertNodeIsConsistent(testedTree.getRoot());
+            assertHilbertOrderIsKept(testedTree.getRoot());
+            assertEquals(1, leafDepths(testedTree.getRoot(), 0).distinct().count());
+            for (int offset = 0; offset < 2000; offset += 250) {
+                var searchArea = new SearchArea(offset, offset, offset + 500, offset + 500);
+                assertEquals(idsOf(tree.search(searchArea)), idsOf(testedTree.search(searchArea)));
+            }
+            assertEquals(1200, testedTree.count(new SearchArea()));
+        }
+    }
+
+    @Test
+    void verifyHilbertTreeRequiresHalfFilledNodes() {
+        assertThrows(IllegalArgumentException.class, () -> new RectangleRTree<WidgetEntity>(4, 6, InsertionStrategy.HILBERT));
+        new RectangleRTree<WidgetEntity>(3, 5, InsertionStrategy.HILBERT);
+    }
+
+    @Test
+    void verifyHilbertValuesFollowCurve() {
+        //quadrants of the first order curve are visited in order: lower left, upper left, upper right, lower right
+        long lowerLeft = RectangleRTree.hilbertValue(TestObjectsFactory.randomWidgetWithCoords(-10, -10, -10, -10));
+        long upperLeft = RectangleRTree.hilbertValue(TestObjectsFactory.randomWidgetWithCoords(-10, 10, -10, 10));
+        long upperRight = RectangleRTree.hilbertValue(TestObjectsFactory.randomWidgetWithCoords(10, 10, 10, 10));
+        long lowerRight = RectangleRTree.hilbertValue(TestObjectsFactory.randomWidgetWithCoords(10, -10, 10, -10));
+        assertTrue(Long.compareUnsigned(lowerLeft, upperLeft) < 0);
+        assertTrue(Long.compareUnsigned(upperLeft, upperRight) < 0);
+        assertTrue(Long.compareUnsigned(upperRight, lowerRight) < 0);
+        assertEquals(0, RectangleRTree.hilbertValue(
+                TestObjectsFactory.randomWidgetWithCoords(Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE)));
+        assertEquals(-1, RectangleRTree.hilbertValue(
+                TestObjectsFactory.randomWidgetWithCoords(Integer.MAX_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MIN_VALUE)));
+    }
+
+    /**
+     * Mixed load of dragged widgets: each step moves one widget by deleting and inserting it again
+     * and searches widgets around another one.
+     */
+    @Test
+    void verifyMixedReadWriteLoadFindsMovedWidgets() {
+        List<WidgetEntity> widgets = randomWidgets(2000);
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(2, 50, strategy);
+            List<WidgetEntity> moved = widgets.stream().map(WidgetEntity::clone).collect(Collectors.toList());
+            moved.forEach(w -> testedTree.insert(toEntryNode(w)));
+            var random = new Random(42);
+            for (int step = 0; step < 1000; step++) {
+                WidgetEntity widget = moved.get(random.nextInt(moved.size()));
+                assertTrue(testedTree.deleteEntry(widget.getId()));
+                widget.setX(widget.getX() + random.nextInt(21) - 10);
+                widget.setY(widget.getY() + random.nextInt(21) - 10);
+                testedTree.insert(toEntryNode(widget));
+                WidgetEntity target = moved.get(random.nextInt(moved.size()));
+                var searchArea = new SearchArea(target.getMinX() - 50, target.getMinY() - 50,
+                        target.getMaxX() + 50, target.getMaxY() + 50, QueryMode.INTERSECTS);
+                Set<String> expected = moved.stream()
+                        .filter(searchArea::matches)
+                        .map(WidgetEntity::getId)
+                        .collect(Collectors.toSet());
+                if (step % 10 == 0) {
+                    assertEquals(expected, idsOf(testedTree.search(searchArea)));
+                } else {
+                    assertEquals(expected.size(), testedTree.count(searchArea));
+                }
+            }
+            assertNodeIsConsistent(testedTree.getRoot());
+        }
+    }
+
+    /**
+     * Same mixed load as {@link #verifyMixedReadWriteLoadFindsMovedWidgets()} on bigger tree, prints time taken
+     * by each insertion strategy. Excluded from default build, run with {@code mvn test -Pbenchmark}.
+     */
+    @Test
+    @Tag("benchmark")
+    void benchmarkMixedReadWriteLoad() {
+        List<WidgetEntity> widgets = randomWidgets(20_000);
+        int steps = 10_000;
+        Map<InsertionStrategy, List<Set<String>>> foundIds = new EnumMap<>(InsertionStrategy.class);
+        for (int round = 0; round < 3; round++) { // first rounds warm up JIT
+            for (InsertionStrategy strategy : InsertionStrategy.values()) {
+                var testedTree = new RectangleRTree<WidgetEntity>(2, 50, strategy);
+                List<WidgetEntity> moved = widgets.stream().map(WidgetEntity::clone).collect(Collectors.toList());
+                moved.forEach(w -> testedTree.insert(toEntryNode(w)));
+                var random = new Random(42);
+                List<Set<String>> found = new ArrayList<>();
+                long start = System.nanoTime();
+                for (int step = 0; step < steps; step++) {
+                    WidgetEntity widget = moved.get(random.nextInt(moved.size()));
+                    testedTree.deleteEntry(widget.getId());
+                    widget.setX(widget.getX() + random.nextInt(21) - 10);
+                    widget.setY(widget.getY() + random.nextInt(21) - 10);
+                    testedTree.insert(toEntryNode(widget));
+                    WidgetEntity target = moved.get(random.nextInt(moved.size()));
+                    var searchArea = new SearchArea(target.getMinX() - 50, target.getMinY() - 50,
+                            target.getMaxX() + 50, target.getMaxY() + 50, QueryMode.INTERSECTS);
+                    if (step % 100 == 0) {
+                        found.add(idsOf(testedTree.search(searchArea)));
+                    } else {
+                        testedTree.count(searchArea);
+                    }
+                }
+                Duration duration = Duration.ofNanos(System.nanoTime() - start);
+                System.out.printf("round %d, %s: %d moves and searches took %d ms%n",
+                        round, strategy, steps, duration.toMillis());
+                foundIds.put(strategy, found);
+            }
+        }
+        foundIds.values().forEach(found -> assertEquals(foundIds.get(InsertionStrategy.GUTTMAN_LINEAR), found));
+    }
+
+    @Test
+    void verifyPackedChildBoundsStayConsistentWithChildren() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(500);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            widgets.subList(0, 250).forEach(w -> assertTrue(testedTree.deleteEntry(w.getId())));
+            assertNodeIsConsistent(testedTree.getRoot());
+        }
+    }
+
+    @Test
+    void verifyUpdateMovesEntriesKeepingTreeConsistent() {
+        var random = new Random();
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(500);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            for (int step = 0; step < 2000; step++) {
+                WidgetEntity widget = widgets.get(random.nextInt(widgets.size()));
+                //mostly small drag steps, sometimes jumps far away
+                int shift = step % 10 == 0 ? random.nextInt(4000) - 2000 : random.nextInt(7) - 3;
+                widget.setX(widget.getX() + shift);
+                widget.setY(widget.getY() - shift);
+                widget.setZ(widget.getZ() + widgets.size());
+                assertTrue(testedTree.update(widget.getId(), widget, widget.getZ()));
+            }
+            assertFalse(testedTree.update("unknown", widgets.get(0), 0));
+
+            assertNodeIsConsistent(testedTree.getRoot());
+            if (strategy == InsertionStrategy.HILBERT) {
+                assertHilbertOrderIsKept(testedTree.getRoot());
+            }
+            for (int offset = -2000; offset < 3000; offset += 500) {
+                var searchArea = new SearchArea(offset, offset, offset + 1000, offset + 1000);
+                assertEquals(idsOf(widgets.stream().filter(searchArea::matches).collect(Collectors.toList())),
+                        idsOf(testedTree.search(searchArea)));
+            }
+            var zRangeArea = SearchArea.builder().minZ(500).maxZ(1500).build();
+            assertEquals(idsOf(widgets.stream().filter(zRangeArea::matches).collect(Collectors.toList())),
+                    idsOf(testedTree.search(zRangeArea)));
+        }
+    }
+
+    @Test
+    void verifyLooseTreeMatchesEntriesByExactDimensions() {
+        var random = new Random();
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var looseTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            looseTree.enableLooseBounds(50);
+            List<WidgetEntity> widgets = randomWidgets(500);
+            widgets.subList(0, 250).forEach(w -> looseTree.insert(toEntryNode(w)));
+            widgets.subList(250, 500).forEach(w -> looseTree.insert(toEntryNode(w)));
+            assertThrows(IllegalStateException.class, () -> looseTree.enableLooseBounds(10));
+
+            //move inside enlarged bounds doesn't change the tree
+            WidgetEntity dragged = widgets.get(0);
+            var rootBounds = List.of(looseTree.getRoot().getMinX(), looseTree.getRoot().getMinY(),
+                    looseTree.getRoot().getMaxX(), looseTree.getRoot().getMaxY());
+            TreeNode<WidgetEntity> leaf = findLeaf(looseTree.getRoot(), dragged.getId());
+            dragged.setX(dragged.getX() + 30);
+            assertTrue(looseTree.update(dragged.getId(), dragged, dragged.getZ()));
+            assertSame(leaf, findLeaf(looseTree.getRoot(), dragged.getId()));
+            assertEquals(rootBounds, List.of(looseTree.getRoot().getMinX(), looseTree.getRoot().getMinY(),
+                    looseTree.getRoot().getMaxX(), looseTree.getRoot().getMaxY()));
+
+            for (int step = 0; step < 2000; step++) {
+                WidgetEntity widget = widgets.get(random.nextInt(widgets.size()));
+                int shift = step % 10 == 0 ? random.nextInt(4000) - 2000 : random.nextInt(21) - 10;
+                widget.setX(widget.getX() + shift);
+                widget.setY(widget.getY() + shift);
+                if (step % 3 == 0) {
+                    widget.setZ(widget.getZ() + widgets.size());
+                }
+                assertTrue(looseTree.update(widget.getId(), widget, widget.getZ()));
+            }
+            assertNodeIsConsistent(looseTree.getRoot());
+
+            for (QueryMode mode : QueryMode.values()) {
+                for (int offset = -2000; offset < 3000; offset += 500) {
+                    var searchArea = new SearchArea(offset, offset, offset + 1000, offset + 1000, mode);
+                    List<WidgetEntity> expected = widgets.stream().filter(searchArea::matches).collect(Collectors.toList());
+                    assertEquals(idsOf(expected), idsOf(looseTree.search(searchArea)));
+                    assertEquals(expected.size(), looseTree.count(searchArea));
+                    assertEquals(expected.stream().sorted(Comparator.comparing(WidgetEntity::getZ)).limit(20)
+                            .collect(Collectors.toList()), looseTree.searchFirstByZ(searchArea, 20));
+                }
+            }
+            for (int point = -500; point < 2500; point += 100) {
+                int x = point, y = point;
+                assertEquals(widgets.stream()
+                        .filter(w -> w.containsPoint(x, y))
+                        .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                        .collect(Collectors.toList()), looseTree.searchTopmostAtPoint(x, y, widgets.size()));
+            }
+            assertEquals(widgets.stream()
+                    .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(500, 500, 510, 510))
+                            .thenComparing(WidgetEntity::getZ))
+                    .limit(50)
+                    .collect(Collectors.toList()), looseTree.searchNearest(500, 500, 510, 510, 50));
+
+            Set<String> expectedPairs = new HashSet<>();
+            for (WidgetEntity bottom : widgets) {
+                for (WidgetEntity top : widgets) {
+                    if (bottom.getZ() < top.getZ() && RectangleRTree.overlaps(bottom.getMinX(), bottom.getMinY(),
+                            bottom.getMaxX(), bottom.getMaxY(), top.getMinX(), top.getMinY(), top.getMaxX(), top.getMaxY())) {
+                        expectedPairs.add(bottom.getId() + ":" + top.getId());
+                    }
+                }
+            }
+            Set<String> pairs = new HashSet<>();
+            looseTree.searchOverlappingPairs(new SearchArea(), (bottom, top) -> {
+                assertTrue(pairs.add(bottom.getId() + ":" + top.getId()));
+                return true;
+            });
+            assertEquals(expectedPairs, pairs);
+        }
+    }
+
+    @Test
+    void verifyQualityOfBulkLoadedTreeIsBetterThanOfDegradedOne() {
+        assertEquals(new RTreeQuality(0, 0, 0, 1, 0), tree.measureQuality());
+
+        List<WidgetEntity> widgets = randomWidgets(3000);
+        //small widgets, so that overlap is caused by tree structure rather than by data
+        widgets.forEach(w -> {
+            w.setWidth(w.getWidth() / 20);
+            w.setHeight(w.getHeight() / 20);
+        });
+        widgets.forEach(w -> tree.insert(toEntryNode(w)));
+        widgets.subList(0, 2500).forEach(w -> assertTrue(tree.deleteEntry(w.getId())));
+        widgets.subList(0, 1000).forEach(w -> tree.insert(toEntryNode(w)));
+        var bulkLoadedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries);
+        bulkLoadedTree.bulkLoad(widgets.subList(0, 1000).stream().map(this::toEntryNode).collect(Collectors.toList()));
+        bulkLoadedTree.bulkLoad(widgets.subList(1000, 2500).stream().map(this::toEntryNode).collect(Collectors.toList()));
+
+        RTreeQuality degraded = tree.measureQuality();
+        RTreeQuality packed = bulkLoadedTree.measureQuality();
+        assertEquals(1500, degraded.getEntryCount());
+        assertEquals(1500, packed.getEntryCount());
+        assertEquals(packed.minimalHeight(maxEntries), packed.getHeight());
+        assertTrue(degraded.getHeight() >= packed.getHeight());
+        assertTrue(degraded.getNodeCount() > packed.getNodeCount());
+        assertTrue(degraded.getFillFactor() < packed.getFillFactor());
+        assertTrue(packed.getFillFactor() > 0.9 && packed.getFillFactor() <= 1);
+        assertTrue(degraded.getOverlapRatio() > packed.getOverlapRatio());
+    }
+
+    @Test
+    void verifyInsertProducesNoGarbage() {
+        var threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+        threadMXBean.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        var testedTree = new RectangleRTree<WidgetEntity>(2, 50);
+        List<EntryNode<WidgetEntity>> entryNodes = randomWidgets(60_000).stream()
+                .map(this::toEntryNode)
+                .collect(Collectors.toList());
+        //warm up to reach steady state
+        for (int i = 0; i < 20_000; i++) {
+            testedTree.insert(entryNodes.get(i));
+        }
+
+        //measure how much memory single tree node occupies
+        @SuppressWarnings("unchecked")
+        TreeNode<WidgetEntity>[] sampleNodes = new TreeNode[100];
+        long sampleStart = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < sampleNodes.length; i++) {
+            sampleNodes[i] = new TreeNode<>(true, 51);
+        }
+        long treeNodeBytes = (threadMXBean.getThreadAllocatedBytes(threadId) - sampleStart) / sampleNodes.length;
+
+        //measure how much memory id handles of inserted entries occupy
+        Map<String, EntryNode<WidgetEntity>> sampleHandles = new HashMap<>();
+        entryNodes.subList(0, 20_000).forEach(node -> sampleHandles.put(node.getEntry().getId(), node));
+        long handlesStart = threadMXBean.getThreadAllocatedBytes(threadId);
+        entryNodes.subList(20_000, entryNodes.size()).forEach(node -> sampleHandles.put(node.getEntry().getId(), node));
+        long handlesBytes = threadMXBean.getThreadAllocatedBytes(threadId) - handlesStart;
+
+        long treeNodesBefore = countTreeNodes(testedTree.getRoot());
+        long allocationStart = threadMXBean.getThreadAllocatedBytes(threadId);
+        for (int i = 20_000; i < entryNodes.size(); i++) {
+            testedTree.insert(entryNodes.get(i));
+        }
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - allocationStart;
+        long createdTreeNodes = countTreeNodes(testedTree.getRoot()) - treeNodesBefore;
+
+        //the only allocations allowed are new nodes created by splits and id handles, which all stay in the tree
+        long allocationBudget = createdTreeNodes * treeNodeBytes + handlesBytes + 1024;
+        assertTrue(allocatedBytes <= allocationBudget, String.format(
+                "allocated %d bytes for 40000 inserts, but budget is %d bytes for %d created nodes",
+                allocatedBytes, allocationBudget, createdTreeNodes));
+    }
+
+    @Test
+    void verifySearchFirstByZReturnsEntriesOrderedByZ() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            widgets.subList(0, 200).forEach(w -> assertTrue(testedTree.deleteEntry(w.getId())));
+            //move some widgets to the top without changing their positions in tree
+            widgets.subList(900, 1000).forEach(w -> {
+                w.setZ(-w.getZ());
+                assertTrue(testedTree.updateZ(w.getId(), w.getZ()));
+            });
+            assertNodeIsConsistent(testedTree.getRoot());
+
+            var searchArea = new SearchArea(0, 0, 1000, 1000);
+            List<WidgetEntity> expected = widgets.subList(200, 1000).stream()
+                    .filter(searchArea::includes)
+                    .sorted(Comparator.comparing(WidgetEntity::getZ))
+                    .limit(150)
+                    .collect(Collectors.toList());
+            assertEquals(expected, testedTree.searchFirstByZ(searchArea, 150));
+        }
+        assertTrue(tree.searchFirstByZ(new SearchArea(), 10).isEmpty());
+    }
+
+    @Test
+    void verifySearchTopmostAtPointReturnsEntriesContainingPointOrderedByZDescending() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            widgets.subList(0, 200).forEach(w -> assertTrue(testedTree.deleteEntry(w.getId())));
+            for (int point = 0; point < 2000; point += 100) {
+                int x = point, y = 2000 - point;
+                List<WidgetEntity> expected = widgets.subList(200, 1000).stream()
+                        .filter(w -> w.containsPoint(x, y))
+                        .sorted(Comparator.comparing(WidgetEntity::getZ).reversed())
+                        .limit(20)
+                        .collect(Collectors.toList());
+                assertEquals(expected, testedTree.searchTopmostAtPoint(x, y, 20));
+            }
+            //point on the corner of rectangle
+            WidgetEntity corner = widgets.get(999);
+            assertEquals(List.of(corner), testedTree.searchTopmostAtPoint(corner.getMaxX(), corner.getMaxY(), 1));
+        }
+        assertTrue(tree.searchTopmostAtPoint(0, 0, 10).isEmpty());
+    }
+
+    @Test
+    void verifySearchNearestReturnsEntriesOrderedByDistance() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            widgets.subList(0, 200).forEach(w -> assertTrue(testedTree.deleteEntry(w.getId())));
+            for (int offset = -500; offset < 2500; offset += 250) {
+                int minX = offset, minY = 2000 - offset, maxX = minX + offset % 3 * 10, maxY = minY + offset % 7;
+                List<WidgetEntity> expected = widgets.subList(200, 1000).stream()
+                        .sorted(Comparator.comparingDouble((WidgetEntity w) -> w.squaredDistanceTo(minX, minY, maxX, maxY))
+                                .thenComparing(WidgetEntity::getZ))
+                        .limit(30)
+                        .collect(Collectors.toList());
+                assertEquals(expected, testedTree.searchNearest(minX, minY, maxX, maxY, 30));
+            }
+        }
+        assertTrue(tree.searchNearest(0, 0, 0, 0, 10).isEmpty());
+    }
+
+    @Test
+    void verifySearchOverlappingPairsFindsAllOverlappingEntries() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(500);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            for (SearchArea searchArea : List.of(new SearchArea(), new SearchArea(0, 0, 1000, 1000))) {
+                Set<String> expected = new HashSet<>();
+                for (WidgetEntity first : widgets) {
+                    for (WidgetEntity second : widgets) {
+                        if (first.getZ() < second.getZ() && searchArea.matches(first) && searchArea.matches(second)
+                                && first.getMinX() < second.getMaxX() && second.getMinX() < first.getMaxX()
+                                && first.getMinY() < second.getMaxY() && second.getMinY() < first.getMaxY()) {
+                            expected.add(first.getId() + ":" + second.getId());
+                        }
+                    }
+                }
+                List<String> found = new ArrayList<>();
+                assertTrue(testedTree.searchOverlappingPairs(searchArea, (bottom, top) -> found.add(bottom.getId() + ":" + top.getId())));
+                assertEquals(expected.size(), found.size());
+                assertEquals(expected, new HashSet<>(found));
+            }
+            List<String> firstPairs = new ArrayList<>();
+            assertFalse(testedTree.searchOverlappingPairs(new SearchArea(), (bottom, top) -> firstPairs.add(bottom.getId()) && firstPairs.size() < 10));
+            assertEquals(10, firstPairs.size());
+        }
+    }
+
+    @Test
+    void verifyCountMatchesSearch() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            widgets.subList(0, 300).forEach(w -> assertTrue(testedTree.deleteEntry(w.getId())));
+            assertEquals(700, testedTree.count(new SearchArea()));
+            for (int offset = 0; offset < 2000; offset += 200) {
+                var searchArea = new SearchArea(offset, offset, offset + 1000, offset + 1000);
+                assertEquals(testedTree.search(searchArea).size(), testedTree.count(searchArea));
+            }
+        }
+        assertEquals(0, tree.count(new SearchArea()));
+    }
+
+    @Test
+    void verifySearchMatchesEntriesAccordingToQueryMode() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            for (QueryMode mode : QueryMode.values()) {
+                for (int offset = 0; offset < 2000; offset += 250) {
+                    var searchArea = new SearchArea(offset, offset, offset + 200, offset + 200, mode);
+                    List<WidgetEntity> expected = widgets.stream()
+                            .filter(searchArea::matches)
+                            .sorted(Comparator.comparing(WidgetEntity::getZ))
+                            .collect(Collectors.toList());
+                    assertEquals(idsOf(expected), idsOf(testedTree.search(searchArea)));
+                    assertEquals(expected.size(), testedTree.count(searchArea));
+                    assertEquals(expected.subList(0, Math.min(50, expected.size())), testedTree.searchFirstByZ(searchArea, 50));
+                }
+            }
+        }
+    }
+
+    @Test
+    void verifySearchMatchesEntriesInsideZRange() {
+        for (InsertionStrategy strategy : InsertionStrategy.values()) {
+            var testedTree = new RectangleRTree<WidgetEntity>(minEntries, maxEntries, strategy);
+            List<WidgetEntity> widgets = randomWidgets(1000);
+            widgets.forEach(w -> testedTree.insert(toEntryNode(w)));
+            for (int minZ = 0; minZ < 1000; minZ += 150) {
+                var searchArea = SearchArea.builder()
+                        .minX(0).minY(0).maxX(1500).maxY(1500)
+                        .mode(QueryMode.INTERSECTS)
+                        .minZ(minZ).maxZ(minZ + 200)
+                        .build();
+                List<WidgetEntity> expected = widgets.stream()
+                        .filter(searchArea::matches)
+                        .collect(Collectors.toList());
+                assertEquals(idsOf(expected), idsOf(testedTree.search(searchArea)));
+                assertEquals(expected.size(), testedTree.count(searchArea));
+                assertEquals(expected.subList(0, Math.min(50, expected.size())), testedTree.searchFirstByZ(searchArea, 50));
+            }
+        }
+    }
+
+    @Test
+    void verifyVisitorSearchStopsWhenVisitorReturnsFalse() {
+        List<WidgetEntity> widgets = randomWidgets(500);
+        widgets.forEach(w -> tree.insert(toEntryNode(w)));
+        var searchArea = new SearchArea(0, 0, 1000, 1000);
+        List<WidgetEntity> expected = tree.search(searchArea);
+
+        List<WidgetEntity> visited = new ArrayList<>();
+        assertTrue(tree.search(searchArea, visited::add));
+        assertEquals(expected, visited);
+
+        List<WidgetEntity> firstTen = new ArrayList<>();
+        assertFalse(tree.search(searchArea, widget -> {
+            firstTen.add(widget);
+            return firstTen.size() < 10;
+        }));
+        assertEquals(expected.subList(0, 10), firstTen);
+    }
+
+    @Test
+    void verifyParallelSearchReturnsSameEntriesAsSequential() {
+        List<WidgetEntity> widgets = randomWidgets(5000);
+        widgets.forEach(w -> tree.insert(toEntryNode(w)));
+        var searchArea = new SearchArea(0, 0, 1500, 1500);
+        List<WidgetEntity> sequentialResults = tree.search(searchArea);
+        List<WidgetEntity> sequentialFirstByZ = tree.searchFirstByZ(searchArea, 300);
+
+        var pool = new ForkJoinPool(4);
+        try {
+            tree.enableParallelSearch(pool, 50);
+            assertEquals(sequentialResults, tree.search(searchArea));
+            assertEquals(sequentialFirstByZ, tree.searchFirstByZ(searchArea, 300));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private long countTreeNodes(TreeNode<WidgetEntity> node) {
+        long count = 1;
+        if (!node.isLeaf()) {
+            for (int i = 0; i < node.getSize(); i++) {
+                count += countTreeNodes((TreeNode<WidgetEntity>) node.getChild(i));
+            }
+        }
+        return count;
+    }
+
+    private void assertNodeIsConsistent(TreeNode<WidgetEntity> node) {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE, maxZ = Integer.MIN_VALUE, entryCount = 0;
+        for (int i = 0; i < node.getSize(); i++) {
+            Node<WidgetEntity> child = node.getChild(i);
+            assertSame(node, child.getParent());
+            assertEquals(i, child.getIndexInParent());
+            assertEquals(child.getMinX(), node.getChildMinX()[i]);
+            assertEquals(child.getMinY(), node.getChildMinY()[i]);
+            assertEquals(child.getMaxX(), node.getChildMaxX()[i]);
+            assertEquals(child.getMaxY(), node.getChildMaxY()[i]);
+            assertEquals(child.getMinZ(), node.getChildMinZ()[i]);
+            assertEquals(child.getMaxZ(), node.getChildMaxZ()[i]);
+            assertEquals(child.getEntryCount(), node.getChildEntryCount()[i]);
+            entryCount += child.getEntryCount();
+            minZ = Math.min(minZ, child.getMinZ());
+            maxZ = Math.max(maxZ, child.getMaxZ());
+            minX = Math.min(minX, child.getMinX());
+            minY = Math.min(minY, child.getMinY());
+            maxX = Math.max(maxX, child.getMaxX());
+            maxY = Math.max(maxY, child.getMaxY());
+            if (!node.isLeaf()) {
+                assertNodeIsConsistent((TreeNode<WidgetEntity>) child);
+            }
+        }
+        assertEquals(minX, node.getMinX());
+        assertEquals(minY, node.getMinY());
+        assertEquals(maxX, node.getMaxX());
+        assertEquals(maxY, node.getMaxY());
+        assertEquals(minZ, node.getMinZ());
+        assertEquals(maxZ, node.getMaxZ());
+        assertEquals(entryCount, node.getEntryCount());
+    }
+
+    private void assertHilbertOrderIsKept(TreeNode<WidgetEntity> node) {
+        for (int i = 1; i < node.getSize(); i++) {
+            assertTrue(Long.compareUnsigned(node.getChild(i - 1).getHilbertValue(), node.getChild(i).getHilbertValue()) <= 0);
+        }
+        assertEquals(node.getChild(node.getSize() - 1).getHilbertValue(), node.getHilbertValue());
+        if (!node.isLeaf()) {
+            node.getChildNodes().forEach(child -> assertHilbertOrderIsKept((TreeNode<WidgetEntity>) child));
+        }
+    }
+
+    private TreeNode<WidgetEntity> findLeaf(TreeNode<WidgetEntity> node, String id) {
+        for (Node<WidgetEntity> child : node.getChildNodes()) {
+            if (node.isLeaf() && ((EntryNode<WidgetEntity>) child).getEntry().getId().equals(id)) {
+                return node;
+            }
+            TreeNode<WidgetEntity> leaf = node.isLeaf() ? null : findLeaf((TreeNode<WidgetEntity>) child, id);
+            if (leaf != null) {
+                return leaf;
+            }
+        }
+        return null;
+    }
+
+    private IntStream leafDepths(TreeNode<WidgetEntity> node, int depth) {
+        if (node.isLeaf()) {
+            return IntStream.of(depth);
+        }
+        return node.getChildNodes().stream()
+                .flatMapToInt(child -> leafDepths((TreeNode<WidgetEntity>) child, depth + 1));
+    }
+
+    private List<WidgetEntity> randomWidgets(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(z -> {
+                    int minX = TestObjectsFactory.randomInt(), minY = TestObjectsFactory.randomInt();
+                    var widget = TestObjectsFactory.randomWidgetWithCoords(minX, minY,
+                            minX + TestObjectsFactory.randomInt(), minY + TestObjectsFactory.randomInt());
+                    widget.setZ(z);
+                    return widget;
+                })
+                .collect(Collectors.toList());
+    }
+
+    private long countVisitedNodes(TreeNode<WidgetEntity> node, SearchArea searchArea) {
+        long visited = 1;
+        if (!node.isLeaf()) {
+            for (Node<WidgetEntity> child : node.getChildNodes()) {
+                if (searchArea.isOverlap(child)) {
+                    visited += countVisitedNodes((TreeNode<WidgetEntity>) child, searchArea);
+                }
+            }
+        }
+        return visited;
+    }
+
+    private EntryNode<WidgetEntity> toEntryNode(WidgetEntity widget) {
+        var node = new EntryNode<>(widget);
+        node.setDimensions(widget);
+        if (widget.getZ() != null) {
+            node.setZ(widget.getZ());
+        }
+        return node;
+    }
+
+    private Set<String> idsOf(List<WidgetEntity> widgets) {
+        Set<String> ids = new HashSet<>();
+        widgets.forEach(w -> ids.add(w.getId()));
+        assertEquals(widgets.size(), ids.size());
+        return ids;
+    }
+
+}
@@ -0,0 +1,176 @@
+package ru.ohapegor.widgets.repository.memory.zorder;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ZOrderTreeTest {
+
+    private final Map<String, Integer> keysById = new HashMap<>();
+
+    private final ZOrderTree tree = new ZOrderTree(keysById::put);
+
+    /**
+     * ids by z indexes, shifted one by one
+     */
+    private final NavigableMap<Integer, String> expected = new TreeMap<>();
+
+    private final Random random = new Random();
+
+    @Test
+    void verifyShiftsMatchShiftingOneByOne() {
+        for (int i = 0; i < 3000; i++) {
+            int z = random.nextInt(2000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    if (!expected.isEmpty()) {
+                        String id = randomId();
+                        expected.values().remove(id);
+                        keysById.remove(id);
+                        assertTrue(tree.remove(id));
+                        assertFalse(tree.remove(id));
+                    }
+                    break;
+                case 1:
+                    assertEquals(shiftExpected(z), tree.shiftUp(z));
+                    break;
+                default:
+                    shiftExpected(z);
+                    tree.shiftUp(z);
+                    String id = "id" + i;
+                    expected.put(z, id);
+                    keysById.put(id, tree.insert(id, z));
+            }
+            if (i % 100 == 0) {
+                verifyTree();
+            }
+        }
+        verifyTree();
+    }
+
+    @Test
+    void verifyKeysAreRelabeledWhenInsertingAtTheSamePlace() {
+        for (int i = 0; i < 1000; i++) {
+            expected.put(2 * i, "id" + i);
+        }
+        Map<String, Integer> zIndexesById = new HashMap<>();
+        expected.forEach((z, id) -> zIndexesById.put(id, z));
+        tree.load(zIndexesById);
+        expected.values().forEach(id -> keysById.put(id, tree.keyOf(id)));
+        verifyTree();
+
+        // every widget is inserted at the same z index, below all previously inserted ones
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(shiftExpected(1001), tree.shiftUp(1001));
+            String id = "inserted" + i;
+            expected.put(1001, id);
+            keysById.put(id, tree.insert(id, 1001));
+        }
+        // appended on top
+        for (int i = 0; i < 5000; i++) {
+            int z = expected.lastKey() + 1;
+            String id = "appended" + i;
+            expected.put(z, id);
+            keysById.put(id, tree.insert(id, z));
+        }
+        verifyTree();
+    }
+
+    @Test
+    void verifyTimeOfTheLastShiftIsKeptForShiftedEntries() {
+        Map<String, Instant> expectedShiftedAt = new HashMap<>();
+        Instant now = Instant.parse("2022-01-01T00:00:00Z");
+        for (int i = 0; i < 2000; i++) {
+            int z = random.nextInt(1000);
+            now = now.plusSeconds(1);
+            for (int current = z; expected.containsKey(current); current++) {
+                expectedShiftedAt.put(expected.get(current), now);
+            }
+            shiftExpected(z);
+            tree.shiftUp(z, now);
+            String id = "id" + i;
+            expected.put(z, id);
+            keysById.put(id, tree.insert(id, z));
+            if (random.nextInt(5) == 0) {
+                String removed = randomId();
+                expected.values().remove(removed);
+                expectedShiftedAt.remove(removed);
+                keysById.remove(removed);
+                assertTrue(tree.remove(removed));
+            }
+        }
+        verifyTree();
+        for (String id : expected.values()) {
+            assertEquals(expectedShiftedAt.get(id), tree.shiftedAtOf(id));
+        }
+    }
+
+    @Test
+    void verifyInvalidOperationsAreRejected() {
+        tree.insert("first", Integer.MAX_VALUE - 1);
+        tree.insert("second", Integer.MAX_VALUE);
+        assertThrows(IllegalArgumentException.class, () -> tree.insert("first", 0));
+        assertThrows(IllegalArgumentException.class, () -> tree.insert("third", Integer.MAX_VALUE));
+        assertThrows(ArithmeticException.class, () -> tree.shiftUp(Integer.MAX_VALUE - 1));
+        assertEquals(Integer.MAX_VALUE - 1, tree.zOf("first"));
+        assertThrows(IllegalArgumentException.class, () -> tree.zOf("third"));
+        assertThrows(IllegalArgumentException.class, () -> tree.load(Map.of("first", 1, "second", 1)));
+        tree.clear();
+        assertEquals(0, tree.size());
+        assertNull(tree.maxZ());
+        assertEquals(0, tree.shiftUp(0));
+    }
+
+    private int shiftExpected(int z) {
+        List<Integer> run = new ArrayList<>();
+        for (int current = z; expected.containsKey(current); current++) {
+            run.add(current);
+        }
+        for (int i = run.size() - 1; i >= 0; i--) {
+            expected.put(run.get(i) + 1, expected.remove(run.get(i)));
+        }
+        return run.size();
+    }
+
+    private String randomId() {
+        List<String> ids = new ArrayList<>(expected.values());
+        return ids.get(random.nextInt(ids.size()));
+    }
+
+    private void verifyTree() {
+        assertEquals(expected.size(), tree.size());
+        assertEquals(expected.isEmpty() ? null : expected.lastKey(), tree.maxZ());
+        Integer previousKey = null;
+        for (var entry : expected.entrySet()) {
+            String id = entry.getValue();
+            assertEquals(entry.getKey(), tree.zOf(id));
+            assertEquals(id, tree.idAt(entry.getKey()));
+            int key = tree.keyOf(id);
+            assertEquals(keysById.get(id), key, "key change must be passed to listener");
+            if (previousKey != null) {
+                assertTrue(previousKey < key);
+            }
+            previousKey = key;
+        }
+        for (int z = -1; z < 2100; z += 7) {
+            Integer ceiling = expected.ceilingKey(z);
+            Integer floor = expected.floorKey(z);
+            assertEquals(ceiling == null ? null : keysById.get(expected.get(ceiling)), tree.ceilingKey(z));
+            assertEquals(floor == null ? null : keysById.get(expected.get(floor)), tree.floorKey(z));
+            assertEquals(expected.containsKey(z) ? expected.get(z) : null, tree.idAt(z));
+        }
+    }
+}
@@ -17,11 +17,14 @@ import ru.ohapegor.widgets.TestObjectsFactory;
 import ru.ohapegor.widgets.config.WidgetServiceProps;
 import ru.ohapegor.widgets.model.SearchArea;
 import ru.ohapegor.widgets.model.WidgetEntity;
+import ru.ohapegor.widgets.repository.SpatialIndexRebuild;
 import ru.ohapegor.widgets.repository.WidgetsRepository;
 
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -36,7 +39,10 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyDouble;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -86,6 +92,80 @@ class WidgetsServiceTest {
         assertEquals(initialZ + 1, captured.getZ());
     }
 
+    @Test
+    void verifyWidgetsAreNotSavedOneByOneIfRepositoryShiftsThem() {
+        //test data preparation
+        var testWidget = TestObjectsFactory.randomWidget();
+
+        //mocks initialization
+        when(repository.existsByZ(testWidget.getZ())).thenReturn(true);
+        when(repository.shiftZ(testWidget.getZ())).thenReturn(true);
+
+        //testing method invocation
+        widgetsService.create(testWidget);
+
+        //verifications
+        verify(repository, never()).findByZ(anyInt());
+        verify(repository, never()).saveAll(any());
+        verify(repository, times(1)).save(testWidget);
+    }
+
+    @Test
+    void verifyOverlappingPairsArePassedToVisitorAfterReadLockIsReleased() {
+        //test data preparation
+        var bottom = TestObjectsFactory.randomWidgetWithCoords(0, 0, 100, 100);
+        bottom.setZ(1);
+        var top = TestObjectsFactory.randomWidgetWithCoords(50, 50, 150, 150);
+        top.setZ(2);
+        var separate = TestObjectsFactory.randomWidgetWithCoords(200, 200, 300, 300);
+        separate.setZ(3);
+
+        //mocks initialization
+        when(repository.getPage(any(), any())).thenReturn(new PageImpl<>(List.of(bottom, top, separate)));
+
+        //testing method invocation
+        List<String> visited = new ArrayList<>();
+        widgetsService.findOverlappingPairs(new SearchArea(), (bottomId, topId) -> {
+            // write lock can't be taken by thread holding read lock
+            widgetsService.deleteById(bottomId);
+            visited.add(bottomId + ":" + topId);
+            return true;
+        });
+
+        //verifications
+        assertEquals(List.of(bottom.getId() + ":" + top.getId()), visited);
+        verify(repository, times(1)).deleteById(bottom.getId());
+        verify(repository, never()).findOverlappingPairs(any(), any());
+    }
+
+    @Test
+    void verifySpatialIndexCalibrationIsMeasuredWithoutLocks() {
+        //mocks initialization
+        List<String> steps = new ArrayList<>();
+        when(repository.prepareSpatialIndexCalibration(anyInt(), anyDouble())).thenReturn(Optional.of(
+                new SpatialIndexRebuild() {
+                    @Override
+                    public void build() {
+                        // write lock can't be taken by thread holding read lock
+                        widgetsService.deleteById("deleted");
+                        steps.add("build");
+                    }
+
+                    @Override
+                    public boolean apply() {
+                        steps.add("apply");
+                        return true;
+                    }
+                }));
+
+        //testing method invocation
+        assertTrue(widgetsService.calibrateSpatialIndex());
+
+        //verifications
+        assertEquals(List.of("build", "apply"), steps);
+        verify(repository, times(1)).deleteById("deleted");
+    }
+
     @Test
     void verifyAllReadOperationsArePerformedInParallel() throws ExecutionException, InterruptedException {
         int readDelayMS = 1000;